@@ -1,5 +1,10 @@
 package com.lexkrstn.recommender.shard;
 
+import com.lexkrstn.recommender.shard.io.EntityDictionary;
+import com.lexkrstn.recommender.shard.io.ItemMatrixStore;
+import com.lexkrstn.recommender.shard.io.NeighbourStore;
+import com.lexkrstn.recommender.shard.io.OwnerFilterStore;
+import com.lexkrstn.recommender.shard.io.PreferenceChangeBulk;
 import com.lexkrstn.recommender.shard.io.PreferenceFile;
 import lombok.Getter;
 import lombok.Setter;
@@ -10,6 +15,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 @Configuration
 @ConfigurationProperties(prefix = "com.lexkrstn.recommender.shard")
@@ -19,18 +26,79 @@ public class ApplicationConfig {
     private final Logger log = LoggerFactory.getLogger(ApplicationConfig.class);
 
     private int maxRecommendTasks;
+    private int maxWriteTasks;
+    private long passReadBudgetMillis;
+    private long passWriteBudgetMillis;
+    private long writeIntervalMillis;
+    private long changeBulkBytes = PreferenceChangeBulk.DEFAULT_MAX_BYTES;
     private String dataFilePath;
+    private int readAheadDepth;
+    private int readBufferBytes;
+    private int neighbourCount;
+    private int maxNeighbourOwners;
+    private long maxNeighbourAgeMillis;
+    private int itemNeighbourCount;
+    private int partitionCount;
+    private int similarityTableCacheSize;
+    private long preferenceCacheBytes;
+    private long similarityTablePoolBytes;
+
+    /**
+     * Returns the absolute path of the data file.
+     */
+    public String getFullDataFilePath() {
+        return dataFilePath.startsWith("/")
+            ? dataFilePath
+            : System.getProperty("user.dir") + "/" + dataFilePath;
+    }
+
+    /**
+     * Returns the absolute path of the data file of the partition.
+     * A single partition uses the data file itself.
+     */
+    public String getPartitionDataFilePath(int partition) {
+        return partitionCount > 1
+            ? getFullDataFilePath() + "." + partition + "-of-" + partitionCount
+            : getFullDataFilePath();
+    }
+
+    /**
+     * The entity dictionary shared by all the partitions, so that their
+     * preference sets are stored with the same dense entity IDs.
+     */
+    @Bean(destroyMethod = "close")
+    public EntityDictionary entityDictionary() throws IOException {
+        return new EntityDictionary(getFullDataFilePath() + ".entities");
+    }
 
     @Bean
-    public RecommenderThread recommenderThread() {
+    public Recommender recommender(EntityDictionary entityDictionary) {
+        List<RecommenderThread> partitions = new ArrayList<>(partitionCount);
         try {
-            String fullPath = dataFilePath.startsWith("/")
-                ? dataFilePath
-                : System.getProperty("user.dir") + "/" + dataFilePath;
-            return new RecommenderThread(new PreferenceFile(fullPath), maxRecommendTasks);
+            for (int i = 0; i < partitionCount; i++) {
+                var dataFilePath = getPartitionDataFilePath(i);
+                var neighbourStore = new NeighbourStore(dataFilePath + ".neighbours",
+                        neighbourCount, maxNeighbourOwners, maxNeighbourAgeMillis);
+                var itemMatrixStore = new ItemMatrixStore(dataFilePath + ".items",
+                        itemNeighbourCount);
+                var partition = new RecommenderThread(
+                        new PreferenceFile(dataFilePath, entityDictionary,
+                                readAheadDepth, readBufferBytes),
+                        new PassBatcher(passReadBudgetMillis, maxRecommendTasks,
+                                passWriteBudgetMillis, maxWriteTasks,
+                                writeIntervalMillis),
+                        neighbourStore, itemMatrixStore,
+                        new OwnerFilterStore(dataFilePath + ".owners"),
+                        changeBulkBytes);
+                partition.setName("recommender-" + i);
+                partitions.add(partition);
+            }
         } catch (IOException e) {
             log.error(e.toString());
+            new Recommender(partitions, 0, 0).quit();
             return null;
         }
+        return new Recommender(partitions, similarityTableCacheSize, preferenceCacheBytes,
+                similarityTablePoolBytes);
     }
 }
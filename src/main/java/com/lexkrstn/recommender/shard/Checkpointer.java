@@ -0,0 +1,33 @@
+package com.lexkrstn.recommender.shard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * The background job that periodically saves the changed derived indexes to
+ * their sidecar files, so that a restart doesn't need to rebuild them.
+ */
+@Component
+public class Checkpointer {
+    private final Logger log = LoggerFactory.getLogger(Checkpointer.class);
+    private final Recommender recommender;
+
+    public Checkpointer(Recommender recommender) {
+        this.recommender = recommender;
+    }
+
+    @Scheduled(fixedDelayString = "${com.lexkrstn.recommender.shard.checkpointDelayMillis}")
+    public void checkpoint() {
+        for (var sidecarStore : recommender.getSidecarStores()) {
+            try {
+                sidecarStore.save();
+            } catch (IOException e) {
+                log.error("Failed to checkpoint sidecar store", e);
+            }
+        }
+    }
+}
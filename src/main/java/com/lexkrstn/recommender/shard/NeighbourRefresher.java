@@ -0,0 +1,41 @@
+package com.lexkrstn.recommender.shard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The background job that periodically computes the neighbour lists of the
+ * most active owners.
+ */
+@Component
+public class NeighbourRefresher {
+    private final Logger log = LoggerFactory.getLogger(NeighbourRefresher.class);
+    private final Recommender recommender;
+    private final int batchSize;
+
+    public NeighbourRefresher(Recommender recommender,
+                              @Value("${com.lexkrstn.recommender.shard.neighbourRefreshBatchSize}")
+                              int batchSize) {
+        this.recommender = recommender;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(fixedDelayString = "${com.lexkrstn.recommender.shard.neighbourRefreshDelayMillis}")
+    public void refresh() {
+        try {
+            int refreshedCount = recommender.refreshNeighbours(batchSize).get();
+            if (refreshedCount > 0) {
+                log.debug("Refreshed {} neighbour lists", refreshedCount);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Failed to refresh neighbour lists", e);
+        }
+    }
+}
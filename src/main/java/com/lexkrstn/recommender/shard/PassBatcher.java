@@ -0,0 +1,165 @@
+package com.lexkrstn.recommender.shard;
+
+import com.lexkrstn.recommender.shard.models.PassStats;
+
+/**
+ * Sizes the batches of the tasks taken per pass of a RecommenderThread so
+ * that the passes fit the latency budgets.
+ *
+ * The read tasks are budgeted by the time of the scan and the write tasks by
+ * the time of executing their changes. The time of a stage is modelled as
+ * a fixed cost of the pass plus a cost per task, fitted by least squares to
+ * the recent passes weighted towards the latest ones. The batch is the
+ * budget less the fixed cost divided by the cost of a task. If the fixed
+ * cost alone takes the budget, no batch fits it, so the batch is the maximum
+ * one, spreading the fixed cost over the most tasks.
+ */
+public class PassBatcher {
+    /**
+     * Fits the time of a pass stage to its number of tasks.
+     */
+    private static class CostModel {
+        /**
+         * The factor the weights of the previous passes are multiplied by
+         * with every pass.
+         */
+        private static final double DECAY = 0.8;
+
+        private final long budgetNanos;
+        private final int maxBatchSize;
+        private int batchSize;
+        private long lastNanos;
+        /**
+         * The weighted sums of the least squares fit of the time of a pass
+         * (y) to its number of tasks (x).
+         */
+        private double weightSum;
+        private double xSum;
+        private double ySum;
+        private double xxSum;
+        private double xySum;
+        private double fixedNanos;
+        private double taskNanos;
+
+        CostModel(long budgetNanos, int maxBatchSize) {
+            this.budgetNanos = budgetNanos;
+            this.maxBatchSize = Math.max(1, maxBatchSize);
+            this.batchSize = Math.max(1, this.maxBatchSize / 10);
+        }
+
+        void record(int taskCount, long nanos) {
+            lastNanos = nanos;
+            if (taskCount == 0) {
+                return;
+            }
+            weightSum = weightSum * DECAY + 1;
+            xSum = xSum * DECAY + taskCount;
+            ySum = ySum * DECAY + nanos;
+            xxSum = xxSum * DECAY + (double) taskCount * taskCount;
+            xySum = xySum * DECAY + (double) taskCount * nanos;
+            fit(taskCount, nanos);
+            if (fixedNanos >= budgetNanos) {
+                batchSize = maxBatchSize;
+                return;
+            }
+            // The batch grows gradually, since the cost may grow with it
+            double fitting = Math.min((budgetNanos - fixedNanos) / taskNanos, batchSize * 2.0);
+            batchSize = (int) Math.max(1, Math.min(fitting, maxBatchSize));
+        }
+
+        /**
+         * Estimates the fixed cost and the cost of a task. Until the passes
+         * have differed in their numbers of tasks enough to tell the costs
+         * apart, the last pass is attributed to its tasks beyond the fixed
+         * cost estimated so far.
+         */
+        private void fit(int taskCount, long nanos) {
+            final double xVariance = xxSum * weightSum - xSum * xSum;
+            if (xVariance > 1e-6 * xxSum * weightSum) {
+                double slope = (xySum * weightSum - xSum * ySum) / xVariance;
+                double intercept = (ySum - slope * xSum) / weightSum;
+                if (slope > 0 && intercept >= 0) {
+                    taskNanos = slope;
+                    fixedNanos = intercept;
+                    return;
+                }
+                if (slope > 0) {
+                    // The time is proportional to the tasks
+                    taskNanos = xySum / xxSum;
+                    fixedNanos = 0;
+                    return;
+                }
+            }
+            fixedNanos = Math.min(fixedNanos, nanos);
+            taskNanos = Math.max(1.0, (nanos - fixedNanos) / taskCount);
+        }
+    }
+
+    private final CostModel readModel;
+    private final CostModel writeModel;
+    private final long writeIntervalNanos;
+
+    /**
+     * @param readBudgetMillis The target time of the scan.
+     * @param maxReadTasks The maximum number of the recommendation tasks per pass.
+     * @param writeBudgetMillis The target time of executing the changes.
+     * @param maxWriteTasks The maximum number of the write tasks per pass.
+     * @param writeIntervalMillis The minimum time between executing the
+     *                            changes in the middle of a pass or 0 to
+     *                            execute them at the end of a pass only.
+     */
+    public PassBatcher(long readBudgetMillis, int maxReadTasks,
+                       long writeBudgetMillis, int maxWriteTasks,
+                       long writeIntervalMillis) {
+        readModel = new CostModel(readBudgetMillis * 1_000_000, maxReadTasks);
+        writeModel = new CostModel(writeBudgetMillis * 1_000_000, maxWriteTasks);
+        writeIntervalNanos = writeIntervalMillis * 1_000_000;
+    }
+
+    /**
+     * Returns the maximum number of the recommendation tasks to take for the
+     * next pass, including the ones proceeding from the previous pass.
+     */
+    public synchronized int getReadBatchSize() {
+        return readModel.batchSize;
+    }
+
+    /**
+     * Returns the maximum number of the write tasks to take for the next pass.
+     */
+    public synchronized int getWriteBatchSize() {
+        return writeModel.batchSize;
+    }
+
+    /**
+     * Returns the minimum time between executing the changes of the write
+     * tasks in the middle of a pass or 0 if they're executed at the end of
+     * a pass only.
+     */
+    public long getWriteIntervalNanos() {
+        return writeIntervalNanos;
+    }
+
+    /**
+     * Updates the batch sizes with the measurements of a finished pass.
+     *
+     * @param readTaskCount The number of the recommendation tasks scanned with.
+     * @param scanNanos The time of the scan.
+     * @param writeTaskCount The number of the write tasks executed.
+     * @param executeNanos The time of executing the changes, including the
+     *                     ones executed in the middle of the pass.
+     */
+    public synchronized void recordPass(int readTaskCount, long scanNanos,
+                                        int writeTaskCount, long executeNanos) {
+        readModel.record(readTaskCount, scanNanos);
+        writeModel.record(writeTaskCount, executeNanos);
+    }
+
+    /**
+     * Returns the current batch sizes and the times of the last pass.
+     */
+    public synchronized PassStats getStats() {
+        return new PassStats(readModel.batchSize, writeModel.batchSize,
+                readModel.lastNanos / 1_000_000, writeModel.lastNanos / 1_000_000);
+    }
+}
@@ -0,0 +1,502 @@
+package com.lexkrstn.recommender.shard;
+
+import com.lexkrstn.recommender.shard.io.ItemMatrixStore;
+import com.lexkrstn.recommender.shard.io.PreferenceSetCache;
+import com.lexkrstn.recommender.shard.io.PreferenceStream;
+import com.lexkrstn.recommender.shard.io.SidecarStore;
+import com.lexkrstn.recommender.shard.io.SimilarityTableCache;
+import com.lexkrstn.recommender.shard.models.*;
+import com.lexkrstn.recommender.shard.tasks.RefreshNeighboursTask;
+import com.lexkrstn.recommender.shard.tasks.RequestTrace;
+import com.lexkrstn.recommender.shard.tasks.ScanOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Spreads the preference sets over several partitions by owner ID hash.
+ * Every partition has its own data file, RecommenderThread (thus its own
+ * scan thread and change bulk) and derived indexes, so that the partitions
+ * are scanned in parallel. The writes and the point reads are routed to the
+ * partition of the owner, whereas the similarity tables are built by all the
+ * partitions and merged.
+ *
+ * The partition of an owner depends on the number of the partitions, so the
+ * number cannot be changed without moving the preference sets by means of
+ * export and import.
+ *
+ * The similarity tables of the recently recommended owners are cached and
+ * kept up to date by the changes of all the partitions, so the follow-up
+ * recommendations are built without a pass. Likewise, the preference sets
+ * of the most active owners are cached, so that the point reads and the
+ * lookups of the recommendation targets need no pass.
+ */
+public class Recommender {
+    private final Logger log = LoggerFactory.getLogger(Recommender.class);
+    private final List<RecommenderThread> partitions;
+    private final List<ItemMatrixStore> itemMatrixStores;
+    private final SimilarityTableCache similarityTableCache;
+    private final PreferenceSetCache preferenceSetCache;
+
+    /**
+     * @param partitions The partitions in the order of their indexes.
+     * @param similarityTableCacheSize The maximum number of the similarity
+     *                                 tables to cache.
+     * @param preferenceCacheBytes The maximum memory the cached preference
+     *                             sets may take.
+     */
+    public Recommender(List<RecommenderThread> partitions, int similarityTableCacheSize,
+                       long preferenceCacheBytes) {
+        this(partitions, similarityTableCacheSize, preferenceCacheBytes, 0);
+    }
+
+    /**
+     * @param partitions The partitions in the order of their indexes.
+     * @param similarityTableCacheSize The maximum number of the similarity
+     *                                 tables to cache.
+     * @param preferenceCacheBytes The maximum memory the cached preference
+     *                             sets may take.
+     * @param similarityTablePoolBytes The maximum memory the similarity
+     *                                 tables kept for reuse may take.
+     */
+    public Recommender(List<RecommenderThread> partitions, int similarityTableCacheSize,
+                       long preferenceCacheBytes, long similarityTablePoolBytes) {
+        this.partitions = List.copyOf(partitions);
+        this.itemMatrixStores = partitions.stream()
+                .map(RecommenderThread::getItemMatrixStore)
+                .toList();
+        this.similarityTableCache = new SimilarityTableCache(similarityTableCacheSize);
+        this.preferenceSetCache = new PreferenceSetCache(preferenceCacheBytes);
+        var similarityTablePool = new SimilarityTablePool(similarityTablePoolBytes);
+        for (var partition : partitions) {
+            partition.setSimilarityTablePool(similarityTablePool);
+            partition.addChangeListener(similarityTableCache);
+            partition.addChangeListener(preferenceSetCache);
+            partition.addReadListener(preferenceSetCache::admit);
+        }
+    }
+
+    /**
+     * Returns the index of the partition the preference set of the owner
+     * belongs to.
+     */
+    public static int getPartitionIndex(long ownerId, int partitionCount) {
+        // Mixing the bits spreads the sequential IDs evenly
+        return Math.floorMod(Long.hashCode(ownerId * 0x9E3779B97F4A7C15L), partitionCount);
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Returns the partition the preference set of the owner belongs to.
+     */
+    public RecommenderThread getPartition(long ownerId) {
+        return partitions.get(getPartitionIndex(ownerId, partitions.size()));
+    }
+
+    /**
+     * Returns false if the owner definitely has no preference set, so that
+     * the requests for the unknown owners needn't wait for a pass.
+     */
+    public boolean mightHaveOwner(long ownerId) {
+        return getPartition(ownerId).getOwnerFilterStore().mightContain(ownerId);
+    }
+
+    /**
+     * Returns the derived indexes of all the partitions.
+     */
+    public List<SidecarStore> getSidecarStores() {
+        List<SidecarStore> sidecarStores = new ArrayList<>(partitions.size() * 3);
+        for (var partition : partitions) {
+            sidecarStores.add(partition.getNeighbourStore());
+            sidecarStores.add(partition.getItemMatrixStore());
+            sidecarStores.add(partition.getOwnerFilterStore());
+        }
+        return sidecarStores;
+    }
+
+    /**
+     * Returns the batch sizes and the last pass times of all the partitions
+     * in the order of their indexes.
+     */
+    public List<PassStats> getPassStats() {
+        return partitions.stream()
+                .map(RecommenderThread::getPassStats)
+                .toList();
+    }
+
+    /**
+     * Stops all the partitions and waits till they save their state.
+     */
+    @PreDestroy
+    public void quit() {
+        for (var partition : partitions) {
+            partition.quit();
+        }
+        try {
+            for (var partition : partitions) {
+                partition.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Builds recommendations for the owner.
+     *
+     * If the scan is cut short by the deadline, the result is built from the
+     * similarity table built so far. The full table, which the tasks keeping
+     * scanning build anyway, is cached instead of it. The table built from a
+     * sample of the preference sets isn't cached.
+     *
+     * @param ownerId To whom to recommend.
+     * @param engine The algorithm to recommend with.
+     * @param scanOptions The bounds of the scan of the user engine.
+     * @param trace The trace of the request to record the task to or null.
+     * @return Recommendations or null if no preference set with such ownerId found.
+     */
+    public CompletableFuture<RecommendationResult> recommend(long ownerId,
+                                                             RecommendationEngine engine,
+                                                             ScanOptions scanOptions,
+                                                             RequestTrace trace) {
+        if (!mightHaveOwner(ownerId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (engine == RecommendationEngine.ITEM) {
+            var cachedSet = preferenceSetCache.get(ownerId);
+            if (cachedSet != null) {
+                return CompletableFuture.completedFuture(RecommendationResult.of(
+                        ItemMatrixStore.getRecommendationList(cachedSet, itemMatrixStores)));
+            }
+            if (partitions.size() == 1) {
+                return partitions.get(0).recommend(ownerId, engine, trace)
+                        .thenApply(RecommendationResult::of);
+            }
+            return getPreferenceSet(ownerId, trace).thenApplyAsync(preferenceSet -> preferenceSet != null
+                    ? RecommendationResult.of(ItemMatrixStore.getRecommendationList(
+                            preferenceSet, itemMatrixStores))
+                    : null);
+        }
+        var neighbourStore = getPartition(ownerId).getNeighbourStore();
+        neighbourStore.markActive(ownerId);
+        var recommendations = similarityTableCache.getRecommendationList(ownerId);
+        if (recommendations != null) {
+            return CompletableFuture.completedFuture(RecommendationResult.of(recommendations));
+        }
+        var neighbourList = neighbourStore.getFresh(ownerId);
+        var build = similarityTableCache.startBuilding();
+        CompletableFuture<SimilarityTable> fullTableFuture = scanOptions.hasDeadline()
+                ? new CompletableFuture<>()
+                : null;
+        CompletableFuture<SimilarityTable> future;
+        var cachedSet = preferenceSetCache.get(ownerId);
+        if (cachedSet != null) {
+            future = partitions.size() == 1
+                    ? partitions.get(0).buildSimilarityTable(cachedSet, neighbourList,
+                            scanOptions, fullTableFuture, trace)
+                    : buildSimilarityTable(cachedSet, neighbourList, scanOptions,
+                            fullTableFuture, trace);
+        } else if (partitions.size() == 1) {
+            future = partitions.get(0).buildSimilarityTable(ownerId, neighbourList, scanOptions,
+                    fullTableFuture, trace);
+        } else {
+            future = getPreferenceSet(ownerId, trace).thenComposeAsync(preferenceSet -> {
+                if (preferenceSet == null) {
+                    if (fullTableFuture != null) {
+                        fullTableFuture.complete(null);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                }
+                return buildSimilarityTable(preferenceSet, neighbourList, scanOptions,
+                        fullTableFuture, trace);
+            });
+        }
+        return future
+                .whenComplete((similarityTable, e) -> {
+                    if (e != null) {
+                        similarityTableCache.cancelBuilding(build);
+                    }
+                })
+                .thenApply(similarityTable -> {
+                    // The table may be released by finishBuilding(), so the
+                    // full one is waited for only if this one is partial
+                    if (similarityTable != null && similarityTable.isPartial()) {
+                        if (fullTableFuture != null) {
+                            fullTableFuture.thenAccept(fullTable ->
+                                    similarityTableCache.finishBuilding(build, fullTable));
+                        }
+                        return RecommendationResult.of(similarityTable);
+                    }
+                    return similarityTableCache.finishBuilding(build, similarityTable);
+                });
+    }
+
+    /**
+     * Computes the neighbour lists of the owners of every partition which
+     * need them the most and puts them into the neighbour stores.
+     *
+     * @param batchSize The maximum number of the lists per partition.
+     * @return The number of the lists computed.
+     */
+    public CompletableFuture<Integer> refreshNeighbours(int batchSize) {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(partitions.size());
+        for (var partition : partitions) {
+            var ownerIds = partition.getNeighbourStore().getOwnersToRefresh(batchSize);
+            if (ownerIds.isEmpty()) {
+                continue;
+            }
+            if (partitions.size() == 1) {
+                futures.add(partition.refreshNeighbours(ownerIds));
+                continue;
+            }
+            futures.add(getPreferenceSets(partition, ownerIds, null).thenComposeAsync(preferenceSets -> {
+                if (preferenceSets.isEmpty()) {
+                    return CompletableFuture.completedFuture(0);
+                }
+                return buildSimilarityTables(preferenceSets.values(),
+                        partition.getNeighbourStore().getNeighbourCount())
+                        .thenApplyAsync(neighbourLists -> {
+                            for (var neighbourList : neighbourLists) {
+                                partition.getNeighbourStore().put(neighbourList);
+                            }
+                            return neighbourLists.size();
+                        });
+            }));
+        }
+        return sum(futures);
+    }
+
+    public CompletableFuture<Boolean> addPreference(Preference preference) {
+        return getPartition(preference.getOwnerId()).addPreference(preference);
+    }
+
+    public CompletableFuture<Boolean> removePreference(Preference preference) {
+        return getPartition(preference.getOwnerId()).removePreference(preference);
+    }
+
+    public CompletableFuture<List<Long>> getPreferences(long ownerId) {
+        var preferenceSet = preferenceSetCache.get(ownerId);
+        if (preferenceSet != null) {
+            return CompletableFuture.completedFuture(preferenceSet.getEntityIds().stream().toList());
+        }
+        if (!mightHaveOwner(ownerId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return getPartition(ownerId).getPreferences(ownerId);
+    }
+
+    /**
+     * Writes a page of the preference sets of the owner ID range to the
+     * spool file ordered by owner ID.
+     *
+     * @param fromOwnerId The least owner ID of the range.
+     * @param toOwnerId The greatest owner ID of the range.
+     * @param limit The maximum number of the sets in the page.
+     * @param spoolPath The file to write the page to.
+     * @return The owner ID to export the next page from or null if there're
+     *         no more pages.
+     */
+    public CompletableFuture<Long> exportPreferences(long fromOwnerId, long toOwnerId,
+                                                     int limit, Path spoolPath) {
+        if (partitions.size() == 1) {
+            return partitions.get(0).exportPreferences(fromOwnerId, toOwnerId, limit, spoolPath);
+        }
+        List<Path> partitionSpoolPaths = new ArrayList<>(partitions.size());
+        List<CompletableFuture<Long>> futures = new ArrayList<>(partitions.size());
+        try {
+            for (var partition : partitions) {
+                var partitionSpoolPath = Files.createTempFile("partition-", ".export");
+                partitionSpoolPaths.add(partitionSpoolPath);
+                futures.add(partition.exportPreferences(fromOwnerId, toOwnerId, limit,
+                        partitionSpoolPath));
+            }
+        } catch (IOException e) {
+            deleteFiles(partitionSpoolPaths);
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    // A full page of a partition may miss the sets the other
+                    // partitions have beyond its last owner
+                    long maxOwnerId = toOwnerId;
+                    for (var future : futures) {
+                        var nextOwnerId = future.join();
+                        if (nextOwnerId != null) {
+                            maxOwnerId = Math.min(maxOwnerId, nextOwnerId - 1);
+                        }
+                    }
+                    try {
+                        var nextOwnerId = PreferenceStream.merge(partitionSpoolPaths, spoolPath,
+                                maxOwnerId, limit);
+                        if (nextOwnerId != null) {
+                            return nextOwnerId;
+                        }
+                        return maxOwnerId < toOwnerId ? maxOwnerId + 1 : null;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .whenComplete((nextOwnerId, e) -> deleteFiles(partitionSpoolPaths));
+    }
+
+    /**
+     * Merges the preference sets into the ones of the same owners and adds
+     * the sets of the new owners.
+     *
+     * @param preferenceSets The sets to import. They must not be used by the
+     *                       caller anymore.
+     * @return The number of the distinct owners imported.
+     */
+    public CompletableFuture<Integer> importPreferences(List<PreferenceSet> preferenceSets) {
+        if (partitions.size() == 1) {
+            return partitions.get(0).importPreferences(preferenceSets);
+        }
+        List<List<PreferenceSet>> partitionSets = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            partitionSets.add(new ArrayList<>());
+        }
+        for (var preferenceSet : preferenceSets) {
+            partitionSets.get(getPartitionIndex(preferenceSet.getOwnerId(), partitions.size()))
+                    .add(preferenceSet);
+        }
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!partitionSets.get(i).isEmpty()) {
+                futures.add(partitions.get(i).importPreferences(partitionSets.get(i)));
+            }
+        }
+        return sum(futures);
+    }
+
+    private CompletableFuture<PreferenceSet> getPreferenceSet(long ownerId, RequestTrace trace) {
+        return getPreferenceSets(getPartition(ownerId), List.of(ownerId), trace)
+                .thenApply(preferenceSets -> preferenceSets.get(ownerId));
+    }
+
+    /**
+     * Finds the preference sets of the owners of the partition. The cached
+     * sets are taken from the cache, so a pass is needed only for the rest.
+     */
+    private CompletableFuture<Map<Long, PreferenceSet>> getPreferenceSets(
+            RecommenderThread partition, Collection<Long> ownerIds, RequestTrace trace) {
+        var found = preferenceSetCache.getAll(ownerIds);
+        if (found.size() == ownerIds.size()) {
+            return CompletableFuture.completedFuture(found);
+        }
+        var missingOwnerIds = ownerIds.stream()
+                .filter(ownerId -> !found.containsKey(ownerId))
+                .toList();
+        return partition.getPreferenceSets(missingOwnerIds, trace).thenApply(preferenceSets -> {
+            preferenceSets.putAll(found);
+            return preferenceSets;
+        });
+    }
+
+    /**
+     * Builds the similarity table of the preference set in every partition
+     * and merges the tables.
+     *
+     * @param fullTableFuture The future to pass the merged table to once all
+     *                        the tasks complete or null.
+     */
+    private CompletableFuture<SimilarityTable> buildSimilarityTable(
+            PreferenceSet preferenceSet, NeighbourList neighbourList, ScanOptions scanOptions,
+            CompletableFuture<SimilarityTable> fullTableFuture, RequestTrace trace) {
+        List<CompletableFuture<SimilarityTable>> futures = new ArrayList<>(partitions.size());
+        List<CompletableFuture<SimilarityTable>> fullTableFutures = new ArrayList<>();
+        for (var partition : partitions) {
+            CompletableFuture<SimilarityTable> partitionFullTableFuture = fullTableFuture != null
+                    ? new CompletableFuture<>()
+                    : null;
+            futures.add(partition.buildSimilarityTable(preferenceSet, neighbourList, scanOptions,
+                    partitionFullTableFuture, trace));
+            if (partitionFullTableFuture != null) {
+                fullTableFutures.add(partitionFullTableFuture);
+            }
+        }
+        if (fullTableFuture != null) {
+            mergeSimilarityTables(fullTableFutures, false).thenAccept(fullTableFuture::complete);
+        }
+        // The tables of the partitions might be merged again along with the
+        // full ones if the scan is cut short
+        return mergeSimilarityTables(futures, fullTableFuture == null);
+    }
+
+    /**
+     * Merges the similarity tables of the same preference set built by the
+     * partitions.
+     *
+     * @param owned Whether the tables are merged only once, so that they're
+     *              merged into the first one and released. Otherwise, they're
+     *              merged into a new table and left as is.
+     */
+    private static CompletableFuture<SimilarityTable> mergeSimilarityTables(
+            List<CompletableFuture<SimilarityTable>> futures, boolean owned) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    var similarityTable = owned
+                            ? futures.get(0).join()
+                            : futures.get(0).join().copy();
+                    for (int i = 1; i < futures.size(); i++) {
+                        var partitionTable = futures.get(i).join();
+                        similarityTable.putAll(partitionTable);
+                        if (owned) {
+                            partitionTable.release();
+                        }
+                    }
+                    return similarityTable;
+                });
+    }
+
+    /**
+     * Builds the similarity tables of the preference sets in every partition
+     * and creates the neighbour lists from the merged tables.
+     */
+    private CompletableFuture<List<NeighbourList>> buildSimilarityTables(
+            Collection<PreferenceSet> preferenceSets, int neighbourCount) {
+        final long computeTimeMillis = System.currentTimeMillis();
+        List<CompletableFuture<Map<Long, SimilarityTable>>> futures = partitions.stream()
+                .map(partition -> partition.buildSimilarityTables(preferenceSets, neighbourCount,
+                        computeTimeMillis))
+                .toList();
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    var similarityTables = futures.get(0).join();
+                    for (int i = 1; i < futures.size(); i++) {
+                        var partitionTables = futures.get(i).join();
+                        partitionTables.forEach((ownerId, similarityTable) ->
+                                similarityTables.get(ownerId).putAll(similarityTable));
+                        RefreshNeighboursTask.releaseSimilarityTables(partitionTables);
+                    }
+                    var neighbourLists = RefreshNeighboursTask.getNeighbourLists(
+                            similarityTables, computeTimeMillis);
+                    RefreshNeighboursTask.releaseSimilarityTables(similarityTables);
+                    return neighbourLists;
+                });
+    }
+
+    private static CompletableFuture<Integer> sum(List<CompletableFuture<Integer>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> futures.stream().mapToInt(CompletableFuture::join).sum());
+    }
+
+    private void deleteFiles(List<Path> paths) {
+        for (var path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.error("Failed to delete " + path, e);
+            }
+        }
+    }
+}
@@ -1,62 +1,300 @@
 package com.lexkrstn.recommender.shard;
 
+import com.lexkrstn.recommender.shard.io.ItemMatrixStore;
+import com.lexkrstn.recommender.shard.io.NeighbourStore;
+import com.lexkrstn.recommender.shard.io.OwnerFilterStore;
 import com.lexkrstn.recommender.shard.io.PreferenceChangeBulk;
 import com.lexkrstn.recommender.shard.io.PreferenceDataSource;
+import com.lexkrstn.recommender.shard.io.PreferenceSetFilter;
+import com.lexkrstn.recommender.shard.models.BatchScorer;
+import com.lexkrstn.recommender.shard.models.NeighbourList;
+import com.lexkrstn.recommender.shard.models.PassStats;
 import com.lexkrstn.recommender.shard.models.Preference;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
 import com.lexkrstn.recommender.shard.models.Recommendation;
+import com.lexkrstn.recommender.shard.models.RecommendationEngine;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import com.lexkrstn.recommender.shard.models.SimilarityTable;
+import com.lexkrstn.recommender.shard.models.SimilarityTablePool;
 import com.lexkrstn.recommender.shard.tasks.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 /**
  * The background process that runs recommendation and preference tasks.
  */
 public class RecommenderThread extends Thread {
+    /**
+     * Lets the data source skip the preference sets none of the taken tasks
+     * is interested in.
+     */
+    private class TakenTaskFilter implements PreferenceSetFilter {
+        @Override
+        public boolean accept(long ownerId, int entityCount) {
+            for (var task : takenTasks) {
+                if (task.isInterestedIn(ownerId, entityCount)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean acceptSizeRange(int minEntityCount, int maxEntityCount) {
+            for (var task : takenTasks) {
+                if (task.isInterestedInSizeRange(minEntityCount, maxEntityCount)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the size preferred by the first task having a preference.
+         */
+        @Override
+        public int getPreferredEntityCount() {
+            for (var task : takenTasks) {
+                int entityCount = task.getPreferredEntityCount();
+                if (entityCount >= 0) {
+                    return entityCount;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The number of the preference sets read between the checks of the
+     * deadlines of the recommendation tasks and of the write tasks whose
+     * changes may be executed.
+     */
+    private static final int CHECK_INTERVAL = 256;
+
     private final Logger log = LoggerFactory.getLogger(RecommenderThread.class);
 
     private final PreferenceDataSource dataSource;
-    private final int maxRecommendTasks;
+    private final PassBatcher passBatcher;
     private final PreferenceChangeBulk changeBulk;
+    private final NeighbourStore neighbourStore;
+    private final ItemMatrixStore itemMatrixStore;
+    private final OwnerFilterStore ownerFilterStore;
+    /**
+     * Scores the scanned preference sets for the tasks of a pass. It's
+     * reused by the passes, so that its index isn't reallocated.
+     */
+    private final BatchScorer scorer = new BatchScorer();
     private final List<AbstractTask> tasks = new LinkedList<>();
     private LinkedList<AbstractTask> takenTasks = new LinkedList<>();
+    /**
+     * The completions of the write tasks, which run once their changes are
+     * written to the data source.
+     */
+    private final List<Runnable> writeCompletions = new LinkedList<>();
+    private final List<AbstractTask.ReadListener> readListeners = new CopyOnWriteArrayList<>();
     private boolean shouldQuit = false;
+    /**
+     * The pool to take the similarity tables of the tasks from or null.
+     */
+    private SimilarityTablePool similarityTablePool;
+
+    public RecommenderThread(PreferenceDataSource dataSource, PassBatcher passBatcher,
+                             NeighbourStore neighbourStore,
+                             ItemMatrixStore itemMatrixStore,
+                             OwnerFilterStore ownerFilterStore) throws IOException {
+        this(dataSource, passBatcher, neighbourStore, itemMatrixStore, ownerFilterStore,
+             PreferenceChangeBulk.DEFAULT_MAX_BYTES);
+    }
 
-    public RecommenderThread(PreferenceDataSource dataSource, int maxRecommendTasks) {
+    /**
+     * @param maxChangeBytes The memory the preference sets changed in a pass
+     *                       may take before the changes are spilled to a
+     *                       temporary file (0 - unbounded).
+     */
+    public RecommenderThread(PreferenceDataSource dataSource, PassBatcher passBatcher,
+                             NeighbourStore neighbourStore,
+                             ItemMatrixStore itemMatrixStore,
+                             OwnerFilterStore ownerFilterStore,
+                             long maxChangeBytes) throws IOException {
         this.dataSource = dataSource;
-        this.changeBulk = new PreferenceChangeBulk(dataSource);
-        this.maxRecommendTasks = maxRecommendTasks;
+        this.changeBulk = new PreferenceChangeBulk(dataSource, maxChangeBytes);
+        this.passBatcher = passBatcher;
+        this.neighbourStore = neighbourStore;
+        this.itemMatrixStore = itemMatrixStore;
+        this.ownerFilterStore = ownerFilterStore;
+        changeBulk.addChangeListener((originalPreferenceSet, preferenceSet) ->
+                neighbourStore.markChanged(preferenceSet.getOwnerId()));
+        changeBulk.addChangeListener(itemMatrixStore);
+        changeBulk.addChangeListener(ownerFilterStore);
+        neighbourStore.load(dataSource.getChangeSequence());
+        if (!itemMatrixStore.load(dataSource.getChangeSequence())) {
+            buildItemMatrix();
+        }
+        if (!ownerFilterStore.load(dataSource.getChangeSequence())) {
+            buildOwnerFilter();
+        }
+        dataSource.setFilter(new TakenTaskFilter());
         start();
     }
 
+    public NeighbourStore getNeighbourStore() {
+        return neighbourStore;
+    }
+
+    public ItemMatrixStore getItemMatrixStore() {
+        return itemMatrixStore;
+    }
+
+    public OwnerFilterStore getOwnerFilterStore() {
+        return ownerFilterStore;
+    }
+
+    /**
+     * Returns the current batch sizes and the times of the last pass.
+     */
+    public PassStats getPassStats() {
+        return passBatcher.getStats();
+    }
+
+    /**
+     * Adds the listener that executes in this thread upon every preference
+     * set change written to the data source.
+     */
+    public void addChangeListener(PreferenceChangeBulk.ChangeListener listener) {
+        changeBulk.addChangeListener(listener);
+    }
+
+    /**
+     * Sets the pool to take the similarity tables of the tasks from.
+     */
+    public synchronized void setSimilarityTablePool(SimilarityTablePool similarityTablePool) {
+        this.similarityTablePool = similarityTablePool;
+    }
+
+    /**
+     * Adds the listener that executes in this thread upon every preference
+     * set looked up by its owner ID, right as it's read from the data source.
+     */
+    public void addReadListener(AbstractTask.ReadListener listener) {
+        readListeners.add(listener);
+    }
+
     @Override
     public void run() {
         log.info("Started recommendation thread");
         try {
             while (takeTasks()) {
-                while (dataSource.hasNext()) {
-                    var preferenceSet = dataSource.next();
+                int readTaskCount = 0;
+                int writeTaskCount = 0;
+                List<RecommendTask> deadlineTasks = new LinkedList<>();
+                scorer.clear();
+                for (var task : takenTasks) {
+                    task.prepareScoring(scorer);
+                    if (task instanceof RecommendTask recommendTask) {
+                        readTaskCount++;
+                        if (recommendTask.hasDeadline()) {
+                            deadlineTasks.add(recommendTask);
+                        }
+                        if (recommendTask.isSampling()) {
+                            recommendTask.prepareSampling(dataSource.getSizeHistogram());
+                        }
+                    } else if (task.isWriting()) {
+                        writeTaskCount++;
+                    }
+                }
+                long scanStartNanos = System.nanoTime();
+                for (var task : takenTasks) {
+                    task.getTrace().markPassStarted(scanStartNanos);
+                }
+                // The deadlines may have passed during the previous pass or
+                // the changes executed after it
+                if (!deadlineTasks.isEmpty()) {
+                    expireTasks(deadlineTasks);
+                }
+                final long writeIntervalNanos = passBatcher.getWriteIntervalNanos();
+                long lastExecuteNanos = scanStartNanos;
+                // The scan is budgeted without the changes executed during it
+                long midPassExecuteNanos = 0;
+                int setsSinceCheck = 0;
+                while (dataSource.next()) {
+                    var preferenceSet = dataSource.getCurrent();
+                    if (!scorer.isEmpty()) {
+                        scorer.score(preferenceSet);
+                    }
                     for (var task : takenTasks) {
                         task.processPreferenceSet(preferenceSet);
                     }
+                    if (++setsSinceCheck < CHECK_INTERVAL) {
+                        continue;
+                    }
+                    setsSinceCheck = 0;
+                    if (!deadlineTasks.isEmpty()) {
+                        expireTasks(deadlineTasks);
+                    }
+                    if (writeTaskCount > 0 && writeIntervalNanos > 0
+                            && System.nanoTime() - lastExecuteNanos >= writeIntervalNanos) {
+                        midPassExecuteNanos += executeResolvedWrites();
+                        lastExecuteNanos = System.nanoTime();
+                    }
+                    if (changeBulk.isOverBudget()) {
+                        long spillStartNanos = System.nanoTime();
+                        changeBulk.spill();
+                        midPassExecuteNanos += System.nanoTime() - spillStartNanos;
+                    }
+                }
+                long scanEndNanos = System.nanoTime();
+                // The sets added during the scan are left for the next one
+                long setCount = dataSource.getScanPreferenceSetCount();
+                for (var task : takenTasks) {
+                    task.getTrace().markPassEnded(scanEndNanos);
+                    if (task instanceof RecommendTask recommendTask) {
+                        recommendTask.recordFullScan(setCount);
+                    }
                 }
                 log.debug("Taken {} tasks", takenTasks.size());
                 takenTasks = takenTasks.stream()
                         .filter(AbstractTask::proceedPass)
                         .collect(Collectors.toCollection(LinkedList<AbstractTask>::new));
-                changeBulk.execute();
+                long executeStartNanos = System.nanoTime();
+                executeChanges();
+                passBatcher.recordPass(readTaskCount,
+                        scanEndNanos - scanStartNanos - midPassExecuteNanos, writeTaskCount,
+                        System.nanoTime() - executeStartNanos + midPassExecuteNanos);
+                if (ownerFilterStore.needsBuilding()) {
+                    synchronized (this) {
+                        buildOwnerFilter();
+                    }
+                }
                 dataSource.rewind();
             }
             log.info("Stopped recommendation thread");
         } catch (Throwable e) {
             log.error("Recommender thread stopped due to error", e);
         } finally {
+            for (var sidecarStore : List.of(neighbourStore, itemMatrixStore,
+                                                   ownerFilterStore)) {
+                try {
+                    sidecarStore.save();
+                } catch (IOException e) {
+                    log.error("Cannot save sidecar store", e);
+                }
+            }
+            try {
+                changeBulk.close();
+            } catch (IOException e) {
+                log.error("Cannot delete change spill file", e);
+            }
             try {
                 dataSource.close();
             } catch (Exception e) {
@@ -72,50 +310,351 @@ public class RecommenderThread extends Thread {
         notifyAll();
     }
 
-    private boolean takeTasks() {
-        synchronized (this) {
-            try {
-                while (!shouldQuit && takenTasks.isEmpty() && tasks.isEmpty()) {
-                    wait();
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return false;
-            }
-            if (shouldQuit) return false;
-
-            long recommendTaskCount = takenTasks.stream()
-                    .filter(task -> task instanceof RecommendTask)
-                    .count();
-            for (var iterator = tasks.iterator(); iterator.hasNext();) {
-                var task = iterator.next();
-                if (task instanceof RecommendTask) {
-                    if (recommendTaskCount < maxRecommendTasks) {
-                        recommendTaskCount++;
-                        takenTasks.add(task);
-                        iterator.remove();
+    /**
+     * Waits for the tasks and takes the queued ones fitting into the budgets
+     * of the pass. The recommendation tasks whose deadlines have passed in
+     * the queue are expired first, and the ones which don't keep scanning
+     * leave it.
+     *
+     * @return False if the thread must quit.
+     */
+    private boolean takeTasks() throws IOException {
+        while (true) {
+            final List<RecommendTask> expiredTasks = new LinkedList<>();
+            synchronized (this) {
+                try {
+                    while (!shouldQuit && takenTasks.isEmpty() && tasks.isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (shouldQuit) return false;
+
+                final long nowNanos = System.nanoTime();
+                for (var task : tasks) {
+                    if (task instanceof RecommendTask recommendTask
+                            && recommendTask.isExpired(nowNanos)) {
+                        expiredTasks.add(recommendTask);
+                    }
+                }
+                if (expiredTasks.isEmpty()) {
+                    takeQueuedTasks(nowNanos);
+                    return true;
+                }
+            }
+            // The listeners are executed without holding the lock
+            final long setCount = dataSource.getPreferenceSetCount();
+            for (var task : expiredTasks) {
+                if (task.expire(0, setCount)) {
+                    synchronized (this) {
+                        tasks.remove(task);
                     }
-                } else {
-                    takenTasks.add(task);
-                    iterator.remove();
                 }
             }
         }
-        return true;
     }
 
     /**
-     * Adds a recommendation task.
+     * Takes the queued tasks fitting into the budgets of the pass.
+     * It must be called holding the lock of this object.
+     */
+    private void takeQueuedTasks(long nowNanos) {
+        final int maxRecommendTasks = passBatcher.getReadBatchSize();
+        final int maxWriteTasks = passBatcher.getWriteBatchSize();
+        long recommendTaskCount = takenTasks.stream()
+                .filter(task -> task instanceof RecommendTask)
+                .count();
+        int writeTaskCount = 0;
+        for (var iterator = tasks.iterator(); iterator.hasNext();) {
+            var task = iterator.next();
+            task.getTrace().markBoundary(nowNanos);
+            if (task instanceof RecommendTask) {
+                if (recommendTaskCount >= maxRecommendTasks) {
+                    continue;
+                }
+                recommendTaskCount++;
+            } else if (task.isWriting()) {
+                // Once the budget is exhausted, the rest of the writes
+                // wait as well, so that they're executed in order
+                if (writeTaskCount >= maxWriteTasks) {
+                    continue;
+                }
+                writeTaskCount++;
+            }
+            task.getTrace().markTaken(nowNanos);
+            takenTasks.add(task);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Cuts short the scans of the recommendation tasks whose deadlines have
+     * passed. The tasks which don't keep scanning leave the pass.
+     */
+    private void expireTasks(List<RecommendTask> deadlineTasks) throws IOException {
+        final long nowNanos = System.nanoTime();
+        for (var iterator = deadlineTasks.iterator(); iterator.hasNext();) {
+            var task = iterator.next();
+            if (!task.isExpired(nowNanos)) {
+                continue;
+            }
+            iterator.remove();
+            task.getTrace().markPassEnded(nowNanos);
+            if (task.expire(dataSource.getScannedPreferenceSetCount(),
+                            dataSource.getScanPreferenceSetCount())) {
+                takenTasks.remove(task);
+            }
+        }
+    }
+
+    /**
+     * Executes the changes of the write tasks which have read the preference
+     * sets they change, so that the tasks complete without waiting for the
+     * end of the pass. The data source keeps the scan reading the sets it
+     * has started with.
+     *
+     * @return The time of executing the changes.
+     */
+    private long executeResolvedWrites() throws IOException {
+        final long nowNanos = System.nanoTime();
+        boolean resolved = false;
+        for (var iterator = takenTasks.iterator(); iterator.hasNext();) {
+            var task = iterator.next();
+            if (task.isWriting() && task.isResolved()) {
+                iterator.remove();
+                task.getTrace().markPassEnded(nowNanos);
+                task.proceedPass();
+                resolved = true;
+            }
+        }
+        if (!resolved) {
+            return 0;
+        }
+        executeChanges();
+        return System.nanoTime() - nowNanos;
+    }
+
+    /**
+     * Writes the recorded changes to the data source and completes the write
+     * tasks waiting for them.
+     */
+    private void executeChanges() throws IOException {
+        changeBulk.execute();
+        neighbourStore.commit(dataSource.getChangeSequence());
+        itemMatrixStore.commit(dataSource.getChangeSequence());
+        ownerFilterStore.commit(dataSource.getChangeSequence());
+        writeCompletions.forEach(Runnable::run);
+        writeCompletions.clear();
+    }
+
+    private void notifyRead(PreferenceSet preferenceSet) {
+        for (var listener : readListeners) {
+            listener.onRead(preferenceSet);
+        }
+    }
+
+    /**
+     * Queues the task recording its trace to the trace of the request.
+     * It must be called holding the lock of this object.
+     *
+     * @param trace The trace of the request the task is run on behalf of or null.
+     */
+    private void submit(AbstractTask task, RequestTrace trace) {
+        task.getTrace().markEnqueued(getName());
+        task.setReadListener(this::notifyRead);
+        if (trace != null) {
+            trace.add(task.getTrace());
+        }
+        tasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Adds a task rebuilding the item similarity matrix in a single pass.
+     */
+    private void buildItemMatrix() {
+        log.info("Building item matrix");
+        itemMatrixStore.startBuilding();
+        var task = new BuildItemMatrixTask(itemMatrixStore);
+        task.setCompletionListener(() -> {
+            try {
+                itemMatrixStore.finishBuilding(dataSource.getChangeSequence());
+            } catch (IOException e) {
+                log.error("Cannot build item matrix", e);
+            }
+        });
+        tasks.add(task);
+    }
+
+    /**
+     * Adds a task rebuilding the owner filter in a single pass. The filter
+     * in use, if any, keeps answering until the new one is built.
+     */
+    private void buildOwnerFilter() throws IOException {
+        log.info("Building owner filter");
+        ownerFilterStore.startBuilding(dataSource.getPreferenceSetCount());
+        var task = new BuildOwnerFilterTask(ownerFilterStore);
+        task.setCompletionListener(() -> {
+            try {
+                ownerFilterStore.finishBuilding(dataSource.getChangeSequence());
+            } catch (IOException e) {
+                log.error("Cannot build owner filter", e);
+            }
+        });
+        tasks.add(task);
+    }
+
+    /**
+     * Adds a recommendation task of the engine.
      *
      * @param ownerId To whom to recommend.
+     * @param engine The algorithm to recommend with.
+     * @param trace The trace of the request to record the task to or null.
      * @return Recommendation list or null if no preference set with such ownerId found.
      */
-    public synchronized Future<List<Recommendation>> recommend(long ownerId) {
-        CompletableFuture<List<Recommendation>> future = new CompletableFuture<>();
-        var task = new RecommendTask(ownerId);
+    public synchronized CompletableFuture<RecommendationList> recommend(long ownerId,
+                                                             RecommendationEngine engine,
+                                                             RequestTrace trace) {
+        if (engine == RecommendationEngine.USER) {
+            return recommend(ownerId, trace);
+        }
+        CompletableFuture<RecommendationList> future = new CompletableFuture<>();
+        var task = new ItemRecommendTask(ownerId, itemMatrixStore);
         task.setCompletionListener(() -> future.complete(task.getRecommendationList()));
-        tasks.add(task);
-        notifyAll();
+        submit(task, trace);
+        return future;
+    }
+
+    /**
+     * Adds a recommendation task. If the owner's neighbour list is fresh
+     * enough, the recommendations are built from it in a single pass.
+     *
+     * @param ownerId To whom to recommend.
+     * @param trace The trace of the request to record the task to or null.
+     * @return Recommendation list or null if no preference set with such ownerId found.
+     */
+    public synchronized CompletableFuture<RecommendationList> recommend(long ownerId,
+                                                             RequestTrace trace) {
+        neighbourStore.markActive(ownerId);
+        return buildSimilarityTable(ownerId, neighbourStore.getFresh(ownerId),
+                                    ScanOptions.FULL, null, trace)
+                .thenApply(similarityTable -> {
+                    if (similarityTable == null) {
+                        return null;
+                    }
+                    var recommendations = similarityTable.getRecommendationList();
+                    similarityTable.release();
+                    return recommendations;
+                });
+    }
+
+    /**
+     * Adds a task building the similarity table of the owner's preference set.
+     * The table is passed to the future in this thread right after the pass,
+     * before the changes recorded in the pass are executed, or once the
+     * deadline of the scan has passed.
+     *
+     * @param ownerId The owner to build the table for.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     *                      If it's passed, only the neighbours get into the table.
+     * @param scanOptions The bounds of the scan.
+     * @param fullTableFuture The future to pass the table to once the task
+     *                        completes, even if the table built by the
+     *                        deadline has been passed already, or null.
+     * @param trace The trace of the request to record the task to or null.
+     * @return The table or null if no preference set with such ownerId found.
+     */
+    public synchronized CompletableFuture<SimilarityTable> buildSimilarityTable(
+            long ownerId, NeighbourList neighbourList, ScanOptions scanOptions,
+            CompletableFuture<SimilarityTable> fullTableFuture, RequestTrace trace) {
+        var task = new RecommendTask(ownerId, neighbourList, similarityTablePool);
+        return submitRecommendTask(task, scanOptions, fullTableFuture, trace);
+    }
+
+    /**
+     * Adds a task building the similarity table of the preference set read
+     * in advance (e.g. from another partition) against the sets of this
+     * data source.
+     *
+     * @param preferenceSet The preference set to build the table for.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     *                      If it's passed, only the neighbours get into the table.
+     * @param scanOptions The bounds of the scan.
+     * @param fullTableFuture The future to pass the table to once the task
+     *                        completes, even if the table built by the
+     *                        deadline has been passed already, or null.
+     * @param trace The trace of the request to record the task to or null.
+     */
+    public synchronized CompletableFuture<SimilarityTable> buildSimilarityTable(
+            PreferenceSet preferenceSet, NeighbourList neighbourList, ScanOptions scanOptions,
+            CompletableFuture<SimilarityTable> fullTableFuture, RequestTrace trace) {
+        var task = new RecommendTask(preferenceSet, neighbourList, similarityTablePool);
+        return submitRecommendTask(task, scanOptions, fullTableFuture, trace);
+    }
+
+    /**
+     * Queues the recommendation task whose table is passed to the returned
+     * future by the deadline or upon completion, whichever is earlier.
+     * It must be called holding the lock of this object.
+     */
+    private CompletableFuture<SimilarityTable> submitRecommendTask(
+            RecommendTask task, ScanOptions scanOptions,
+            CompletableFuture<SimilarityTable> fullTableFuture, RequestTrace trace) {
+        CompletableFuture<SimilarityTable> future = new CompletableFuture<>();
+        task.setScanOptions(scanOptions);
+        task.setExpiryListener(future::complete);
+        task.setCompletionListener(() -> {
+            future.complete(task.getSimilarityTable());
+            if (fullTableFuture != null) {
+                fullTableFuture.complete(task.getSimilarityTable());
+            }
+        });
+        submit(task, trace);
+        return future;
+    }
+
+    /**
+     * Adds a task building the similarity tables of the preference sets read
+     * in advance (e.g. from another partition) against the sets of this
+     * data source.
+     *
+     * @param preferenceSets The sets to build the tables for.
+     * @param neighbourCount The maximum number of rows in a table.
+     * @param computeTimeMillis The time the preference sets have been read at.
+     * @return The similarity tables by their owner IDs.
+     */
+    public synchronized CompletableFuture<Map<Long, SimilarityTable>> buildSimilarityTables(
+            Collection<PreferenceSet> preferenceSets, int neighbourCount, long computeTimeMillis) {
+        CompletableFuture<Map<Long, SimilarityTable>> future = new CompletableFuture<>();
+        var task = new RefreshNeighboursTask(preferenceSets, neighbourCount, computeTimeMillis,
+                similarityTablePool);
+        task.setCompletionListener(() -> future.complete(task.getSimilarityTables()));
+        submit(task, null);
+        return future;
+    }
+
+    /**
+     * Adds a task computing the neighbour lists of the owners and putting
+     * them into the neighbour store.
+     *
+     * @param ownerIds The IDs of the owners to compute the lists for.
+     * @return The number of the lists computed.
+     */
+    public synchronized CompletableFuture<Integer> refreshNeighbours(List<Long> ownerIds) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        var task = new RefreshNeighboursTask(ownerIds, neighbourStore.getNeighbourCount(),
+                similarityTablePool);
+        task.setCompletionListener(() -> {
+            var neighbourLists = task.getNeighbourLists();
+            RefreshNeighboursTask.releaseSimilarityTables(task.getSimilarityTables());
+            for (var neighbourList : neighbourLists) {
+                neighbourStore.put(neighbourList);
+            }
+            future.complete(neighbourLists.size());
+        });
+        submit(task, null);
         return future;
     }
 
@@ -125,13 +664,14 @@ public class RecommenderThread extends Thread {
      * @param preference The preference that encapsulates owner and entity id.
      * @return A boolean value indicating whether the new preference has been
      *         added. It's false only if the preference already exists in db.
+     *         The future completes once the change is written.
      */
-    public synchronized Future<Boolean> addPreference(Preference preference) {
+    public synchronized CompletableFuture<Boolean> addPreference(Preference preference) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
         var task = new PreferTask(preference, changeBulk);
-        task.setCompletionListener(() -> future.complete(task.hasAdded()));
-        tasks.add(task);
-        notifyAll();
+        task.setCompletionListener(() ->
+                writeCompletions.add(() -> future.complete(task.hasAdded())));
+        submit(task, null);
         return future;
     }
 
@@ -141,13 +681,74 @@ public class RecommenderThread extends Thread {
      * @param preference The preference that encapsulates owner and entity id.
      * @return A boolean value indicating whether the new preference has been
      *         added. It's false only if the preference already exists in db.
+     *         The future completes once the change is written.
      */
-    public synchronized Future<Boolean> removePreference(Preference preference) {
+    public synchronized CompletableFuture<Boolean> removePreference(Preference preference) {
         CompletableFuture<Boolean> future = new CompletableFuture<>();
         var task = new UnpreferTask(preference, changeBulk);
-        task.setCompletionListener(() -> future.complete(task.hasAffected()));
-        tasks.add(task);
-        notifyAll();
+        task.setCompletionListener(() ->
+                writeCompletions.add(() -> future.complete(task.hasAffected())));
+        submit(task, null);
+        return future;
+    }
+
+    /**
+     * Adds a task writing a page of the preference sets of the owner ID range
+     * to the spool file ordered by owner ID.
+     *
+     * @param fromOwnerId The least owner ID of the range.
+     * @param toOwnerId The greatest owner ID of the range.
+     * @param limit The maximum number of the sets in the page.
+     * @param spoolPath The file to write the page to.
+     * @return The owner ID to export the next page from or null if there're
+     *         no more pages.
+     */
+    public synchronized CompletableFuture<Long> exportPreferences(long fromOwnerId, long toOwnerId,
+                                                       int limit, Path spoolPath) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        var task = new ExportTask(fromOwnerId, toOwnerId, limit, spoolPath);
+        task.setCompletionListener(() -> {
+            if (task.getError() != null) {
+                future.completeExceptionally(task.getError());
+            } else {
+                future.complete(task.getNextOwnerId());
+            }
+        });
+        submit(task, null);
+        return future;
+    }
+
+    /**
+     * Adds a task merging the preference sets into the ones of the same
+     * owners and adding the sets of the new owners.
+     *
+     * @param preferenceSets The sets to import. They must not be used by the
+     *                       caller anymore.
+     * @return The number of the distinct owners imported. The future
+     *         completes once the sets are written.
+     */
+    public synchronized CompletableFuture<Integer> importPreferences(List<PreferenceSet> preferenceSets) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        var task = new ImportTask(preferenceSets, changeBulk);
+        task.setCompletionListener(() ->
+                writeCompletions.add(() -> future.complete(task.getImportedCount())));
+        submit(task, null);
+        return future;
+    }
+
+    /**
+     * Adds a task finding the preference sets of the owners.
+     *
+     * @param ownerIds The IDs of the owners.
+     * @param trace The trace of the request to record the task to or null.
+     * @return The found preference sets by their owner IDs.
+     */
+    public synchronized CompletableFuture<Map<Long, PreferenceSet>> getPreferenceSets(
+            Collection<Long> ownerIds, RequestTrace trace) {
+        CompletableFuture<Map<Long, PreferenceSet>> future = new CompletableFuture<>();
+        var task = new GetPreferenceSetsTask(ownerIds);
+        task.setCompletionListener(() -> future.complete(task.getPreferenceSets()));
+        submit(task, trace);
         return future;
     }
 
@@ -158,7 +759,7 @@ public class RecommenderThread extends Thread {
      * @return List of preference entity IDs or null if no preference set with
      *         such ownerId found..
      */
-    public synchronized Future<List<Long>> getPreferences(long ownerId) {
+    public synchronized CompletableFuture<List<Long>> getPreferences(long ownerId) {
         CompletableFuture<List<Long>> future = new CompletableFuture<>();
         var task = new GetPreferencesTask(ownerId);
         task.setCompletionListener(() -> {
@@ -168,8 +769,7 @@ public class RecommenderThread extends Thread {
                     : null;
             future.complete(ids);
         });
-        tasks.add(task);
-        notifyAll();
+        submit(task, null);
         return future;
     }
 }
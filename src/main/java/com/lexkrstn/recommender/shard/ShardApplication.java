@@ -3,9 +3,11 @@ package com.lexkrstn.recommender.shard;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableConfigurationProperties(ApplicationConfig.class)
+@EnableScheduling
 public class ShardApplication {
     public static void main(String[] args) {
         SpringApplication.run(ShardApplication.class, args);
@@ -0,0 +1,69 @@
+package com.lexkrstn.recommender.shard;
+
+import com.lexkrstn.recommender.shard.tasks.RequestTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a sample of the recent request traces in a ring buffer. The slow
+ * requests are always kept, so that the outliers can be attributed to the
+ * stages of their tasks.
+ */
+@Component
+public class TraceBuffer {
+    private final RequestTrace[] traces;
+    private final double sampleRate;
+    private final long slowTraceMillis;
+    private int nextIndex = 0;
+
+    /**
+     * @param size The maximum number of the traces kept (0 - disabled).
+     * @param sampleRate The fraction of the requests to keep the traces of.
+     * @param slowTraceMillis The time of a request to keep its trace anyway.
+     */
+    public TraceBuffer(@Value("${com.lexkrstn.recommender.shard.traceBufferSize}") int size,
+                       @Value("${com.lexkrstn.recommender.shard.traceSampleRate}")
+                       double sampleRate,
+                       @Value("${com.lexkrstn.recommender.shard.slowTraceMillis}")
+                       long slowTraceMillis) {
+        this.traces = new RequestTrace[size];
+        this.sampleRate = sampleRate;
+        this.slowTraceMillis = slowTraceMillis;
+    }
+
+    /**
+     * Keeps the trace of the finished request if it's slow or sampled.
+     */
+    public void offer(RequestTrace trace) {
+        if (traces.length == 0) {
+            return;
+        }
+        if (trace.getTotalMillis() < slowTraceMillis
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        synchronized (this) {
+            traces[nextIndex] = trace;
+            nextIndex = (nextIndex + 1) % traces.length;
+        }
+    }
+
+    /**
+     * Returns the kept traces from the newest to the oldest.
+     */
+    public synchronized List<RequestTrace> getTraces() {
+        List<RequestTrace> result = new ArrayList<>(traces.length);
+        for (int i = 1; i <= traces.length; i++) {
+            var trace = traces[Math.floorMod(nextIndex - i, traces.length)];
+            if (trace == null) {
+                break;
+            }
+            result.add(trace);
+        }
+        return result;
+    }
+}
@@ -1,16 +1,21 @@
 package com.lexkrstn.recommender.shard.api;
 
+import com.lexkrstn.recommender.shard.errors.BadRequestException;
 import com.lexkrstn.recommender.shard.errors.InternalServerError;
 import com.lexkrstn.recommender.shard.errors.NotFoundException;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+/**
+ * Renders the errors as JSON, whatever format of the response is accepted.
+ */
 @ControllerAdvice
 class CustomRestExceptionHandler {
     @Data
@@ -24,14 +29,24 @@ class CustomRestExceptionHandler {
     @ExceptionHandler(NotFoundException.class)
     protected ResponseEntity<Object> handleNotFoundException(NotFoundException ex) {
         return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .contentType(MediaType.APPLICATION_JSON)
                 .body(new ErrorDto("notFound", ex.getMessage()));
     }
 
+    @ResponseBody
+    @ExceptionHandler(BadRequestException.class)
+    protected ResponseEntity<Object> handleBadRequestException(BadRequestException ex) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(new ErrorDto("badRequest", ex.getMessage()));
+    }
+
     @ResponseBody
     @ExceptionHandler(InternalServerError.class)
     @ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
     protected ResponseEntity<Object> handleInternalServerError(InternalServerError ex) {
         return ResponseEntity.status(404)
+                .contentType(MediaType.APPLICATION_JSON)
                 .body(new ErrorDto("internalServerError", ex.getMessage()));
     }
 }
@@ -0,0 +1,84 @@
+package com.lexkrstn.recommender.shard.api;
+
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the recommendation lists in the compact binary format negotiated by
+ * the application/x-recommendations media type, so that the clients merging
+ * the lists of several shards needn't parse JSON. JSON stays the default.
+ *
+ * The body is the sequence of the recommendations in the order of the list,
+ * each being the entity ID (8 bytes) followed by the weight (4-byte IEEE 754
+ * float), both big-endian. The number of the recommendations is the content
+ * length divided by 12. The errors are still reported in JSON, so the
+ * clients should accept it as well. The pairs are encoded right from the
+ * arrays of the RecommendationList, so no Recommendation is created.
+ */
+public class RecommendationListConverter
+        extends AbstractGenericHttpMessageConverter<RecommendationList> {
+    public static final MediaType MEDIA_TYPE = new MediaType("application", "x-recommendations");
+    private static final int RECOMMENDATION_SIZE = 8 + 4;
+    /**
+     * The maximum number of bytes encoded before they're written to the body.
+     */
+    private static final int CHUNK_SIZE = RECOMMENDATION_SIZE * 4096;
+
+    public RecommendationListConverter() {
+        super(MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return RecommendationList.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Long getContentLength(RecommendationList recommendations, MediaType contentType) {
+        return (long) recommendations.size() * RECOMMENDATION_SIZE;
+    }
+
+    @Override
+    protected void writeInternal(RecommendationList recommendations, Type type,
+                                 HttpOutputMessage outputMessage) throws IOException {
+        var body = outputMessage.getBody();
+        final int size = recommendations.size();
+        var buffer = ByteBuffer.allocate(Math.min(CHUNK_SIZE, size * RECOMMENDATION_SIZE));
+        for (int i = 0; i < size; i++) {
+            if (!buffer.hasRemaining()) {
+                body.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putLong(recommendations.getEntityId(i));
+            buffer.putFloat(recommendations.getWeight(i));
+        }
+        body.write(buffer.array(), 0, buffer.position());
+    }
+
+    @Override
+    public RecommendationList read(Type type, Class<?> contextClass,
+                                   HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Reading recommendations isn't supported",
+                inputMessage);
+    }
+
+    @Override
+    protected RecommendationList readInternal(Class<? extends RecommendationList> clazz,
+                                              HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Reading recommendations isn't supported",
+                inputMessage);
+    }
+}
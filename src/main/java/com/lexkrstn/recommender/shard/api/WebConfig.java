@@ -0,0 +1,19 @@
+package com.lexkrstn.recommender.shard.api;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    /**
+     * Adds the binary format of the recommendations after the default
+     * converters, so that JSON is chosen unless the binary one is requested.
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new RecommendationListConverter());
+    }
+}
@@ -1,5 +1,6 @@
 package com.lexkrstn.recommender.shard.api.v1;
 
+import com.lexkrstn.recommender.shard.Recommender;
 import com.lexkrstn.recommender.shard.RecommenderThread;
 import com.lexkrstn.recommender.shard.errors.InternalServerError;
 import com.lexkrstn.recommender.shard.errors.NotFoundException;
@@ -17,16 +18,16 @@ import java.util.concurrent.ExecutionException;
 @RequestMapping("api/v1/owners/{ownerId}")
 public class PreferencesController {
     private final Logger log = LoggerFactory.getLogger(RecommenderThread.class);
-    private final RecommenderThread recommenderThread;
+    private final Recommender recommender;
 
-    public PreferencesController(RecommenderThread recommenderThread) {
-        this.recommenderThread = recommenderThread;
+    public PreferencesController(Recommender recommender) {
+        this.recommender = recommender;
     }
 
     @GetMapping("/preferences")
     public List<Long> getPreferences(@PathVariable Long ownerId) {
         try {
-            var entityIds = recommenderThread.getPreferences(ownerId).get();
+            var entityIds = recommender.getPreferences(ownerId).get();
             if (entityIds == null) {
                 throw new NotFoundException("No owner");
             }
@@ -44,7 +45,7 @@ public class PreferencesController {
                                                 @PathVariable Long entityId) {
         try {
             var preference = new Preference(ownerId, entityId);
-            final boolean hasAdded = recommenderThread.addPreference(preference).get();
+            final boolean hasAdded = recommender.addPreference(preference).get();
             return ResponseEntity
                     .status(hasAdded ? HttpStatus.CREATED : HttpStatus.OK)
                     .build();
@@ -61,7 +62,7 @@ public class PreferencesController {
                                                    @PathVariable Long entityId) {
         try {
             var preference = new Preference(ownerId, entityId);
-            final boolean hasAffected = recommenderThread.removePreference(preference).get();
+            final boolean hasAffected = recommender.removePreference(preference).get();
             return ResponseEntity
                     .status(hasAffected ? HttpStatus.OK : HttpStatus.NOT_FOUND)
                     .build();
@@ -1,36 +1,119 @@
 package com.lexkrstn.recommender.shard.api.v1;
 
+import com.lexkrstn.recommender.shard.errors.BadRequestException;
 import com.lexkrstn.recommender.shard.errors.InternalServerError;
 import com.lexkrstn.recommender.shard.errors.NotFoundException;
-import com.lexkrstn.recommender.shard.models.Recommendation;
+import com.lexkrstn.recommender.shard.models.RecommendationEngine;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import com.lexkrstn.recommender.shard.Recommender;
 import com.lexkrstn.recommender.shard.RecommenderThread;
+import com.lexkrstn.recommender.shard.TraceBuffer;
+import com.lexkrstn.recommender.shard.tasks.RequestTrace;
+import com.lexkrstn.recommender.shard.tasks.ScanOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
 @RestController()
 @RequestMapping("api/v1/owners/{ownerId}")
 public class RecommendationsController {
     private final Logger log = LoggerFactory.getLogger(RecommenderThread.class);
-    private final RecommenderThread recommenderThread;
+    private final Recommender recommender;
+    private final TraceBuffer traceBuffer;
+    private final boolean keepScanningAfterDeadline;
+    private final double fastPathSamplingRate;
 
-    public RecommendationsController(RecommenderThread recommenderThread) {
-        this.recommenderThread = recommenderThread;
+    public RecommendationsController(Recommender recommender, TraceBuffer traceBuffer,
+                                     @Value("${com.lexkrstn.recommender.shard.keepScanningAfterDeadline}")
+                                     boolean keepScanningAfterDeadline,
+                                     @Value("${com.lexkrstn.recommender.shard.fastPathSamplingRate}")
+                                     double fastPathSamplingRate) {
+        this.recommender = recommender;
+        this.traceBuffer = traceBuffer;
+        this.keepScanningAfterDeadline = keepScanningAfterDeadline;
+        this.fastPathSamplingRate = fastPathSamplingRate;
     }
 
+    /**
+     * Returns the recommendations for the owner. The Server-Timing header
+     * breaks the time down by the stages of the tasks run for the request.
+     *
+     * If maxLatency (in milliseconds) is passed, the scan of the user engine
+     * is cut short by the deadline. The recommendations built so far are
+     * returned then with the X-Partial header and the fraction of the
+     * preference sets scanned in the X-Scanned-Fraction header.
+     *
+     * If samplingRate (from 0 to 1) is passed, the user engine compares the
+     * owner's set with a sample of the other sets only. The expected fraction
+     * of the sets compared is returned in the X-Sampling-Rate header.
+     */
     @GetMapping("/recommendations")
-    public ResponseEntity<List<Recommendation>> getRecommendations(@PathVariable Long ownerId) {
+    public ResponseEntity<RecommendationList> getRecommendations(
+            @PathVariable Long ownerId,
+            @RequestParam(defaultValue = "user") String engine,
+            @RequestParam(required = false) Long maxLatency,
+            @RequestParam(required = false) Double samplingRate) {
         // TODO: HATEOAS for prev / next pages passing first / last owner id
+        return recommend(ownerId, engine, maxLatency,
+                samplingRate != null ? samplingRate : 1.0);
+    }
+
+    /**
+     * Returns the approximate recommendations of the user engine built from
+     * the sample of the preference sets of the configured size.
+     */
+    @GetMapping("/recommendations/fast")
+    public ResponseEntity<RecommendationList> getFastRecommendations(
+            @PathVariable Long ownerId,
+            @RequestParam(required = false) Long maxLatency) {
+        return recommend(ownerId, "user", maxLatency, fastPathSamplingRate);
+    }
+
+    private ResponseEntity<RecommendationList> recommend(Long ownerId, String engine,
+                                                         Long maxLatency,
+                                                         double samplingRate) {
+        final RecommendationEngine recommendationEngine;
         try {
-            var recommendations = recommenderThread.recommend(ownerId).get();
-            if (recommendations == null) {
+            recommendationEngine = RecommendationEngine.fromName(engine);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown engine " + engine);
+        }
+        if (maxLatency != null && maxLatency <= 0) {
+            throw new BadRequestException("The max latency must be positive");
+        }
+        if (!(samplingRate > 0 && samplingRate <= 1)) {
+            throw new BadRequestException("The sampling rate must be from 0 to 1");
+        }
+        try {
+            var trace = new RequestTrace("recommend " + engine + " " + ownerId);
+            var scanOptions = ScanOptions.FULL.withSamplingRate(samplingRate);
+            if (maxLatency != null) {
+                scanOptions = scanOptions.withMaxLatency(maxLatency, keepScanningAfterDeadline);
+            }
+            var result = recommender.recommend(ownerId, recommendationEngine, scanOptions,
+                    trace).get();
+            trace.finish();
+            traceBuffer.offer(trace);
+            if (result == null) {
                 throw new NotFoundException("The owner not found");
             }
-            return ResponseEntity.ok(recommendations);
+            var response = ResponseEntity.ok()
+                    .header("Server-Timing", trace.toServerTiming());
+            if (result.isPartial()) {
+                response.header("X-Partial", "true")
+                        .header("X-Scanned-Fraction",
+                                String.format(Locale.ROOT, "%.4f", result.getScannedFraction()));
+            }
+            if (result.isSampled()) {
+                response.header("X-Sampling-Rate",
+                        String.format(Locale.ROOT, "%.4f", result.getSamplingRate()));
+            }
+            return response.body(result.getRecommendations());
         } catch (InterruptedException | ExecutionException e) {
             log.error("Failed to get recommendations", e);
             final var internalEx = new InternalServerError(e.getMessage());
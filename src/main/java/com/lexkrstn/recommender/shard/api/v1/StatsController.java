@@ -0,0 +1,44 @@
+package com.lexkrstn.recommender.shard.api.v1;
+
+import com.lexkrstn.recommender.shard.Recommender;
+import com.lexkrstn.recommender.shard.TraceBuffer;
+import com.lexkrstn.recommender.shard.models.PassStats;
+import com.lexkrstn.recommender.shard.tasks.RequestTrace;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Exposes the runtime state of the shard for monitoring.
+ */
+@RestController()
+@RequestMapping("api/v1/stats")
+public class StatsController {
+    private final Recommender recommender;
+    private final TraceBuffer traceBuffer;
+
+    public StatsController(Recommender recommender, TraceBuffer traceBuffer) {
+        this.recommender = recommender;
+        this.traceBuffer = traceBuffer;
+    }
+
+    /**
+     * Returns the adaptive batch sizes and the last pass times of the
+     * partitions in the order of their indexes.
+     */
+    @GetMapping("/passes")
+    public List<PassStats> getPassStats() {
+        return recommender.getPassStats();
+    }
+
+    /**
+     * Returns the sampled traces of the recent requests from the newest to
+     * the oldest, including all the slow ones.
+     */
+    @GetMapping("/traces")
+    public List<RequestTrace> getTraces() {
+        return traceBuffer.getTraces();
+    }
+}
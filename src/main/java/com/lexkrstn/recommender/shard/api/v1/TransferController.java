@@ -0,0 +1,167 @@
+package com.lexkrstn.recommender.shard.api.v1;
+
+import com.lexkrstn.recommender.shard.Recommender;
+import com.lexkrstn.recommender.shard.errors.BadRequestException;
+import com.lexkrstn.recommender.shard.errors.InternalServerError;
+import com.lexkrstn.recommender.shard.io.PreferenceStream;
+import com.lexkrstn.recommender.shard.io.Throttle;
+import com.lexkrstn.recommender.shard.models.ImportResult;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Moves the preference sets of owner ID ranges between shards in the
+ * preference stream format.
+ */
+@RestController()
+@RequestMapping("api/v1/owners")
+public class TransferController {
+    /**
+     * The maximum number of bytes transferred to the client at a time.
+     */
+    private static final long TRANSFER_CHUNK_SIZE = 1 << 20;
+
+    private final Logger log = LoggerFactory.getLogger(TransferController.class);
+    private final Recommender recommender;
+    private final int exportPageSize;
+    private final int importBatchSize;
+    private final long transferBytesPerSecond;
+
+    public TransferController(Recommender recommender,
+                              @Value("${com.lexkrstn.recommender.shard.exportPageSize}")
+                              int exportPageSize,
+                              @Value("${com.lexkrstn.recommender.shard.importBatchSize}")
+                              int importBatchSize,
+                              @Value("${com.lexkrstn.recommender.shard.transferBytesPerSecond}")
+                              long transferBytesPerSecond) {
+        this.recommender = recommender;
+        this.exportPageSize = exportPageSize;
+        this.importBatchSize = importBatchSize;
+        this.transferBytesPerSecond = transferBytesPerSecond;
+    }
+
+    /**
+     * Exports a page of the preference sets of the owner ID range ordered by
+     * owner ID. If there may be more pages, the X-Next-Owner-Id header holds
+     * the owner ID to export the next page from.
+     */
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportPreferences(
+            @RequestParam(defaultValue = "0") long from,
+            @RequestParam(defaultValue = "" + Long.MAX_VALUE) long to,
+            @RequestParam(required = false) Integer limit) {
+        final int pageSize = limit != null ? limit : exportPageSize;
+        if (pageSize <= 0 || from > to) {
+            throw new BadRequestException("Invalid owner range or limit");
+        }
+        final Path spoolPath;
+        final Long nextOwnerId;
+        try {
+            spoolPath = Files.createTempFile("preferences-", ".export");
+        } catch (IOException e) {
+            log.error("Failed to create export spool file", e);
+            final var internalEx = new InternalServerError(e.getMessage());
+            internalEx.initCause(e);
+            throw internalEx;
+        }
+        try {
+            nextOwnerId = recommender.exportPreferences(from, to, pageSize, spoolPath).get();
+        } catch (InterruptedException | ExecutionException e) {
+            log.error("Failed to export preferences", e);
+            deleteSpoolFile(spoolPath);
+            final var internalEx = new InternalServerError(e.getMessage());
+            internalEx.initCause(e);
+            throw internalEx;
+        }
+        var response = ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM);
+        if (nextOwnerId != null) {
+            response.header("X-Next-Owner-Id", nextOwnerId.toString());
+        }
+        return response.body(out -> transferSpoolFile(spoolPath, out));
+    }
+
+    /**
+     * Imports the preference sets in batches merging them into the sets of
+     * the same owners. The import is idempotent, so an interrupted one can be
+     * repeated or resumed after the last imported owner.
+     */
+    @PostMapping(value = "/import", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ImportResult importPreferences(InputStream body) {
+        var throttle = new Throttle(transferBytesPerSecond);
+        long importedCount = 0;
+        Long lastOwnerId = null;
+        List<PreferenceSet> batch = new ArrayList<>(importBatchSize);
+        try {
+            var in = new DataInputStream(new BufferedInputStream(body));
+            PreferenceStream.readHeader(in);
+            while (true) {
+                var preferenceSet = PreferenceStream.readPreferenceSet(in);
+                if (preferenceSet != null) {
+                    batch.add(preferenceSet);
+                    throttle.acquire(12L + 8L * preferenceSet.getEntityCount());
+                }
+                if (batch.size() >= importBatchSize || (preferenceSet == null && !batch.isEmpty())) {
+                    importedCount += recommender.importPreferences(batch).get();
+                    lastOwnerId = batch.get(batch.size() - 1).getOwnerId();
+                    batch = new ArrayList<>(importBatchSize);
+                }
+                if (preferenceSet == null) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new BadRequestException(e.getMessage() + " (imported " + importedCount
+                    + " sets till owner " + lastOwnerId + ")");
+        } catch (InterruptedException | ExecutionException e) {
+            log.error("Failed to import preferences", e);
+            final var internalEx = new InternalServerError(e.getMessage());
+            internalEx.initCause(e);
+            throw internalEx;
+        }
+        return new ImportResult(importedCount, lastOwnerId);
+    }
+
+    private void transferSpoolFile(Path spoolPath, OutputStream out) throws IOException {
+        try (var channel = FileChannel.open(spoolPath, StandardOpenOption.READ)) {
+            var target = Channels.newChannel(out);
+            var throttle = new Throttle(transferBytesPerSecond);
+            final long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferTo(position,
+                        Math.min(TRANSFER_CHUNK_SIZE, size - position), target);
+                position += transferred;
+                throttle.acquire(transferred);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } finally {
+            deleteSpoolFile(spoolPath);
+        }
+    }
+
+    private void deleteSpoolFile(Path spoolPath) {
+        try {
+            Files.deleteIfExists(spoolPath);
+        } catch (IOException e) {
+            log.error("Failed to delete export spool file " + spoolPath, e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.EntityIdMapping;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Maps the sparse 64-bit entity IDs to the dense 32-bit ones the preference
+ * sets are stored with, so that the stored sets take half the space and are
+ * intersected faster. The dense ID of an entity is the order in which the
+ * entity has been met for the first time.
+ *
+ * The dictionary is persisted to an append-only file, which may be shared
+ * by several data files. The new entries must be flushed before the data
+ * referencing them is considered consistent, so a crash can only lose the
+ * entries no consistent data refers to.
+ *
+ * File layout: prefix (4 bytes), version (1 byte), the 64-bit entity IDs in
+ * the order of their dense IDs.
+ */
+public class EntityDictionary implements EntityIdMapping, AutoCloseable {
+    /**
+     * File prefix "EDIC".
+     */
+    private static final byte[] PREFIX = { 0x45, 0x44, 0x49, 0x43 };
+    /**
+     * Current file structure version.
+     */
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = PREFIX.length + 1;
+
+    private final Logger log = LoggerFactory.getLogger(EntityDictionary.class);
+    private final String filePath;
+    private final RandomAccessFile file;
+    /**
+     * The 64-bit entity IDs by their dense IDs. The array is reassigned after
+     * every addition to publish it to the threads reading without the lock.
+     */
+    private volatile long[] entityIds = new long[1024];
+    private int size = 0;
+    /**
+     * The number of the entries persisted to the file.
+     */
+    private int savedSize = 0;
+    /**
+     * Open addressing hash table of the 64-bit entity IDs and their dense
+     * IDs increased by one, where zero denotes an empty slot.
+     */
+    private long[] keys = new long[2048];
+    private int[] values = new int[2048];
+
+    /**
+     * Opens the dictionary file or creates an empty one.
+     *
+     * @param filePath The path of the file.
+     */
+    public EntityDictionary(String filePath) throws IOException {
+        this.filePath = filePath;
+        file = new RandomAccessFile(filePath, "rw");
+        if (file.length() < HEADER_SIZE) {
+            file.setLength(0);
+            file.write(PREFIX);
+            file.write(VERSION);
+            file.getChannel().force(false);
+            return;
+        }
+        read();
+    }
+
+    private void read() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        file.seek(0);
+        file.readFully(header);
+        if (!Arrays.equals(PREFIX, Arrays.copyOf(header, PREFIX.length))) {
+            throw new IOException("The file " + filePath + " is not a valid entity dictionary");
+        }
+        if (header[PREFIX.length] != VERSION) {
+            throw new IOException("The file " + filePath + " has unsupported version "
+                    + header[PREFIX.length]);
+        }
+        long count = (file.length() - HEADER_SIZE) / 8;
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("The file " + filePath + " has too many entities");
+        }
+        // The incomplete entry of an interrupted append is dropped
+        file.setLength(HEADER_SIZE + count * 8);
+        var buffer = ByteBuffer.allocate(8 * 8192);
+        for (long i = 0; i < count; ) {
+            int chunkCount = (int) Math.min(count - i, 8192);
+            file.readFully(buffer.array(), 0, chunkCount * 8);
+            for (int j = 0; j < chunkCount; j++) {
+                add(buffer.getLong(j * 8));
+            }
+            i += chunkCount;
+        }
+        savedSize = size;
+        log.info("Loaded {} entities from {}", size, filePath);
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getId(long entityId) {
+        int slot = findSlot(entityId);
+        return values[slot] - 1;
+    }
+
+    /**
+     * Returns the dense ID of the entity adding the entity to the dictionary
+     * if it isn't there yet.
+     */
+    public synchronized int getOrAddId(long entityId) {
+        int slot = findSlot(entityId);
+        if (values[slot] != 0) {
+            return values[slot] - 1;
+        }
+        return add(entityId);
+    }
+
+    /**
+     * Returns the 64-bit ID of the entity by its dense ID. It doesn't lock
+     * the dictionary, since the dense ID can only be known after the entity
+     * has been added.
+     */
+    @Override
+    public long getEntityId(int id) {
+        return entityIds[id];
+    }
+
+    /**
+     * Appends the entities added since the last write to the file without
+     * forcing them to the storage device. It must be called before the data
+     * referencing the entities is written, so that the data outliving the
+     * process never refers to the entities the dictionary has lost.
+     */
+    public synchronized void write() throws IOException {
+        if (savedSize == size) {
+            return;
+        }
+        var buffer = ByteBuffer.allocate((size - savedSize) * 8);
+        for (int i = savedSize; i < size; i++) {
+            buffer.putLong(entityIds[i]);
+        }
+        file.seek(HEADER_SIZE + savedSize * 8L);
+        file.write(buffer.array());
+        savedSize = size;
+    }
+
+    /**
+     * Persists the entities added since the last flush.
+     */
+    public synchronized void flush() throws IOException {
+        write();
+        file.getChannel().force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    private int add(long entityId) {
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("The entity dictionary is full");
+        }
+        long[] ids = entityIds;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        int id = size++;
+        ids[id] = entityId;
+        entityIds = ids;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int slot = findSlot(entityId);
+        keys[slot] = entityId;
+        values[slot] = id + 1;
+        return id;
+    }
+
+    /**
+     * Returns the slot of the entity or the empty slot it should be put into.
+     */
+    private int findSlot(long entityId) {
+        int mask = keys.length - 1;
+        // Mixing the bits spreads the sequential IDs evenly
+        int slot = Long.hashCode(entityId * 0x9E3779B97F4A7C15L) & mask;
+        while (values[slot] != 0 && keys[slot] != entityId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
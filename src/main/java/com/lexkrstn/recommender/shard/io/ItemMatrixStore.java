@@ -0,0 +1,206 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.ItemSimilarityMatrix;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the item similarity matrix in sync with the data source and persists
+ * it to a sidecar file.
+ *
+ * If the persisted matrix doesn't reflect the current state of the data
+ * source, it must be rebuilt from scratch by a pass over the data source.
+ */
+public class ItemMatrixStore extends SidecarStore implements PreferenceChangeBulk.ChangeListener {
+    /**
+     * File prefix "ITEM".
+     */
+    private static final byte[] PREFIX = { 0x49, 0x54, 0x45, 0x4D };
+    /**
+     * Current file structure version.
+     */
+    private static final byte VERSION = 2;
+
+    private final Logger log = LoggerFactory.getLogger(ItemMatrixStore.class);
+    private final ItemSimilarityMatrix matrix;
+    /**
+     * The changes executed since the last commit.
+     */
+    private final List<PreferenceSet[]> pendingChanges = new LinkedList<>();
+    private boolean built = false;
+
+    /**
+     * @param filePath The path of the file to persist the matrix to.
+     * @param maxNeighbours The maximum number of neighbours of an entity
+     *                      taken into account.
+     */
+    public ItemMatrixStore(String filePath, int maxNeighbours) {
+        super(filePath, PREFIX, VERSION);
+        this.matrix = new ItemSimilarityMatrix(maxNeighbours);
+    }
+
+    /**
+     * Returns true if the matrix can be used to recommend.
+     */
+    public synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Clears the matrix to rebuild it by adding every preference set of the
+     * data source. The changes are ignored until the rebuilding is finished.
+     */
+    public synchronized void startBuilding() {
+        built = false;
+        pendingChanges.clear();
+        matrix.clear();
+    }
+
+    /**
+     * Adds a preference set to the matrix being rebuilt.
+     */
+    public synchronized void add(PreferenceSetView preferenceSet) {
+        matrix.add(preferenceSet);
+    }
+
+    /**
+     * Finishes rebuilding the matrix.
+     *
+     * @param changeSequence The change sequence of the data source the
+     *                         preference sets have been read from.
+     */
+    public synchronized void finishBuilding(long changeSequence) {
+        built = true;
+        setChangeSequence(changeSequence);
+        markDirty();
+        log.info("Built item matrix of {} entities", matrix.getItemCount());
+    }
+
+    @Override
+    public synchronized void onChanged(PreferenceSet originalPreferenceSet,
+                                       PreferenceSet preferenceSet) {
+        if (built) {
+            pendingChanges.add(new PreferenceSet[] { originalPreferenceSet, preferenceSet });
+        }
+    }
+
+    /**
+     * Applies the changes executed since the last commit to the matrix.
+     *
+     * @param changeSequence The change sequence of the data source after the changes.
+     */
+    public synchronized void commit(long changeSequence) {
+        if (!built) {
+            return;
+        }
+        for (var change : pendingChanges) {
+            matrix.applyChange(change[0], change[1]);
+        }
+        pendingChanges.clear();
+        setChangeSequence(changeSequence);
+    }
+
+    /**
+     * Creates recommendation list for the preference set sorted by weight in
+     * descending order. The list is empty until the matrix is built.
+     */
+    public synchronized RecommendationList getRecommendationList(PreferenceSet preferenceSet) {
+        return built ? matrix.getRecommendationList(preferenceSet) : RecommendationList.empty();
+    }
+
+    /**
+     * Creates recommendation list for the preference set from the matrices of
+     * several partitions of the data set, as if it were a single matrix.
+     * The neighbours aren't cached unless there's a single partition.
+     * The list is empty until all the matrices are built.
+     *
+     * @param preferenceSet The preference set to recommend to.
+     * @param stores The stores of the matrices of all the partitions.
+     */
+    public static RecommendationList getRecommendationList(PreferenceSet preferenceSet,
+                                                           List<ItemMatrixStore> stores) {
+        if (stores.size() == 1) {
+            return stores.get(0).getRecommendationList(preferenceSet);
+        }
+        for (var store : stores) {
+            if (!store.isBuilt()) {
+                return RecommendationList.empty();
+            }
+        }
+        final int maxNeighbours = stores.get(0).matrix.getMaxNeighbours();
+        return ItemSimilarityMatrix.buildRecommendationList(preferenceSet, entityId -> {
+            Map<Long, Integer> cooccurrences = new HashMap<>();
+            for (var store : stores) {
+                store.addCooccurrences(entityId, cooccurrences);
+            }
+            Map<Long, Integer> preferenceCounts = new HashMap<>(cooccurrences.size() * 2);
+            for (var store : stores) {
+                store.addPreferenceCounts(cooccurrences.keySet(), preferenceCounts);
+            }
+            int preferenceCount = 0;
+            for (var store : stores) {
+                preferenceCount += store.getPreferenceCount(entityId);
+            }
+            return ItemSimilarityMatrix.computeNeighbours(cooccurrences, preferenceCount,
+                    id -> preferenceCounts.getOrDefault(id, 0), maxNeighbours);
+        });
+    }
+
+    private synchronized void addCooccurrences(long entityId, Map<Long, Integer> cooccurrences) {
+        matrix.addCooccurrences(entityId, cooccurrences);
+    }
+
+    private synchronized void addPreferenceCounts(Collection<Long> entityIds,
+                                                  Map<Long, Integer> preferenceCounts) {
+        for (var entityId : entityIds) {
+            preferenceCounts.merge(entityId, matrix.getPreferenceCount(entityId), Integer::sum);
+        }
+    }
+
+    private synchronized int getPreferenceCount(long entityId) {
+        return matrix.getPreferenceCount(entityId);
+    }
+
+    @Override
+    protected boolean isSavable() {
+        return built;
+    }
+
+    @Override
+    protected void writeContent(DataOutput out) throws IOException {
+        matrix.write(out);
+    }
+
+    /**
+     * Loads the matrix only if it reflects the current state of the data
+     * source, since the changes made after it was saved are unknown.
+     */
+    @Override
+    protected boolean readContent(DataInput in, boolean upToDate) throws IOException {
+        if (!upToDate) {
+            return false;
+        }
+        matrix.read(in);
+        built = true;
+        log.info("Loaded item matrix of {} entities", matrix.getItemCount());
+        return true;
+    }
+
+    @Override
+    protected void clearContent() {
+        built = false;
+        matrix.clear();
+    }
+}
@@ -0,0 +1,216 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the preference sets of a file of an earlier version, so that the
+ * file is upgraded to the current one (see PreferenceFile). All of them
+ * store the entities by their 64-bit IDs.
+ *
+ * Version 1 stores the sets in the order they have been added.
+ * Header: prefix (4 bytes), version (1 byte), change time, set count,
+ * preference count, data size (8 bytes each).
+ * Set: owner ID (8 bytes), capacity, entity count (4 bytes each), entity
+ * IDs (8 bytes each, capacity in total).
+ *
+ * Version 2 groups the sets into size class segments. Its header goes on
+ * with the set count and the data size of every segment (8 bytes each).
+ *
+ * Version 3 stores two copies of the header, the one having the valid
+ * checksum and the greater sequence being the actual one, and checksums
+ * every set.
+ * Header copy: prefix (4 bytes), version (1 byte), sequence, change time,
+ * set count, preference count, data size (8 bytes each), dirty segment
+ * (4 bytes), the set count, data size and preference count of every segment
+ * (8 bytes each), CRC32 of the rest (4 bytes).
+ * Set: as in version 1 with the CRC32 of the rest (4 bytes) following the
+ * entity count.
+ * If the header marks a segment dirty, the sets are read up to the end of
+ * the file dropping the invalid and the duplicate ones.
+ */
+class LegacyPreferenceFile implements AutoCloseable {
+    private static final int SEGMENT_COUNT = Integer.SIZE - 1;
+    private static final int V1_HEADER_SIZE = 4 + 1 + 8 * 4;
+    private static final int V2_HEADER_SIZE = V1_HEADER_SIZE + SEGMENT_COUNT * 8 * 2;
+    private static final int V3_HEADER_SIZE = 4 + 1 + 8 * 5 + 4 + SEGMENT_COUNT * 8 * 3 + 4;
+
+    private final Logger log = LoggerFactory.getLogger(LegacyPreferenceFile.class);
+    private final String filePath;
+    private final byte version;
+    private final int setHeaderSize;
+    private final long dataOffset;
+    /**
+     * The size of the data to read, which is the rest of the file if the
+     * sets are validated.
+     */
+    private final long dataSize;
+    private final long changeTimeMillis;
+    /**
+     * Whether the data may disagree with the header, so that the sets must
+     * be validated.
+     */
+    private final boolean validating;
+    private final CRC32 crc = new CRC32();
+    /**
+     * The owners of the sets read since the rewind if they're validated.
+     */
+    private final Set<Long> ownerIds = new HashSet<>();
+    private long droppedCount = 0;
+    private DataInputStream in;
+    /**
+     * The number of the bytes of the data read since the rewind.
+     */
+    private long position = 0;
+
+    /**
+     * @param filePath The path of the file.
+     * @param version The version of the file.
+     */
+    LegacyPreferenceFile(String filePath, byte version) throws IOException {
+        this.filePath = filePath;
+        this.version = version;
+        switch (version) {
+            case 1, 2 -> {
+                try (var header = new DataInputStream(new FileInputStream(filePath))) {
+                    header.skipNBytes(5);
+                    changeTimeMillis = header.readLong();
+                    header.readLong(); // Set count
+                    header.readLong(); // Preference count
+                    dataSize = header.readLong();
+                }
+                dataOffset = version == 1 ? V1_HEADER_SIZE : V2_HEADER_SIZE;
+                setHeaderSize = 8 + 4 * 2;
+                validating = false;
+            }
+            case 3 -> {
+                final ByteBuffer header = readV3Header();
+                header.position(5 + 8);
+                changeTimeMillis = header.getLong();
+                header.getLong(); // Set count
+                header.getLong(); // Preference count
+                final long headerDataSize = header.getLong();
+                validating = header.getInt() >= 0;
+                dataOffset = 2L * V3_HEADER_SIZE;
+                setHeaderSize = 8 + 4 * 3;
+                try (var file = new RandomAccessFile(filePath, "r")) {
+                    dataSize = validating ? file.length() - dataOffset : headerDataSize;
+                }
+            }
+            default -> throw new IOException("The file " + filePath
+                                             + " has unsupported version " + version);
+        }
+    }
+
+    /**
+     * Returns the actual copy of the version 3 header.
+     */
+    private ByteBuffer readV3Header() throws IOException {
+        ByteBuffer actual = null;
+        try (var file = new RandomAccessFile(filePath, "r")) {
+            for (int i = 0; i < 2; i++) {
+                byte[] copy = new byte[V3_HEADER_SIZE];
+                file.seek((long) i * V3_HEADER_SIZE);
+                if (file.read(copy) != V3_HEADER_SIZE) {
+                    continue;
+                }
+                crc.reset();
+                crc.update(copy, 0, V3_HEADER_SIZE - 4);
+                var buffer = ByteBuffer.wrap(copy);
+                if (buffer.getInt(V3_HEADER_SIZE - 4) != (int) crc.getValue()) {
+                    continue;
+                }
+                // The sequence follows the prefix and the version
+                if (actual == null || buffer.getLong(5) > actual.getLong(5)) {
+                    actual = buffer;
+                }
+            }
+        }
+        if (actual == null) {
+            throw new IOException("The file " + filePath + " has no valid header");
+        }
+        return actual;
+    }
+
+    long getChangeTimeMillis() {
+        return changeTimeMillis;
+    }
+
+    /**
+     * Restarts reading from the first preference set.
+     */
+    void rewind() throws IOException {
+        close();
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), 1 << 16));
+        in.skipNBytes(dataOffset);
+        position = 0;
+        ownerIds.clear();
+        droppedCount = 0;
+    }
+
+    /**
+     * Reads the next preference set.
+     *
+     * @return The set or null if there are no sets left.
+     */
+    PreferenceSet next() throws IOException {
+        while (position + setHeaderSize <= dataSize) {
+            final long ownerId = in.readLong();
+            final int capacity = in.readInt();
+            final int entityCount = in.readInt();
+            final int checksum = version >= 3 ? in.readInt() : 0;
+            final long size = setHeaderSize + 8L * capacity;
+            if (capacity < 0 || entityCount < 0 || entityCount > capacity
+                    || position + size > dataSize) {
+                if (validating) {
+                    log.error("Dropped {} invalid preference sets and {} unparsable bytes from {}",
+                              droppedCount, dataSize - position, filePath);
+                    return null;
+                }
+                throw new EOFException("Invalid preference set in " + filePath + " at " + position);
+            }
+            final byte[] entityBytes = new byte[8 * entityCount];
+            in.readFully(entityBytes);
+            in.skipNBytes(8L * (capacity - entityCount));
+            position += size;
+            if (validating) {
+                crc.reset();
+                crc.update(ByteBuffer.allocate(8 + 4 * 2)
+                        .putLong(ownerId).putInt(capacity).putInt(entityCount).array());
+                crc.update(entityBytes);
+                if (checksum != (int) crc.getValue() || !ownerIds.add(ownerId)) {
+                    droppedCount++;
+                    continue;
+                }
+            }
+            final ByteBuffer entities = ByteBuffer.wrap(entityBytes);
+            Set<Long> entityIds = new TreeSet<>();
+            for (int i = 0; i < entityCount; i++) {
+                entityIds.add(entities.getLong());
+            }
+            return new PreferenceSet(ownerId, capacity, entityIds, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.NeighbourList;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps the precomputed neighbour lists of the most active owners and
+ * persists them to a sidecar file.
+ *
+ * An owner becomes active when recommendations are requested for them.
+ * The least recently active owners are forgotten along with their lists when
+ * the number of the active owners exceeds the limit.
+ */
+public class NeighbourStore extends SidecarStore {
+    /**
+     * File prefix "NBRS".
+     */
+    private static final byte[] PREFIX = { 0x4E, 0x42, 0x52, 0x53 };
+    /**
+     * Current file structure version.
+     */
+    private static final byte VERSION = 2;
+
+    private final int neighbourCount;
+    private final int maxActiveOwners;
+    private final long maxAgeMillis;
+    /**
+     * The neighbour lists by their owner IDs.
+     */
+    private final Map<Long, NeighbourList> neighbourLists = new HashMap<>();
+    /**
+     * Active owner IDs from the least to the most recently active.
+     */
+    private final LinkedHashSet<Long> activeOwnerIds = new LinkedHashSet<>();
+    /**
+     * The owners whose preference sets have changed since their lists were computed.
+     */
+    private final Set<Long> changedOwnerIds = new HashSet<>();
+
+    /**
+     * @param filePath The path of the file to persist the lists to.
+     * @param neighbourCount The maximum number of neighbours in a list.
+     * @param maxActiveOwners The maximum number of owners to keep the lists for.
+     * @param maxAgeMillis The time a list is considered fresh for.
+     */
+    public NeighbourStore(String filePath, int neighbourCount, int maxActiveOwners,
+                          long maxAgeMillis) {
+        super(filePath, PREFIX, VERSION);
+        this.neighbourCount = neighbourCount;
+        this.maxActiveOwners = maxActiveOwners;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the maximum number of neighbours in a list.
+     */
+    public int getNeighbourCount() {
+        return neighbourCount;
+    }
+
+    /**
+     * Returns the neighbour list of the owner if it's fresh enough to build
+     * recommendations from it.
+     *
+     * @param ownerId The ID of the owner.
+     * @return The neighbour list or null if there's no fresh one.
+     */
+    public synchronized NeighbourList getFresh(long ownerId) {
+        var neighbourList = neighbourLists.get(ownerId);
+        if (neighbourList == null || changedOwnerIds.contains(ownerId)) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - neighbourList.getComputeTimeMillis();
+        return age <= maxAgeMillis ? neighbourList : null;
+    }
+
+    /**
+     * Marks the owner as the most recently active one.
+     */
+    public synchronized void markActive(long ownerId) {
+        activeOwnerIds.remove(ownerId);
+        activeOwnerIds.add(ownerId);
+        if (activeOwnerIds.size() > maxActiveOwners) {
+            var iterator = activeOwnerIds.iterator();
+            long evictedOwnerId = iterator.next();
+            iterator.remove();
+            if (neighbourLists.remove(evictedOwnerId) != null) {
+                markDirty();
+            }
+            changedOwnerIds.remove(evictedOwnerId);
+        }
+    }
+
+    /**
+     * Marks the neighbour list of the owner outdated due to a change of the
+     * owner's preference set.
+     */
+    public synchronized void markChanged(long ownerId) {
+        if (activeOwnerIds.contains(ownerId)) {
+            changedOwnerIds.add(ownerId);
+            markDirty();
+        }
+    }
+
+    /**
+     * Tags the lists with the change sequence of the data source after the
+     * changes have been executed.
+     */
+    public void commit(long changeSequence) {
+        setChangeSequence(changeSequence);
+    }
+
+    /**
+     * Stores the freshly computed neighbour list.
+     */
+    public synchronized void put(NeighbourList neighbourList) {
+        if (!activeOwnerIds.contains(neighbourList.getOwnerId())) {
+            return;
+        }
+        neighbourLists.put(neighbourList.getOwnerId(), neighbourList);
+        changedOwnerIds.remove(neighbourList.getOwnerId());
+        markDirty();
+    }
+
+    /**
+     * Chooses the active owners whose lists should be computed first: the
+     * ones whose preference sets have changed, then the ones having no list
+     * and finally the ones whose lists are about to expire, the oldest first.
+     *
+     * @param maxOwners The maximum number of owners to choose.
+     */
+    public synchronized List<Long> getOwnersToRefresh(int maxOwners) {
+        List<Long> ownerIds = new ArrayList<>(maxOwners);
+        List<NeighbourList> outdatedLists = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (long ownerId : changedOwnerIds) {
+            if (ownerIds.size() >= maxOwners) {
+                return ownerIds;
+            }
+            ownerIds.add(ownerId);
+        }
+        for (long ownerId : activeOwnerIds) {
+            if (changedOwnerIds.contains(ownerId)) {
+                continue;
+            }
+            var neighbourList = neighbourLists.get(ownerId);
+            if (neighbourList == null) {
+                if (ownerIds.size() >= maxOwners) {
+                    return ownerIds;
+                }
+                ownerIds.add(ownerId);
+            } else if (now - neighbourList.getComputeTimeMillis() > maxAgeMillis / 2) {
+                outdatedLists.add(neighbourList);
+            }
+        }
+        outdatedLists.sort(Comparator.comparingLong(NeighbourList::getComputeTimeMillis));
+        for (var neighbourList : outdatedLists) {
+            if (ownerIds.size() >= maxOwners) {
+                break;
+            }
+            ownerIds.add(neighbourList.getOwnerId());
+        }
+        return ownerIds;
+    }
+
+    @Override
+    protected void writeContent(DataOutput out) throws IOException {
+        out.writeInt(neighbourLists.size());
+        // From the least to the most recently active to restore the order
+        for (long ownerId : activeOwnerIds) {
+            var neighbourList = neighbourLists.get(ownerId);
+            if (neighbourList == null) {
+                continue;
+            }
+            out.writeLong(ownerId);
+            out.writeBoolean(changedOwnerIds.contains(ownerId));
+            out.writeLong(neighbourList.getComputeTimeMillis());
+            out.writeInt(neighbourList.size());
+            for (int i = 0; i < neighbourList.size(); i++) {
+                out.writeLong(neighbourList.getNeighbourIds()[i]);
+                out.writeFloat(neighbourList.getSimilarities()[i]);
+            }
+        }
+    }
+
+    /**
+     * Loads the lists. If the data source has changed since they were saved,
+     * all of them are marked changed, so that the owners stay active and
+     * their lists get recomputed.
+     */
+    @Override
+    protected boolean readContent(DataInput in, boolean upToDate) throws IOException {
+        clearContent();
+        int listCount = in.readInt();
+        for (int i = 0; i < listCount; i++) {
+            long ownerId = in.readLong();
+            boolean changed = in.readBoolean();
+            long computeTimeMillis = in.readLong();
+            int size = in.readInt();
+            long[] neighbourIds = new long[size];
+            float[] similarities = new float[size];
+            for (int j = 0; j < size; j++) {
+                neighbourIds[j] = in.readLong();
+                similarities[j] = in.readFloat();
+            }
+            markActive(ownerId);
+            put(new NeighbourList(ownerId, neighbourIds, similarities, computeTimeMillis));
+            if (changed || !upToDate) {
+                changedOwnerIds.add(ownerId);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void clearContent() {
+        neighbourLists.clear();
+        activeOwnerIds.clear();
+        changedOwnerIds.clear();
+    }
+}
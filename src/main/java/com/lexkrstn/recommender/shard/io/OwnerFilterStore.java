@@ -0,0 +1,149 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.BloomFilter;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Keeps the Bloom filter of the owner IDs of the data source and persists
+ * it to a sidecar file, so that the requests for the unknown owners are
+ * rejected without a pass.
+ *
+ * The owners are never removed from the filter, which only makes it report
+ * more false positives. The filter is rebuilt by a pass over the data source
+ * once it's outdated or overfilled.
+ *
+ * A false negative would reject the requests of an existing owner, so the
+ * saved filter is used only if its tag is the current change sequence of the
+ * data source. The sequence changes with every write and is never reused,
+ * unlike a change time, so a filter missing an owner can't match the data.
+ * Otherwise every owner is accepted until the filter is rebuilt.
+ */
+public class OwnerFilterStore extends SidecarStore implements PreferenceChangeBulk.ChangeListener {
+    /**
+     * File prefix "OWNR".
+     */
+    private static final byte[] PREFIX = { 0x4F, 0x57, 0x4E, 0x52 };
+    /**
+     * Current file structure version.
+     */
+    private static final byte VERSION = 1;
+
+    private final Logger log = LoggerFactory.getLogger(OwnerFilterStore.class);
+    /**
+     * The filter in use or null until it's built.
+     */
+    private BloomFilter filter;
+    /**
+     * The filter being rebuilt or null.
+     */
+    private BloomFilter building;
+
+    /**
+     * @param filePath The path of the file to persist the filter to.
+     */
+    public OwnerFilterStore(String filePath) {
+        super(filePath, PREFIX, VERSION);
+    }
+
+    /**
+     * Returns false if the owner definitely has no preference set. Every
+     * owner might have one until the filter is built.
+     */
+    public synchronized boolean mightContain(long ownerId) {
+        return filter == null || filter.mightContain(ownerId);
+    }
+
+    /**
+     * Returns true if the filter must be rebuilt, because it's missing or
+     * its false positive rate has grown.
+     */
+    public synchronized boolean needsBuilding() {
+        return building == null && (filter == null || filter.getCount() > filter.getCapacity());
+    }
+
+    /**
+     * Starts building a new filter, which replaces the current one when it's
+     * finished.
+     *
+     * @param ownerCount The current number of the owners of the data source.
+     */
+    public synchronized void startBuilding(long ownerCount) {
+        // Leaves room for the owners to come
+        building = new BloomFilter((int) Math.min(ownerCount * 2, Integer.MAX_VALUE / 16));
+    }
+
+    /**
+     * Adds an owner to the filter being built.
+     */
+    public synchronized void add(long ownerId) {
+        building.add(ownerId);
+    }
+
+    /**
+     * Puts the built filter in use.
+     *
+     * @param changeSequence The change sequence of the data source the owners
+     *                         have been read from.
+     */
+    public synchronized void finishBuilding(long changeSequence) {
+        filter = building;
+        building = null;
+        setChangeSequence(changeSequence);
+        markDirty();
+        log.info("Built owner filter of {} owners", filter.getCount());
+    }
+
+    @Override
+    public synchronized void onChanged(PreferenceSet originalPreferenceSet,
+                                       PreferenceSet preferenceSet) {
+        if (filter != null && filter.add(preferenceSet.getOwnerId())) {
+            markDirty();
+        }
+        if (building != null) {
+            building.add(preferenceSet.getOwnerId());
+        }
+    }
+
+    /**
+     * Tags the filter with the change sequence of the data source after the
+     * changes have been executed.
+     */
+    public void commit(long changeSequence) {
+        setChangeSequence(changeSequence);
+    }
+
+    @Override
+    protected boolean isSavable() {
+        return filter != null;
+    }
+
+    @Override
+    protected void writeContent(DataOutput out) throws IOException {
+        filter.write(out);
+    }
+
+    /**
+     * Loads the filter only if it reflects the current state of the data
+     * source, since the owners added after it was saved are unknown.
+     */
+    @Override
+    protected boolean readContent(DataInput in, boolean upToDate) throws IOException {
+        if (!upToDate) {
+            return false;
+        }
+        filter = BloomFilter.read(in);
+        log.info("Loaded owner filter of {} owners", filter.getCount());
+        return true;
+    }
+
+    @Override
+    protected void clearContent() {
+        filter = null;
+    }
+}
@@ -5,17 +5,60 @@ import com.lexkrstn.recommender.shard.models.PreferenceSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 /**
  * Records the like / dislike operations that extends or shrinks the file
  * to execute them at a time.
+ *
+ * The memory the recorded preference sets take may be bounded. Past the
+ * budget the bulk is spilled: the changes that fit the sets in place are
+ * written right away and the rest are appended to a temporary file. The
+ * execution keeps only the headers of the spilled sets in memory: it
+ * deletes the original sets by their headers in one sweep, then adds the
+ * changed ones in one more, reading every set back as it's written.
  */
 public class PreferenceChangeBulk {
+    /**
+     * The memory the recorded preference sets may take by default (64 MB).
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /**
+     * The listener that executes upon every preference set change written to
+     * the data source.
+     */
+    public interface ChangeListener {
+        /**
+         * @param originalPreferenceSet The preference set before the change or
+         *                              null if the set is a new one.
+         * @param preferenceSet The preference set after the change.
+         */
+        void onChanged(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet);
+    }
+
+    /**
+     * A change read back from the spill file.
+     */
+    private static class SpilledChange {
+        private final PreferenceSet originalPreferenceSet;
+        private final PreferenceSet preferenceSet;
+
+        private SpilledChange(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet) {
+            this.originalPreferenceSet = originalPreferenceSet;
+            this.preferenceSet = preferenceSet;
+        }
+    }
+
     private final Logger log = LoggerFactory.getLogger(PreferenceChangeBulk.class);
     private final PreferenceDataSource dataSource;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
     /**
      * The preference sets unmodified from the last read.
      */
@@ -24,14 +67,63 @@ public class PreferenceChangeBulk {
      * Modified preference sets.
      */
     private final HashMap<Long, PreferenceSet> preferenceSets = new HashMap<>();
+    /**
+     * The memory the recorded preference sets may take (0 - unbounded) and
+     * the memory they take.
+     */
+    private final long maxBytes;
+    private long memoryBytes = 0;
+    /**
+     * The file the changes are spilled to, which is created by the first
+     * spill, and the size of its records.
+     */
+    private Path spillPath;
+    private RandomAccessFile spillFile;
+    private long spillSize = 0;
+    /**
+     * The positions of the latest spilled changes in the file by their owner
+     * IDs.
+     */
+    private final HashMap<Long, Long> spilledPositions = new HashMap<>();
+    /**
+     * The capacities and the entity counts (packed into the high and the low
+     * halves) of the original preference sets of the latest spilled changes
+     * by the offsets of the sets.
+     */
+    private final TreeMap<Long, Long> spilledOriginalShapes = new TreeMap<>();
+    /**
+     * Whether preference sets have been rewritten in place by the spills
+     * since the last execution, so that the data source must be flushed.
+     */
+    private boolean rewrittenInPlace = false;
 
     /**
-     * Constructs a Bulk.
+     * Constructs a Bulk spilled past the default memory budget.
      *
      * @param dataSource The data storage.
      */
     public PreferenceChangeBulk(PreferenceDataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructs a Bulk.
+     *
+     * @param dataSource The data storage.
+     * @param maxBytes The memory the recorded preference sets may take
+     *                 before the bulk must be spilled (0 - unbounded).
+     */
+    public PreferenceChangeBulk(PreferenceDataSource dataSource, long maxBytes) {
         this.dataSource = dataSource;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the listener that executes upon every preference set change
+     * written to the data source.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
     }
 
     /**
@@ -41,13 +133,10 @@ public class PreferenceChangeBulk {
      * @param entityId ID of a liked item.
      */
     public void addPreference(PreferenceSet preferenceSet, long entityId) {
-        var foundPreferenceSet= preferenceSets.get(preferenceSet.getOwnerId());
-        if (foundPreferenceSet == null) {
-            originalPreferenceSets.put(preferenceSet.getOwnerId(), preferenceSet);
-            foundPreferenceSet = (PreferenceSet) preferenceSet.clone();
-            preferenceSets.put(preferenceSet.getOwnerId(), foundPreferenceSet);
-        }
+        var foundPreferenceSet = getChangedSet(preferenceSet);
+        memoryBytes -= foundPreferenceSet.getMemorySize();
         foundPreferenceSet.add(entityId);
+        memoryBytes += foundPreferenceSet.getMemorySize();
         log.debug("Recorded adding liked item {} to existing {}",
                 entityId, preferenceSet.getOwnerId());
     }
@@ -58,16 +147,54 @@ public class PreferenceChangeBulk {
      * @param preference The preference to add.
      */
     public void addPreference(Preference preference) {
-        var foundPreferenceSet= preferenceSets.get(preference.getOwnerId());
+        var foundPreferenceSet = getRecordedSet(preference.getOwnerId());
         if (foundPreferenceSet == null) {
             foundPreferenceSet = PreferenceSet.fromPreference(preference);
             preferenceSets.put(preference.getOwnerId(), foundPreferenceSet);
+            memoryBytes += foundPreferenceSet.getMemorySize();
         }
+        memoryBytes -= foundPreferenceSet.getMemorySize();
         foundPreferenceSet.add(preference.getEntityId());
+        memoryBytes += foundPreferenceSet.getMemorySize();
         log.debug("Recorded adding liked item {} to new {}",
                 preference.getEntityId(), preference.getOwnerId());
     }
 
+    /**
+     * Records an operation of addition of several entities to a preference set.
+     *
+     * @param preferenceSet The preference set to add into.
+     * @param entityIds IDs of liked items.
+     */
+    public void addPreferences(PreferenceSet preferenceSet, Collection<Long> entityIds) {
+        var foundPreferenceSet = getChangedSet(preferenceSet);
+        memoryBytes -= foundPreferenceSet.getMemorySize();
+        foundPreferenceSet.getEntityIds().addAll(entityIds);
+        memoryBytes += foundPreferenceSet.getMemorySize();
+        log.debug("Recorded adding {} liked items to existing {}",
+                entityIds.size(), preferenceSet.getOwnerId());
+    }
+
+    /**
+     * Records an operation of addition of a NEW preference set.
+     *
+     * @param preferenceSet The preference set to add. It must not be used
+     *                      by the caller anymore.
+     */
+    public void addPreferenceSet(PreferenceSet preferenceSet) {
+        var foundPreferenceSet = getRecordedSet(preferenceSet.getOwnerId());
+        if (foundPreferenceSet == null) {
+            preferenceSets.put(preferenceSet.getOwnerId(), preferenceSet);
+            memoryBytes += preferenceSet.getMemorySize();
+        } else {
+            memoryBytes -= foundPreferenceSet.getMemorySize();
+            foundPreferenceSet.getEntityIds().addAll(preferenceSet.getEntityIds());
+            memoryBytes += foundPreferenceSet.getMemorySize();
+        }
+        log.debug("Recorded adding new set of {} liked items to {}",
+                preferenceSet.getEntityCount(), preferenceSet.getOwnerId());
+    }
+
     /**
      * Records an operation of removal an entity to a preference set.
      *
@@ -75,15 +202,93 @@ public class PreferenceChangeBulk {
      * @param entityId ID of a liked item.
      */
     public void removePreference(PreferenceSet preferenceSet, long entityId) {
-        var foundPreferenceSet= preferenceSets.get(preferenceSet.getOwnerId());
+        var foundPreferenceSet = getChangedSet(preferenceSet);
+        memoryBytes -= foundPreferenceSet.getMemorySize();
+        foundPreferenceSet.remove(entityId);
+        memoryBytes += foundPreferenceSet.getMemorySize();
+        log.debug("Recorded removal liked item {} from {}",
+                entityId, preferenceSet.getOwnerId());
+    }
+
+    /**
+     * Returns the copy of the preference set read from the data source the
+     * changes of the set are recorded in, making it if there's none.
+     */
+    private PreferenceSet getChangedSet(PreferenceSet preferenceSet) {
+        var foundPreferenceSet = getRecordedSet(preferenceSet.getOwnerId());
         if (foundPreferenceSet == null) {
             originalPreferenceSets.put(preferenceSet.getOwnerId(), preferenceSet);
             foundPreferenceSet = (PreferenceSet) preferenceSet.clone();
             preferenceSets.put(preferenceSet.getOwnerId(), foundPreferenceSet);
+            memoryBytes += preferenceSet.getMemorySize() + foundPreferenceSet.getMemorySize();
         }
-        foundPreferenceSet.remove(entityId);
-        log.debug("Recorded removal liked item {} from {}",
-                entityId, preferenceSet.getOwnerId());
+        return foundPreferenceSet;
+    }
+
+    /**
+     * Returns the modified preference set of the owner or null if no changes
+     * of the set have been recorded. A spilled change is read back to be
+     * modified further.
+     */
+    private PreferenceSet getRecordedSet(long ownerId) {
+        var position = spilledPositions.remove(ownerId);
+        if (position == null) {
+            return preferenceSets.get(ownerId);
+        }
+        final SpilledChange change;
+        try {
+            change = readSpilledChange(position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var original = change.originalPreferenceSet;
+        if (original != null) {
+            spilledOriginalShapes.remove(original.getOffset());
+            originalPreferenceSets.put(ownerId, original);
+            memoryBytes += original.getMemorySize();
+        }
+        preferenceSets.put(ownerId, change.preferenceSet);
+        memoryBytes += change.preferenceSet.getMemorySize();
+        return change.preferenceSet;
+    }
+
+    /**
+     * Returns true if the recorded preference sets take more memory than the
+     * bulk may keep, so that it must be spilled.
+     */
+    public boolean isOverBudget() {
+        return maxBytes > 0 && memoryBytes > maxBytes;
+    }
+
+    /**
+     * Writes the recorded changes which fit the preference sets in place
+     * right away and moves the rest to the spill file, freeing the memory
+     * the sets take. The changes are completed by the next execution.
+     *
+     * The changes of a set mustn't be recorded anew from its copy read before
+     * the spill, so it must be called between the sets of a scan.
+     */
+    public void spill() throws IOException {
+        int rewrittenCount = 0;
+        int spilledCount = 0;
+        for (var preferenceSet : preferenceSets.values()) {
+            final var original = originalPreferenceSets.get(preferenceSet.getOwnerId());
+            if (original != null && original.equals(preferenceSet)) {
+                continue;
+            }
+            if (original != null && dataSource.tryQuickRewrite(original, preferenceSet)) {
+                rewrittenInPlace = true;
+                rewrittenCount++;
+                notifyChanged(original, preferenceSet);
+            } else {
+                spillChange(original, preferenceSet);
+                spilledCount++;
+            }
+        }
+        originalPreferenceSets.clear();
+        preferenceSets.clear();
+        memoryBytes = 0;
+        log.debug("Rewrote {} sets in place and spilled {} changes", rewrittenCount, spilledCount);
     }
 
     /**
@@ -98,6 +303,8 @@ public class PreferenceChangeBulk {
                 })
                 .toList();
 
+        // The sets that outgrow their capacity or move to another size class
+        // cannot be rewritten in place, so they're deleted and added anew
         List<PreferenceSet> slowSets = new LinkedList<>();
         for (var preferenceSet : changedSets) {
             final var original = originalPreferenceSets.get(preferenceSet.getOwnerId());
@@ -106,7 +313,10 @@ public class PreferenceChangeBulk {
             }
         }
 
-        if (!slowSets.isEmpty()) {
+        int spilledCount = 0;
+        if (!spilledPositions.isEmpty()) {
+            spilledCount = executeSpilled(slowSets);
+        } else if (!slowSets.isEmpty()) {
             Set<Long> slowSetOwnerIds = slowSets.stream()
                     .map(PreferenceSet::getOwnerId)
                     .collect(Collectors.toCollection(TreeSet::new));
@@ -118,10 +328,232 @@ public class PreferenceChangeBulk {
             dataSource.add(slowSets);
         }
 
+        if (!changedSets.isEmpty() || spilledCount > 0 || rewrittenInPlace) {
+            dataSource.flush();
+        }
+
+        for (var preferenceSet : changedSets) {
+            notifyChanged(originalPreferenceSets.get(preferenceSet.getOwnerId()), preferenceSet);
+        }
+
         originalPreferenceSets.clear();
         preferenceSets.clear();
+        memoryBytes = 0;
+        rewrittenInPlace = false;
+        clearSpill();
+
+        log.debug("Executed {} quick, {} slow and {} spilled changes",
+                changedSets.size() - slowSets.size(), slowSets.size(), spilledCount);
+    }
+
+    /**
+     * Deletes the spill file. The changes spilled since the last execution
+     * are lost.
+     */
+    public void close() throws IOException {
+        if (spillFile != null) {
+            spillFile.close();
+            spillFile = null;
+            Files.deleteIfExists(spillPath);
+        }
+    }
 
-        log.debug("Executed {} quick and {} slow changes",
-                changedSets.size() - slowSets.size(), slowSets.size());
+    private void notifyChanged(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet) {
+        for (var listener : changeListeners) {
+            listener.onChanged(originalPreferenceSet, preferenceSet);
+        }
+    }
+
+    /**
+     * Executes the slow changes along with the spilled ones. Only the headers
+     * of the spilled sets are kept in memory.
+     *
+     * The original sets are deleted in one sweep by their headers. The
+     * changed sets are then added in one more, the spilled ones being read
+     * back as they're written, and the listeners are notified of the spilled
+     * changes reading them back once more.
+     *
+     * @param slowSets The slow changes kept in memory.
+     * @return The number of the spilled changes.
+     */
+    private int executeSpilled(List<PreferenceSet> slowSets) throws IOException {
+        final TreeMap<Long, Long> originalShapes = new TreeMap<>(spilledOriginalShapes);
+        for (var preferenceSet : slowSets) {
+            var original = originalPreferenceSets.get(preferenceSet.getOwnerId());
+            if (original != null) {
+                originalShapes.put(original.getOffset(),
+                        packShape(original.getCapacity(), original.getEntityCount()));
+            }
+        }
+        final long[] originalOffsets = new long[originalShapes.size()];
+        final long[] originalShapeArray = new long[originalShapes.size()];
+        int index = 0;
+        for (var entry : originalShapes.entrySet()) {
+            originalOffsets[index] = entry.getKey();
+            originalShapeArray[index++] = entry.getValue();
+        }
+        dataSource.delete(new SpilledSetBatch(originalOffsets, originalShapeArray, List.of()));
+
+        // The latest spilled changes in the order of the file
+        final long[] positions = spilledPositions.values().stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .toArray();
+        final long[] shapes = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            shapes[i] = readSpilledShape(positions[i]);
+        }
+        dataSource.add(new SpilledSetBatch(positions, shapes, slowSets));
+        for (long position : positions) {
+            var change = readSpilledChange(position);
+            notifyChanged(change.originalPreferenceSet, change.preferenceSet);
+        }
+        return positions.length;
+    }
+
+    private static long packShape(int capacity, int entityCount) {
+        return ((long) capacity << 32) | (entityCount & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The preference sets of a batch kept in memory followed by the ones
+     * spilled, which are described by their headers.
+     */
+    private class SpilledSetBatch implements PreferenceSetBatch {
+        /**
+         * The offsets of the stored sets or the positions of the changes in
+         * the spill file.
+         */
+        private final long[] locations;
+        private final long[] shapes;
+        private final List<PreferenceSet> preferenceSets;
+
+        private SpilledSetBatch(long[] locations, long[] shapes,
+                                List<PreferenceSet> preferenceSets) {
+            this.locations = locations;
+            this.shapes = shapes;
+            this.preferenceSets = preferenceSets;
+        }
+
+        @Override
+        public int size() {
+            return preferenceSets.size() + locations.length;
+        }
+
+        @Override
+        public long getOffset(int index) {
+            return index < preferenceSets.size()
+                    ? preferenceSets.get(index).getOffset()
+                    : locations[index - preferenceSets.size()];
+        }
+
+        @Override
+        public int getCapacity(int index) {
+            return index < preferenceSets.size()
+                    ? preferenceSets.get(index).getCapacity()
+                    : (int) (shapes[index - preferenceSets.size()] >>> 32);
+        }
+
+        @Override
+        public int getEntityCount(int index) {
+            return index < preferenceSets.size()
+                    ? preferenceSets.get(index).getEntityCount()
+                    : (int) shapes[index - preferenceSets.size()];
+        }
+
+        @Override
+        public PreferenceSet get(int index) throws IOException {
+            return index < preferenceSets.size()
+                    ? preferenceSets.get(index)
+                    : readSpilledChange(locations[index - preferenceSets.size()]).preferenceSet;
+        }
+    }
+
+    /**
+     * Appends the change to the spill file.
+     *
+     * @param originalPreferenceSet The set before the change or null.
+     * @param preferenceSet The set after the change.
+     */
+    private void spillChange(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet)
+            throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeBoolean(originalPreferenceSet != null);
+        if (originalPreferenceSet != null) {
+            writeSpilledSet(out, originalPreferenceSet);
+        }
+        writeSpilledSet(out, preferenceSet);
+        var record = ByteBuffer.allocate(4 + 8 + bytes.size())
+                .putInt(bytes.size())
+                .putLong(packShape(preferenceSet.getCapacity(), preferenceSet.getEntityCount()))
+                .put(bytes.toByteArray())
+                .array();
+        if (spillFile == null) {
+            spillPath = Files.createTempFile("preference-changes-", ".spill");
+            spillFile = new RandomAccessFile(spillPath.toFile(), "rw");
+        }
+        spillFile.seek(spillSize);
+        spillFile.write(record);
+        spilledPositions.put(preferenceSet.getOwnerId(), spillSize);
+        if (originalPreferenceSet != null) {
+            spilledOriginalShapes.put(originalPreferenceSet.getOffset(),
+                    packShape(originalPreferenceSet.getCapacity(),
+                              originalPreferenceSet.getEntityCount()));
+        }
+        spillSize += record.length;
+    }
+
+    /**
+     * Reads the change spilled at the position of the spill file.
+     */
+    private SpilledChange readSpilledChange(long position) throws IOException {
+        byte[] prefix = new byte[4 + 8];
+        spillFile.seek(position);
+        spillFile.readFully(prefix);
+        byte[] bytes = new byte[ByteBuffer.wrap(prefix).getInt()];
+        spillFile.readFully(bytes);
+        var in = new DataInputStream(new ByteArrayInputStream(bytes));
+        var originalPreferenceSet = in.readBoolean() ? readSpilledSet(in) : null;
+        return new SpilledChange(originalPreferenceSet, readSpilledSet(in));
+    }
+
+    /**
+     * Reads the capacity and the entity count of the changed preference set
+     * spilled at the position of the spill file.
+     */
+    private long readSpilledShape(long position) throws IOException {
+        spillFile.seek(position + 4);
+        return spillFile.readLong();
+    }
+
+    private static void writeSpilledSet(DataOutputStream out, PreferenceSet preferenceSet)
+            throws IOException {
+        out.writeInt(preferenceSet.getCapacity());
+        out.writeLong(preferenceSet.getOffset());
+        PreferenceStream.writePreferenceSet(out, preferenceSet);
+    }
+
+    private static PreferenceSet readSpilledSet(DataInputStream in) throws IOException {
+        final int capacity = in.readInt();
+        final long offset = in.readLong();
+        var preferenceSet = PreferenceStream.readPreferenceSet(in);
+        if (preferenceSet == null) {
+            throw new EOFException("Unexpected end of spilled change");
+        }
+        return new PreferenceSet(preferenceSet.getOwnerId(), capacity,
+                preferenceSet.getEntityIds(), offset);
+    }
+
+    /**
+     * Truncates the spill file once its changes have been executed.
+     */
+    private void clearSpill() throws IOException {
+        if (spillFile != null && spillSize > 0) {
+            spillFile.setLength(0);
+        }
+        spillSize = 0;
+        spilledPositions.clear();
+        spilledOriginalShapes.clear();
     }
 }
@@ -1,6 +1,8 @@
 package com.lexkrstn.recommender.shard.io;
 
 import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.SetSizeHistogram;
 
 import java.io.IOException;
 import java.util.List;
@@ -10,12 +12,12 @@ import java.util.List;
  */
 public interface PreferenceDataSource extends AutoCloseable {
     /**
-     * Returns the last change time in milliseconds.
-     *
-     * If data two sources differ this value can be used to
-     * determine the most "fresh" one.
+     * Returns the change sequence, which is persisted along with the data and
+     * changes with every write, never repeating a previous value. Unlike a
+     * change time, it doesn't depend on the clock, so it tells whether the
+     * structures derived from the data reflect its current state.
      */
-    long getChangeTimeMillis() throws IOException;
+    long getChangeSequence() throws IOException;
 
     /**
      * Returns the number of preference sets stored in the source.
@@ -28,10 +30,32 @@ public interface PreferenceDataSource extends AutoCloseable {
     long getPreferenceCount() throws IOException;
 
     /**
-     * Seeks to the first preference.
+     * Returns the numbers of the preference sets stored in the source by
+     * the ranges of their sizes.
+     */
+    SetSizeHistogram getSizeHistogram();
+
+    /**
+     * Restarts the scan of the preference sets. The scan may start from a
+     * different set every time, so that the sets read by a scan cut short
+     * vary.
      */
     void rewind() throws IOException;
 
+    /**
+     * Returns the number of the preference sets next() has read or skipped
+     * since the scan has been restarted.
+     */
+    long getScannedPreferenceSetCount();
+
+    /**
+     * Returns the number of the preference sets the scan reads or skips in
+     * total: the ones there at its start less the ones deleted since. Unlike
+     * getPreferenceSetCount(), it doesn't count the sets added during the
+     * scan. Before the scan has started, it's the number of the stored sets.
+     */
+    long getScanPreferenceSetCount();
+
     /**
      * Tries to rewrite the preference set without extending the file.
      *
@@ -47,23 +71,52 @@ public interface PreferenceDataSource extends AutoCloseable {
      */
     void delete(List<PreferenceSet> preferenceSets) throws IOException;
 
+    /**
+     * Deletes the preference sets by their headers at once.
+     *
+     * @param preferenceSets The sets in the order of their offsets.
+     */
+    void delete(PreferenceSetBatch preferenceSets) throws IOException;
+
     /**
      * Adds the preference sets extending the file.
      */
     void add(List<PreferenceSet> preferenceSets) throws IOException;
 
+    /**
+     * Adds the preference sets at once reading them one by one.
+     */
+    void add(PreferenceSetBatch preferenceSets) throws IOException;
+
     /**
      * Persists any in-memory cached data.
      */
     void flush() throws IOException;
 
     /**
-     * Returns true only if there is another preference set to read with the next() method.
+     * Sets the filter that decides by the header of every preference set
+     * whether next() should read it or skip it without reading its entities.
+     * The data source may also skip whole ranges of the sets by their size.
+     *
+     * @param filter The filter or null to read all the preference sets.
+     */
+    void setFilter(PreferenceSetFilter filter);
+
+    /**
+     * Reads the next preference set into the view returned by getCurrent().
+     *
+     * The preference sets may be changed in the middle of the scan. The scan
+     * still reads the sets there at its start, except for the ones deleted
+     * before being read, and leaves the added ones for the next scan. A set
+     * rewritten in place before being read is read as rewritten.
+     *
+     * @return False if there are no preference sets left to read.
      */
-    boolean hasNext() throws IOException;
+    boolean next() throws IOException;
 
     /**
-     * Reads the next preference set object from the source.
+     * Returns the view of the preference set read by the last call of
+     * next(). The same view is reused for every set.
      */
-    PreferenceSet next() throws IOException;
+    PreferenceSetView getCurrent();
 }
@@ -1,16 +1,65 @@
 package com.lexkrstn.recommender.shard.io;
 
 import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.SetSizeHistogram;
 import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
 
 
 /**
  * File implementation of PreferenceDataSource.
+ *
+ * The preference sets are grouped into segments by their size class, so that
+ * the sets which are too small or too large to be of interest to any task can
+ * be skipped without reading them. The i-th segment stores the sets having
+ * from 2^i to 2^(i+1)-1 entities (the 0-th one also stores the empty sets).
+ * The segments follow the header in the order of their size classes.
+ *
+ * The header is stored twice and the copies are written alternately, so that
+ * a torn header write leaves the previous copy intact. The copy having the
+ * valid checksum and the greatest sequence number is the actual one.
+ * Before the data is changed, the header is written marking the first
+ * segment the change affects dirty. Every preference set is checksummed, so
+ * that after a crash only the sets starting from the dirty segment have to
+ * be validated to restore the consistency of the header with the data.
+ * The data is moved in chunks of whole sets, so that an interrupted move
+ * leaves a complete copy of every set (see move()), and the validation goes
+ * on past the data it cannot parse. The data overlapping its destination is
+ * moved through a scratch copy past the data, which the header records, so
+ * that the recovery completes the move.
+ *
+ * The entities are stored by their dense 32-bit IDs of an EntityDictionary,
+ * which is flushed before the data is marked consistent.
+ *
+ * The writes are positional, so they don't disturb the reading. The
+ * consecutive preference sets are encoded into a pooled direct buffer and
+ * written at once, and the data is moved through another one.
+ *
+ * The scan reads the segments in rounds, every round reading the next
+ * stripe of every segment, so that a scan cut short reads a sample of the
+ * sets of all the sizes. The stripes are read in large chunks ahead of the
+ * preference set being processed (see ReadAhead). A change of the data stops reading ahead
+ * and the scan resumes it from the next set to read.
+ *
+ * A file of an earlier version is upgraded on open (see
+ * LegacyPreferenceFile). Its sets are sorted into the segments once, in a
+ * new file which replaces the original one only when it's complete.
  */
 public class PreferenceFile implements PreferenceDataSource {
     /**
@@ -23,51 +72,409 @@ public class PreferenceFile implements PreferenceDataSource {
          */
         public static final byte[] PREFIX = { 0x50, 0x52, 0x45, 0x46 };
         /**
-         * Header size in bytes.
+         * The number of size class segments.
          */
-        public static final int SIZE = PREFIX.length + 1 + 8 * 4;
+        public static final int SEGMENT_COUNT = Integer.SIZE - 1;
+        /**
+         * Size of a header copy in bytes including its checksum.
+         */
+        public static final int SIZE = PREFIX.length + 1 + 8 * 5 + 4 + 8 * 3 + 4
+                + SEGMENT_COUNT * 8 * 3 + 4;
+        /**
+         * The offset of the data which follows both copies of the header.
+         */
+        public static final long DATA_OFFSET = 2L * SIZE;
         /**
          * Current file structure version.
          */
-        public static final byte VERSION = 1;
+        public static final byte VERSION = 4;
         /**
          * File structure version.
          */
         private byte version;
         /**
-         * Last file change time.
+         * The number of times the header has been written.
+         */
+        private long sequence;
+        /**
+         * Incremented by every change of the data. A new file starts it from
+         * a random value, so that the sidecar files left by another file at
+         * the same path don't match it. It takes the place of the change time
+         * of the earlier versions, which it continues from.
          */
-        private long changeTimeMillis;
+        private long changeSequence;
         private long preferenceSetCount;
         private long preferenceCount;
         private long dataSize;
+        /**
+         * The first segment that may be inconsistent with the header since
+         * a change is in progress or -1 if the data is consistent.
+         */
+        private int dirtySegment = -1;
+        /**
+         * The destination of the data a move copies back from the scratch
+         * range past the data, the range and the checksum of the data. The
+         * size is 0 unless a copy back may be in progress.
+         */
+        private long moveOffset;
+        private long scratchOffset;
+        private long scratchSize;
+        private int scratchChecksum;
+        /**
+         * The number of preference sets in every segment.
+         */
+        private final long[] segmentSetCounts = new long[SEGMENT_COUNT];
+        /**
+         * The size of every segment in bytes.
+         */
+        private final long[] segmentDataSizes = new long[SEGMENT_COUNT];
+        /**
+         * The number of preferences in every segment.
+         */
+        private final long[] segmentPreferenceCounts = new long[SEGMENT_COUNT];
+
+        /**
+         * Returns the offset of the segment from the beginning of the file.
+         */
+        public long getSegmentOffset(int segment) {
+            long offset = DATA_OFFSET;
+            for (int i = 0; i < segment; i++) {
+                offset += segmentDataSizes[i];
+            }
+            return offset;
+        }
     }
 
+    /**
+     * Size of the fixed part of a preference set in bytes: owner ID,
+     * capacity, entity count and checksum.
+     */
+    private static final int PREFERENCE_SET_HEADER_SIZE = 8 + 4 * 3;
+    /**
+     * Size of a stored dense entity ID in bytes.
+     */
+    private static final int ENTITY_ID_SIZE = 4;
+    /**
+     * The size of the pooled buffers the preference sets are encoded into
+     * and the data is moved through.
+     */
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    /**
+     * The default number of the chunks read ahead of the scan.
+     */
+    private static final int DEFAULT_READ_AHEAD_DEPTH = 2;
+    /**
+     * The maximum number of the rounds a scan is interleaved into.
+     */
+    private static final int MAX_SCAN_ROUND_COUNT = 64;
+
+    private final Logger log = LoggerFactory.getLogger(PreferenceFile.class);
     /**
      * Path to the file.
      */
     private final String filePath;
     private final int minCapacity = 2;
     private final RandomAccessFile file;
+    private final FileChannel channel;
     private final Header header = new Header();
-    private final LinkedList<PreferenceSet> lastPreferenceSets = new LinkedList<>();
-    private final long maxLastPreferenceSets = 100;
-    private final byte[] moveBuffer = new byte[10240];
-    private long preferenceSetIndex = -1;
+    private final EntityDictionary dictionary;
+    /**
+     * Whether the dictionary has been opened by this object and must be
+     * closed along with it.
+     */
+    private final boolean ownsDictionary;
+    /**
+     * The view of the last read preference set, which is reused to read the
+     * sets without allocations.
+     */
+    private final PreferenceSetView current;
+    private final ReadAhead readAhead;
+    /**
+     * The chunk holding the next preference set to read, if it has been
+     * taken, and the position of the set in it.
+     */
+    private ReadAhead.Chunk chunk;
+    private int chunkPosition = 0;
+    /**
+     * Whether the read-ahead is reading the rest of the segment from the
+     * scan position.
+     */
+    private boolean readingAhead = false;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+    /**
+     * The file offset the content of the write buffer is to be written at.
+     */
+    private long writeOffset;
+    private final ByteBuffer moveBuffer;
+    /**
+     * The range of the data moved since the last force, which mustn't be
+     * overwritten until its copy is forced to the storage device.
+     */
+    private long movedStart = 0;
+    private long movedEnd = 0;
+    /**
+     * The destination of the last copy back from the scratch range, which
+     * the header on the storage device may still record, so it mustn't be
+     * overwritten until a header clearing the copy is forced. Otherwise the
+     * recovery could copy the stale data back over it.
+     */
+    private long copiedStart = 0;
+    private long copiedEnd = 0;
+    /**
+     * Whether the last header written doesn't record a copy back.
+     */
+    private boolean copyCleared = true;
+    private final CRC32 scratchCrc = new CRC32();
+    private final CRC32 crc = new CRC32();
+    /**
+     * The segment being read or -1 if the file has been rewound.
+     */
+    private int segment = -1;
+    /**
+     * The offset of the next preference set to read in the file.
+     */
+    private long scanPosition = Header.DATA_OFFSET;
+    /**
+     * The offset in the file the stripe of the segment being read ends at.
+     * The set starting before it is the last one of the stripe.
+     */
+    private long stripeEnd = Header.DATA_OFFSET;
+    /**
+     * The segment the scans start their rounds from unless the filter
+     * prefers another one. It's rotated by every rewind.
+     */
+    private int startSegment = 0;
+    /**
+     * The segment every round of the current scan starts from.
+     */
+    private int roundStartSegment = 0;
+    /**
+     * The round of the scan (from 1) and the number of the rounds. Every
+     * round reads the next stripe of every segment, the stripes being equal
+     * fractions of the segments, so that a scan cut short reads the sets of
+     * all the sizes in proportion.
+     */
+    private int scanRound = 0;
+    private int scanRoundCount = 0;
+    /**
+     * The number of the segments the round has reached.
+     */
+    private int visitedSegmentCount = 0;
+    /**
+     * The number of the preference sets read or skipped since the rewind.
+     */
+    private long scannedSetCount = 0;
+    /**
+     * The numbers of the preference sets of the segments the scan reads:
+     * the ones there at the start of the scan less the ones deleted since.
+     * The sets added during the scan are appended to the segments after
+     * them, so they're left for the next scan.
+     */
+    private final long[] scanSetCounts = new long[Header.SEGMENT_COUNT];
+    /**
+     * The sizes of the leading parts of the segments holding those sets.
+     */
+    private final long[] scanDataSizes = new long[Header.SEGMENT_COUNT];
+    /**
+     * The number of the preference sets of every segment read or skipped
+     * and the offset of the next one from the beginning of the segment.
+     * Those of the segment being read are saved when the scan leaves it.
+     */
+    private final long[] scanSetIndexes = new long[Header.SEGMENT_COUNT];
+    private final long[] scanOffsets = new long[Header.SEGMENT_COUNT];
+    /**
+     * The size of a chunk read ahead, which the size of a round is based on.
+     */
+    private final int readBufferSize;
+    private PreferenceSetFilter filter;
 
     /**
+     * Opens the file along with its own entity dictionary stored next to it.
+     *
      * @param filePath The path of the file.
      * @throws FileNotFoundException If the file hasn't been found.
      * @throws SecurityException If the file cannot be opened in "rw" mode.
      * @throws IOException Any other IO error.
      */
     public PreferenceFile(String filePath) throws IOException {
+        this(filePath, new EntityDictionary(filePath + ".entities"), true,
+             DEFAULT_READ_AHEAD_DEPTH, IO_BUFFER_SIZE, IO_BUFFER_SIZE);
+    }
+
+    /**
+     * @param filePath The path of the file.
+     * @param dictionary The entity dictionary, which may be shared by
+     *                   several files. The caller must close it.
+     * @throws FileNotFoundException If the file hasn't been found.
+     * @throws SecurityException If the file cannot be opened in "rw" mode.
+     * @throws IOException Any other IO error.
+     */
+    public PreferenceFile(String filePath, EntityDictionary dictionary) throws IOException {
+        this(filePath, dictionary, false, DEFAULT_READ_AHEAD_DEPTH, IO_BUFFER_SIZE, IO_BUFFER_SIZE);
+    }
+
+    /**
+     * @param filePath The path of the file.
+     * @param dictionary The entity dictionary, which may be shared by
+     *                   several files. The caller must close it.
+     * @param readAheadDepth The number of the chunks read ahead of the scan
+     *                       by a thread of its own (0 - read by the scan).
+     * @param readBufferSize The size (in bytes) of a chunk.
+     * @throws FileNotFoundException If the file hasn't been found.
+     * @throws SecurityException If the file cannot be opened in "rw" mode.
+     * @throws IOException Any other IO error.
+     */
+    public PreferenceFile(String filePath, EntityDictionary dictionary,
+                          int readAheadDepth, int readBufferSize) throws IOException {
+        this(filePath, dictionary, false, readAheadDepth, readBufferSize, IO_BUFFER_SIZE);
+    }
+
+    /**
+     * @param filePath The path of the file.
+     * @param dictionary The entity dictionary. The caller must close it.
+     * @param readAheadDepth The number of the chunks read ahead of the scan.
+     * @param readBufferSize The size (in bytes) of a chunk.
+     * @param moveBufferSize The size (in bytes) of a chunk the data is moved in.
+     */
+    PreferenceFile(String filePath, EntityDictionary dictionary, int readAheadDepth,
+                   int readBufferSize, int moveBufferSize) throws IOException {
+        this(filePath, dictionary, false, readAheadDepth, readBufferSize, moveBufferSize);
+    }
+
+    private PreferenceFile(String filePath, EntityDictionary dictionary, boolean ownsDictionary,
+                           int readAheadDepth, int readBufferSize, int moveBufferSize)
+            throws IOException {
         this.filePath = filePath;
+        this.readBufferSize = readBufferSize;
+        this.moveBuffer = ByteBuffer.allocateDirect(moveBufferSize);
+        this.dictionary = dictionary;
+        this.ownsDictionary = ownsDictionary;
+        this.current = new PreferenceSetView(dictionary);
+        upgradeIfOutdated();
         file = new RandomAccessFile(filePath, "rw");
+        channel = file.getChannel();
         if (file.length() == 0) {
+            header.setChangeSequence(ThreadLocalRandom.current().nextLong(Long.MAX_VALUE / 2));
+            // Both copies must be valid
+            writeHeader();
             writeHeader();
         } else {
             readHeader();
+            if (header.getDirtySegment() >= 0) {
+                recover();
+            }
+        }
+        readAhead = new ReadAhead(channel, "read-ahead-" + new File(filePath).getName(),
+                readAheadDepth, readBufferSize, PREFERENCE_SET_HEADER_SIZE, ENTITY_ID_SIZE);
+    }
+
+    /**
+     * Upgrades the file if it has been written by an earlier version. The
+     * upgraded file is written next to the original one and replaces it
+     * once complete, so an interrupted upgrade is redone on the next open.
+     */
+    private void upgradeIfOutdated() throws IOException {
+        final Path path = Path.of(filePath);
+        if (!Files.exists(path) || Files.size(path) <= Header.PREFIX.length) {
+            return;
+        }
+        final byte[] start = new byte[Header.PREFIX.length + 1];
+        try (var in = Files.newInputStream(path)) {
+            if (in.readNBytes(start, 0, start.length) < start.length) {
+                return;
+            }
+        }
+        final byte version = start[Header.PREFIX.length];
+        if (!Arrays.equals(Header.PREFIX, Arrays.copyOf(start, Header.PREFIX.length))
+                || version <= 0 || version >= Header.VERSION) {
+            // Left for readHeader() to accept or reject
+            return;
+        }
+        log.warn("Upgrading the preference file {} from version {} to {}",
+                filePath, version, Header.VERSION);
+        final Path upgradePath = Path.of(filePath + ".upgrade");
+        Files.deleteIfExists(upgradePath);
+        long setCount;
+        try (var legacy = new LegacyPreferenceFile(filePath, version);
+             var upgraded = new PreferenceFile(upgradePath.toString(), dictionary, false,
+                                               0, IO_BUFFER_SIZE, IO_BUFFER_SIZE)) {
+            upgraded.copyFrom(legacy);
+            setCount = upgraded.getPreferenceSetCount();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Cannot upgrade the preference file " + filePath, e);
+        }
+        Files.move(upgradePath, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        log.info("Upgraded {} preference sets", setCount);
+    }
+
+    /**
+     * Fills the empty file with the preference sets of the legacy file. The
+     * first pass sizes the segments and the second one writes every set
+     * right into its segment, so that no data is moved.
+     */
+    private void copyFrom(LegacyPreferenceFile legacy) throws IOException {
+        final long[] setCounts = header.getSegmentSetCounts();
+        final long[] dataSizes = header.getSegmentDataSizes();
+        final long[] preferenceCounts = header.getSegmentPreferenceCounts();
+        legacy.rewind();
+        for (var preferenceSet = legacy.next(); preferenceSet != null;
+             preferenceSet = legacy.next()) {
+            final int sizeClass = getSizeClass(preferenceSet.getEntityCount());
+            setCounts[sizeClass]++;
+            dataSizes[sizeClass] += getPreferenceSetSize(preferenceSet);
+            preferenceCounts[sizeClass] += preferenceSet.getEntityCount();
+        }
+        final long[] segmentOffsets = new long[Header.SEGMENT_COUNT];
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            segmentOffsets[i] = header.getSegmentOffset(i);
+            header.setPreferenceSetCount(header.getPreferenceSetCount() + setCounts[i]);
+            header.setPreferenceCount(header.getPreferenceCount() + preferenceCounts[i]);
+            header.setDataSize(header.getDataSize() + dataSizes[i]);
+        }
+        // The sets are collected by segment till they fill a write buffer
+        final List<List<PreferenceSet>> pendingSets = new ArrayList<>(Header.SEGMENT_COUNT);
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            pendingSets.add(new ArrayList<>());
+        }
+        long pendingSize = 0;
+        legacy.rewind();
+        for (var preferenceSet = legacy.next(); preferenceSet != null;
+             preferenceSet = legacy.next()) {
+            pendingSets.get(getSizeClass(preferenceSet.getEntityCount())).add(preferenceSet);
+            pendingSize += getPreferenceSetSize(preferenceSet);
+            if (pendingSize >= IO_BUFFER_SIZE) {
+                writePendingSets(pendingSets, segmentOffsets);
+                pendingSize = 0;
+            }
+        }
+        writePendingSets(pendingSets, segmentOffsets);
+        // Sidecar files tagged with the change time stay up to date
+        header.setChangeSequence(legacy.getChangeTimeMillis());
+        flush();
+        force();
+    }
+
+    /**
+     * Writes the collected preference sets of every segment at the offset
+     * of the segment advancing it.
+     */
+    private void writePendingSets(List<List<PreferenceSet>> pendingSets,
+                                  long[] segmentOffsets) throws IOException {
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            final var sets = pendingSets.get(i);
+            if (sets.isEmpty()) {
+                continue;
+            }
+            startWriting(segmentOffsets[i]);
+            for (var preferenceSet : sets) {
+                writePreferenceSet(preferenceSet, true);
+            }
+            finishWriting();
+            segmentOffsets[i] = writeOffset;
+            sets.clear();
         }
     }
 
@@ -75,105 +482,590 @@ public class PreferenceFile implements PreferenceDataSource {
      * Returns the size (in bytes) of the preference set stored in the file.
      */
     private static long getPreferenceSetSize(PreferenceSet preferenceSet) {
-        return 8L * (preferenceSet.getCapacity() + 1L) + 4L * 2L;
+        return getPreferenceSetSize(preferenceSet.getCapacity());
+    }
+
+    /**
+     * Returns the size (in bytes) of a preference set of the capacity stored in the file.
+     */
+    private static long getPreferenceSetSize(int capacity) {
+        return PREFERENCE_SET_HEADER_SIZE + (long) ENTITY_ID_SIZE * capacity;
+    }
+
+    /**
+     * Returns the segment the preference set of the size belongs to.
+     */
+    private static int getSizeClass(int entityCount) {
+        return entityCount < 2 ? 0 : Integer.SIZE - 1 - Integer.numberOfLeadingZeros(entityCount);
+    }
+
+    /**
+     * Returns the minimum number of entities in a set of the size class.
+     */
+    private static int getMinEntityCount(int sizeClass) {
+        return sizeClass == 0 ? 0 : 1 << sizeClass;
+    }
+
+    /**
+     * Returns the maximum number of entities in a set of the size class.
+     */
+    private static int getMaxEntityCount(int sizeClass) {
+        return (int) ((1L << (sizeClass + 1)) - 1);
     }
 
     /**
      * Calculates new capacity of a preference set.
      */
-    private int getNewCapacity(PreferenceSet preferenceSet) {
-        return minCapacity * (preferenceSet.getEntityCount() / minCapacity) + minCapacity;
+    private int getNewCapacity(int entityCount) {
+        return minCapacity * (entityCount / minCapacity) + minCapacity;
     }
 
     private void readHeader() throws IOException {
-        file.seek(0);
+        byte[][] copies = new byte[2][Header.SIZE];
+        boolean[] valid = new boolean[2];
+        for (int i = 0; i < 2; i++) {
+            file.seek((long) i * Header.SIZE);
+            if (file.read(copies[i]) != Header.SIZE) {
+                continue;
+            }
+            crc.reset();
+            crc.update(copies[i], 0, Header.SIZE - 4);
+            valid[i] = ByteBuffer.wrap(copies[i]).getInt(Header.SIZE - 4) == (int) crc.getValue();
+        }
 
-        byte[] prefix = new byte[Header.PREFIX.length];
-        if (file.read(prefix) != prefix.length || !Arrays.equals(Header.PREFIX, prefix)) {
+        if (!valid[0] && !valid[1]) {
+            if (!Arrays.equals(Header.PREFIX, Arrays.copyOf(copies[0], Header.PREFIX.length))) {
+                throw new IOException("The file " + filePath + " is not a valid preference file");
+            }
+            throw new IOException("The file " + filePath + " has no valid header");
+        }
+        // Either copy may be torn, e.g. the first one by a crash while creating the file
+        int actual;
+        if (valid[0] && valid[1]) {
+            long sequence0 = ByteBuffer.wrap(copies[0]).getLong(Header.PREFIX.length + 1);
+            long sequence1 = ByteBuffer.wrap(copies[1]).getLong(Header.PREFIX.length + 1);
+            actual = sequence0 > sequence1 ? 0 : 1;
+        } else {
+            actual = valid[0] ? 0 : 1;
+        }
+        byte[] prefix = Arrays.copyOf(copies[actual], Header.PREFIX.length);
+        if (!Arrays.equals(Header.PREFIX, prefix)) {
             throw new IOException("The file " + filePath + " is not a valid preference file");
         }
+        byte version = copies[actual][Header.PREFIX.length];
+        if (version != Header.VERSION) {
+            throw new IOException("The file " + filePath + " has unsupported version " + version);
+        }
+        var buffer = ByteBuffer.wrap(copies[actual]);
+        buffer.position(Header.PREFIX.length);
+        header.setVersion(buffer.get());
+        header.setSequence(buffer.getLong());
+        header.setChangeSequence(buffer.getLong());
+        header.setPreferenceSetCount(buffer.getLong());
+        header.setPreferenceCount(buffer.getLong());
+        header.setDataSize(buffer.getLong());
+        header.setDirtySegment(buffer.getInt());
+        header.setMoveOffset(buffer.getLong());
+        header.setScratchOffset(buffer.getLong());
+        header.setScratchSize(buffer.getLong());
+        header.setScratchChecksum(buffer.getInt());
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            header.getSegmentSetCounts()[i] = buffer.getLong();
+            header.getSegmentDataSizes()[i] = buffer.getLong();
+            header.getSegmentPreferenceCounts()[i] = buffer.getLong();
+        }
 
-        header.setVersion(file.readByte());
-        header.setChangeTimeMillis(file.readLong());
-        header.setPreferenceSetCount(file.readLong());
-        header.setPreferenceCount(file.readLong());
-        header.setDataSize(file.readLong());
-
-        preferenceSetIndex = 0;
+        segment = -1;
     }
 
+    /**
+     * Writes the header over its older copy.
+     */
     private void writeHeader() throws IOException {
-        file.seek(0);
+        header.setSequence(header.getSequence() + 1);
+        var buffer = ByteBuffer.allocate(Header.SIZE);
+        buffer.put(Header.PREFIX);
+        buffer.put(Header.VERSION);
+        buffer.putLong(header.getSequence());
+        buffer.putLong(header.getChangeSequence());
+        buffer.putLong(header.getPreferenceSetCount());
+        buffer.putLong(header.getPreferenceCount());
+        buffer.putLong(header.getDataSize());
+        buffer.putInt(header.getDirtySegment());
+        buffer.putLong(header.getMoveOffset());
+        buffer.putLong(header.getScratchOffset());
+        buffer.putLong(header.getScratchSize());
+        buffer.putInt(header.getScratchChecksum());
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            buffer.putLong(header.getSegmentSetCounts()[i]);
+            buffer.putLong(header.getSegmentDataSizes()[i]);
+            buffer.putLong(header.getSegmentPreferenceCounts()[i]);
+        }
+        crc.reset();
+        crc.update(buffer.array(), 0, Header.SIZE - 4);
+        buffer.putInt((int) crc.getValue());
 
-        file.write(Header.PREFIX);
-        file.writeByte(Header.VERSION);
-        file.writeLong(header.getChangeTimeMillis());
-        file.writeLong(header.getPreferenceSetCount());
-        file.writeLong(header.getPreferenceCount());
-        file.writeLong(header.getDataSize());
+        buffer.flip();
+        writeFully(buffer, (header.getSequence() % 2) * Header.SIZE);
+        copyCleared = header.getScratchSize() == 0;
+    }
+
+    /**
+     * Makes sure the header marks the segment and the following ones dirty
+     * before they're changed.
+     */
+    private void markDirty(int sizeClass) throws IOException {
+        if (header.getDirtySegment() >= 0 && header.getDirtySegment() <= sizeClass) {
+            return;
+        }
+        header.setDirtySegment(sizeClass);
+        writeHeader();
+        force();
+    }
+
+    /**
+     * Restores the consistency of the header with the data after a change
+     * has been interrupted. The preference sets of the dirty segment and the
+     * following ones up to the end of the file are validated, the invalid
+     * and duplicate ones are dropped and the rest are compacted. A set
+     * referring to an entity the dictionary has lost is invalid too.
+     * Where the data cannot be parsed, the next set is looked for at every
+     * following 4-byte boundary, so no valid set is lost after the garbage a
+     * torn write leaves. The valid sets out of the order of the size
+     * classes, such as the ones saved by a move, are added anew.
+     */
+    private void recover() throws IOException {
+        final int firstSegment = header.getDirtySegment();
+        log.warn("Recovering the preference file {} starting from segment {}",
+                filePath, firstSegment);
+        if (header.getScratchSize() > 0) {
+            completeCopy();
+        }
+        for (int i = firstSegment; i < Header.SEGMENT_COUNT; i++) {
+            header.getSegmentSetCounts()[i] = 0;
+            header.getSegmentDataSizes()[i] = 0;
+            header.getSegmentPreferenceCounts()[i] = 0;
+        }
+        final long fileSize = file.length();
+        final Set<Long> ownerIds = new HashSet<>();
+        final List<PreferenceSet> misplacedSets = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        long bufferOffset = 0;
+        buffer.limit(0);
+        long offset = header.getSegmentOffset(firstSegment);
+        long writeOffset = offset;
+        // The valid sets preceding the offset not compacted yet
+        long runOffset = offset;
+        int sizeClass = firstSegment;
+        long droppedCount = 0;
+        long skippedSize = 0;
+        while (offset + PREFERENCE_SET_HEADER_SIZE <= fileSize) {
+            if (offset + PREFERENCE_SET_HEADER_SIZE > bufferOffset + buffer.limit()) {
+                bufferOffset = offset;
+                buffer.clear().limit((int) Math.min(buffer.capacity(), fileSize - offset));
+                readFully(buffer, offset);
+            }
+            final int position = (int) (offset - bufferOffset);
+            final long ownerId = buffer.getLong(position);
+            final int capacity = buffer.getInt(position + 8);
+            final int entityCount = buffer.getInt(position + 12);
+            final int checksum = buffer.getInt(position + 16);
+            final long size = getPreferenceSetSize(capacity);
+            byte[] entityIds = null;
+            if (capacity >= 0 && entityCount >= 0 && entityCount <= capacity
+                    && entityCount <= dictionary.size() && offset + size <= fileSize) {
+                entityIds = new byte[entityCount * ENTITY_ID_SIZE];
+                final int entityIdsPosition = position + PREFERENCE_SET_HEADER_SIZE;
+                if (entityIdsPosition + entityIds.length <= buffer.limit()) {
+                    buffer.get(entityIdsPosition, entityIds);
+                } else {
+                    readFully(ByteBuffer.wrap(entityIds), offset + PREFERENCE_SET_HEADER_SIZE);
+                }
+                crc.reset();
+                crc.update(buffer.slice(position, PREFERENCE_SET_HEADER_SIZE - 4));
+                crc.update(entityIds);
+            }
+            if (entityIds == null || checksum != (int) crc.getValue()) {
+                // Not a set, so the following valid ones are compacted to
+                // the preceding ones
+                if (runOffset < offset) {
+                    move(writeOffset, runOffset, offset - runOffset, fileSize);
+                    writeOffset += offset - runOffset;
+                }
+                offset += ENTITY_ID_SIZE;
+                runOffset = offset;
+                skippedSize += ENTITY_ID_SIZE;
+                continue;
+            }
+            final int setSizeClass = getSizeClass(entityCount);
+            if (setSizeClass >= sizeClass && areEntitiesKnown(entityIds) && ownerIds.add(ownerId)) {
+                sizeClass = setSizeClass;
+                header.getSegmentSetCounts()[sizeClass]++;
+                header.getSegmentDataSizes()[sizeClass] += size;
+                header.getSegmentPreferenceCounts()[sizeClass] += entityCount;
+                offset += size;
+                continue;
+            }
+            if (runOffset < offset) {
+                move(writeOffset, runOffset, offset - runOffset, fileSize);
+                writeOffset += offset - runOffset;
+            }
+            if (setSizeClass < sizeClass && areEntitiesKnown(entityIds) && ownerIds.add(ownerId)) {
+                misplacedSets.add(toPreferenceSet(ownerId, capacity, entityIds));
+            } else {
+                droppedCount++;
+            }
+            offset += size;
+            runOffset = offset;
+        }
+        if (runOffset < offset) {
+            move(writeOffset, runOffset, offset - runOffset, fileSize);
+            writeOffset += offset - runOffset;
+        }
+        skippedSize += fileSize - offset;
+        truncate(writeOffset);
+        long preferenceSetCount = 0;
+        long preferenceCount = 0;
+        long dataSize = 0;
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            preferenceSetCount += header.getSegmentSetCounts()[i];
+            preferenceCount += header.getSegmentPreferenceCounts()[i];
+            dataSize += header.getSegmentDataSizes()[i];
+        }
+        header.setPreferenceSetCount(preferenceSetCount);
+        header.setPreferenceCount(preferenceCount);
+        header.setDataSize(dataSize);
+        if (!misplacedSets.isEmpty()) {
+            add(misplacedSets);
+        }
+        header.setChangeSequence(header.getChangeSequence() + 1);
+        header.setDirtySegment(-1);
+        writeHeader();
+        force();
+        if (droppedCount > 0 || skippedSize > 0) {
+            log.error("Dropped {} invalid preference sets and {} unparsable bytes from {}",
+                    droppedCount, skippedSize, filePath);
+        }
+        log.info("Recovered {} preference sets", header.getPreferenceSetCount());
+    }
 
-        preferenceSetIndex = 0;
+    /**
+     * Decodes the stored preference set.
+     */
+    private PreferenceSet toPreferenceSet(long ownerId, int capacity, byte[] entityIds) {
+        var buffer = ByteBuffer.wrap(entityIds);
+        Set<Long> ids = new TreeSet<>();
+        while (buffer.hasRemaining()) {
+            ids.add(dictionary.getEntityId(buffer.getInt()));
+        }
+        return new PreferenceSet(ownerId, capacity, ids, 0);
     }
 
+    /**
+     * Returns true if all the dense entity IDs are in the dictionary.
+     */
+    private boolean areEntitiesKnown(byte[] entityIds) {
+        var buffer = ByteBuffer.wrap(entityIds);
+        final int dictionarySize = dictionary.size();
+        while (buffer.hasRemaining()) {
+            int id = buffer.getInt();
+            if (id < 0 || id >= dictionarySize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts encoding the consecutive preference sets to be written at the
+     * offset.
+     */
+    private void startWriting(long offset) {
+        writeBuffer.clear();
+        writeOffset = offset;
+    }
+
+    /**
+     * Writes the preference sets encoded since the last call. The entities
+     * the sets refer to are written to the dictionary first.
+     */
+    private void finishWriting() throws IOException {
+        dictionary.write();
+        writeBuffer.flip();
+        writeOffset += writeFully(writeBuffer, writeOffset);
+        writeBuffer.clear();
+    }
+
+    /**
+     * Writes the whole buffer at the offset without moving the file pointer.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeFully(ByteBuffer buffer, long offset) throws IOException {
+        final int size = buffer.remaining();
+        if (offset < movedEnd && offset + size > movedStart) {
+            force();
+        }
+        if (offset < copiedEnd && offset + size > copiedStart) {
+            if (!copyCleared) {
+                writeHeader();
+            }
+            force();
+        }
+        return writeUnprotected(buffer, offset);
+    }
+
+    /**
+     * Writes the whole buffer at the offset regardless of the data which
+     * mustn't be overwritten yet.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeUnprotected(ByteBuffer buffer, long offset) throws IOException {
+        final int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            write(buffer, offset + size - buffer.remaining());
+        }
+        return size;
+    }
+
+    /**
+     * Writes the bytes remaining in the buffer at the offset, as many as the
+     * channel accepts at once. Overridden by the tests to interrupt the
+     * writes.
+     *
+     * @return The number of bytes written.
+     */
+    int write(ByteBuffer buffer, long offset) throws IOException {
+        return channel.write(buffer, offset);
+    }
+
+    /**
+     * Encodes the preference set along with its checksum to be written after
+     * the previous one. The unused capacity is zeroed only if the set is a
+     * new one. The entities missing from the dictionary are added to it.
+     */
     private void writePreferenceSet(PreferenceSet preferenceSet, boolean isNew) throws IOException {
-        file.writeLong(preferenceSet.getOwnerId());
-        file.writeInt(preferenceSet.getCapacity());
-        file.writeInt(preferenceSet.getEntityCount());
+        final int entityCount = preferenceSet.getEntityCount();
+        final int writtenCount = isNew ? preferenceSet.getCapacity() : entityCount;
+        final long size = getPreferenceSetSize(writtenCount);
+        if (size > writeBuffer.remaining()) {
+            finishWriting();
+        }
+        // A set exceeding the pooled buffer is written through its own one
+        final var buffer = size > writeBuffer.capacity()
+                ? ByteBuffer.allocate((int) size)
+                : writeBuffer;
+        final int start = buffer.position();
+        buffer.putLong(preferenceSet.getOwnerId());
+        buffer.putInt(preferenceSet.getCapacity());
+        buffer.putInt(entityCount);
+        buffer.putInt(0);
+        // Sorted, so that the reader doesn't have to sort them
+        int[] ids = new int[entityCount];
+        int i = 0;
         for (var entityId : preferenceSet.getEntityIds()) {
-            file.writeLong(entityId);
+            ids[i++] = dictionary.getOrAddId(entityId);
         }
-        if (isNew) {
-            for (long i = preferenceSet.getEntityCount(); i < preferenceSet.getCapacity(); i++) {
-                file.writeLong(0);
-            }
-        } else if (preferenceSet.getEntityCount() < preferenceSet.getCapacity()) {
-            file.skipBytes((preferenceSet.getCapacity() - preferenceSet.getEntityCount()) * 8);
+        Arrays.sort(ids);
+        buffer.asIntBuffer().put(ids);
+        buffer.position(buffer.position() + ENTITY_ID_SIZE * entityCount);
+        for (int j = entityCount; j < writtenCount; j++) {
+            buffer.putInt(0);
+        }
+        crc.reset();
+        crc.update(buffer.slice(start, PREFERENCE_SET_HEADER_SIZE - 4));
+        crc.update(buffer.slice(start + PREFERENCE_SET_HEADER_SIZE, ENTITY_ID_SIZE * entityCount));
+        buffer.putInt(start + PREFERENCE_SET_HEADER_SIZE - 4, (int) crc.getValue());
+        if (buffer != writeBuffer) {
+            dictionary.write();
+            buffer.flip();
+            writeOffset += writeFully(buffer, writeOffset);
+        }
+        if (!isNew && entityCount < preferenceSet.getCapacity()) {
+            // The unused capacity is left intact
+            finishWriting();
+            writeOffset += (long) (preferenceSet.getCapacity() - entityCount) * ENTITY_ID_SIZE;
         }
-        preferenceSetIndex++;
     }
 
-    private PreferenceSet readPreferenceSet() throws IOException {
-        if (preferenceSetIndex >= getPreferenceSetCount()) {
-            return null;
+    /**
+     * Positions the scan at the next stripe to read: the next one of a
+     * segment that has preference sets left and isn't rejected by the
+     * filter. Every round visits the segments from the round start segment
+     * wrapping around. The filter is asked every time a segment is visited,
+     * since it may reject more of them as the scan goes on, and the rest of
+     * a rejected segment is skipped.
+     *
+     * @return False if there are no stripes left to read.
+     */
+    private boolean seekNextStripe() throws IOException {
+        if (segment < 0) {
+            startScan();
+        } else {
+            saveScanOffset();
         }
-        long offset = file.getFilePointer();
-        long ownerId = file.readLong();
-        int entityIdsCapacity = file.readInt();
-        int entityIdCount = file.readInt();
-        Set<Long> entityIds = new TreeSet<>();
-        for (int j = 0; j < entityIdCount; j++) {
-            entityIds.add(file.readLong());
+        while (scanRound <= scanRoundCount) {
+            while (visitedSegmentCount < Header.SEGMENT_COUNT) {
+                final int candidate =
+                        (roundStartSegment + visitedSegmentCount++) % Header.SEGMENT_COUNT;
+                if (scanSetIndexes[candidate] >= scanSetCounts[candidate]) {
+                    continue;
+                }
+                if (filter != null && !filter.acceptSizeRange(getMinEntityCount(candidate),
+                                                              getMaxEntityCount(candidate))) {
+                    scannedSetCount += scanSetCounts[candidate] - scanSetIndexes[candidate];
+                    scanSetIndexes[candidate] = scanSetCounts[candidate];
+                    scanOffsets[candidate] = scanDataSizes[candidate];
+                    continue;
+                }
+                if (scanOffsets[candidate] < getStripeOffset(candidate)) {
+                    segment = candidate;
+                    restoreScanPosition();
+                    startReadAhead();
+                    return true;
+                }
+            }
+            scanRound++;
+            visitedSegmentCount = 0;
         }
-        if (entityIdsCapacity > entityIdCount) {
-            file.skipBytes((entityIdsCapacity - entityIdCount) * 8);
+        return false;
+    }
+
+    /**
+     * Takes the snapshot of the segments the scan reads. The rounds start
+     * from the segment of the sets the filter prefers to be read first, if
+     * any.
+     */
+    private void startScan() {
+        System.arraycopy(header.getSegmentSetCounts(), 0, scanSetCounts, 0,
+                         Header.SEGMENT_COUNT);
+        System.arraycopy(header.getSegmentDataSizes(), 0, scanDataSizes, 0,
+                         Header.SEGMENT_COUNT);
+        Arrays.fill(scanSetIndexes, 0);
+        Arrays.fill(scanOffsets, 0);
+        scannedSetCount = 0;
+        scanRoundCount = (int) Math.max(1, Math.min(MAX_SCAN_ROUND_COUNT,
+                                                    header.getDataSize() / readBufferSize));
+        scanRound = 1;
+        visitedSegmentCount = 0;
+        final int preferredEntityCount = filter != null ? filter.getPreferredEntityCount() : -1;
+        roundStartSegment = preferredEntityCount >= 0
+                ? getSizeClass(preferredEntityCount)
+                : startSegment;
+    }
+
+    /**
+     * Returns the offset the stripe of the segment read by the current
+     * round ends at, from the beginning of the segment.
+     */
+    private long getStripeOffset(int segment) {
+        return scanDataSizes[segment] * scanRound / scanRoundCount;
+    }
+
+    /**
+     * Starts reading the rest of the stripe ahead from the scan position.
+     */
+    private void startReadAhead() {
+        releaseChunk();
+        readAhead.start(scanPosition, stripeEnd);
+        readingAhead = true;
+    }
+
+    /**
+     * Stops reading ahead, so that the data may be changed. The scan resumes
+     * it from the next set to read.
+     */
+    private void stopReadAhead() throws IOException {
+        if (readingAhead) {
+            releaseChunk();
+            readAhead.stop();
+            readingAhead = false;
         }
-        var preferenceSet = new PreferenceSet(ownerId, entityIdsCapacity, entityIds, offset);
-        preferenceSetIndex++;
-        return preferenceSet;
     }
 
-    private void readPreferenceSets() throws IOException {
-        for (long i = 0; i < maxLastPreferenceSets; i++) {
-            var preferenceSet = readPreferenceSet();
-            if (preferenceSet == null) break;
-            lastPreferenceSets.add(preferenceSet);
+    private void releaseChunk() {
+        if (chunk != null) {
+            readAhead.release(chunk);
+            chunk = null;
+        }
+    }
+
+    /**
+     * Reads the next preference set accepted by the filter into the view.
+     *
+     * @return False if there are no preference sets left to read.
+     */
+    private boolean readPreferenceSet() throws IOException {
+        while (true) {
+            if (segment < 0 || scanSetIndexes[segment] >= scanSetCounts[segment]
+                    || scanPosition >= stripeEnd) {
+                if (!seekNextStripe()) {
+                    return false;
+                }
+                continue;
+            }
+            if (!readingAhead) {
+                startReadAhead();
+            }
+            if (chunk == null || chunkPosition >= chunk.getSize()) {
+                releaseChunk();
+                chunk = readAhead.take();
+                if (chunk == null) {
+                    throw new EOFException("Unexpected end of " + filePath + " at " + scanPosition);
+                }
+                chunkPosition = 0;
+            }
+            final ByteBuffer buffer = chunk.getBuffer();
+            final int position = chunkPosition;
+            final long offset = scanPosition;
+            // Checksum is validated only by the recovery
+            long ownerId = buffer.getLong(position);
+            int entityIdsCapacity = buffer.getInt(position + 8);
+            int entityIdCount = buffer.getInt(position + 12);
+            scanSetIndexes[segment]++;
+            scannedSetCount++;
+            final int size = (int) getPreferenceSetSize(entityIdsCapacity);
+            chunkPosition += size;
+            scanPosition += size;
+            if (filter != null && !filter.accept(ownerId, entityIdCount)) {
+                continue;
+            }
+            int[] ids = current.reset(ownerId, entityIdsCapacity, entityIdCount, offset);
+            for (int j = 0; j < entityIdCount; j++) {
+                ids[j] = buffer.getInt(position + PREFERENCE_SET_HEADER_SIZE + j * ENTITY_ID_SIZE);
+            }
+            current.sortIds();
+            return true;
         }
     }
 
     @Override
     public void close() throws Exception {
+        stopReadAhead();
+        readAhead.close();
         flush();
         file.close();
+        if (ownsDictionary) {
+            dictionary.close();
+        }
     }
 
+    /**
+     * Writes the header marking the data consistent. The entities the data
+     * refers to are persisted first.
+     */
     @Override
     public void flush() throws IOException {
+        dictionary.flush();
+        force();
+        header.setDirtySegment(-1);
         writeHeader();
     }
 
     @Override
-    public long getChangeTimeMillis() {
-        return header.getChangeTimeMillis();
+    public long getChangeSequence() {
+        return header.getChangeSequence();
     }
 
     @Override
@@ -186,10 +1078,79 @@ public class PreferenceFile implements PreferenceDataSource {
         return header.getPreferenceCount();
     }
 
+    /**
+     * Returns the numbers of the preference sets of the segments, which are
+     * the size classes.
+     */
+    @Override
+    public SetSizeHistogram getSizeHistogram() {
+        var histogram = new SetSizeHistogram();
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            long setCount = header.getSegmentSetCounts()[i];
+            if (setCount > 0) {
+                histogram.add(getMinEntityCount(i), getMaxEntityCount(i), setCount);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Rewinds the scan starting its rounds from the next segment having
+     * preference sets.
+     */
     @Override
     public void rewind() throws IOException {
-        file.seek(Header.SIZE);
-        preferenceSetIndex = 0;
+        stopReadAhead();
+        scanPosition = Header.DATA_OFFSET;
+        stripeEnd = Header.DATA_OFFSET;
+        segment = -1;
+        scannedSetCount = 0;
+        for (int i = 1; i <= Header.SEGMENT_COUNT; i++) {
+            int candidate = (startSegment + i) % Header.SEGMENT_COUNT;
+            if (header.getSegmentSetCounts()[candidate] > 0) {
+                startSegment = candidate;
+                break;
+            }
+        }
+    }
+
+    @Override
+    public long getScannedPreferenceSetCount() {
+        return scannedSetCount;
+    }
+
+    @Override
+    public long getScanPreferenceSetCount() {
+        if (segment < 0) {
+            return header.getPreferenceSetCount();
+        }
+        long setCount = 0;
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            setCount += scanSetCounts[i];
+        }
+        return setCount;
+    }
+
+    /**
+     * Saves the offset of the next preference set to read from the
+     * beginning of the segment being read.
+     */
+    private void saveScanOffset() {
+        if (segment >= 0) {
+            scanOffsets[segment] = scanPosition - header.getSegmentOffset(segment);
+        }
+    }
+
+    /**
+     * Positions the scan at the saved offset of the next preference set to
+     * read, e.g. after the segments have been moved.
+     */
+    private void restoreScanPosition() {
+        if (segment >= 0) {
+            final long segmentOffset = header.getSegmentOffset(segment);
+            scanPosition = segmentOffset + scanOffsets[segment];
+            stripeEnd = segmentOffset + getStripeOffset(segment);
+        }
     }
 
     @Override
@@ -198,112 +1159,422 @@ public class PreferenceFile implements PreferenceDataSource {
         if (originalPreferenceSet.getCapacity() < newPreferenceSet.getEntityCount()) {
             return false;
         }
-        final long offset = file.getFilePointer();
-        file.seek(originalPreferenceSet.getOffset());
+        if (getSizeClass(originalPreferenceSet.getEntityCount())
+                != getSizeClass(newPreferenceSet.getEntityCount())) {
+            // The set must be moved to another segment
+            return false;
+        }
+        final int sizeClass = getSizeClass(newPreferenceSet.getEntityCount());
+        if (originalPreferenceSet.getOffset() >= scanPosition) {
+            // The set may have been read ahead
+            stopReadAhead();
+        }
+        markDirty(sizeClass);
+        startWriting(originalPreferenceSet.getOffset());
         writePreferenceSet(newPreferenceSet, false);
-        file.seek(offset);
-        header.setChangeTimeMillis(Calendar.getInstance().getTimeInMillis());
-        header.setPreferenceCount(header.getPreferenceSetCount()
-                - originalPreferenceSet.getEntityCount()
-                + newPreferenceSet.getEntityCount());
+        finishWriting();
+        header.setChangeSequence(header.getChangeSequence() + 1);
+        final int preferenceCountChange = newPreferenceSet.getEntityCount()
+                - originalPreferenceSet.getEntityCount();
+        header.getSegmentPreferenceCounts()[sizeClass] += preferenceCountChange;
+        header.setPreferenceCount(header.getPreferenceCount() + preferenceCountChange);
         return true;
     }
 
     @Override
     public void delete(List<PreferenceSet> preferenceSets) throws IOException {
-        final var sortedSets = preferenceSets.stream()
+        delete(PreferenceSetBatch.of(preferenceSets.stream()
                 .sorted(Comparator.comparingLong(PreferenceSet::getOffset))
-                .toList();
-        final long[] holeOffsets = sortedSets.stream()
-                .mapToLong(PreferenceSet::getOffset)
-                .toArray();
-        final long[] holeSizes = sortedSets.stream()
-                .mapToLong(PreferenceFile::getPreferenceSetSize)
-                .toArray();
-        final long fileSize = header.getDataSize() + Header.SIZE;
+                .toList()));
+    }
+
+    /**
+     * Deletes the preference sets in one sweep moving every following set
+     * once.
+     *
+     * @param preferenceSets The sets in the order of their offsets.
+     */
+    @Override
+    public void delete(PreferenceSetBatch preferenceSets) throws IOException {
+        final int count = preferenceSets.size();
+        if (count == 0) {
+            return;
+        }
+        final long fileSize = header.getDataSize() + Header.DATA_OFFSET;
+        stopReadAhead();
+        markDirty(getSizeClass(preferenceSets.getEntityCount(0)));
+        // The scan in progress neither reads the deleted sets nor skips the
+        // ones following them
+        if (segment >= 0) {
+            saveScanOffset();
+            final long[] originalScanOffsets = scanOffsets.clone();
+            final long[] originalScanDataSizes = scanDataSizes.clone();
+            for (int i = 0; i < count; i++) {
+                final int sizeClass = getSizeClass(preferenceSets.getEntityCount(i));
+                final long offset = preferenceSets.getOffset(i) - header.getSegmentOffset(sizeClass);
+                final long size = getPreferenceSetSize(preferenceSets.getCapacity(i));
+                if (offset < originalScanDataSizes[sizeClass]) {
+                    scanSetCounts[sizeClass]--;
+                    scanDataSizes[sizeClass] -= size;
+                }
+                if (offset < originalScanOffsets[sizeClass]) {
+                    scanSetIndexes[sizeClass]--;
+                    scanOffsets[sizeClass] -= size;
+                }
+            }
+        }
         long totalHoleSize = 0;
-        long offsetChange = 0;
-        for (int i = 0; i < holeOffsets.length; i++) {
-            long to = holeOffsets[i] + offsetChange;
-            long from = holeOffsets[i] + holeSizes[i];
-            long end = i + 1 < holeOffsets.length
-                ? holeOffsets[i + 1]
-                : fileSize;
-            move(to, from, end - from);
-            offsetChange += to - from;
-            totalHoleSize += holeSizes[i];
+        long deletedPreferenceCount = 0;
+        for (int i = 0; i < count; i++) {
+            final long holeSize = getPreferenceSetSize(preferenceSets.getCapacity(i));
+            final long from = preferenceSets.getOffset(i) + holeSize;
+            final long end = i + 1 < count ? preferenceSets.getOffset(i + 1) : fileSize;
+            totalHoleSize += holeSize;
+            move(from - totalHoleSize, from, end - from, fileSize);
+            final int entityCount = preferenceSets.getEntityCount(i);
+            final int sizeClass = getSizeClass(entityCount);
+            header.getSegmentSetCounts()[sizeClass]--;
+            header.getSegmentDataSizes()[sizeClass] -= holeSize;
+            header.getSegmentPreferenceCounts()[sizeClass] -= entityCount;
+            deletedPreferenceCount += entityCount;
         }
-        // Update header
-        final var deletedPreferenceCount = preferenceSets.stream()
-                .map(PreferenceSet::getEntityCount)
-                .reduce(0, Integer::sum);
         header.setPreferenceCount(header.getPreferenceCount() - deletedPreferenceCount);
-        header.setPreferenceSetCount(header.getPreferenceSetCount() - preferenceSets.size());
-        header.setChangeTimeMillis(Calendar.getInstance().getTimeInMillis());
+        header.setPreferenceSetCount(header.getPreferenceSetCount() - count);
+        header.setChangeSequence(header.getChangeSequence() + 1);
         header.setDataSize(header.getDataSize() - totalHoleSize);
+        // Otherwise the stale tail would be taken for data by the recovery
+        truncate(fileSize - totalHoleSize);
+        restoreScanPosition();
     }
 
     /**
-     * Copies the values of `size` bytes from the location in the file pointed
-     * by `from` to the memory block pointed by `to`.
-     * Copying takes place as if an intermediate buffer were used, allowing the
-     * destination and source to overlap.
+     * Moves the consecutive preference sets occupying `size` bytes from the
+     * offset `from` to the offset `to`. The regions may overlap.
+     *
+     * The sets are moved in chunks of whole sets, from the head when moving
+     * towards the beginning and from the tail otherwise, so that a chunk
+     * only overwrites the sources of the chunks moved before it, which are
+     * forced to the storage device first. If a chunk would overlap its own
+     * destination, the whole data is moved through the scratch range past
+     * the data at `scratchOffset` instead (see moveThroughScratch()).
+     * Thus an interrupted move leaves a complete copy of every set for the
+     * recovery to find.
      *
      * @param to Destination offset in bytes.
      * @param from Source offset in bytes.
      * @param size Block size to copy in bytes.
+     * @param scratchOffset The offset past all the data.
      */
-    private void move(long to, long from, long size) throws IOException {
-        long numChunks = size / moveBuffer.length;
-        if (size % moveBuffer.length > 0) {
-            numChunks++;
+    private void move(long to, long from, long size, long scratchOffset) throws IOException {
+        if (size == 0 || to == from) {
+            return;
+        }
+        final long[] chunkEnds = getChunkEnds(from, size);
+        long maxChunkSize = chunkEnds[0];
+        for (int i = 1; i < chunkEnds.length; i++) {
+            maxChunkSize = Math.max(maxChunkSize, chunkEnds[i] - chunkEnds[i - 1]);
+        }
+        if (Math.abs(to - from) < maxChunkSize) {
+            // Otherwise a crash could tear both copies of a set
+            moveThroughScratch(to, from, size, scratchOffset);
+            return;
         }
-        long offset = 0;
-        for (long i = 0; i < numChunks; i++) {
-            int chunkSize = i + 1 < numChunks
-                ? moveBuffer.length
-                : (int)(size % moveBuffer.length);
-            file.seek(from + offset);
-            file.read(moveBuffer, 0, chunkSize);
-            file.seek(to + offset);
-            file.write(moveBuffer, 0, chunkSize);
-            offset += chunkSize;
+        for (int i = 0; i < chunkEnds.length; i++) {
+            // When moving towards the end the tail must be copied first
+            final int chunk = to > from ? chunkEnds.length - 1 - i : i;
+            final long chunkOffset = chunk > 0 ? chunkEnds[chunk - 1] : 0;
+            final int chunkSize = (int) (chunkEnds[chunk] - chunkOffset);
+            final var buffer = chunkSize > moveBuffer.capacity()
+                    ? ByteBuffer.allocate(chunkSize)
+                    : moveBuffer;
+            buffer.clear().limit(chunkSize);
+            readFully(buffer, from + chunkOffset);
+            buffer.flip();
+            writeFully(buffer, to + chunkOffset);
+            protectMoved(from + chunkOffset, chunkSize);
         }
     }
 
+    /**
+     * Moves the data overlapping its destination through the scratch range.
+     * The data is copied to the scratch range as a whole and the header
+     * records the copy back along with the checksum of the data, which are
+     * forced to the storage device together. Then the data is copied back to
+     * the destination and forced once again, so that the move takes two
+     * forces however many chunks it consists of. The recovery completes an
+     * interrupted copy back (see completeCopy()).
+     */
+    private void moveThroughScratch(long to, long from, long size, long scratchOffset)
+            throws IOException {
+        final int checksum = copy(from, scratchOffset, size);
+        header.setMoveOffset(to);
+        header.setScratchOffset(scratchOffset);
+        header.setScratchSize(size);
+        header.setScratchChecksum(checksum);
+        writeHeader();
+        force();
+        copy(scratchOffset, to, size);
+        force();
+        header.setScratchSize(0);
+        copiedStart = to;
+        copiedEnd = to + size;
+    }
+
+    /**
+     * Copies the data through the move buffer in pieces which needn't be
+     * whole sets, overwriting the destination unprotected.
+     *
+     * @return The checksum of the data.
+     */
+    private int copy(long from, long to, long size) throws IOException {
+        scratchCrc.reset();
+        for (long position = 0; position < size; position += moveBuffer.limit()) {
+            moveBuffer.clear().limit((int) Math.min(moveBuffer.capacity(), size - position));
+            readFully(moveBuffer, from + position);
+            moveBuffer.flip();
+            scratchCrc.update(moveBuffer);
+            moveBuffer.rewind();
+            writeUnprotected(moveBuffer, to + position);
+        }
+        return (int) scratchCrc.getValue();
+    }
+
+    /**
+     * Returns the checksum of the data in the file.
+     */
+    private int getChecksum(long offset, long size) throws IOException {
+        scratchCrc.reset();
+        for (long position = 0; position < size; position += moveBuffer.limit()) {
+            moveBuffer.clear().limit((int) Math.min(moveBuffer.capacity(), size - position));
+            readFully(moveBuffer, offset + position);
+            moveBuffer.flip();
+            scratchCrc.update(moveBuffer);
+        }
+        return (int) scratchCrc.getValue();
+    }
+
+    /**
+     * Completes the copy back from the scratch range the header records,
+     * since it may have been interrupted. The scratch copy is forced before
+     * the copy back starts, so the copy back is redone only if the checksum
+     * of the scratch copy still matches, and the data is intact otherwise.
+     */
+    private void completeCopy() throws IOException {
+        final long offset = header.getScratchOffset();
+        final long size = header.getScratchSize();
+        header.setScratchSize(0);
+        if (offset + size > file.length()
+                || getChecksum(offset, size) != header.getScratchChecksum()) {
+            return;
+        }
+        log.warn("Completing the copy of {} bytes from {} to {} in {}",
+                size, offset, header.getMoveOffset(), filePath);
+        copy(offset, header.getMoveOffset(), size);
+        force();
+        copyCleared = false;
+        copiedStart = header.getMoveOffset();
+        copiedEnd = header.getMoveOffset() + size;
+    }
+
+    /**
+     * Splits the consecutive preference sets into the chunks to be moved.
+     * A chunk consists of whole sets and doesn't exceed the move buffer
+     * unless it's a single set.
+     *
+     * @return The ends of the chunks relative to the offset.
+     */
+    private long[] getChunkEnds(long offset, long size) throws IOException {
+        long[] chunkEnds = new long[8];
+        int chunkCount = 0;
+        long chunkStart = 0;
+        long position = 0;
+        long bufferStart = 0;
+        moveBuffer.clear().limit(0);
+        while (position < size) {
+            if (size - position < PREFERENCE_SET_HEADER_SIZE) {
+                throw new IOException("Invalid preference set in " + filePath
+                                      + " at " + (offset + position));
+            }
+            if (position + PREFERENCE_SET_HEADER_SIZE > bufferStart + moveBuffer.limit()) {
+                // Only the headers are needed, so the large sets are skipped
+                bufferStart = position;
+                moveBuffer.clear().limit((int) Math.min(moveBuffer.capacity(), size - position));
+                readFully(moveBuffer, offset + position);
+            }
+            final int capacity = moveBuffer.getInt((int) (position - bufferStart) + 8);
+            final long setSize = getPreferenceSetSize(capacity);
+            if (capacity < 0 || position + setSize > size) {
+                throw new IOException("Invalid preference set in " + filePath
+                                      + " at " + (offset + position));
+            }
+            if (position > chunkStart && position + setSize - chunkStart > moveBuffer.capacity()) {
+                if (chunkCount == chunkEnds.length) {
+                    chunkEnds = Arrays.copyOf(chunkEnds, chunkCount * 2);
+                }
+                chunkEnds[chunkCount++] = position;
+                chunkStart = position;
+            }
+            position += setSize;
+        }
+        chunkEnds = Arrays.copyOf(chunkEnds, chunkCount + 1);
+        chunkEnds[chunkCount] = size;
+        return chunkEnds;
+    }
+
+    /**
+     * Reads the buffer fully from the offset without moving the file pointer.
+     */
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            long position = offset + buffer.position() - start;
+            if (channel.read(buffer, position) < 0) {
+                throw new EOFException("Unexpected end of " + filePath + " at " + position);
+            }
+        }
+    }
+
+    /**
+     * Keeps the source of the moved data from being overwritten until its
+     * copy has been forced to the storage device.
+     */
+    private void protectMoved(long offset, long size) {
+        if (movedEnd <= movedStart) {
+            movedStart = offset;
+            movedEnd = offset + size;
+        } else {
+            movedStart = Math.min(movedStart, offset);
+            movedEnd = Math.max(movedEnd, offset + size);
+        }
+    }
+
+    /**
+     * Forces the data to the storage device.
+     */
+    private void force() throws IOException {
+        channel.force(false);
+        movedStart = 0;
+        movedEnd = 0;
+        if (copyCleared) {
+            copiedStart = 0;
+            copiedEnd = 0;
+        }
+    }
+
+    /**
+     * Truncates the file once the data moved out of the cut off part is
+     * forced to the storage device.
+     */
+    private void truncate(long length) throws IOException {
+        if (movedEnd > length) {
+            force();
+        }
+        file.setLength(length);
+    }
+
     @Override
     public void add(List<PreferenceSet> preferenceSets) throws IOException {
-        file.seek(Header.SIZE + header.getDataSize());
-        long dataSizeChange = 0;
+        add(PreferenceSetBatch.of(preferenceSets));
+    }
+
+    /**
+     * Appends the preference sets to the ends of their segments moving the
+     * following segments towards the end of the file once. The sets are read
+     * segment by segment as they're written. The scan in progress doesn't
+     * read the added sets.
+     */
+    @Override
+    public void add(PreferenceSetBatch preferenceSets) throws IOException {
+        final int count = preferenceSets.size();
+        final int[] capacities = new int[count];
+        final int[] sizeClasses = new int[count];
+        final int[] segmentSetCounts = new int[Header.SEGMENT_COUNT];
+        final long[] insertSizes = new long[Header.SEGMENT_COUNT];
+        final long[] insertPreferenceCounts = new long[Header.SEGMENT_COUNT];
+        final long[] segmentOffsets = new long[Header.SEGMENT_COUNT];
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            segmentOffsets[i] = header.getSegmentOffset(i);
+        }
+        stopReadAhead();
+        saveScanOffset();
+        long totalInsertSize = 0;
         long preferenceCount = 0;
-        for (var preferenceSet : preferenceSets) {
-            if (preferenceSet.getCapacity() < preferenceSet.getEntityCount()) {
-                preferenceSet.setCapacity(getNewCapacity(preferenceSet));
+        for (int i = 0; i < count; i++) {
+            final int entityCount = preferenceSets.getEntityCount(i);
+            capacities[i] = preferenceSets.getCapacity(i) < entityCount
+                    ? getNewCapacity(entityCount)
+                    : preferenceSets.getCapacity(i);
+            sizeClasses[i] = getSizeClass(entityCount);
+            segmentSetCounts[sizeClasses[i]]++;
+            insertSizes[sizeClasses[i]] += getPreferenceSetSize(capacities[i]);
+            insertPreferenceCounts[sizeClasses[i]] += entityCount;
+            totalInsertSize += getPreferenceSetSize(capacities[i]);
+            preferenceCount += entityCount;
+        }
+        // The sets ordered by their segments
+        final int[] segmentStarts = new int[Header.SEGMENT_COUNT + 1];
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            segmentStarts[i + 1] = segmentStarts[i] + segmentSetCounts[i];
+        }
+        final int[] order = new int[count];
+        final int[] positions = Arrays.copyOf(segmentStarts, Header.SEGMENT_COUNT);
+        for (int i = 0; i < count; i++) {
+            order[positions[sizeClasses[i]]++] = i;
+        }
+        for (int i = 0; i < Header.SEGMENT_COUNT; i++) {
+            if (insertSizes[i] > 0) {
+                markDirty(i);
+                break;
+            }
+        }
+        final long dataEnd = Header.DATA_OFFSET + header.getDataSize() + totalInsertSize;
+        // Starting from the last segment every segment is shifted by the size
+        // of the sets inserted into the preceding ones, then extended
+        long shift = totalInsertSize;
+        for (int i = Header.SEGMENT_COUNT - 1; i >= 0; i--) {
+            shift -= insertSizes[i];
+            final long segmentSize = header.getSegmentDataSizes()[i];
+            if (shift > 0 && segmentSize > 0) {
+                move(segmentOffsets[i] + shift, segmentOffsets[i], segmentSize, dataEnd);
             }
-            writePreferenceSet(preferenceSet, true);
-            dataSizeChange += getPreferenceSetSize(preferenceSet);
-            preferenceCount += preferenceSet.getEntityCount();
+            if (segmentSetCounts[i] == 0) {
+                continue;
+            }
+            startWriting(segmentOffsets[i] + shift + segmentSize);
+            for (int j = segmentStarts[i]; j < segmentStarts[i + 1]; j++) {
+                final var preferenceSet = preferenceSets.get(order[j]);
+                preferenceSet.setCapacity(capacities[order[j]]);
+                writePreferenceSet(preferenceSet, true);
+            }
+            finishWriting();
+            header.getSegmentSetCounts()[i] += segmentSetCounts[i];
+            header.getSegmentDataSizes()[i] += insertSizes[i];
+            header.getSegmentPreferenceCounts()[i] += insertPreferenceCounts[i];
         }
         // Update header
         header.setPreferenceCount(header.getPreferenceCount() + preferenceCount);
-        header.setPreferenceSetCount(header.getPreferenceSetCount() + preferenceSets.size());
-        header.setChangeTimeMillis(Calendar.getInstance().getTimeInMillis());
-        header.setDataSize(header.getDataSize() + dataSizeChange);
+        header.setPreferenceSetCount(header.getPreferenceSetCount() + count);
+        header.setChangeSequence(header.getChangeSequence() + 1);
+        header.setDataSize(header.getDataSize() + totalInsertSize);
+        if (file.length() > dataEnd) {
+            // The chunks saved by the moves
+            truncate(dataEnd);
+        }
+        restoreScanPosition();
     }
 
     @Override
-    public boolean hasNext() throws IOException {
-        if (lastPreferenceSets.isEmpty()) {
-            readPreferenceSets();
-        }
-        return !lastPreferenceSets.isEmpty();
+    public void setFilter(PreferenceSetFilter filter) {
+        this.filter = filter;
     }
 
     @Override
-    public PreferenceSet next() throws IOException {
-        if (lastPreferenceSets.isEmpty()) {
-            readPreferenceSets();
-        }
-        return lastPreferenceSets.pollFirst();
+    public boolean next() throws IOException {
+        return readPreferenceSet();
+    }
+
+    @Override
+    public PreferenceSetView getCurrent() {
+        return current;
     }
 }
@@ -0,0 +1,65 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The preference sets a data source deletes or adds at once, described by
+ * their headers, so that the sets themselves don't have to be kept in
+ * memory. A deleted set is located by its header alone, and an added one is
+ * read by get() only when it's written.
+ */
+public interface PreferenceSetBatch {
+    /**
+     * Returns the number of the sets.
+     */
+    int size();
+
+    /**
+     * Returns the offset of the stored set or -1 if the set isn't stored.
+     */
+    long getOffset(int index);
+
+    int getCapacity(int index);
+
+    int getEntityCount(int index);
+
+    /**
+     * Returns the set itself, which is only needed to add it.
+     */
+    PreferenceSet get(int index) throws IOException;
+
+    /**
+     * Returns the batch of the sets in the list.
+     */
+    static PreferenceSetBatch of(List<PreferenceSet> preferenceSets) {
+        return new PreferenceSetBatch() {
+            @Override
+            public int size() {
+                return preferenceSets.size();
+            }
+
+            @Override
+            public long getOffset(int index) {
+                return preferenceSets.get(index).getOffset();
+            }
+
+            @Override
+            public int getCapacity(int index) {
+                return preferenceSets.get(index).getCapacity();
+            }
+
+            @Override
+            public int getEntityCount(int index) {
+                return preferenceSets.get(index).getEntityCount();
+            }
+
+            @Override
+            public PreferenceSet get(int index) {
+                return preferenceSets.get(index);
+            }
+        };
+    }
+}
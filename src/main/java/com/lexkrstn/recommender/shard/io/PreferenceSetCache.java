@@ -0,0 +1,157 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the preference sets of the most active owners, so that the point
+ * reads and the lookups of the recommendation targets are answered without
+ * a pass.
+ *
+ * The sets are admitted as they're read from the data source or written to
+ * it, and both happen in the scan thread of the owner's partition, so an
+ * owner is either absent or has its current set here.
+ *
+ * The memory taken by the sets is bounded by a segmented LRU: the admitted
+ * sets go to the probationary segment and only the ones read again are
+ * promoted to the protected segment, so that a burst of the owners read
+ * once doesn't evict the ones read repeatedly.
+ */
+public class PreferenceSetCache implements PreferenceChangeBulk.ChangeListener {
+    /**
+     * The fraction of the memory the protected segment may take.
+     */
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    /**
+     * The preference sets by their owner IDs from the least to the most
+     * recently used. They're never modified.
+     */
+    private final LinkedHashMap<Long, PreferenceSet> probationarySets =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, PreferenceSet> protectedSets =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long probationaryBytes = 0;
+    private long protectedBytes = 0;
+
+    /**
+     * @param maxBytes The maximum memory the sets may take (0 - disabled).
+     */
+    public PreferenceSetCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_FRACTION);
+    }
+
+    /**
+     * Returns the current preference set of the owner or null if it isn't
+     * cached. The set must not be modified.
+     */
+    public synchronized PreferenceSet get(long ownerId) {
+        var preferenceSet = protectedSets.get(ownerId);
+        if (preferenceSet != null) {
+            return preferenceSet;
+        }
+        preferenceSet = probationarySets.remove(ownerId);
+        if (preferenceSet != null) {
+            promote(preferenceSet);
+        }
+        return preferenceSet;
+    }
+
+    /**
+     * Returns the current preference sets of those of the owners who are
+     * cached. The sets must not be modified.
+     */
+    public synchronized Map<Long, PreferenceSet> getAll(Collection<Long> ownerIds) {
+        Map<Long, PreferenceSet> found = new HashMap<>();
+        for (var ownerId : ownerIds) {
+            var preferenceSet = get(ownerId);
+            if (preferenceSet != null) {
+                found.put(ownerId, preferenceSet);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Caches the preference set just read from or written to the data source.
+     * It must be called in the scan thread of the owner's partition, so that
+     * no change of the set is executed in between.
+     *
+     * @param preferenceSet The set, which must not be modified anymore.
+     */
+    public synchronized void admit(PreferenceSet preferenceSet) {
+        final long size = preferenceSet.getMemorySize();
+        final long ownerId = preferenceSet.getOwnerId();
+        var protectedSet = protectedSets.remove(ownerId);
+        if (protectedSet != null) {
+            protectedBytes -= protectedSet.getMemorySize();
+        }
+        var probationarySet = probationarySets.remove(ownerId);
+        if (probationarySet != null) {
+            probationaryBytes -= probationarySet.getMemorySize();
+        }
+        // A set taking most of the memory would flush the rest of the sets
+        if (size > maxBytes - maxProtectedBytes) {
+            return;
+        }
+        if (protectedSet != null) {
+            protectedSets.put(ownerId, preferenceSet);
+            protectedBytes += size;
+            demoteExcess();
+        } else {
+            probationarySets.put(ownerId, preferenceSet);
+            probationaryBytes += size;
+        }
+        evictExcess();
+    }
+
+    @Override
+    public void onChanged(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet) {
+        admit(preferenceSet);
+    }
+
+    /**
+     * Moves the set read again to the protected segment.
+     */
+    private void promote(PreferenceSet preferenceSet) {
+        final long size = preferenceSet.getMemorySize();
+        probationaryBytes -= size;
+        protectedSets.put(preferenceSet.getOwnerId(), preferenceSet);
+        protectedBytes += size;
+        demoteExcess();
+    }
+
+    /**
+     * Moves the least recently used sets exceeding the memory of the
+     * protected segment back to the probationary one.
+     */
+    private void demoteExcess() {
+        var iterator = protectedSets.values().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            var preferenceSet = iterator.next();
+            iterator.remove();
+            final long size = preferenceSet.getMemorySize();
+            protectedBytes -= size;
+            probationarySets.put(preferenceSet.getOwnerId(), preferenceSet);
+            probationaryBytes += size;
+        }
+    }
+
+    /**
+     * Forgets the least recently used probationary sets exceeding the memory.
+     */
+    private void evictExcess() {
+        var iterator = probationarySets.values().iterator();
+        while (probationaryBytes + protectedBytes > maxBytes && iterator.hasNext()) {
+            probationaryBytes -= iterator.next().getMemorySize();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.lexkrstn.recommender.shard.io;
+
+/**
+ * Decides by the header of a stored preference set whether the set is worth
+ * reading in full.
+ */
+public interface PreferenceSetFilter {
+    /**
+     * Returns false if the preference set can be skipped without reading its
+     * entity IDs.
+     *
+     * @param ownerId The ID of the preference set owner.
+     * @param entityCount The number of entities in the set.
+     */
+    boolean accept(long ownerId, int entityCount);
+
+    /**
+     * Returns false if all the preference sets having from minEntityCount to
+     * maxEntityCount entities can be skipped without reading them.
+     *
+     * @param minEntityCount The minimum number of entities in a set.
+     * @param maxEntityCount The maximum number of entities in a set.
+     */
+    boolean acceptSizeRange(int minEntityCount, int maxEntityCount);
+
+    /**
+     * Returns the number of entities in the preference sets worth reading
+     * first, e.g. since they're likely to make acceptSizeRange() reject more
+     * of the others, or -1 if the order doesn't matter.
+     */
+    default int getPreferredEntityCount() {
+        return -1;
+    }
+}
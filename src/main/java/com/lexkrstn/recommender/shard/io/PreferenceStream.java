@@ -0,0 +1,133 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The binary format the preference sets are exported and imported in.
+ *
+ * Layout: prefix "PEXP" (4 bytes), version (1 byte) and then the preference
+ * sets till the end of the stream, each one being the owner ID (8 bytes),
+ * the entity count (4 bytes) and the entity IDs (8 bytes each).
+ */
+public final class PreferenceStream {
+    /**
+     * Stream prefix "PEXP".
+     */
+    private static final byte[] PREFIX = { 0x50, 0x45, 0x58, 0x50 };
+    /**
+     * Current stream structure version.
+     */
+    private static final byte VERSION = 1;
+
+    private PreferenceStream() {
+    }
+
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.write(PREFIX);
+        out.writeByte(VERSION);
+    }
+
+    public static void writePreferenceSet(DataOutput out, PreferenceSet preferenceSet)
+            throws IOException {
+        out.writeLong(preferenceSet.getOwnerId());
+        out.writeInt(preferenceSet.getEntityCount());
+        for (var entityId : preferenceSet.getEntityIds()) {
+            out.writeLong(entityId);
+        }
+    }
+
+    /**
+     * @throws IOException If the stream isn't a preference stream of the
+     *                     current version.
+     */
+    public static void readHeader(DataInput in) throws IOException {
+        byte[] prefix = new byte[PREFIX.length];
+        in.readFully(prefix);
+        if (!Arrays.equals(PREFIX, prefix) || in.readByte() != VERSION) {
+            throw new IOException("Not a valid preference stream");
+        }
+    }
+
+    /**
+     * Merges the streams whose sets are ordered by owner ID into a single
+     * ordered stream.
+     *
+     * @param inputs The files of the streams to merge.
+     * @param output The file to write the merged stream to.
+     * @param maxOwnerId The sets of the greater owner IDs are skipped.
+     * @param limit The maximum number of the sets to write.
+     * @return The owner ID of the first set not written due to the limit or
+     *         null if all the sets have been written.
+     */
+    public static Long merge(List<Path> inputs, Path output, long maxOwnerId, int limit)
+            throws IOException {
+        List<DataInputStream> streams = new ArrayList<>(inputs.size());
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(output)))) {
+            var heads = new PriorityQueue<Map.Entry<PreferenceSet, DataInputStream>>(
+                    Comparator.comparingLong(entry -> entry.getKey().getOwnerId()));
+            for (var input : inputs) {
+                var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input)));
+                streams.add(in);
+                readHeader(in);
+                var preferenceSet = readPreferenceSet(in);
+                if (preferenceSet != null) {
+                    heads.add(Map.entry(preferenceSet, in));
+                }
+            }
+            writeHeader(out);
+            int count = 0;
+            while (!heads.isEmpty() && heads.peek().getKey().getOwnerId() <= maxOwnerId) {
+                var head = heads.poll();
+                if (count >= limit) {
+                    return head.getKey().getOwnerId();
+                }
+                writePreferenceSet(out, head.getKey());
+                count++;
+                var preferenceSet = readPreferenceSet(head.getValue());
+                if (preferenceSet != null) {
+                    heads.add(Map.entry(preferenceSet, head.getValue()));
+                }
+            }
+            return null;
+        } finally {
+            for (var in : streams) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the next preference set. The capacity and offset of the
+     * returned set are 0.
+     *
+     * @return The preference set or null if the end of the stream is reached.
+     * @throws EOFException If the stream ends in the middle of a set.
+     */
+    public static PreferenceSet readPreferenceSet(DataInputStream in) throws IOException {
+        byte[] ownerIdBytes = new byte[8];
+        int read = in.readNBytes(ownerIdBytes, 0, ownerIdBytes.length);
+        if (read == 0) {
+            return null;
+        }
+        if (read < ownerIdBytes.length) {
+            throw new EOFException("Unexpected end of preference stream");
+        }
+        long ownerId = ByteBuffer.wrap(ownerIdBytes).getLong();
+        int entityCount = in.readInt();
+        if (entityCount < 0) {
+            throw new IOException("Invalid entity count " + entityCount + " of owner " + ownerId);
+        }
+        Set<Long> entityIds = new TreeSet<>();
+        for (int i = 0; i < entityCount; i++) {
+            entityIds.add(in.readLong());
+        }
+        return new PreferenceSet(ownerId, 0, entityIds, 0);
+    }
+}
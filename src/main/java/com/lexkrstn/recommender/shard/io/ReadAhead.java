@@ -0,0 +1,308 @@
+package com.lexkrstn.recommender.shard.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the consecutive preference sets of a range of the preference file
+ * in large chunks ahead of the scan. Every chunk holds whole sets only, so
+ * that they're decoded right from the buffer.
+ *
+ * Unless the depth is 0, the chunks are read by a thread of its own into a
+ * bounded pool of buffers, so that reading the file overlaps with processing
+ * the sets already read. Otherwise a chunk is read by the scan thread once
+ * the previous one has been processed.
+ */
+class ReadAhead implements AutoCloseable {
+    /**
+     * A part of the range holding whole preference sets.
+     */
+    static class Chunk {
+        private final ByteBuffer buffer;
+        /**
+         * The pooled buffer the chunk has been read with. A chunk of a set
+         * exceeding it keeps it till released, so that such chunks count
+         * against the depth too.
+         */
+        private final ByteBuffer pooledBuffer;
+        private final long offset;
+        private final int size;
+
+        private Chunk(ByteBuffer buffer, ByteBuffer pooledBuffer, long offset, int size) {
+            this.buffer = buffer;
+            this.pooledBuffer = pooledBuffer;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * Returns the buffer holding the chunk from its beginning.
+         */
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the offset of the chunk from the beginning of the file.
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        int getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * The offset of the capacity in the header of a preference set.
+     */
+    private static final int CAPACITY_OFFSET = 8;
+
+    private final FileChannel channel;
+    private final int setHeaderSize;
+    private final int entityIdSize;
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> readChunks = new ArrayDeque<>();
+    private final Thread thread;
+    /**
+     * Incremented by every change of the range, so that the chunk being read
+     * for the previous one is dropped.
+     */
+    private long generation = 0;
+    private long offset = 0;
+    private long endOffset = 0;
+    private boolean reading = false;
+    private boolean closed = false;
+    private IOException error;
+
+    /**
+     * @param channel The channel of the preference file.
+     * @param name The name of the reading thread.
+     * @param depth The number of the chunks read ahead of the one being
+     *              processed or 0 to read them in the scan thread.
+     * @param bufferSize The size of a chunk, which is exceeded only by the
+     *                   chunks of a single set not fitting into it.
+     * @param setHeaderSize The size of the fixed part of a preference set.
+     * @param entityIdSize The size of a stored entity ID.
+     */
+    ReadAhead(FileChannel channel, String name, int depth, int bufferSize,
+              int setHeaderSize, int entityIdSize) {
+        this.channel = channel;
+        this.setHeaderSize = setHeaderSize;
+        this.entityIdSize = entityIdSize;
+        // The scan holds a buffer while the rest are being read
+        for (int i = 0; i < depth + 1; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        if (depth > 0) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Starts reading the range dropping the chunks read for the previous one.
+     * The range must start at a preference set.
+     *
+     * @param fromOffset The offset of the range in the file.
+     * @param toOffset The offset of the end of the range.
+     */
+    synchronized void start(long fromOffset, long toOffset) {
+        generation++;
+        dropReadChunks();
+        offset = fromOffset;
+        endOffset = toOffset;
+        notifyAll();
+    }
+
+    /**
+     * Stops reading and waits for the chunk being read, so that the file may
+     * be changed. Reading resumes by start().
+     */
+    synchronized void stop() throws IOException {
+        generation++;
+        dropReadChunks();
+        offset = endOffset;
+        try {
+            while (reading) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping read-ahead");
+        }
+    }
+
+    /**
+     * Returns the next chunk of the range, waiting for it to be read, or null
+     * if the range has been read. The chunk must be released once processed.
+     */
+    Chunk take() throws IOException {
+        if (thread == null) {
+            synchronized (this) {
+                if (offset >= endOffset) {
+                    return null;
+                }
+                var buffer = freeBuffers.remove();
+                final Chunk chunk;
+                try {
+                    chunk = read(buffer, offset, endOffset);
+                } catch (IOException e) {
+                    freeBuffers.add(buffer);
+                    throw e;
+                }
+                offset += chunk.size;
+                return chunk;
+            }
+        }
+        synchronized (this) {
+            try {
+                while (readChunks.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (offset >= endOffset && !reading) {
+                        return null;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            }
+            return readChunks.remove();
+        }
+    }
+
+    /**
+     * Returns the buffer of the processed chunk to the pool.
+     */
+    synchronized void release(Chunk chunk) {
+        freeBuffers.add(chunk.pooledBuffer);
+        notifyAll();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    private void dropReadChunks() {
+        while (!readChunks.isEmpty()) {
+            release(readChunks.remove());
+        }
+        error = null;
+    }
+
+    /**
+     * Reads the chunks of the current range until it's read or changed.
+     */
+    private void run() {
+        while (true) {
+            final ByteBuffer buffer;
+            final long readGeneration;
+            final long fromOffset;
+            final long toOffset;
+            synchronized (this) {
+                try {
+                    while (!closed && (offset >= endOffset || freeBuffers.isEmpty())) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                buffer = freeBuffers.remove();
+                readGeneration = generation;
+                fromOffset = offset;
+                toOffset = endOffset;
+                reading = true;
+            }
+            Chunk chunk = null;
+            IOException readError = null;
+            try {
+                chunk = read(buffer, fromOffset, toOffset);
+            } catch (IOException e) {
+                readError = e;
+            } catch (RuntimeException e) {
+                // The scan must not wait for the thread forever
+                readError = new IOException("Failed to read ahead at " + fromOffset, e);
+            }
+            synchronized (this) {
+                reading = false;
+                if (readGeneration != generation) {
+                    freeBuffers.add(buffer);
+                } else if (readError != null) {
+                    freeBuffers.add(buffer);
+                    error = readError;
+                    offset = endOffset;
+                } else {
+                    readChunks.add(chunk);
+                    offset += chunk.size;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the whole preference sets of the range fitting into the buffer.
+     * The range may end inside its last set, which is read whole. A set
+     * exceeding the buffer is read into a buffer of its own, while the
+     * pooled one stays with the chunk.
+     */
+    private Chunk read(ByteBuffer buffer, long fromOffset, long toOffset) throws IOException {
+        buffer.clear().limit((int) Math.min(buffer.capacity(),
+                                            Math.max(toOffset - fromOffset, setHeaderSize)));
+        readFully(buffer, fromOffset);
+        int size = 0;
+        while (size + setHeaderSize <= buffer.limit()) {
+            long setSize = setHeaderSize
+                    + (long) entityIdSize * buffer.getInt(size + CAPACITY_OFFSET);
+            if (size + setSize > buffer.limit()) {
+                if (size == 0 && setSize <= buffer.capacity()) {
+                    buffer.clear().limit((int) setSize);
+                    readFully(buffer, fromOffset);
+                    return new Chunk(buffer, buffer, fromOffset, (int) setSize);
+                }
+                if (size == 0) {
+                    var setBuffer = ByteBuffer.allocate((int) setSize);
+                    readFully(setBuffer, fromOffset);
+                    return new Chunk(setBuffer, buffer, fromOffset, (int) setSize);
+                }
+                break;
+            }
+            size += (int) setSize;
+        }
+        if (size == 0) {
+            throw new EOFException("Truncated preference set at " + fromOffset);
+        }
+        return new Chunk(buffer, buffer, fromOffset, size);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        final long start = position;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position) < 0) {
+                throw new EOFException("Unexpected end of the preference file at " + position);
+            }
+            position = start + buffer.position();
+        }
+    }
+}
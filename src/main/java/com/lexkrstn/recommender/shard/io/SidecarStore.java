@@ -0,0 +1,176 @@
+package com.lexkrstn.recommender.shard.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Base class of the in-memory structures derived from the data source which
+ * are persisted to the sidecar files next to the data file, so that they
+ * don't have to be rebuilt by scanning the data source on every restart.
+ *
+ * A sidecar file is tagged with the change sequence of the data source its
+ * content reflects. The content is loaded from a memory-mapped file and is
+ * considered outdated if the tag doesn't match the data source.
+ *
+ * File layout: prefix (4 bytes), version (1 byte), tag (8 bytes), content.
+ * The subclasses must guard their state with the monitor of the object.
+ */
+public abstract class SidecarStore implements AutoCloseable {
+    private final Logger log = LoggerFactory.getLogger(SidecarStore.class);
+    private final String filePath;
+    private final byte[] prefix;
+    private final byte version;
+    /**
+     * The change sequence of the data source the content reflects.
+     */
+    private long changeSequence = -1;
+    /**
+     * Whether the content has changed since it was saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * @param filePath The path of the sidecar file.
+     * @param prefix The 4-byte prefix identifying the kind of the file.
+     * @param version The version of the content structure.
+     */
+    protected SidecarStore(String filePath, byte[] prefix, byte version) {
+        this.filePath = filePath;
+        this.prefix = prefix;
+        this.version = version;
+    }
+
+    /**
+     * Writes the content to the output. It's called under the lock of the
+     * object.
+     */
+    protected abstract void writeContent(DataOutput out) throws IOException;
+
+    /**
+     * Replaces the content with the one read from the input. It's called
+     * under the lock of the object.
+     *
+     * @param in The input to read from.
+     * @param upToDate Whether the content has been saved for the current
+     *                 state of the data source.
+     * @return A boolean value indicating whether the content now reflects
+     *         the current state of the data source.
+     */
+    protected abstract boolean readContent(DataInput in, boolean upToDate) throws IOException;
+
+    /**
+     * Discards the content. It's called under the lock of the object if the
+     * file cannot be read.
+     */
+    protected abstract void clearContent();
+
+    /**
+     * Returns a boolean value indicating whether the content is complete
+     * enough to be saved.
+     */
+    protected boolean isSavable() {
+        return true;
+    }
+
+    /**
+     * Returns the change sequence of the data source the content reflects.
+     */
+    public synchronized long getChangeSequence() {
+        return changeSequence;
+    }
+
+    /**
+     * Tags the content with the change sequence of the data source it reflects.
+     */
+    protected synchronized void setChangeSequence(long changeSequence) {
+        if (this.changeSequence != changeSequence) {
+            this.changeSequence = changeSequence;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Marks the content to be written by the next save().
+     */
+    protected synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Loads the content from the sidecar file if it exists.
+     *
+     * @param dataChangeSequence The current change sequence of the data source.
+     * @return A boolean value indicating whether the loaded content reflects
+     *         the current state of the data source. It's false if the file
+     *         doesn't exist or cannot be read, so the content must be rebuilt.
+     */
+    public synchronized boolean load(long dataChangeSequence) {
+        Path path = Path.of(filePath);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            InputStream stream = channel.size() <= Integer.MAX_VALUE
+                    ? new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY,
+                            0, channel.size()))
+                    : new BufferedInputStream(Channels.newInputStream(channel));
+            var in = new DataInputStream(stream);
+            byte[] filePrefix = new byte[prefix.length];
+            in.readFully(filePrefix);
+            if (!Arrays.equals(prefix, filePrefix) || in.readByte() != version) {
+                log.info("Ignoring sidecar file {} of another version", filePath);
+                return false;
+            }
+            long tag = in.readLong();
+            boolean upToDate = readContent(in, tag == dataChangeSequence);
+            changeSequence = upToDate ? dataChangeSequence : -1;
+            dirty = false;
+            log.info("Loaded {} sidecar file {}", upToDate ? "up-to-date" : "outdated", filePath);
+            return upToDate;
+        } catch (IOException e) {
+            log.error("Cannot load sidecar file " + filePath, e);
+            clearContent();
+            changeSequence = -1;
+            return false;
+        }
+    }
+
+    /**
+     * Writes the content to the sidecar file replacing it atomically if the
+     * content has changed since the last save. The content is streamed to a
+     * temporary file, so that it isn't copied in memory, which takes the
+     * lock of the object for the time of the writing.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || !isSavable()) {
+            return;
+        }
+        Path path = Path.of(filePath);
+        Path tempPath = Path.of(filePath + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempPath), 1 << 16))) {
+            out.write(prefix);
+            out.writeByte(version);
+            out.writeLong(changeSequence);
+            writeContent(out);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+        log.debug("Saved sidecar file {}", filePath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+}
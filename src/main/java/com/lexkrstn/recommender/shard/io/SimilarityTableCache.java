@@ -0,0 +1,181 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import com.lexkrstn.recommender.shard.models.RecommendationResult;
+import com.lexkrstn.recommender.shard.models.SimilarityTable;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the similarity tables of the recently recommended owners and updates
+ * them upon the preference set changes, so that the follow-up
+ * recommendations don't need a pass over the data source.
+ *
+ * A change of another owner's set keeps a table exact unless it lowers the
+ * similarity of a row of a full table below the table's threshold, since a
+ * set outside the table might take the row's place then. Such a table is
+ * dropped. A change of the owner's own set re-scores the rows, which makes
+ * the table approximate, so the table is dropped after several such changes.
+ *
+ * The cache is the single holder of the cached tables, so the dropped ones
+ * are returned to their pool, as are the built tables which aren't cached.
+ */
+public class SimilarityTableCache implements PreferenceChangeBulk.ChangeListener {
+    /**
+     * The number of the owner's own set changes a table is re-scored upon
+     * before it's dropped.
+     */
+    private static final int MAX_OWNER_CHANGES = 10;
+
+    /**
+     * The changes executed while a table is being built, which are applied
+     * to it before it's cached.
+     */
+    public static class Build {
+        private final List<PreferenceSet> changes = new LinkedList<>();
+    }
+
+    private static class Entry {
+        private final SimilarityTable similarityTable;
+        private int ownerChangeCount = 0;
+
+        private Entry(SimilarityTable similarityTable) {
+            this.similarityTable = similarityTable;
+        }
+    }
+
+    private final int maxTables;
+    /**
+     * The tables by their owner IDs from the least to the most recently used.
+     */
+    private final LinkedHashMap<Long, Entry> entries;
+    private final List<Build> builds = new LinkedList<>();
+
+    /**
+     * @param maxTables The maximum number of the tables to keep.
+     */
+    public SimilarityTableCache(int maxTables) {
+        this.maxTables = maxTables;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > maxTables) {
+                    eldest.getValue().similarityTable.release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the recommendation list of the owner built from the cached
+     * table or null if there's no table of the owner.
+     */
+    public synchronized RecommendationList getRecommendationList(long ownerId) {
+        var entry = entries.get(ownerId);
+        return entry != null ? entry.similarityTable.getRecommendationList() : null;
+    }
+
+    /**
+     * Starts recording the changes to apply to a table being built.
+     */
+    public synchronized Build startBuilding() {
+        var build = new Build();
+        builds.add(build);
+        return build;
+    }
+
+    /**
+     * Applies the changes executed since the build has started to the table
+     * and caches it. A table built by a scan cut short or from a sample of
+     * the preference sets isn't cached.
+     *
+     * A table built by a scan cut short may still be read by the caller, so
+     * it's left as is. Any other table which isn't cached is released, so
+     * it mustn't be read after the call.
+     *
+     * @param build The object returned by startBuilding().
+     * @param similarityTable The built table or null if the owner's set
+     *                        hasn't been found.
+     * @return The recommendations or null if there's no table.
+     */
+    public synchronized RecommendationResult finishBuilding(Build build,
+                                                            SimilarityTable similarityTable) {
+        builds.remove(build);
+        if (similarityTable == null) {
+            return null;
+        }
+        if (similarityTable.isPartial()) {
+            return RecommendationResult.of(similarityTable);
+        }
+        if (similarityTable.isSampled()) {
+            var result = RecommendationResult.of(similarityTable);
+            similarityTable.release();
+            return result;
+        }
+        var entry = new Entry(similarityTable);
+        boolean exact = true;
+        // Some of the changes may be already reflected by the table, but
+        // applying them again doesn't change it
+        for (var preferenceSet : build.changes) {
+            if (!applyChange(entry, preferenceSet)) {
+                exact = false;
+                break;
+            }
+        }
+        var result = RecommendationResult.of(similarityTable);
+        if (exact && maxTables > 0) {
+            var replacedEntry = entries.put(similarityTable.getPreferenceSet().getOwnerId(), entry);
+            if (replacedEntry != null) {
+                replacedEntry.similarityTable.release();
+            }
+        } else {
+            similarityTable.release();
+        }
+        return result;
+    }
+
+    /**
+     * Stops recording the changes of a failed build.
+     */
+    public synchronized void cancelBuilding(Build build) {
+        builds.remove(build);
+    }
+
+    @Override
+    public synchronized void onChanged(PreferenceSet originalPreferenceSet,
+                                       PreferenceSet preferenceSet) {
+        for (var build : builds) {
+            build.changes.add(preferenceSet);
+        }
+        entries.values().removeIf(entry -> {
+            if (applyChange(entry, preferenceSet)) {
+                return false;
+            }
+            entry.similarityTable.release();
+            return true;
+        });
+    }
+
+    /**
+     * Updates the table upon the change.
+     *
+     * @return False if the table must be dropped.
+     */
+    private static boolean applyChange(Entry entry, PreferenceSet preferenceSet) {
+        var similarityTable = entry.similarityTable;
+        if (similarityTable.getPreferenceSet().getOwnerId() != preferenceSet.getOwnerId()) {
+            return similarityTable.applyChange(preferenceSet);
+        }
+        if (++entry.ownerChangeCount > MAX_OWNER_CHANGES) {
+            return false;
+        }
+        similarityTable.rescore(preferenceSet);
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package com.lexkrstn.recommender.shard.io;
+
+/**
+ * Limits the average rate of transferring data by making the transferring
+ * thread sleep.
+ */
+public class Throttle {
+    private final long bytesPerSecond;
+    private final long startTimeNanos = System.nanoTime();
+    private long transferredBytes = 0;
+
+    /**
+     * @param bytesPerSecond The maximum average rate or 0 for no limit.
+     */
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Accounts the transferred bytes and sleeps if the transfer runs ahead
+     * of the rate.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        transferredBytes += bytes;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = transferredBytes * 1_000_000_000L / bytesPerSecond;
+        long aheadNanos = expectedNanos - (System.nanoTime() - startTimeNanos);
+        if (aheadNanos > 0) {
+            Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+        }
+    }
+}
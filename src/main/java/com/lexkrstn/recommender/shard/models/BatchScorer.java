@@ -0,0 +1,176 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the entities the preference set being scanned has in common with
+ * every set the tasks of a pass compare it with at once.
+ *
+ * The compared sets are indexed by their entities: the dense ID of an entity
+ * leads to the indices of the sets having it. So every entity of the scanned
+ * set is looked up once for all the sets rather than merged with each of
+ * them in turn. The index is a hash table of the IDs the compared sets have,
+ * so its size doesn't depend on the size of the dictionary. The scorer is
+ * reused by the passes, which grow its arrays only when needed.
+ */
+public class BatchScorer {
+    private final List<PreferenceSet> preferenceSets = new ArrayList<>();
+    /**
+     * Open addressing hash table of the dense IDs of the entities of the
+     * sets, where -1 denotes an empty slot. Only the first tableSize slots
+     * are used, since the arrays are kept for the following passes and
+     * grown only when needed.
+     */
+    private int[] slotIds = new int[0];
+    private int tableSize = 0;
+    private int tableShift = 0;
+    /**
+     * The indices of the sets having the entity of a slot are stored in
+     * setIndices from setIndexStarts[slot] to setIndexEnds[slot].
+     */
+    private int[] setIndexStarts = new int[0];
+    private int[] setIndexEnds = new int[0];
+    private int[] setIndices = new int[0];
+    /**
+     * The numbers of the common entities of the sets with the scanned one.
+     */
+    private int[] conjunctions = new int[0];
+    /**
+     * The mapping the index has been built with and its size then.
+     */
+    private EntityIdMapping mapping;
+    private int mappingSize;
+    /**
+     * Whether some of the entities of the sets were missing from the mapping,
+     * so that the index must be rebuilt once the mapping grows.
+     */
+    private boolean hasUnmappedEntities;
+
+    /**
+     * Adds the preference set to compare the scanned sets with.
+     *
+     * @return The index of the set, which are consecutive.
+     */
+    public int add(PreferenceSet preferenceSet) {
+        preferenceSets.add(preferenceSet);
+        mapping = null;
+        return preferenceSets.size() - 1;
+    }
+
+    /**
+     * Removes the added preference sets keeping the arrays, so that the
+     * scorer is reused by the next pass.
+     */
+    public void clear() {
+        preferenceSets.clear();
+        mapping = null;
+    }
+
+    public boolean isEmpty() {
+        return preferenceSets.isEmpty();
+    }
+
+    /**
+     * Counts the entities the scanned preference set has in common with
+     * every added set.
+     */
+    public void score(PreferenceSetView preferenceSet) {
+        var viewMapping = preferenceSet.getMapping();
+        if (mapping != viewMapping
+                || (hasUnmappedEntities && mappingSize != viewMapping.size())) {
+            buildIndex(preferenceSet);
+        }
+        Arrays.fill(conjunctions, 0, preferenceSets.size(), 0);
+        final int entityCount = preferenceSet.getEntityCount();
+        for (int i = 0; i < entityCount; i++) {
+            int slot = findSlot(preferenceSet.getId(i));
+            for (int j = setIndexStarts[slot]; j < setIndexEnds[slot]; j++) {
+                conjunctions[setIndices[j]]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the entities the scanned preference set has in
+     * common with the added one.
+     *
+     * @param index The index of the added set.
+     */
+    public int getConjunction(int index) {
+        return conjunctions[index];
+    }
+
+    /**
+     * Returns the slot of the dense ID or the empty slot it should be put
+     * into, whose range of the set indices is empty.
+     */
+    private int findSlot(int id) {
+        final int mask = tableSize - 1;
+        // Fibonacci hashing spreads the sequential IDs evenly
+        int slot = (id * 0x9E3779B9) >>> tableShift;
+        while (slotIds[slot] != id && slotIds[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Indexes the added preference sets by the dense IDs of their entities
+     * in the mapping of the view.
+     */
+    private void buildIndex(PreferenceSetView view) {
+        mapping = view.getMapping();
+        mappingSize = mapping.size();
+        hasUnmappedEntities = false;
+        int[][] sortedIds = new int[preferenceSets.size()][];
+        int idCount = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            var preferenceSet = preferenceSets.get(i);
+            sortedIds[i] = view.getSortedIds(preferenceSet);
+            if (sortedIds[i].length < preferenceSet.getEntityCount()) {
+                hasUnmappedEntities = true;
+            }
+            idCount += sortedIds[i].length;
+        }
+        // At most half of the slots are used, whatever the number of the
+        // distinct IDs
+        int bits = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(idCount) + 1);
+        tableSize = 1 << bits;
+        tableShift = Integer.SIZE - bits;
+        if (slotIds.length < tableSize) {
+            slotIds = new int[tableSize];
+            setIndexStarts = new int[tableSize];
+            setIndexEnds = new int[tableSize];
+        }
+        Arrays.fill(slotIds, 0, tableSize, -1);
+        Arrays.fill(setIndexStarts, 0, tableSize, 0);
+        Arrays.fill(setIndexEnds, 0, tableSize, 0);
+        // The ends count the sets of the IDs first
+        for (var ids : sortedIds) {
+            for (var id : ids) {
+                int slot = findSlot(id);
+                slotIds[slot] = id;
+                setIndexEnds[slot]++;
+            }
+        }
+        int position = 0;
+        for (int slot = 0; slot < tableSize; slot++) {
+            setIndexStarts[slot] = position;
+            position += setIndexEnds[slot];
+            setIndexEnds[slot] = setIndexStarts[slot];
+        }
+        if (setIndices.length < idCount) {
+            setIndices = new int[idCount];
+        }
+        for (int i = 0; i < sortedIds.length; i++) {
+            for (var id : sortedIds[i]) {
+                setIndices[setIndexEnds[findSlot(id)]++] = i;
+            }
+        }
+        if (conjunctions.length < preferenceSets.size()) {
+            conjunctions = new int[preferenceSets.size()];
+        }
+    }
+}
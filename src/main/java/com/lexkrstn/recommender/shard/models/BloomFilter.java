@@ -0,0 +1,131 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Probabilistic set of 64-bit keys. It may tell that a key is there while
+ * it isn't, but never the opposite. The false positive rate is about 1%
+ * until the number of the keys exceeds the capacity.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final int capacity;
+    private final long[] words;
+    private final long bitCount;
+    /**
+     * The number of the added keys which haven't been in the filter.
+     */
+    private int count = 0;
+
+    /**
+     * @param capacity The number of the keys to keep the false positive rate for.
+     */
+    public BloomFilter(int capacity) {
+        this(Math.max(capacity, MIN_CAPACITY),
+             new long[(int) ((Math.max(capacity, MIN_CAPACITY) * (long) BITS_PER_KEY + 63) / 64)]);
+    }
+
+    private BloomFilter(int capacity, long[] words) {
+        this.capacity = capacity;
+        this.words = words;
+        this.bitCount = words.length * 64L;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the approximate number of the distinct keys added.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Adds the key.
+     *
+     * @return False if the filter has already reported the key to be there.
+     */
+    public boolean add(long key) {
+        long hash = mix(key);
+        boolean added = false;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = getBit(hash, i);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            if ((words[word] & mask) == 0) {
+                words[word] |= mask;
+                added = true;
+            }
+        }
+        if (added) {
+            count++;
+        }
+        return added;
+    }
+
+    /**
+     * Returns false if the key has definitely not been added.
+     */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = getBit(hash, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter to the output.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(count);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads the filter written by write().
+     */
+    public static BloomFilter read(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int count = in.readInt();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        var filter = new BloomFilter(capacity, words);
+        filter.count = count;
+        return filter;
+    }
+
+    /**
+     * Derives the bit of the i-th hash function from the two halves of the
+     * mixed key.
+     */
+    private long getBit(long hash, int i) {
+        long combined = (hash & 0xFFFFFFFFL) + i * (hash >>> 32);
+        return Long.remainderUnsigned(combined, bitCount);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,271 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.Arrays;
+
+/**
+ * The bounded counters of the co-occurrences of an entity with the other
+ * ones (Space-Saving). Up to the capacity of the other entities are
+ * tracked: an untracked entity takes the counter having the least count,
+ * which it inherits as the error of its own count, so that the entities
+ * co-occurring the most stay tracked whatever order the pairs come in.
+ * A count overestimates the number of the co-occurrences by the error at
+ * most.
+ *
+ * The counters are kept in primitive arrays along with a min-heap of them by
+ * count and an open-addressing index of them by entity ID, so that an
+ * update takes O(log n) and allocates nothing. The arrays grow up to the
+ * capacity.
+ */
+class CooccurrenceCounters {
+    private static final int INITIAL_SIZE = 4;
+
+    private final int capacity;
+    /**
+     * The other entities, their counts and errors by counter.
+     */
+    private long[] entityIds;
+    private int[] counts;
+    private int[] errors;
+    private int size = 0;
+    /**
+     * The counters ordered as a min-heap by count and the position of every
+     * counter in the heap.
+     */
+    private int[] heap;
+    private int[] heapPositions;
+    /**
+     * The counters by the hashes of their entity IDs (linear probing). An
+     * element is the counter + 1 or 0 if it's empty.
+     */
+    private int[] index;
+
+    /**
+     * @param capacity The maximum number of the other entities tracked.
+     */
+    CooccurrenceCounters(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        allocate(Math.min(INITIAL_SIZE, this.capacity));
+    }
+
+    /**
+     * Returns the number of the other entities tracked.
+     */
+    int size() {
+        return size;
+    }
+
+    long getEntityId(int counter) {
+        return entityIds[counter];
+    }
+
+    int getCount(int counter) {
+        return counts[counter];
+    }
+
+    int getError(int counter) {
+        return errors[counter];
+    }
+
+    /**
+     * Adds the delta to the count of the other entity. An untracked entity
+     * is counted by a positive delta only. The counter is dropped once its
+     * count isn't positive.
+     *
+     * @return The counter of the entity or -1 if it isn't tracked.
+     */
+    int add(long entityId, int delta) {
+        int counter = find(entityId);
+        if (counter < 0) {
+            if (delta <= 0) {
+                return -1;
+            }
+            if (size < capacity) {
+                if (size == entityIds.length) {
+                    allocate(Math.min(capacity, size * 2));
+                }
+                counter = size++;
+                entityIds[counter] = entityId;
+                counts[counter] = delta;
+                errors[counter] = 0;
+                heap[counter] = counter;
+                heapPositions[counter] = counter;
+                addToIndex(counter);
+                siftUp(counter);
+                return counter;
+            }
+            // The least counted entity gives its place up
+            counter = heap[0];
+            removeFromIndex(entityIds[counter]);
+            entityIds[counter] = entityId;
+            errors[counter] = counts[counter];
+            counts[counter] += delta;
+            addToIndex(counter);
+            siftDown(0);
+            return counter;
+        }
+        counts[counter] += delta;
+        if (counts[counter] <= 0) {
+            remove(counter);
+            return -1;
+        }
+        errors[counter] = Math.min(errors[counter], counts[counter]);
+        if (delta > 0) {
+            siftDown(heapPositions[counter]);
+        } else {
+            siftUp(heapPositions[counter]);
+        }
+        return counter;
+    }
+
+    /**
+     * Adds to the error of the counter, e.g. the one it has been saved with.
+     */
+    void addError(int counter, int error) {
+        errors[counter] = Math.min(errors[counter] + error, counts[counter]);
+    }
+
+    /**
+     * Returns the counter of the entity or -1 if it isn't tracked.
+     */
+    private int find(long entityId) {
+        final int mask = index.length - 1;
+        for (int i = hash(entityId) & mask; index[i] != 0; i = (i + 1) & mask) {
+            if (entityIds[index[i] - 1] == entityId) {
+                return index[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the counter moving the last one into its place.
+     */
+    private void remove(int counter) {
+        removeFromIndex(entityIds[counter]);
+        final int last = size - 1;
+        final int position = heapPositions[counter];
+        final int lastInHeap = heap[last];
+        heap[position] = lastInHeap;
+        heapPositions[lastInHeap] = position;
+        size--;
+        if (position < size) {
+            siftDown(position);
+            siftUp(heapPositions[lastInHeap]);
+        }
+        if (counter != last) {
+            entityIds[counter] = entityIds[last];
+            counts[counter] = counts[last];
+            errors[counter] = errors[last];
+            heapPositions[counter] = heapPositions[last];
+            heap[heapPositions[counter]] = counter;
+            index[findInIndex(entityIds[counter])] = counter + 1;
+        }
+    }
+
+    private void siftUp(int position) {
+        final int counter = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (counts[heap[parent]] <= counts[counter]) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heapPositions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = counter;
+        heapPositions[counter] = position;
+    }
+
+    private void siftDown(int position) {
+        final int counter = heap[position];
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[counter] <= counts[heap[child]]) {
+                break;
+            }
+            heap[position] = heap[child];
+            heapPositions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = counter;
+        heapPositions[counter] = position;
+    }
+
+    private void addToIndex(int counter) {
+        final int mask = index.length - 1;
+        int i = hash(entityIds[counter]) & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = counter + 1;
+    }
+
+    /**
+     * Returns the position of the tracked entity in the index.
+     */
+    private int findInIndex(long entityId) {
+        final int mask = index.length - 1;
+        int i = hash(entityId) & mask;
+        while (entityIds[index[i] - 1] != entityId) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Removes the tracked entity from the index shifting the following
+     * elements back, so that no probe sequence is broken.
+     */
+    private void removeFromIndex(long entityId) {
+        final int mask = index.length - 1;
+        int hole = findInIndex(entityId);
+        for (int i = (hole + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+            final int home = hash(entityIds[index[i] - 1]) & mask;
+            // The element stays if its home is cyclically in (hole, i]
+            final boolean stays = hole <= i
+                    ? hole < home && home <= i
+                    : hole < home || home <= i;
+            if (!stays) {
+                index[hole] = index[i];
+                hole = i;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    /**
+     * Resizes the arrays to hold the number of the counters.
+     */
+    private void allocate(int length) {
+        entityIds = copyOf(entityIds, length);
+        counts = copyOf(counts, length);
+        errors = copyOf(errors, length);
+        heap = copyOf(heap, length);
+        heapPositions = copyOf(heapPositions, length);
+        // The index is at most half full
+        index = new int[Integer.highestOneBit(length) << 2];
+        for (int i = 0; i < size; i++) {
+            addToIndex(i);
+        }
+    }
+
+    private static long[] copyOf(long[] array, int length) {
+        return array != null ? Arrays.copyOf(array, length) : new long[length];
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        return array != null ? Arrays.copyOf(array, length) : new int[length];
+    }
+
+    private static int hash(long entityId) {
+        long hash = entityId * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
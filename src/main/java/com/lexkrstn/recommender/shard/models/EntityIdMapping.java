@@ -0,0 +1,22 @@
+package com.lexkrstn.recommender.shard.models;
+
+/**
+ * Bidirectional mapping of the 64-bit entity IDs to the dense 32-bit ones
+ * the preference sets are stored with.
+ */
+public interface EntityIdMapping {
+    /**
+     * Returns the dense ID of the entity or -1 if the entity isn't mapped.
+     */
+    int getId(long entityId);
+
+    /**
+     * Returns the 64-bit ID of the entity by its dense ID.
+     */
+    long getEntityId(int id);
+
+    /**
+     * Returns the number of the mapped entities. It never decreases.
+     */
+    int size();
+}
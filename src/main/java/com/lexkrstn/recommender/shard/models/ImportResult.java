@@ -0,0 +1,18 @@
+package com.lexkrstn.recommender.shard.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class ImportResult {
+    /**
+     * The number of the preference sets imported.
+     */
+    private final long importedCount;
+    /**
+     * The owner ID of the last imported preference set or null if nothing
+     * has been imported. The import can be resumed after it.
+     */
+    private final Long lastOwnerId;
+}
@@ -0,0 +1,368 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sparse matrix of the numbers of preference sets every two entities occur
+ * together in. It's used to recommend the entities most similar to the ones
+ * an owner already likes.
+ *
+ * Given entities A and B,
+ * Similarity = |A ^ B| / sqrt(|A| * |B|)
+ * where |A| is the number of sets A occurs in.
+ *
+ * Only a bounded number of the entities co-occurring with an entity the
+ * most are counted (see CooccurrenceCounters), so the memory taken by a row
+ * doesn't grow with the number of the entities. The neighbours are the most
+ * similar of them.
+ *
+ * The neighbours of an entity are cached until a set containing the entity
+ * changes, so they may slightly lag behind the changes of the other
+ * entities' popularity.
+ */
+public class ItemSimilarityMatrix {
+    /**
+     * Represents the row of the matrix.
+     */
+    private static class Item {
+        /**
+         * The number of preference sets the entity occurs in.
+         */
+        private int preferenceCount;
+        /**
+         * The numbers of co-occurrences with the other entities.
+         */
+        private final CooccurrenceCounters cooccurrences;
+        /**
+         * The most similar entities or null if they must be recomputed.
+         */
+        private Recommendation[] neighbours;
+
+        private Item(int maxCandidates) {
+            cooccurrences = new CooccurrenceCounters(maxCandidates);
+        }
+    }
+
+    /**
+     * The number of the co-occurring entities counted for an entity per
+     * neighbour by default.
+     */
+    private static final int DEFAULT_CANDIDATES_PER_NEIGHBOUR = 4;
+
+    /**
+     * The maximum number of neighbours of an entity taken into account.
+     */
+    private final int maxNeighbours;
+    /**
+     * The maximum number of the co-occurring entities counted for an entity.
+     */
+    private final int maxCandidates;
+
+    /**
+     * The rows of the matrix by their entity IDs.
+     */
+    private final Map<Long, Item> items = new HashMap<>();
+
+    /**
+     * @param maxNeighbours The maximum number of neighbours of an entity
+     *                      taken into account.
+     */
+    public ItemSimilarityMatrix(int maxNeighbours) {
+        this(maxNeighbours, maxNeighbours * DEFAULT_CANDIDATES_PER_NEIGHBOUR);
+    }
+
+    /**
+     * @param maxNeighbours The maximum number of neighbours of an entity
+     *                      taken into account.
+     * @param maxCandidates The maximum number of the co-occurring entities
+     *                      counted for an entity.
+     */
+    public ItemSimilarityMatrix(int maxNeighbours, int maxCandidates) {
+        this.maxNeighbours = maxNeighbours;
+        this.maxCandidates = Math.max(maxNeighbours, maxCandidates);
+    }
+
+    /**
+     * Returns the maximum number of neighbours of an entity taken into account.
+     */
+    public int getMaxNeighbours() {
+        return maxNeighbours;
+    }
+
+    /**
+     * Returns the number of the distinct entities in the matrix.
+     */
+    public int getItemCount() {
+        return items.size();
+    }
+
+    /**
+     * Removes all the entities from the matrix.
+     */
+    public void clear() {
+        items.clear();
+    }
+
+    /**
+     * Counts the co-occurrences of the entities of a preference set.
+     */
+    public void add(PreferenceSetView preferenceSet) {
+        final int entityCount = preferenceSet.getEntityCount();
+        for (int i = 0; i < entityCount; i++) {
+            long entityId = preferenceSet.getEntityId(i);
+            for (int j = i + 1; j < entityCount; j++) {
+                addCooccurrence(entityId, preferenceSet.getEntityId(j), 1);
+            }
+            addPreference(entityId, 1);
+        }
+    }
+
+    /**
+     * Updates the co-occurrences upon a change of a preference set.
+     *
+     * @param originalPreferenceSet The preference set before the change or
+     *                              null if the set is a new one.
+     * @param preferenceSet The preference set after the change.
+     */
+    public void applyChange(PreferenceSet originalPreferenceSet, PreferenceSet preferenceSet) {
+        applyChange(originalPreferenceSet != null
+                ? originalPreferenceSet.getEntityIds()
+                : Collections.emptySet(),
+                preferenceSet.getEntityIds());
+    }
+
+    private void applyChange(Set<Long> originalEntityIds, Set<Long> entityIds) {
+        // Only the pairs including a removed or an added entity change
+        for (var removedId : originalEntityIds) {
+            if (entityIds.contains(removedId)) {
+                continue;
+            }
+            for (var otherId : originalEntityIds) {
+                boolean isOtherRemoved = !entityIds.contains(otherId);
+                if (otherId.equals(removedId) || (isOtherRemoved && otherId < removedId)) {
+                    continue;
+                }
+                addCooccurrence(removedId, otherId, -1);
+            }
+        }
+        for (var addedId : entityIds) {
+            if (originalEntityIds.contains(addedId)) {
+                continue;
+            }
+            for (var otherId : entityIds) {
+                boolean isOtherAdded = !originalEntityIds.contains(otherId);
+                if (otherId.equals(addedId) || (isOtherAdded && otherId < addedId)) {
+                    continue;
+                }
+                addCooccurrence(addedId, otherId, 1);
+            }
+        }
+        for (var removedId : originalEntityIds) {
+            if (!entityIds.contains(removedId)) {
+                addPreference(removedId, -1);
+            }
+        }
+        for (var addedId : entityIds) {
+            if (!originalEntityIds.contains(addedId)) {
+                addPreference(addedId, 1);
+            }
+        }
+    }
+
+    private void addPreference(long entityId, int delta) {
+        var item = items.computeIfAbsent(entityId, id -> new Item(maxCandidates));
+        item.preferenceCount += delta;
+        item.neighbours = null;
+        if (item.preferenceCount <= 0) {
+            items.remove(entityId);
+        }
+    }
+
+    private void addCooccurrence(long entityId, long otherEntityId, int delta) {
+        addDirectedCooccurrence(entityId, otherEntityId, delta);
+        addDirectedCooccurrence(otherEntityId, entityId, delta);
+    }
+
+    private void addDirectedCooccurrence(long entityId, long otherEntityId, int delta) {
+        var item = delta > 0
+                ? items.computeIfAbsent(entityId, id -> new Item(maxCandidates))
+                : items.get(entityId);
+        if (item == null) {
+            return;
+        }
+        item.cooccurrences.add(otherEntityId, delta);
+        item.neighbours = null;
+    }
+
+    /**
+     * Returns the most similar entities to the entity sorted by similarity in
+     * descending order. The weights of the returned objects are similarities.
+     */
+    public Recommendation[] getNeighbours(long entityId) {
+        var item = items.get(entityId);
+        if (item == null) {
+            return new Recommendation[0];
+        }
+        if (item.neighbours == null) {
+            final var cooccurrences = item.cooccurrences;
+            var neighbours = new ArrayList<Recommendation>(cooccurrences.size());
+            for (int i = 0; i < cooccurrences.size(); i++) {
+                int otherPreferenceCount = getPreferenceCount(cooccurrences.getEntityId(i));
+                if (otherPreferenceCount > 0) {
+                    neighbours.add(new Recommendation(cooccurrences.getEntityId(i),
+                            getSimilarity(cooccurrences.getCount(i), item.preferenceCount,
+                                          otherPreferenceCount)));
+                }
+            }
+            item.neighbours = selectNeighbours(neighbours, maxNeighbours);
+        }
+        return item.neighbours;
+    }
+
+    /**
+     * Returns the number of preference sets the entity occurs in.
+     */
+    public int getPreferenceCount(long entityId) {
+        var item = items.get(entityId);
+        return item != null ? item.preferenceCount : 0;
+    }
+
+    /**
+     * Adds the numbers of co-occurrences of the entity with the other ones
+     * to the map whose keys are the IDs of the other entities.
+     */
+    public void addCooccurrences(long entityId, Map<Long, Integer> cooccurrences) {
+        var item = items.get(entityId);
+        if (item != null) {
+            for (int i = 0; i < item.cooccurrences.size(); i++) {
+                cooccurrences.merge(item.cooccurrences.getEntityId(i),
+                                    item.cooccurrences.getCount(i), Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Computes the most similar entities to an entity sorted by similarity in
+     * descending order. The weights of the returned objects are similarities.
+     *
+     * @param cooccurrences The numbers of co-occurrences of the entity by the
+     *                      IDs of the other entities.
+     * @param preferenceCount The number of preference sets the entity occurs in.
+     * @param preferenceCounts Returns the number of preference sets an entity
+     *                         occurs in by its ID.
+     * @param maxNeighbours The maximum number of the entities to return.
+     */
+    public static Recommendation[] computeNeighbours(Map<Long, Integer> cooccurrences,
+                                                     int preferenceCount,
+                                                     ToIntFunction<Long> preferenceCounts,
+                                                     int maxNeighbours) {
+        var neighbours = new ArrayList<Recommendation>(cooccurrences.size());
+        for (var entry : cooccurrences.entrySet()) {
+            int otherPreferenceCount = preferenceCounts.applyAsInt(entry.getKey());
+            if (otherPreferenceCount <= 0) {
+                continue;
+            }
+            neighbours.add(new Recommendation(entry.getKey(),
+                    getSimilarity(entry.getValue(), preferenceCount, otherPreferenceCount)));
+        }
+        return selectNeighbours(neighbours, maxNeighbours);
+    }
+
+    private static float getSimilarity(int cooccurrenceCount, int preferenceCount,
+                                       int otherPreferenceCount) {
+        return (float) (cooccurrenceCount
+                / Math.sqrt((double) preferenceCount * otherPreferenceCount));
+    }
+
+    /**
+     * Returns the most similar of the entities sorted by similarity in
+     * descending order.
+     */
+    private static Recommendation[] selectNeighbours(List<Recommendation> neighbours,
+                                                     int maxNeighbours) {
+        neighbours.sort(Comparator.comparing(Recommendation::getWeight).reversed());
+        return neighbours.stream()
+                .limit(maxNeighbours)
+                .toArray(Recommendation[]::new);
+    }
+
+    /**
+     * Creates recommendation list for the preference set sorted by weight in
+     * descending order. The weight of an entity is the sum of its
+     * similarities with the entities of the set it's a neighbour of.
+     * The entities of the set itself aren't recommended.
+     */
+    public RecommendationList getRecommendationList(PreferenceSet preferenceSet) {
+        return buildRecommendationList(preferenceSet, this::getNeighbours);
+    }
+
+    /**
+     * Creates recommendation list for the preference set from the neighbours
+     * of its entities the same way as getRecommendationList() does.
+     *
+     * @param preferenceSet The preference set to recommend to.
+     * @param neighbours Returns the neighbours of an entity by its ID.
+     */
+    public static RecommendationList buildRecommendationList(
+            PreferenceSet preferenceSet, Function<Long, Recommendation[]> neighbours) {
+        var weights = new RecommendationListPool.Buffer();
+        for (var entityId : preferenceSet.getEntityIds()) {
+            for (var neighbour : neighbours.apply(entityId)) {
+                if (!preferenceSet.has(neighbour.getEntityId())) {
+                    weights.add(neighbour.getEntityId(), neighbour.getWeight());
+                }
+            }
+        }
+        return weights.toList();
+    }
+
+    /**
+     * Writes the matrix to the output.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(items.size());
+        for (var entry : items.entrySet()) {
+            var item = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeInt(item.preferenceCount);
+            final var cooccurrences = item.cooccurrences;
+            out.writeInt(cooccurrences.size());
+            for (int i = 0; i < cooccurrences.size(); i++) {
+                out.writeLong(cooccurrences.getEntityId(i));
+                out.writeInt(cooccurrences.getCount(i));
+                out.writeInt(cooccurrences.getError(i));
+            }
+        }
+    }
+
+    /**
+     * Reads the matrix written by write() replacing the content of this one.
+     * The rows written with more co-occurring entities than this matrix
+     * counts are reduced as if their counts had been added one by one.
+     */
+    public void read(DataInput in) throws IOException {
+        clear();
+        int itemCount = in.readInt();
+        for (int i = 0; i < itemCount; i++) {
+            var item = new Item(maxCandidates);
+            long entityId = in.readLong();
+            item.preferenceCount = in.readInt();
+            int cooccurrenceCount = in.readInt();
+            for (int j = 0; j < cooccurrenceCount; j++) {
+                long otherId = in.readLong();
+                int count = in.readInt();
+                int error = in.readInt();
+                int counter = item.cooccurrences.add(otherId, count);
+                if (counter >= 0) {
+                    item.cooccurrences.addError(counter, error);
+                }
+            }
+            items.put(entityId, item);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.lexkrstn.recommender.shard.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The owners whose preference sets have been found the most similar to the
+ * preference set of an owner at some point of time.
+ */
+@Data
+@AllArgsConstructor
+public class NeighbourList {
+    /**
+     * The owner the neighbours have been found for.
+     */
+    private final long ownerId;
+
+    /**
+     * Owner IDs of the neighbours sorted by similarity in descending order.
+     */
+    private final long[] neighbourIds;
+
+    /**
+     * Similarities of the neighbours in the same order as their IDs.
+     */
+    private final float[] similarities;
+
+    /**
+     * The time the list has been computed at.
+     */
+    private final long computeTimeMillis;
+
+    /**
+     * Creates a neighbour list from the rows of a similarity table.
+     *
+     * @param ownerId The owner the table has been built for.
+     * @param similarityTable The table to take the neighbours from.
+     * @param computeTimeMillis The time the table has been built at.
+     */
+    public static NeighbourList fromSimilarityTable(long ownerId,
+                                                    SimilarityTable similarityTable,
+                                                    long computeTimeMillis) {
+        int rowCount = similarityTable.getRowCount();
+        long[] neighbourIds = new long[rowCount];
+        float[] similarities = new float[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            neighbourIds[i] = similarityTable.getRowOwnerId(i);
+            similarities[i] = similarityTable.getRowSimilarity(i);
+        }
+        return new NeighbourList(ownerId, neighbourIds, similarities, computeTimeMillis);
+    }
+
+    /**
+     * Returns the number of neighbours in the list.
+     */
+    public int size() {
+        return neighbourIds.length;
+    }
+
+    /**
+     * Creates a map whose keys represent neighbour IDs and whose values
+     * represent their similarities.
+     */
+    public Map<Long, Float> getSimilarityMap() {
+        var map = new HashMap<Long, Float>(neighbourIds.length * 2);
+        for (int i = 0; i < neighbourIds.length; i++) {
+            map.put(neighbourIds[i], similarities[i]);
+        }
+        return map;
+    }
+}
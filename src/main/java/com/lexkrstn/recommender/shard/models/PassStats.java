@@ -0,0 +1,25 @@
+package com.lexkrstn.recommender.shard.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class PassStats {
+    /**
+     * The maximum number of the recommendation tasks per pass.
+     */
+    private final int readBatchSize;
+    /**
+     * The maximum number of the write tasks per pass.
+     */
+    private final int writeBatchSize;
+    /**
+     * The time of the scan of the last pass.
+     */
+    private final long lastScanMillis;
+    /**
+     * The time of executing the changes of the last pass.
+     */
+    private final long lastExecuteMillis;
+}
@@ -15,6 +15,15 @@ import java.util.TreeSet;
 @AllArgsConstructor
 @ToString
 public class PreferenceSet implements Cloneable {
+    /**
+     * The estimated memory taken by a set besides its entities.
+     */
+    private static final long OVERHEAD_BYTES = 160;
+    /**
+     * The estimated memory taken by an entity ID in a tree set.
+     */
+    private static final long ENTITY_BYTES = 56;
+
     /**
      * User or compilation ID.
      */
@@ -64,6 +73,13 @@ public class PreferenceSet implements Cloneable {
         return entityIds.size();
     }
 
+    /**
+     * Returns the estimated memory (in bytes) the set takes.
+     */
+    public long getMemorySize() {
+        return OVERHEAD_BYTES + ENTITY_BYTES * entityIds.size();
+    }
+
     /**
      * Adds the liked item to the set.
      *
@@ -118,7 +134,34 @@ public class PreferenceSet implements Cloneable {
                 conjunction++;
             }
         }
-        int disjunction = entityIds.size() + other.entityIds.size() - conjunction;
+        return getSimilarity(conjunction, entityIds.size(), other.entityIds.size());
+    }
+
+    /**
+     * Computes the similarity rate of two sets of the given sizes having the
+     * given number of entities in common.
+     *
+     * @return A floating-point value from 0 to 100.
+     */
+    public static float getSimilarity(int conjunction, int entityCount, int otherEntityCount) {
+        int disjunction = entityCount + otherEntityCount - conjunction;
         return disjunction == 0 ? 0.0f : 100.0f * conjunction / disjunction;
     }
+
+    /**
+     * Computes the highest similarity rate two sets of the given sizes can
+     * have whatever entities they contain.
+     *
+     * Given like sets A and B,
+     * Upper bound = min(|A|, |B|) / max(|A|, |B|) * 100%
+     *
+     * @param entityCount The number of entities in one set.
+     * @param otherEntityCount The number of entities in another set.
+     * @return A floating-point value from 0 to 100.
+     */
+    public static float getSimilarityUpperBound(int entityCount, int otherEntityCount) {
+        int min = Math.min(entityCount, otherEntityCount);
+        int max = Math.max(entityCount, otherEntityCount);
+        return max == 0 ? 0.0f : 100.0f * min / max;
+    }
 }
@@ -0,0 +1,168 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Read-only view of the preference set a data source has just read.
+ *
+ * The data source reuses the same view for every set it reads, so that a
+ * pass doesn't allocate objects per set. Whoever needs the set beyond the
+ * current iteration must materialise it by toPreferenceSet().
+ *
+ * The entities are held by their dense IDs, which are translated to the
+ * 64-bit ones only by the accessors and the materialisation.
+ */
+public class PreferenceSetView {
+    private final EntityIdMapping mapping;
+    private long ownerId;
+    private int capacity;
+    private long offset;
+    private int entityCount;
+    /**
+     * The dense entity IDs sorted in ascending order followed by garbage.
+     */
+    private int[] ids = new int[16];
+
+    /**
+     * @param mapping The mapping of the dense entity IDs the data source
+     *                stores the sets with.
+     */
+    public PreferenceSetView(EntityIdMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    /**
+     * Points the view at another preference set. The data source must fill
+     * the returned array with the dense entity IDs and call sortIds() then.
+     *
+     * @param ownerId The ID of the preference set owner.
+     * @param capacity The capacity of the set in the data source.
+     * @param entityCount The number of entities in the set.
+     * @param offset The offset of the set in the data source.
+     * @return The array to read the dense entity IDs into, which may be
+     *         longer than the number of entities.
+     */
+    public int[] reset(long ownerId, int capacity, int entityCount, long offset) {
+        this.ownerId = ownerId;
+        this.capacity = capacity;
+        this.entityCount = entityCount;
+        this.offset = offset;
+        if (ids.length < entityCount) {
+            ids = new int[Math.max(entityCount, ids.length * 2)];
+        }
+        return ids;
+    }
+
+    /**
+     * Sorts the dense entity IDs unless they've been stored sorted.
+     */
+    public void sortIds() {
+        for (int i = 1; i < entityCount; i++) {
+            if (ids[i - 1] > ids[i]) {
+                Arrays.sort(ids, 0, entityCount);
+                return;
+            }
+        }
+    }
+
+    public EntityIdMapping getMapping() {
+        return mapping;
+    }
+
+    public long getOwnerId() {
+        return ownerId;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of liked items.
+     */
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    /**
+     * Returns the 64-bit ID of the liked item by its index in the order of
+     * the dense IDs.
+     */
+    public long getEntityId(int index) {
+        return mapping.getEntityId(ids[index]);
+    }
+
+    /**
+     * Returns the dense ID of the liked item by its index in ascending order.
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns a boolean value indicating whether the entity
+     * exists in the set.
+     *
+     * @param entityId Liked item ID.
+     */
+    public boolean has(long entityId) {
+        int id = mapping.getId(entityId);
+        return id >= 0 && Arrays.binarySearch(ids, 0, entityCount, id) >= 0;
+    }
+
+    /**
+     * Returns the sorted dense IDs of those entities of the preference set
+     * which are mapped. The rest cannot occur in the viewed sets.
+     */
+    public int[] getSortedIds(PreferenceSet preferenceSet) {
+        return preferenceSet.getEntityIds().stream()
+                .mapToInt(mapping::getId)
+                .filter(id -> id >= 0)
+                .sorted()
+                .toArray();
+    }
+
+    /**
+     * Computes the similarity rate of the set with another one the same way
+     * as PreferenceSet.getSimilarityWith() does.
+     *
+     * @param sortedIds The mapped entities of another set as returned by
+     *                  getSortedIds().
+     * @param otherEntityCount The number of all the entities of another set.
+     * @return A floating-point value from 0 to 100.
+     */
+    public float getSimilarityWith(int[] sortedIds, int otherEntityCount) {
+        int conjunction = 0;
+        int i = 0;
+        int j = 0;
+        while (i < entityCount && j < sortedIds.length) {
+            if (ids[i] < sortedIds[j]) {
+                i++;
+            } else if (ids[i] > sortedIds[j]) {
+                j++;
+            } else {
+                conjunction++;
+                i++;
+                j++;
+            }
+        }
+        return PreferenceSet.getSimilarity(conjunction, entityCount, otherEntityCount);
+    }
+
+    /**
+     * Creates a preference set object holding a copy of the viewed set.
+     */
+    public PreferenceSet toPreferenceSet() {
+        Set<Long> entityIds = new TreeSet<>();
+        for (int i = 0; i < entityCount; i++) {
+            entityIds.add(mapping.getEntityId(ids[i]));
+        }
+        return new PreferenceSet(ownerId, capacity, entityIds, offset);
+    }
+}
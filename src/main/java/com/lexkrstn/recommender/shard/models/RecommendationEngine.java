@@ -0,0 +1,25 @@
+package com.lexkrstn.recommender.shard.models;
+
+/**
+ * The algorithms recommendations can be built with.
+ */
+public enum RecommendationEngine {
+    /**
+     * Aggregates the preferences of the owners whose preference sets are the
+     * most similar to the owner's one.
+     */
+    USER,
+    /**
+     * Recommends the entities the most similar to the ones the owner prefers.
+     */
+    ITEM;
+
+    /**
+     * Returns the engine by its case-insensitive name.
+     *
+     * @throws IllegalArgumentException If there's no engine with such name.
+     */
+    public static RecommendationEngine fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,60 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.AbstractList;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * The recommendation list sorted by weight in descending order, which keeps
+ * the entity IDs and the weights in primitive arrays. A Recommendation is
+ * created only when an element is accessed as an object, e.g. to be
+ * serialized to JSON, while the binary format is written right from the
+ * arrays (see RecommendationListConverter).
+ *
+ * The list is unmodifiable, so it may be shared by the cache.
+ */
+public class RecommendationList extends AbstractList<Recommendation> implements RandomAccess {
+    private static final RecommendationList EMPTY =
+            new RecommendationList(new long[0], new float[0], 0);
+
+    private final long[] entityIds;
+    private final float[] weights;
+    private final int size;
+
+    /**
+     * @param entityIds The recommended entities in the order of the list.
+     * @param weights The weights of the entities.
+     * @param size The number of the recommendations, which the arrays may
+     *             have room for more than.
+     */
+    public RecommendationList(long[] entityIds, float[] weights, int size) {
+        this.entityIds = entityIds;
+        this.weights = weights;
+        this.size = size;
+    }
+
+    public static RecommendationList empty() {
+        return EMPTY;
+    }
+
+    @Override
+    public Recommendation get(int index) {
+        Objects.checkIndex(index, size);
+        return new Recommendation(entityIds[index], weights[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public long getEntityId(int index) {
+        Objects.checkIndex(index, size);
+        return entityIds[index];
+    }
+
+    public float getWeight(int index) {
+        Objects.checkIndex(index, size);
+        return weights[index];
+    }
+}
@@ -0,0 +1,173 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Keeps the buffers the weights of the recommended entities are summed up
+ * in, so that building a recommendation list allocates nothing but the
+ * arrays of the list itself.
+ *
+ * The pool is bounded by the number of the buffers and doesn't keep the ones
+ * grown for an unusually long list.
+ */
+public class RecommendationListPool {
+    /**
+     * The maximum number of the entities a kept buffer may have room for.
+     */
+    private static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+    /**
+     * Sums up the weights of the entities in primitive arrays, which are
+     * cleared rather than reallocated between the lists.
+     */
+    public static class Buffer {
+        private long[] entityIds = new long[1024];
+        private float[] weights = new float[1024];
+        /**
+         * The slots of the entities in the hash table, so that only the used
+         * slots are cleared.
+         */
+        private int[] entitySlots = new int[1024];
+        private int size = 0;
+        /**
+         * Open addressing hash table of the indices of the entities increased
+         * by one, where zero denotes an empty slot.
+         */
+        private int[] slots = new int[2048];
+        /**
+         * The sort keys of the entities and the entity IDs in the order of
+         * the list.
+         */
+        private long[] sortKeys = new long[1024];
+        private long[] sortedEntityIds = new long[1024];
+
+        /**
+         * Adds the weight to the weight of the entity.
+         */
+        public void add(long entityId, float weight) {
+            int slot = findSlot(entityId);
+            if (slots[slot] != 0) {
+                weights[slots[slot] - 1] += weight;
+                return;
+            }
+            if (size == entityIds.length) {
+                grow();
+                slot = findSlot(entityId);
+            }
+            entityIds[size] = entityId;
+            weights[size] = weight;
+            entitySlots[size] = slot;
+            slots[slot] = ++size;
+        }
+
+        /**
+         * Creates the recommendation list sorted by weight in descending
+         * order and then by entity ID.
+         */
+        public RecommendationList toList() {
+            for (int i = 0; i < size; i++) {
+                // Ordering the bits of the floats as integers, the greater
+                // weights get the lesser keys
+                int bits = Float.floatToIntBits(weights[i]);
+                int sortableBits = bits ^ ((bits >> 31) & Integer.MAX_VALUE);
+                sortKeys[i] = ((long) ~sortableBits << 32) | i;
+            }
+            Arrays.sort(sortKeys, 0, size);
+            var listEntityIds = new long[size];
+            var listWeights = new float[size];
+            int from = 0;
+            while (from < size) {
+                // The entities of the same weight are sorted by their IDs
+                int to = from;
+                do {
+                    sortedEntityIds[to] = entityIds[(int) sortKeys[to]];
+                    to++;
+                } while (to < size && (sortKeys[to] >>> 32) == (sortKeys[from] >>> 32));
+                if (to - from > 1) {
+                    Arrays.sort(sortedEntityIds, from, to);
+                }
+                float weight = weights[(int) sortKeys[from]];
+                System.arraycopy(sortedEntityIds, from, listEntityIds, from, to - from);
+                Arrays.fill(listWeights, from, to, weight);
+                from = to;
+            }
+            return new RecommendationList(listEntityIds, listWeights, size);
+        }
+
+        /**
+         * Forgets the entities keeping the arrays.
+         */
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                slots[entitySlots[i]] = 0;
+            }
+            size = 0;
+        }
+
+        int getCapacity() {
+            return entityIds.length;
+        }
+
+        /**
+         * Returns the slot of the entity or the empty slot it should be put into.
+         */
+        private int findSlot(long entityId) {
+            int mask = slots.length - 1;
+            // Mixing the bits spreads the sequential IDs evenly
+            int slot = Long.hashCode(entityId * 0x9E3779B97F4A7C15L) & mask;
+            while (slots[slot] != 0 && entityIds[slots[slot] - 1] != entityId) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            int capacity = entityIds.length * 2;
+            entityIds = Arrays.copyOf(entityIds, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            entitySlots = Arrays.copyOf(entitySlots, capacity);
+            sortKeys = new long[capacity];
+            sortedEntityIds = new long[capacity];
+            slots = new int[capacity * 2];
+            for (int i = 0; i < size; i++) {
+                int slot = findSlot(entityIds[i]);
+                slots[slot] = i + 1;
+                entitySlots[i] = slot;
+            }
+        }
+    }
+
+    private final int maxBuffers;
+    private final ArrayDeque<Buffer> buffers = new ArrayDeque<>();
+
+    /**
+     * @param maxBuffers The maximum number of the buffers to keep.
+     */
+    public RecommendationListPool(int maxBuffers) {
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Returns an empty buffer, which must be released once the list is built.
+     */
+    public synchronized Buffer acquire() {
+        var buffer = buffers.poll();
+        return buffer != null ? buffer : new Buffer();
+    }
+
+    /**
+     * Returns the buffer to the pool unless the pool is full.
+     */
+    public void release(Buffer buffer) {
+        buffer.clear();
+        if (buffer.getCapacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        synchronized (this) {
+            if (buffers.size() < maxBuffers) {
+                buffers.push(buffer);
+            }
+        }
+    }
+}
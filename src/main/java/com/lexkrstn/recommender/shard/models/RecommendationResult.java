@@ -0,0 +1,71 @@
+package com.lexkrstn.recommender.shard.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * The recommendation list along with how much of the preference sets it's
+ * been built from.
+ */
+@Data
+@AllArgsConstructor
+public class RecommendationResult {
+    private RecommendationList recommendations;
+    /**
+     * Whether the scan has been cut short, so the list is an approximation.
+     */
+    private boolean partial;
+    /**
+     * The fraction of the preference sets the list has been built from.
+     */
+    private double scannedFraction;
+    /**
+     * The expected fraction of the preference sets the list has been built
+     * from if they've been sampled.
+     */
+    private double samplingRate;
+
+    /**
+     * Creates the result of the recommendations built from all the
+     * preference sets.
+     *
+     * @return The result or null if the list is null.
+     */
+    public static RecommendationResult of(RecommendationList recommendations) {
+        return recommendations != null
+                ? new RecommendationResult(recommendations, false, 1.0, 1.0)
+                : null;
+    }
+
+    /**
+     * Creates the result of the recommendations built from the table.
+     *
+     * @return The result or null if the table is null.
+     */
+    public static RecommendationResult of(SimilarityTable similarityTable) {
+        return similarityTable != null
+                ? of(similarityTable.getRecommendationList(), similarityTable)
+                : null;
+    }
+
+    /**
+     * Creates the result of the recommendations already taken from the table.
+     *
+     * @return The result or null if the table is null.
+     */
+    public static RecommendationResult of(RecommendationList recommendations,
+                                          SimilarityTable similarityTable) {
+        return similarityTable != null
+                ? new RecommendationResult(recommendations, similarityTable.isPartial(),
+                        similarityTable.getScannedFraction(), similarityTable.getSamplingRate())
+                : null;
+    }
+
+    /**
+     * Returns true if the list has been built from a sample of the
+     * preference sets.
+     */
+    public boolean isSampled() {
+        return samplingRate < 1.0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.lexkrstn.recommender.shard.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The numbers of the preference sets of a data source by the ranges of
+ * their sizes.
+ */
+public class SetSizeHistogram {
+    /**
+     * The number of the sets having from minEntityCount to maxEntityCount
+     * entities.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Bin {
+        private int minEntityCount;
+        private int maxEntityCount;
+        private long setCount;
+    }
+
+    private final List<Bin> bins = new ArrayList<>();
+
+    /**
+     * Adds the bin of the size range. The bins must be added in the
+     * ascending order of the sizes and must not overlap.
+     */
+    public void add(int minEntityCount, int maxEntityCount, long setCount) {
+        bins.add(new Bin(minEntityCount, maxEntityCount, setCount));
+    }
+
+    public List<Bin> getBins() {
+        return Collections.unmodifiableList(bins);
+    }
+
+    /**
+     * Returns the number of the sets of all the bins.
+     */
+    public long getSetCount() {
+        long setCount = 0;
+        for (var bin : bins) {
+            setCount += bin.getSetCount();
+        }
+        return setCount;
+    }
+}
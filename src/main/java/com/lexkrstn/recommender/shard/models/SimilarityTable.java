@@ -1,103 +1,560 @@
 package com.lexkrstn.recommender.shard.models;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
+import java.util.Arrays;
 
-import java.util.*;
-
-// TODO: SimilarityTablePool (Weak references)
 /**
  * Processes PreferenceSet's to build the list of recommendations for a
  * specified PreferenceSet.
+ *
+ * The rows are kept in primitive arrays, and the entities of a row are
+ * copied into the array of the row it takes the place of, so that filling
+ * the table allocates next to nothing once it's full. A table taken from a
+ * SimilarityTablePool reuses the arrays of a released one from the start.
  */
 public class SimilarityTable {
     /**
-     * Represents the row of the table.
+     * The estimated memory taken by a table besides its arrays, by a row
+     * besides its entities and by an array besides its elements.
      */
-    @Data
-    @AllArgsConstructor
-    public static class Row {
-        private PreferenceSet preferenceSet;
-        private float similarity;
-    }
+    private static final long OVERHEAD_BYTES = 128;
+    private static final long ROW_BYTES = 24;
+    private static final long ARRAY_BYTES = 16;
 
     /**
      * The preference set to build the table for.
      */
-    private final PreferenceSet preferenceSet;
+    private PreferenceSet preferenceSet;
+
+    /**
+     * The dense IDs of the entities of the preference set in the mapping of
+     * the data source being processed, as returned by
+     * PreferenceSetView.getSortedIds().
+     */
+    private int[] sortedIds;
+    /**
+     * The mapping the dense IDs have been taken from and its size then.
+     */
+    private EntityIdMapping mapping;
+    private int mappingSize;
 
     /**
-     * The rows of the table sorted by similarity in descending order.
+     * The rows of the table sorted by similarity in descending order and
+     * then by owner ID: the owner IDs, the similarities and the entities of
+     * the preference sets of the rows. The arrays of the entities past the
+     * rows are spare, and they're reused by the rows added.
      */
-    private final ArrayList<Row> rows;
+    private long[] ownerIds;
+    private float[] similarities;
+    private long[][] entityIds;
+    private int[] entityCounts;
+    private int rowCount = 0;
 
     /**
      * The maximum number of rows in the table.
      */
-    private final int maxRows;
+    private int maxRows;
+
+    /**
+     * The pool to release the table to or null.
+     */
+    private final SimilarityTablePool pool;
+    private boolean released = false;
+
+    /**
+     * The number of the preference sets of the data sources the table has
+     * been built against and the number of them scanned. The latter is less
+     * if the scan has been cut short.
+     */
+    private long totalSetCount = 0;
+    private long scannedSetCount = 0;
+    /**
+     * The expected number of the sets compared if only a sample of them is.
+     */
+    private double sampledSetCount = 0;
 
     public SimilarityTable(PreferenceSet preferenceSet, int maxRows) {
+        this(preferenceSet, maxRows, null);
+    }
+
+    SimilarityTable(PreferenceSet preferenceSet, int maxRows, SimilarityTablePool pool) {
         this.preferenceSet = preferenceSet;
         this.maxRows = maxRows;
-        rows = new ArrayList<>(maxRows);
+        this.pool = pool;
+        ownerIds = new long[maxRows];
+        similarities = new float[maxRows];
+        entityIds = new long[maxRows][];
+        entityCounts = new int[maxRows];
     }
 
     /**
-     * Creates a map the whose keys represent entity IDs and whose values represent weights.
+     * Empties the table taken from the pool to build it for the preference
+     * set keeping its arrays.
      */
-    public Map<Long, Float> getRecommendationMap() {
-        HashMap<Long, Float> map = new HashMap<>();
-        for (var row : rows) {
-            for (var entityId : row.preferenceSet.getEntityIds()) {
-                if (map.containsKey(entityId)) {
-                    map.put(entityId, map.get(entityId) + row.getSimilarity());
-                } else {
-                    map.put(entityId, row.getSimilarity());
-                }
+    void reset(PreferenceSet preferenceSet, int maxRows) {
+        this.preferenceSet = preferenceSet;
+        this.maxRows = maxRows;
+        if (ownerIds.length < maxRows) {
+            ownerIds = new long[maxRows];
+            similarities = new float[maxRows];
+            entityIds = Arrays.copyOf(entityIds, maxRows);
+            entityCounts = new int[maxRows];
+        }
+        rowCount = 0;
+        sortedIds = null;
+        mapping = null;
+        totalSetCount = 0;
+        scannedSetCount = 0;
+        sampledSetCount = 0;
+        released = false;
+    }
+
+    /**
+     * Returns the table to its pool, so that its arrays are reused by
+     * another table. It must be called only by the single holder of the
+     * table once nothing reads it anymore. The table without a pool is left
+     * to the garbage collector.
+     */
+    public void release() {
+        if (pool != null && !released) {
+            released = true;
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Returns the estimated memory (in bytes) the table takes including the
+     * spare arrays of the entities.
+     */
+    long getMemorySize() {
+        long size = OVERHEAD_BYTES + ROW_BYTES * ownerIds.length;
+        for (var rowEntityIds : entityIds) {
+            if (rowEntityIds != null) {
+                size += ARRAY_BYTES + 8L * rowEntityIds.length;
             }
         }
-        return map;
+        return size;
     }
 
     /**
-     * Creates recommendation list sorted by weight in descending order.
+     * Creates a copy of the table, which can be changed independently.
+     * The copy is taken from the pool of the table if it has one.
      */
-    public List<Recommendation> getRecommendationList() {
-        var map = getRecommendationMap();
-        // TODO: RecommendationListPool
-        var list = new ArrayList<Recommendation>(map.size());
-        for (var entry : map.entrySet()) {
-            list.add(new Recommendation(entry.getKey(), entry.getValue()));
+    public SimilarityTable copy() {
+        var copy = pool != null
+                ? pool.acquire(preferenceSet, maxRows)
+                : new SimilarityTable(preferenceSet, maxRows);
+        for (int i = 0; i < rowCount; i++) {
+            long[] rowEntityIds = copy.insertRow(i, ownerIds[i], similarities[i], entityCounts[i]);
+            System.arraycopy(entityIds[i], 0, rowEntityIds, 0, entityCounts[i]);
+        }
+        copy.totalSetCount = totalSetCount;
+        copy.scannedSetCount = scannedSetCount;
+        copy.sampledSetCount = sampledSetCount;
+        return copy;
+    }
+
+    /**
+     * Returns the preference set the table is built for.
+     */
+    public PreferenceSet getPreferenceSet() {
+        return preferenceSet;
+    }
+
+    /**
+     * Records how many of the preference sets of the data source the table
+     * has been built from.
+     *
+     * @param scannedSetCount The number of the sets scanned.
+     * @param totalSetCount The number of the sets in the data source.
+     * @param samplingRate The fraction of the sets compared with.
+     */
+    public void setCoverage(long scannedSetCount, long totalSetCount, double samplingRate) {
+        this.scannedSetCount = scannedSetCount;
+        this.totalSetCount = totalSetCount;
+        this.sampledSetCount = samplingRate * totalSetCount;
+    }
+
+    /**
+     * Returns true if the table has been built from a part of the
+     * preference sets, since its scan has been cut short.
+     */
+    public boolean isPartial() {
+        return scannedSetCount < totalSetCount;
+    }
+
+    /**
+     * Returns the fraction of the preference sets the table has been built
+     * from.
+     */
+    public double getScannedFraction() {
+        return totalSetCount > 0 ? (double) scannedSetCount / totalSetCount : 1.0;
+    }
+
+    /**
+     * Returns true if the table has been built from a sample of the
+     * preference sets.
+     */
+    public boolean isSampled() {
+        return sampledSetCount < totalSetCount;
+    }
+
+    /**
+     * Returns the expected fraction of the preference sets the set has been
+     * compared with.
+     */
+    public double getSamplingRate() {
+        return totalSetCount > 0 ? sampledSetCount / totalSetCount : 1.0;
+    }
+
+    /**
+     * Returns the number of rows in the table.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the owner ID of the preference set of the row. The rows are
+     * sorted by similarity in descending order.
+     */
+    public long getRowOwnerId(int row) {
+        return ownerIds[row];
+    }
+
+    /**
+     * Returns the similarity of the preference set of the row.
+     */
+    public float getRowSimilarity(int row) {
+        return similarities[row];
+    }
+
+    /**
+     * Creates recommendation list sorted by weight in descending order and
+     * then by entity ID. The weight of an entity is the sum of the
+     * similarities of the rows having it.
+     */
+    public RecommendationList getRecommendationList() {
+        var listPool = pool != null ? pool.getRecommendationListPool() : null;
+        var buffer = listPool != null ? listPool.acquire() : new RecommendationListPool.Buffer();
+        try {
+            for (int i = 0; i < rowCount; i++) {
+                long[] rowEntityIds = entityIds[i];
+                for (int j = 0; j < entityCounts[i]; j++) {
+                    buffer.add(rowEntityIds[j], similarities[i]);
+                }
+            }
+            return buffer.toList();
+        } finally {
+            if (listPool != null) {
+                listPool.release(buffer);
+            }
         }
-        list.sort(Comparator.comparing(Recommendation::getWeight).reversed());
-        return list;
     }
 
     /**
      * Processes a preference set and decides whether it should be stored in the
-     * table. If the decision is positive adds the preference set.
+     * table. If the decision is positive adds a copy of the preference set.
+     */
+    public void process(PreferenceSetView preferenceSet) {
+        if (isHopeless(preferenceSet.getEntityCount())) {
+            return;
+        }
+        float similarity = preferenceSet.getSimilarityWith(getSortedIds(preferenceSet),
+                this.preferenceSet.getEntityCount());
+        offer(preferenceSet, similarity);
+    }
+
+    /**
+     * Processes a preference set whose number of the entities in common with
+     * the table's one has been counted in advance (see BatchScorer).
+     *
+     * @param preferenceSet The preference set to process.
+     * @param conjunction The number of the common entities.
      */
-    public void process(PreferenceSet preferenceSet) {
+    public void process(PreferenceSetView preferenceSet, int conjunction) {
+        if (isHopeless(preferenceSet.getEntityCount())) {
+            return;
+        }
+        offer(preferenceSet, PreferenceSet.getSimilarity(conjunction,
+                preferenceSet.getEntityCount(), this.preferenceSet.getEntityCount()));
+    }
+
+    /**
+     * Stores a copy of the preference set of the similarity if it's similar
+     * enough.
+     */
+    private void offer(PreferenceSetView preferenceSet, float similarity) {
+        long ownerId = preferenceSet.getOwnerId();
+        if (rowCount < maxRows || precedes(similarity, ownerId, rowCount - 1)) {
+            int entityCount = preferenceSet.getEntityCount();
+            long[] rowEntityIds = insertRow(findInsertPosition(similarity, ownerId),
+                    ownerId, similarity, entityCount);
+            for (int i = 0; i < entityCount; i++) {
+                rowEntityIds[i] = preferenceSet.getEntityId(i);
+            }
+        }
+    }
+
+    /**
+     * Stores the preference set whose similarity is already known in the
+     * table if the set is similar enough.
+     *
+     * @param preferenceSet The preference set to store.
+     * @param similarity The similarity of the set with the table's one.
+     */
+    public void put(PreferenceSet preferenceSet, float similarity) {
+        long ownerId = preferenceSet.getOwnerId();
+        if (rowCount < maxRows || precedes(similarity, ownerId, rowCount - 1)) {
+            long[] rowEntityIds = insertRow(findInsertPosition(similarity, ownerId),
+                    ownerId, similarity, preferenceSet.getEntityCount());
+            copyEntityIds(preferenceSet, rowEntityIds);
+        }
+    }
+
+    /**
+     * Stores the rows of another table of the same preference set, so that
+     * the table keeps the most similar rows of both. The table covers the
+     * preference sets of both then.
+     */
+    public void putAll(SimilarityTable other) {
+        for (int i = 0; i < other.rowCount; i++) {
+            long ownerId = other.ownerIds[i];
+            float similarity = other.similarities[i];
+            if (rowCount < maxRows || precedes(similarity, ownerId, rowCount - 1)) {
+                long[] rowEntityIds = insertRow(findInsertPosition(similarity, ownerId),
+                        ownerId, similarity, other.entityCounts[i]);
+                System.arraycopy(other.entityIds[i], 0, rowEntityIds, 0, other.entityCounts[i]);
+            }
+        }
+        totalSetCount += other.totalSetCount;
+        scannedSetCount += other.scannedSetCount;
+        sampledSetCount += other.sampledSetCount;
+    }
+
+    /**
+     * Updates the table upon a change of another preference set.
+     *
+     * @param preferenceSet The preference set after the change.
+     * @return False if a set which isn't in the table might have to take the
+     *         place of the changed one, so the table must be rebuilt.
+     */
+    public boolean applyChange(PreferenceSet preferenceSet) {
         float similarity = preferenceSet.getSimilarityWith(this.preferenceSet);
-        if (rows.size() < maxRows) {
-            rows.add(findInsertPosition(similarity), new Row(preferenceSet, similarity));
-        } else if (similarity > rows.get(rows.size() - 1).getSimilarity()) {
-            rows.remove(rows.size() - 1);
-            rows.add(findInsertPosition(similarity), new Row(preferenceSet, similarity));
+        for (int i = 0; i < rowCount; i++) {
+            if (ownerIds[i] == preferenceSet.getOwnerId()) {
+                // The sets outside a full table don't precede its last row
+                if (rowCount >= maxRows) {
+                    int lastRow = rowCount - 1;
+                    boolean outranked = i == lastRow
+                            ? similarity < similarities[lastRow]
+                            : precedes(similarities[lastRow], ownerIds[lastRow],
+                                       similarity, preferenceSet.getOwnerId());
+                    if (outranked) {
+                        return false;
+                    }
+                }
+                removeRow(i);
+                break;
+            }
+        }
+        put(preferenceSet, similarity);
+        return true;
+    }
+
+    /**
+     * Replaces the preference set the table is built for with its changed
+     * version and re-scores the rows. The sets which have become similar
+     * enough to get into the table aren't added, so the table becomes an
+     * approximation of the rebuilt one.
+     *
+     * @param preferenceSet The preference set after the change.
+     */
+    public void rescore(PreferenceSet preferenceSet) {
+        this.preferenceSet = preferenceSet;
+        this.mapping = null;
+        for (int i = 0; i < rowCount; i++) {
+            if (ownerIds[i] == preferenceSet.getOwnerId()) {
+                if (entityIds[i].length < preferenceSet.getEntityCount()) {
+                    entityIds[i] = new long[preferenceSet.getEntityCount()];
+                }
+                entityCounts[i] = preferenceSet.getEntityCount();
+                copyEntityIds(preferenceSet, entityIds[i]);
+            }
+            int conjunction = 0;
+            for (int j = 0; j < entityCounts[i]; j++) {
+                if (preferenceSet.has(entityIds[i][j])) {
+                    conjunction++;
+                }
+            }
+            similarities[i] = PreferenceSet.getSimilarity(conjunction, entityCounts[i],
+                    preferenceSet.getEntityCount());
+        }
+        // Insertion sort, since the rows are moved in all the arrays at once
+        for (int i = 1; i < rowCount; i++) {
+            for (int j = i; j > 0 && precedes(similarities[j], ownerIds[j], j - 1); j--) {
+                swapRows(j, j - 1);
+            }
+        }
+    }
+
+    /**
+     * Inserts a row at the position dropping the last row if the table is
+     * full.
+     *
+     * @return The array to copy the entities of the row into, which has room
+     *         for the entity count.
+     */
+    private long[] insertRow(int position, long ownerId, float similarity, int entityCount) {
+        if (rowCount == maxRows) {
+            // The array of the dropped row becomes the spare one
+            rowCount--;
+        }
+        long[] rowEntityIds = entityIds[rowCount];
+        if (rowEntityIds == null || rowEntityIds.length < entityCount) {
+            rowEntityIds = new long[entityCount];
+        }
+        int movedCount = rowCount - position;
+        System.arraycopy(ownerIds, position, ownerIds, position + 1, movedCount);
+        System.arraycopy(similarities, position, similarities, position + 1, movedCount);
+        System.arraycopy(entityIds, position, entityIds, position + 1, movedCount);
+        System.arraycopy(entityCounts, position, entityCounts, position + 1, movedCount);
+        ownerIds[position] = ownerId;
+        similarities[position] = similarity;
+        entityIds[position] = rowEntityIds;
+        entityCounts[position] = entityCount;
+        rowCount++;
+        return rowEntityIds;
+    }
+
+    /**
+     * Removes the row keeping its array of the entities as a spare one.
+     */
+    private void removeRow(int row) {
+        long[] rowEntityIds = entityIds[row];
+        int movedCount = rowCount - row - 1;
+        System.arraycopy(ownerIds, row + 1, ownerIds, row, movedCount);
+        System.arraycopy(similarities, row + 1, similarities, row, movedCount);
+        System.arraycopy(entityIds, row + 1, entityIds, row, movedCount);
+        System.arraycopy(entityCounts, row + 1, entityCounts, row, movedCount);
+        rowCount--;
+        entityIds[rowCount] = rowEntityIds;
+    }
+
+    private void swapRows(int row, int otherRow) {
+        long ownerId = ownerIds[row];
+        ownerIds[row] = ownerIds[otherRow];
+        ownerIds[otherRow] = ownerId;
+        float similarity = similarities[row];
+        similarities[row] = similarities[otherRow];
+        similarities[otherRow] = similarity;
+        long[] rowEntityIds = entityIds[row];
+        entityIds[row] = entityIds[otherRow];
+        entityIds[otherRow] = rowEntityIds;
+        int entityCount = entityCounts[row];
+        entityCounts[row] = entityCounts[otherRow];
+        entityCounts[otherRow] = entityCount;
+    }
+
+    /**
+     * Copies the entities of the preference set into the array of a row.
+     */
+    private static void copyEntityIds(PreferenceSet preferenceSet, long[] rowEntityIds) {
+        int i = 0;
+        for (var entityId : preferenceSet.getEntityIds()) {
+            rowEntityIds[i++] = entityId;
         }
+    }
 
+    /**
+     * Returns the dense IDs of the entities of the preference set in the
+     * mapping of the view. They're recomputed only if the mapping has
+     * changed or has got the entities which were missing.
+     */
+    private int[] getSortedIds(PreferenceSetView view) {
+        var viewMapping = view.getMapping();
+        if (mapping != viewMapping || (sortedIds.length < preferenceSet.getEntityCount()
+                && mappingSize != viewMapping.size())) {
+            mapping = viewMapping;
+            mappingSize = viewMapping.size();
+            sortedIds = view.getSortedIds(preferenceSet);
+        }
+        return sortedIds;
     }
 
     /**
-     * Returns an index at which a row with the specified similarity must be
-     * inserted in order to keep the rows sorted.
+     * Returns the similarity a preference set must exceed (or reach having
+     * a lower owner ID than the last row) to get into the table or a
+     * negative value if the table isn't full yet.
      */
-    private int findInsertPosition(float similarity) {
-        for (int i = 0; i < rows.size(); i++) {
-            if (similarity > rows.get(i).getSimilarity()) {
-                return i;
+    public float getThreshold() {
+        return rowCount < maxRows ? -1.0f : similarities[rowCount - 1];
+    }
+
+    /**
+     * Returns true if a preference set of the specified size can't get into
+     * the table whatever entities it contains.
+     *
+     * @param entityCount The number of entities in the preference set.
+     */
+    public boolean isHopeless(int entityCount) {
+        if (rowCount < maxRows) {
+            return false;
+        }
+        float upperBound = PreferenceSet.getSimilarityUpperBound(
+                entityCount, preferenceSet.getEntityCount());
+        // A set as similar as the last row may still precede it
+        return upperBound < getThreshold();
+    }
+
+    /**
+     * Returns true if none of the preference sets having from minEntityCount
+     * to maxEntityCount entities can get into the table.
+     *
+     * @param minEntityCount The minimum number of entities in a set.
+     * @param maxEntityCount The maximum number of entities in a set.
+     */
+    public boolean isHopeless(int minEntityCount, int maxEntityCount) {
+        // The closer the sizes of the sets are, the higher the upper bound is
+        int closestEntityCount = Math.max(minEntityCount,
+                Math.min(maxEntityCount, preferenceSet.getEntityCount()));
+        return isHopeless(closestEntityCount);
+    }
+
+    /**
+     * Returns an index at which a row with the specified similarity and
+     * owner must be inserted in order to keep the rows sorted.
+     */
+    private int findInsertPosition(float similarity, long ownerId) {
+        // The rows the new one doesn't precede come first
+        int low = 0;
+        int high = rowCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (precedes(similarity, ownerId, middle)) {
+                high = middle;
+            } else {
+                low = middle + 1;
             }
         }
-        return rows.size();
+        return low;
+    }
+
+    /**
+     * Returns true if the row of the owner's preference set having the
+     * similarity precedes the row.
+     */
+    private boolean precedes(float similarity, long ownerId, int row) {
+        return precedes(similarity, ownerId, similarities[row], ownerIds[row]);
+    }
+
+    /**
+     * Returns true if a row precedes another one. The rows are sorted by
+     * similarity in descending order and then by owner ID, so that the table
+     * doesn't depend on the order the preference sets are scanned in.
+     */
+    private static boolean precedes(float similarity, long ownerId,
+                                    float otherSimilarity, long otherOwnerId) {
+        return similarity > otherSimilarity
+                || (similarity == otherSimilarity && ownerId < otherOwnerId);
     }
 }
@@ -0,0 +1,71 @@
+package com.lexkrstn.recommender.shard.models;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the similarity tables no longer used, so that the tables of the
+ * following tasks reuse their arrays, including the ones of the entities of
+ * the rows, rather than allocate them. Along with the tables, it keeps the
+ * buffers their recommendation lists are built in.
+ *
+ * The pool is bounded by the memory the kept tables take. A table is
+ * returned to it by SimilarityTable.release().
+ */
+public class SimilarityTablePool {
+    private final long maxBytes;
+    /**
+     * The kept tables from the most to the least recently released.
+     */
+    private final ArrayDeque<SimilarityTable> tables = new ArrayDeque<>();
+    private long bytes = 0;
+    private final RecommendationListPool recommendationListPool;
+
+    /**
+     * @param maxBytes The maximum memory the kept tables may take (0 - disabled).
+     */
+    public SimilarityTablePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.recommendationListPool = new RecommendationListPool(
+                maxBytes > 0 ? Runtime.getRuntime().availableProcessors() : 0);
+    }
+
+    /**
+     * Returns an empty table of the preference set.
+     *
+     * @param preferenceSet The preference set to build the table for.
+     * @param maxRows The maximum number of rows in the table.
+     */
+    public SimilarityTable acquire(PreferenceSet preferenceSet, int maxRows) {
+        SimilarityTable similarityTable;
+        synchronized (this) {
+            similarityTable = tables.poll();
+            if (similarityTable != null) {
+                bytes -= similarityTable.getMemorySize();
+            }
+        }
+        if (similarityTable == null) {
+            return new SimilarityTable(preferenceSet, maxRows, this);
+        }
+        similarityTable.reset(preferenceSet, maxRows);
+        return similarityTable;
+    }
+
+    /**
+     * Returns the pool of the buffers the recommendation lists of the
+     * tables are built in.
+     */
+    public RecommendationListPool getRecommendationListPool() {
+        return recommendationListPool;
+    }
+
+    /**
+     * Keeps the released table unless it would exceed the memory.
+     */
+    synchronized void release(SimilarityTable similarityTable) {
+        final long size = similarityTable.getMemorySize();
+        if (bytes + size <= maxBytes) {
+            tables.push(similarityTable);
+            bytes += size;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.lexkrstn.recommender.shard.models;
+
+/**
+ * Chooses the preference sets to compare a set with, so that only a fraction
+ * of them is read. The sets are stratified by size: the sizes closer to the
+ * set's one, which allow greater overlap, are sampled at higher rates, so
+ * that the most similar sets are more likely to be compared. A set is chosen
+ * by the hash of its owner ID, so the same data gives the same sample.
+ */
+public class StratifiedSampler {
+    /**
+     * The least weight of a stratum, so that every stratum is sampled.
+     */
+    private static final double MIN_WEIGHT = 1.0;
+
+    private final int[] minEntityCounts;
+    private final int[] maxEntityCounts;
+    private final double[] rates;
+    private final double defaultRate;
+    private double samplingRate;
+
+    /**
+     * @param histogram The sizes of the sets of the data source.
+     * @param entityCount The number of entities in the set to compare with.
+     * @param samplingRate The fraction of the sets to sample.
+     */
+    public StratifiedSampler(SetSizeHistogram histogram, int entityCount, double samplingRate) {
+        var bins = histogram.getBins();
+        int binCount = bins.size();
+        minEntityCounts = new int[binCount];
+        maxEntityCounts = new int[binCount];
+        rates = new double[binCount];
+        defaultRate = samplingRate;
+        double[] weights = new double[binCount];
+        for (int i = 0; i < binCount; i++) {
+            var bin = bins.get(i);
+            minEntityCounts[i] = bin.getMinEntityCount();
+            maxEntityCounts[i] = bin.getMaxEntityCount();
+            int closestEntityCount = Math.max(bin.getMinEntityCount(),
+                    Math.min(bin.getMaxEntityCount(), entityCount));
+            weights[i] = Math.max(MIN_WEIGHT,
+                    PreferenceSet.getSimilarityUpperBound(closestEntityCount, entityCount));
+        }
+        allocateRates(histogram, weights, samplingRate);
+    }
+
+    /**
+     * Returns the expected fraction of the sets of the data source sampled.
+     */
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns true if the set of the owner is in the sample.
+     *
+     * @param ownerId The ID of the owner of the set.
+     * @param entityCount The number of entities in the set.
+     */
+    public boolean accepts(long ownerId, int entityCount) {
+        return hashToUnit(ownerId) < getRate(entityCount);
+    }
+
+    /**
+     * Sets the rates of the strata proportional to their weights, so that
+     * the expected sample is the fraction of the sets. The rates exceeding 1
+     * are capped and their excess is spread over the rest of the strata.
+     */
+    private void allocateRates(SetSizeHistogram histogram, double[] weights,
+                               double samplingRate) {
+        var bins = histogram.getBins();
+        long setCount = histogram.getSetCount();
+        if (setCount == 0) {
+            this.samplingRate = samplingRate;
+            return;
+        }
+        boolean[] capped = new boolean[rates.length];
+        double target = samplingRate * setCount;
+        for (int iteration = 0; iteration < rates.length; iteration++) {
+            double uncappedTarget = target;
+            double weightedCount = 0;
+            for (int i = 0; i < rates.length; i++) {
+                if (capped[i]) {
+                    uncappedTarget -= bins.get(i).getSetCount();
+                } else {
+                    weightedCount += weights[i] * bins.get(i).getSetCount();
+                }
+            }
+            double scale = weightedCount > 0 ? Math.max(0, uncappedTarget) / weightedCount : 0;
+            boolean newlyCapped = false;
+            for (int i = 0; i < rates.length; i++) {
+                if (!capped[i] && scale * weights[i] >= 1) {
+                    capped[i] = true;
+                    newlyCapped = true;
+                }
+            }
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = capped[i] ? 1 : scale * weights[i];
+            }
+            if (!newlyCapped) {
+                break;
+            }
+        }
+        double sampledCount = 0;
+        for (int i = 0; i < rates.length; i++) {
+            sampledCount += rates[i] * bins.get(i).getSetCount();
+        }
+        this.samplingRate = sampledCount / setCount;
+    }
+
+    /**
+     * Returns the rate of the stratum of the size. The sets of the sizes
+     * which weren't there when the sample was planned are sampled at the
+     * requested rate.
+     */
+    private double getRate(int entityCount) {
+        int low = 0;
+        int high = rates.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (entityCount < minEntityCounts[middle]) {
+                high = middle - 1;
+            } else if (entityCount > maxEntityCounts[middle]) {
+                low = middle + 1;
+            } else {
+                return rates[middle];
+            }
+        }
+        return defaultRate;
+    }
+
+    /**
+     * Maps the owner ID to a uniformly distributed value from 0 to 1.
+     */
+    private static double hashToUnit(long ownerId) {
+        long hash = ownerId;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+}
@@ -1,6 +1,8 @@
 package com.lexkrstn.recommender.shard.tasks;
 
+import com.lexkrstn.recommender.shard.models.BatchScorer;
 import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
 
 /**
  * Abstract task of the RecommenderThread.
@@ -13,7 +15,27 @@ public abstract class AbstractTask {
         void onCompleted();
     }
 
+    /**
+     * The listener that executes upon every preference set the task looks up
+     * by its owner ID, right as it's read from the data source.
+     */
+    public interface ReadListener {
+        /**
+         * @param preferenceSet The set read, which must not be modified.
+         */
+        void onRead(PreferenceSet preferenceSet);
+    }
+
     private CompletionListener completionListener;
+    private ReadListener readListener;
+    private final TaskTrace trace = new TaskTrace(getClass().getSimpleName());
+
+    /**
+     * Returns the timestamps of the stages the task has gone through.
+     */
+    public TaskTrace getTrace() {
+        return trace;
+    }
 
     /**
      * Set the listener that executes upon the task completion.
@@ -22,10 +44,28 @@ public abstract class AbstractTask {
         completionListener = listener;
     }
 
+    /**
+     * Set the listener that executes upon every preference set the task
+     * looks up by its owner ID.
+     */
+    public void setReadListener(ReadListener listener) {
+        readListener = listener;
+    }
+
+    /**
+     * Executes the read listener (if it's been set).
+     */
+    protected void read(PreferenceSet preferenceSet) {
+        if (readListener != null) {
+            readListener.onRead(preferenceSet);
+        }
+    }
+
     /**
      * Executes the completion listener (if it's been set).
      */
     protected void complete() {
+        trace.markCompleted();
         if (completionListener != null) {
             completionListener.onCompleted();
         }
@@ -43,11 +83,68 @@ public abstract class AbstractTask {
         return false;
     }
 
+    /**
+     * Returns true if the task changes the preference sets, so that it's
+     * budgeted by the time of executing the changes rather than of the scan.
+     */
+    public boolean isWriting() {
+        return false;
+    }
+
+    /**
+     * Returns true if the write task has recorded all its changes before the
+     * end of the pass, so that they may be executed and the task completed
+     * without waiting for the rest of the scan.
+     */
+    public boolean isResolved() {
+        return false;
+    }
+
+    /**
+     * Returns false if the task is sure to ignore the preference set with the
+     * specified header, so that the set needn't be read at all.
+     *
+     * @param ownerId The ID of the preference set owner.
+     * @param entityCount The number of entities in the set.
+     */
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return true;
+    }
+
+    /**
+     * Returns false if the task is sure to ignore all the preference sets
+     * having from minEntityCount to maxEntityCount entities.
+     *
+     * @param minEntityCount The minimum number of entities in a set.
+     * @param maxEntityCount The maximum number of entities in a set.
+     */
+    public boolean isInterestedInSizeRange(int minEntityCount, int maxEntityCount) {
+        return true;
+    }
+
+    /**
+     * Returns the number of entities in the preference sets the task would
+     * have read first or -1 if the order doesn't matter to it.
+     */
+    public int getPreferredEntityCount() {
+        return -1;
+    }
+
+    /**
+     * Adds the preference sets the task compares the scanned sets with in
+     * the pass to the scorer, which counts their common entities with every
+     * scanned set before it's processed. It's called before every pass.
+     */
+    public void prepareScoring(BatchScorer scorer) {
+    }
+
     /**
      * Executes upon every iteration of the preference set traversing cycle.
      *
-     * @param preferenceSet The preference set object that has been read from
-     *                      the data source.
+     * @param preferenceSet The view of the preference set that has been read
+     *                      from the data source. It's reused for the next
+     *                      set, so the task must materialise the set if it
+     *                      keeps it.
      */
-    public abstract void processPreferenceSet(PreferenceSet preferenceSet);
+    public abstract void processPreferenceSet(PreferenceSetView preferenceSet);
 }
@@ -0,0 +1,20 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.io.ItemMatrixStore;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+
+/**
+ * The task that rebuilds the item similarity matrix from every preference set.
+ */
+public class BuildItemMatrixTask extends AbstractTask {
+    private final ItemMatrixStore itemMatrixStore;
+
+    public BuildItemMatrixTask(ItemMatrixStore itemMatrixStore) {
+        this.itemMatrixStore = itemMatrixStore;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        itemMatrixStore.add(preferenceSet);
+    }
+}
@@ -0,0 +1,20 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.io.OwnerFilterStore;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+
+/**
+ * The task that rebuilds the owner filter from every preference set.
+ */
+public class BuildOwnerFilterTask extends AbstractTask {
+    private final OwnerFilterStore ownerFilterStore;
+
+    public BuildOwnerFilterTask(OwnerFilterStore ownerFilterStore) {
+        this.ownerFilterStore = ownerFilterStore;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        ownerFilterStore.add(preferenceSet.getOwnerId());
+    }
+}
@@ -0,0 +1,90 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.io.PreferenceStream;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import lombok.Getter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeMap;
+
+/**
+ * The task that writes a page of the preference sets of the owner ID range
+ * to a spool file in the preference stream format ordered by owner ID.
+ */
+public class ExportTask extends AbstractTask {
+    private final long fromOwnerId;
+    private final long toOwnerId;
+    private final int limit;
+    private final Path spoolPath;
+    /**
+     * The sets of the owners having the least IDs found so far.
+     */
+    private final TreeMap<Long, PreferenceSet> preferenceSets = new TreeMap<>();
+    /**
+     * The ID to export the next page from or null if there're no more pages.
+     * A full page is supposed to have the next one, which may be empty.
+     */
+    @Getter
+    private Long nextOwnerId;
+    /**
+     * The error the spool file writing has failed with or null.
+     */
+    @Getter
+    private IOException error;
+
+    /**
+     * @param fromOwnerId The least owner ID of the range.
+     * @param toOwnerId The greatest owner ID of the range.
+     * @param limit The maximum number of the sets in the page.
+     * @param spoolPath The file to write the page to.
+     */
+    public ExportTask(long fromOwnerId, long toOwnerId, int limit, Path spoolPath) {
+        this.fromOwnerId = fromOwnerId;
+        this.toOwnerId = toOwnerId;
+        this.limit = limit;
+        this.spoolPath = spoolPath;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerId >= fromOwnerId && ownerId <= toOwnerId
+                && (preferenceSets.size() < limit || ownerId < preferenceSets.lastKey());
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        long ownerId = preferenceSet.getOwnerId();
+        if (ownerId < fromOwnerId || ownerId > toOwnerId) {
+            return;
+        }
+        if (preferenceSets.size() >= limit) {
+            if (ownerId > preferenceSets.lastKey()) {
+                return;
+            }
+            preferenceSets.pollLastEntry();
+        }
+        preferenceSets.put(ownerId, preferenceSet.toPreferenceSet());
+    }
+
+    @Override
+    public boolean proceedPass() {
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(spoolPath)))) {
+            PreferenceStream.writeHeader(out);
+            for (var preferenceSet : preferenceSets.values()) {
+                PreferenceStream.writePreferenceSet(out, preferenceSet);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        if (preferenceSets.size() >= limit && preferenceSets.lastKey() < toOwnerId) {
+            nextOwnerId = preferenceSets.lastKey() + 1;
+        }
+        return super.proceedPass();
+    }
+}
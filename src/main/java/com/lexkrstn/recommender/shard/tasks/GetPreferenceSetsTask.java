@@ -0,0 +1,41 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The task that finds the preference sets of several owners at a time.
+ */
+public class GetPreferenceSetsTask extends AbstractTask {
+    private final Set<Long> ownerIds;
+    /**
+     * The found preference sets by their owner IDs.
+     */
+    @Getter
+    private final Map<Long, PreferenceSet> preferenceSets = new HashMap<>();
+
+    public GetPreferenceSetsTask(Collection<Long> ownerIds) {
+        this.ownerIds = new HashSet<>(ownerIds);
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerIds.contains(ownerId);
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        if (ownerIds.contains(preferenceSet.getOwnerId())) {
+            var found = preferenceSet.toPreferenceSet();
+            preferenceSets.put(found.getOwnerId(), found);
+            read(found);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.lexkrstn.recommender.shard.tasks;
 
 import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
 import lombok.Getter;
 
 /**
@@ -16,10 +17,16 @@ public class GetPreferencesTask extends AbstractTask {
     }
 
     @Override
-    public void processPreferenceSet(PreferenceSet preferenceSet) {
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerId == this.ownerId;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
         if (preferenceSet.getOwnerId() == ownerId) {
             // In the first cycle we just find the preference set
-            this.preferenceSet = preferenceSet;
+            this.preferenceSet = preferenceSet.toPreferenceSet();
+            read(this.preferenceSet);
         }
     }
 }
@@ -0,0 +1,75 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.io.PreferenceChangeBulk;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The task that merges the imported preference sets into the ones of the
+ * same owners and adds the sets of the new owners.
+ */
+public class ImportTask extends AbstractTask {
+    private final PreferenceChangeBulk changeBulk;
+    /**
+     * The imported sets which haven't been found in the data source yet.
+     */
+    private final Map<Long, PreferenceSet> preferenceSets;
+    private final int importedCount;
+
+    public ImportTask(List<PreferenceSet> preferenceSets, PreferenceChangeBulk changeBulk) {
+        this.changeBulk = changeBulk;
+        this.preferenceSets = new HashMap<>(preferenceSets.size() * 2);
+        for (var preferenceSet : preferenceSets) {
+            this.preferenceSets.merge(preferenceSet.getOwnerId(), preferenceSet, (a, b) -> {
+                a.getEntityIds().addAll(b.getEntityIds());
+                return a;
+            });
+        }
+        this.importedCount = this.preferenceSets.size();
+    }
+
+    @Override
+    public boolean isWriting() {
+        return true;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return preferenceSets.containsKey(ownerId);
+    }
+
+    @Override
+    public boolean isResolved() {
+        return preferenceSets.isEmpty();
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        var imported = preferenceSets.remove(preferenceSet.getOwnerId());
+        if (imported != null) {
+            changeBulk.addPreferences(preferenceSet.toPreferenceSet(), imported.getEntityIds());
+        }
+    }
+
+    @Override
+    public boolean proceedPass() {
+        for (var imported : preferenceSets.values()) {
+            if (!imported.getEntityIds().isEmpty()) {
+                changeBulk.addPreferenceSet(imported);
+            }
+        }
+        preferenceSets.clear();
+        return super.proceedPass();
+    }
+
+    /**
+     * Returns the number of the distinct owners imported.
+     */
+    public int getImportedCount() {
+        return importedCount;
+    }
+}
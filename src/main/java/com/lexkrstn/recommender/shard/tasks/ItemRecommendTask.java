@@ -0,0 +1,48 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.io.ItemMatrixStore;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+
+/**
+ * The task that creates recommendation list for a preference set from the
+ * item similarity matrix.
+ */
+public class ItemRecommendTask extends AbstractTask {
+    private final long ownerId;
+    private final ItemMatrixStore itemMatrixStore;
+    private PreferenceSet preferenceSet;
+
+    /**
+     * @param ownerId The ID of the preference set to recommend to.
+     * @param itemMatrixStore The store of the item similarity matrix.
+     */
+    public ItemRecommendTask(long ownerId, ItemMatrixStore itemMatrixStore) {
+        this.ownerId = ownerId;
+        this.itemMatrixStore = itemMatrixStore;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerId == this.ownerId;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        if (preferenceSet.getOwnerId() == ownerId) {
+            this.preferenceSet = preferenceSet.toPreferenceSet();
+            read(this.preferenceSet);
+        }
+    }
+
+    /**
+     * Returns recommendation list sorted by weight in descending order or
+     * null if the preference set hasn't been found.
+     */
+    public RecommendationList getRecommendationList() {
+        return preferenceSet != null
+                ? itemMatrixStore.getRecommendationList(preferenceSet)
+                : null;
+    }
+}
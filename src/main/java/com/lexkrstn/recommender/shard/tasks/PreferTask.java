@@ -1,7 +1,7 @@
 package com.lexkrstn.recommender.shard.tasks;
 
 import com.lexkrstn.recommender.shard.io.PreferenceChangeBulk;
-import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
 import com.lexkrstn.recommender.shard.models.Preference;
 
 /**
@@ -19,12 +19,28 @@ public class PreferTask extends AbstractTask implements WithPreference {
     }
 
     @Override
-    public void processPreferenceSet(PreferenceSet preferenceSet) {
+    public boolean isWriting() {
+        return true;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerId == preference.getOwnerId();
+    }
+
+    @Override
+    public boolean isResolved() {
+        return found;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
         if (preference.getOwnerId() == preferenceSet.getOwnerId()) {
             if (preferenceSet.has(preference.getEntityId())) {
                 exists = true;
             } else {
-                changeBulk.addPreference(preferenceSet, preference.getEntityId());
+                changeBulk.addPreference(preferenceSet.toPreferenceSet(),
+                        preference.getEntityId());
             }
             found = true;
         }
@@ -1,38 +1,318 @@
 package com.lexkrstn.recommender.shard.tasks;
 
+import com.lexkrstn.recommender.shard.models.BatchScorer;
+import com.lexkrstn.recommender.shard.models.NeighbourList;
 import com.lexkrstn.recommender.shard.models.PreferenceSet;
-import com.lexkrstn.recommender.shard.models.Recommendation;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import com.lexkrstn.recommender.shard.models.SetSizeHistogram;
 import com.lexkrstn.recommender.shard.models.SimilarityTable;
+import com.lexkrstn.recommender.shard.models.SimilarityTablePool;
+import com.lexkrstn.recommender.shard.models.StratifiedSampler;
 
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * The task that creates recommendation list for a preference set.
+ *
+ * If the owner's neighbours are known in advance, the task takes a single
+ * pass to read their preference sets. Otherwise, it finds the owner's
+ * preference set in the first pass and compares it with every other set in
+ * the second one. The first pass is skipped if the owner's preference set
+ * is known in advance too.
+ *
+ * The task may be cut short by a deadline, whether it's queued, looking for
+ * the set or scanning the others. The task completes with the table built
+ * so far then (an empty one if the set hasn't been compared with any other
+ * set yet), unless it keeps scanning, in which case only a copy of the table
+ * is passed to the expiry listener.
+ *
+ * The scan may also compare the set with a sample of the other sets only,
+ * which are skipped without reading their entities.
  */
 public class RecommendTask extends AbstractTask {
+    /**
+     * The listener that executes when the deadline of a task which keeps
+     * scanning has passed.
+     */
+    public interface ExpiryListener {
+        /**
+         * @param partialTable The copy of the table built by the deadline.
+         */
+        void onExpired(SimilarityTable partialTable);
+    }
+
     private static final int SIMILARITY_TABLE_SIZE = 1000;
 
     private final long ownerId;
+    /**
+     * Similarities of the precomputed neighbours by their owner IDs or null
+     * if there are no precomputed neighbours.
+     */
+    private final Map<Long, Float> neighbourSimilarities;
+    private final List<PreferenceSet> neighbourSets = new LinkedList<>();
+    /**
+     * The pool to take the similarity table from or null.
+     */
+    private final SimilarityTablePool similarityTablePool;
     private PreferenceSet preferenceSet;
     private boolean firstCycle = true;
+    /**
+     * Whether the preference set has been passed by the caller, so it
+     * needn't be looked for.
+     */
+    private boolean preferenceSetKnown = false;
     private SimilarityTable similarityTable;
+    private ScanOptions scanOptions = ScanOptions.FULL;
+    private ExpiryListener expiryListener;
+    private boolean expired = false;
+    /**
+     * The sampler of the sets to compare with or null if the set is compared
+     * with every other one.
+     */
+    private StratifiedSampler sampler;
+    /**
+     * The scorer counting the common entities of the set with the scanned
+     * ones and the index of the set in it or null if the set isn't compared
+     * with the others in the pass.
+     */
+    private BatchScorer scorer;
+    private int scoreIndex;
 
     /**
      * @param ownerId The ID of the preference set to recommend to.
      */
     public RecommendTask(long ownerId) {
+        this(ownerId, null);
+    }
+
+    /**
+     * @param ownerId The ID of the preference set to recommend to.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     */
+    public RecommendTask(long ownerId, NeighbourList neighbourList) {
+        this(ownerId, neighbourList, null);
+    }
+
+    /**
+     * @param ownerId The ID of the preference set to recommend to.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     * @param similarityTablePool The pool to take the table from or null.
+     */
+    public RecommendTask(long ownerId, NeighbourList neighbourList,
+                         SimilarityTablePool similarityTablePool) {
         this.ownerId = ownerId;
+        this.neighbourSimilarities = neighbourList != null
+                ? neighbourList.getSimilarityMap()
+                : null;
+        this.similarityTablePool = similarityTablePool;
+    }
+
+    /**
+     * Constructs the task building the similarity table of the preference
+     * set read in advance (e.g. from another data source).
+     *
+     * @param preferenceSet The preference set to recommend to.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     */
+    public RecommendTask(PreferenceSet preferenceSet, NeighbourList neighbourList) {
+        this(preferenceSet, neighbourList, null);
+    }
+
+    /**
+     * Constructs the task building the similarity table of the preference
+     * set read in advance (e.g. from another data source).
+     *
+     * @param preferenceSet The preference set to recommend to.
+     * @param neighbourList The precomputed neighbours of the owner or null.
+     * @param similarityTablePool The pool to take the table from or null.
+     */
+    public RecommendTask(PreferenceSet preferenceSet, NeighbourList neighbourList,
+                         SimilarityTablePool similarityTablePool) {
+        this(preferenceSet.getOwnerId(), neighbourList, similarityTablePool);
+        this.preferenceSet = preferenceSet;
+        this.preferenceSetKnown = true;
+        this.similarityTable = createSimilarityTable(preferenceSet);
+        this.firstCycle = neighbourSimilarities != null;
+    }
+
+    /**
+     * Sets the bounds of the scan comparing the set with the others.
+     */
+    public void setScanOptions(ScanOptions scanOptions) {
+        this.scanOptions = scanOptions;
+    }
+
+    /**
+     * Returns true if the scan of the task may be cut short by a deadline.
+     */
+    public boolean hasDeadline() {
+        return scanOptions.hasDeadline();
+    }
+
+    /**
+     * Returns true if the task compares the set with a sample of the others.
+     */
+    public boolean isSampling() {
+        return scanOptions.isSampling();
+    }
+
+    /**
+     * Plans the sample of the sets to compare the set with by the sizes of
+     * the sets of the data source. It's called before every pass, but it
+     * matters only for the pass comparing the set with the others.
+     */
+    public void prepareSampling(SetSizeHistogram histogram) {
+        if (!firstCycle && preferenceSet != null) {
+            sampler = new StratifiedSampler(histogram, preferenceSet.getEntityCount(),
+                    scanOptions.getSamplingRate());
+        }
+    }
+
+    @Override
+    public void prepareScoring(BatchScorer scorer) {
+        if (!firstCycle && preferenceSet != null) {
+            this.scorer = scorer;
+            scoreIndex = scorer.add(preferenceSet);
+        } else {
+            this.scorer = null;
+        }
+    }
+
+    /**
+     * Sets the listener that executes when the deadline of the task which
+     * keeps scanning has passed.
+     */
+    public void setExpiryListener(ExpiryListener listener) {
+        expiryListener = listener;
+    }
+
+    /**
+     * Returns true if the deadline of the task has passed, but it hasn't
+     * been expired yet.
+     *
+     * @param nowNanos The current System.nanoTime() value.
+     */
+    public boolean isExpired(long nowNanos) {
+        return !expired && scanOptions.isExpired(nowNanos);
+    }
+
+    /**
+     * Cuts the task short since the deadline has passed. The table holds
+     * the neighbours read so far if they're known in advance. Otherwise,
+     * it's empty unless the set is being compared with the others.
+     *
+     * @param scannedSetCount The number of the preference sets scanned so far
+     *                        by the pass or 0 if the task is queued.
+     * @param totalSetCount The number of the preference sets the scan reads.
+     * @return True if the task has completed, so it must leave the pass or
+     *         the queue.
+     */
+    public boolean expire(long scannedSetCount, long totalSetCount) {
+        expired = true;
+        if (firstCycle && neighbourSimilarities == null) {
+            // The set hasn't been compared with any other one
+            scannedSetCount = 0;
+        }
+        if (scanOptions.isKeepingScanning()) {
+            if (expiryListener != null) {
+                SimilarityTable partialTable;
+                if (similarityTable == null) {
+                    partialTable = createEmptySimilarityTable();
+                } else {
+                    partialTable = similarityTable.copy();
+                    if (firstCycle) {
+                        putNeighbourSets(partialTable);
+                    }
+                }
+                partialTable.setCoverage(scannedSetCount, totalSetCount, getSamplingRate());
+                expiryListener.onExpired(partialTable);
+            }
+            return false;
+        }
+        if (similarityTable == null) {
+            similarityTable = createEmptySimilarityTable();
+        } else if (firstCycle) {
+            putNeighbourSets(similarityTable);
+        }
+        similarityTable.setCoverage(scannedSetCount, totalSetCount, getSamplingRate());
+        complete();
+        return true;
+    }
+
+    /**
+     * Records that the pass has scanned all the preference sets of the data
+     * source. It matters only for the pass comparing the set with the others.
+     *
+     * @param totalSetCount The number of the preference sets the scan reads.
+     */
+    public void recordFullScan(long totalSetCount) {
+        if (!firstCycle && similarityTable != null) {
+            similarityTable.setCoverage(totalSetCount, totalSetCount, getSamplingRate());
+        }
+    }
+
+    /**
+     * Returns the expected fraction of the sets the set is compared with.
+     */
+    private double getSamplingRate() {
+        return sampler != null ? sampler.getSamplingRate() : 1.0;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        if (firstCycle) {
+            return (ownerId == this.ownerId && !preferenceSetKnown) || isNeighbour(ownerId);
+        }
+        return preferenceSet != null && !similarityTable.isHopeless(entityCount)
+                && (sampler == null || sampler.accepts(ownerId, entityCount));
+    }
+
+    @Override
+    public boolean isInterestedInSizeRange(int minEntityCount, int maxEntityCount) {
+        if (firstCycle) {
+            return true;
+        }
+        return preferenceSet != null
+                && !similarityTable.isHopeless(minEntityCount, maxEntityCount);
+    }
+
+    /**
+     * Prefers the sets of the size of the compared one, which are the most
+     * likely to fill the table with similar rows, so that its threshold
+     * rises early enough to skip the sizes that cannot be as similar.
+     */
+    @Override
+    public int getPreferredEntityCount() {
+        return !firstCycle && preferenceSet != null ? preferenceSet.getEntityCount() : -1;
     }
 
     @Override
-    public void processPreferenceSet(PreferenceSet preferenceSet) {
-        if (firstCycle && preferenceSet.getOwnerId() == ownerId) {
-            // In the first cycle we just find the preference set
-            this.preferenceSet = preferenceSet;
-            similarityTable = new SimilarityTable(preferenceSet, SIMILARITY_TABLE_SIZE);
-        } else if (!firstCycle && this.preferenceSet != null) {
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        if (firstCycle) {
+            if (preferenceSet.getOwnerId() == ownerId && !preferenceSetKnown) {
+                // In the first cycle we just find the preference set
+                this.preferenceSet = preferenceSet.toPreferenceSet();
+                similarityTable = createSimilarityTable(this.preferenceSet);
+                read(this.preferenceSet);
+            }
+            if (isNeighbour(preferenceSet.getOwnerId())) {
+                // ...and the sets of the precomputed neighbours if any
+                neighbourSets.add(preferenceSet.toPreferenceSet());
+            }
+        } else if (this.preferenceSet != null) {
             // In the second cycle we build the recommendation table
-            similarityTable.process(preferenceSet);
+            if (sampler == null || sampler.accepts(preferenceSet.getOwnerId(),
+                                                   preferenceSet.getEntityCount())) {
+                if (scorer != null) {
+                    similarityTable.process(preferenceSet, scorer.getConjunction(scoreIndex));
+                } else {
+                    similarityTable.process(preferenceSet);
+                }
+            }
         }
     }
 
@@ -40,16 +320,64 @@ public class RecommendTask extends AbstractTask {
     public boolean proceedPass() {
         if (firstCycle) {
             firstCycle = false;
-            return true;
+            if (neighbourSimilarities == null) {
+                return true;
+            }
+            if (similarityTable != null) {
+                putNeighbourSets(similarityTable);
+            }
         }
         complete();
         return false;
     }
 
     /**
-     * Returns recommendation list sorted by weight in descending order.
+     * Puts the sets of the precomputed neighbours read so far into the table
+     * of the set.
+     */
+    private void putNeighbourSets(SimilarityTable similarityTable) {
+        if (neighbourSimilarities == null) {
+            return;
+        }
+        for (var neighbourSet : neighbourSets) {
+            var similarity = neighbourSimilarities.get(neighbourSet.getOwnerId());
+            similarityTable.put(neighbourSet, similarity);
+        }
+    }
+
+    private SimilarityTable createSimilarityTable(PreferenceSet preferenceSet) {
+        return similarityTablePool != null
+                ? similarityTablePool.acquire(preferenceSet, SIMILARITY_TABLE_SIZE)
+                : new SimilarityTable(preferenceSet, SIMILARITY_TABLE_SIZE);
+    }
+
+    /**
+     * Creates the table of the owner whose set hasn't been found yet.
+     */
+    private SimilarityTable createEmptySimilarityTable() {
+        return createSimilarityTable(new PreferenceSet(ownerId, 0, new TreeSet<>(), 0));
+    }
+
+    /**
+     * Returns true if the owner is one of the precomputed neighbours.
+     */
+    private boolean isNeighbour(long ownerId) {
+        return neighbourSimilarities != null && neighbourSimilarities.containsKey(ownerId);
+    }
+
+    /**
+     * Returns recommendation list sorted by weight in descending order or
+     * null if the preference set hasn't been found.
+     */
+    public RecommendationList getRecommendationList() {
+        return similarityTable != null ? similarityTable.getRecommendationList() : null;
+    }
+
+    /**
+     * Returns the similarity table or null if the preference set hasn't
+     * been found.
      */
-    public List<Recommendation> getRecommendationList() {
-        return similarityTable.getRecommendationList();
+    public SimilarityTable getSimilarityTable() {
+        return similarityTable;
     }
 }
@@ -0,0 +1,220 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.models.BatchScorer;
+import com.lexkrstn.recommender.shard.models.NeighbourList;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.SimilarityTable;
+import com.lexkrstn.recommender.shard.models.SimilarityTablePool;
+
+import java.util.*;
+
+/**
+ * The task that computes the neighbour lists of several owners at a time.
+ *
+ * It finds the owners' preference sets in the first pass and compares them
+ * with every other set in the second one. The first pass is skipped if the
+ * preference sets are known in advance.
+ */
+public class RefreshNeighboursTask extends AbstractTask {
+    private final Set<Long> ownerIds;
+    private final int neighbourCount;
+    /**
+     * The similarity tables by their owner IDs.
+     */
+    private final Map<Long, SimilarityTable> similarityTables = new HashMap<>();
+    /**
+     * The pool to take the similarity tables from or null.
+     */
+    private final SimilarityTablePool similarityTablePool;
+    private boolean firstCycle = true;
+    private long computeTimeMillis;
+    /**
+     * The scorer counting the common entities of the sets with the scanned
+     * ones, the tables in the order their sets have been added to it and the
+     * index of the first one or null if the sets aren't compared with the
+     * others in the pass.
+     */
+    private BatchScorer scorer;
+    private SimilarityTable[] scoredTables;
+    private int firstScoreIndex;
+
+    /**
+     * @param ownerIds The IDs of the owners to compute the lists for.
+     * @param neighbourCount The maximum number of neighbours in a list.
+     */
+    public RefreshNeighboursTask(Collection<Long> ownerIds, int neighbourCount) {
+        this(ownerIds, neighbourCount, null);
+    }
+
+    /**
+     * @param ownerIds The IDs of the owners to compute the lists for.
+     * @param neighbourCount The maximum number of neighbours in a list.
+     * @param similarityTablePool The pool to take the tables from or null.
+     */
+    public RefreshNeighboursTask(Collection<Long> ownerIds, int neighbourCount,
+                                 SimilarityTablePool similarityTablePool) {
+        this.ownerIds = new HashSet<>(ownerIds);
+        this.neighbourCount = neighbourCount;
+        this.similarityTablePool = similarityTablePool;
+    }
+
+    /**
+     * Constructs the task building the similarity tables of the preference
+     * sets read in advance (e.g. from another data source).
+     *
+     * @param preferenceSets The sets of the owners to compute the lists for.
+     * @param neighbourCount The maximum number of neighbours in a list.
+     * @param computeTimeMillis The time the preference sets have been read at.
+     */
+    public RefreshNeighboursTask(Collection<PreferenceSet> preferenceSets, int neighbourCount,
+                                 long computeTimeMillis) {
+        this(preferenceSets, neighbourCount, computeTimeMillis, null);
+    }
+
+    /**
+     * Constructs the task building the similarity tables of the preference
+     * sets read in advance (e.g. from another data source).
+     *
+     * @param preferenceSets The sets of the owners to compute the lists for.
+     * @param neighbourCount The maximum number of neighbours in a list.
+     * @param computeTimeMillis The time the preference sets have been read at.
+     * @param similarityTablePool The pool to take the tables from or null.
+     */
+    public RefreshNeighboursTask(Collection<PreferenceSet> preferenceSets, int neighbourCount,
+                                 long computeTimeMillis, SimilarityTablePool similarityTablePool) {
+        this.ownerIds = new HashSet<>();
+        this.neighbourCount = neighbourCount;
+        this.similarityTablePool = similarityTablePool;
+        for (var preferenceSet : preferenceSets) {
+            ownerIds.add(preferenceSet.getOwnerId());
+            similarityTables.put(preferenceSet.getOwnerId(), createSimilarityTable(preferenceSet));
+        }
+        this.firstCycle = false;
+        this.computeTimeMillis = computeTimeMillis;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        if (firstCycle) {
+            return ownerIds.contains(ownerId);
+        }
+        for (var similarityTable : similarityTables.values()) {
+            if (!similarityTable.isHopeless(entityCount)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isInterestedInSizeRange(int minEntityCount, int maxEntityCount) {
+        if (firstCycle) {
+            return true;
+        }
+        for (var similarityTable : similarityTables.values()) {
+            if (!similarityTable.isHopeless(minEntityCount, maxEntityCount)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void prepareScoring(BatchScorer scorer) {
+        if (firstCycle || similarityTables.isEmpty()) {
+            this.scorer = null;
+            return;
+        }
+        this.scorer = scorer;
+        scoredTables = similarityTables.values().toArray(new SimilarityTable[0]);
+        for (int i = 0; i < scoredTables.length; i++) {
+            int index = scorer.add(scoredTables[i].getPreferenceSet());
+            if (i == 0) {
+                firstScoreIndex = index;
+            }
+        }
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
+        if (firstCycle) {
+            // In the first cycle we just find the preference sets
+            if (ownerIds.contains(preferenceSet.getOwnerId())) {
+                similarityTables.put(preferenceSet.getOwnerId(),
+                        createSimilarityTable(preferenceSet.toPreferenceSet()));
+            }
+        } else if (scorer != null) {
+            // In the second cycle we build the similarity tables
+            for (int i = 0; i < scoredTables.length; i++) {
+                scoredTables[i].process(preferenceSet, scorer.getConjunction(firstScoreIndex + i));
+            }
+        } else {
+            for (var similarityTable : similarityTables.values()) {
+                similarityTable.process(preferenceSet);
+            }
+        }
+    }
+
+    @Override
+    public boolean proceedPass() {
+        if (firstCycle) {
+            firstCycle = false;
+            computeTimeMillis = System.currentTimeMillis();
+            if (!similarityTables.isEmpty()) {
+                return true;
+            }
+        }
+        complete();
+        return false;
+    }
+
+    private SimilarityTable createSimilarityTable(PreferenceSet preferenceSet) {
+        return similarityTablePool != null
+                ? similarityTablePool.acquire(preferenceSet, neighbourCount)
+                : new SimilarityTable(preferenceSet, neighbourCount);
+    }
+
+    /**
+     * Returns the computed neighbour lists of the owners whose preference
+     * sets have been found.
+     */
+    public List<NeighbourList> getNeighbourLists() {
+        return getNeighbourLists(similarityTables, computeTimeMillis);
+    }
+
+    /**
+     * Returns the similarity tables by their owner IDs.
+     */
+    public Map<Long, SimilarityTable> getSimilarityTables() {
+        return similarityTables;
+    }
+
+    /**
+     * Creates the neighbour lists from the similarity tables.
+     *
+     * @param similarityTables The similarity tables by their owner IDs.
+     * @param computeTimeMillis The time the tables have been built at.
+     */
+    public static List<NeighbourList> getNeighbourLists(Map<Long, SimilarityTable> similarityTables,
+                                                        long computeTimeMillis) {
+        List<NeighbourList> neighbourLists = new ArrayList<>(similarityTables.size());
+        for (var entry : similarityTables.entrySet()) {
+            neighbourLists.add(NeighbourList.fromSimilarityTable(
+                    entry.getKey(), entry.getValue(), computeTimeMillis));
+        }
+        return neighbourLists;
+    }
+
+    /**
+     * Returns the similarity tables to their pool once the neighbour lists
+     * have been created from them.
+     *
+     * @param similarityTables The similarity tables by their owner IDs.
+     */
+    public static void releaseSimilarityTables(Map<Long, SimilarityTable> similarityTables) {
+        for (var similarityTable : similarityTables.values()) {
+            similarityTable.release();
+        }
+    }
+}
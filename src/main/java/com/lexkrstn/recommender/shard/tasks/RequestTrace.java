@@ -0,0 +1,86 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the traces of the tasks run on behalf of a request, so that the
+ * time of a slow request can be attributed to the stages of its tasks.
+ */
+public class RequestTrace {
+    private final String operation;
+    private final long startTimeMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private final List<TaskTrace> tasks = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param operation The description of the request.
+     */
+    public RequestTrace(String operation) {
+        this.operation = operation;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public synchronized double getTotalMillis() {
+        return (endNanos - startNanos) / 1e6;
+    }
+
+    public List<TaskTrace> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Adds the trace of a task run on behalf of the request.
+     */
+    public void add(TaskTrace taskTrace) {
+        tasks.add(taskTrace);
+    }
+
+    /**
+     * Marks the request finished. It must be called after all its tasks
+     * have completed.
+     */
+    public synchronized void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Formats the stages of the tasks as the value of the Server-Timing
+     * HTTP header. The stages are described by the partition and the task.
+     */
+    public String toServerTiming() {
+        var builder = new StringBuilder();
+        for (var task : tasks) {
+            var description = task.getPartition() + " " + task.getTaskName();
+            appendMetric(builder, "wait", description, task.getWaitMillis());
+            appendMetric(builder, "queue", description, task.getQueueMillis());
+            appendMetric(builder, "pass1", description, task.getFirstPassMillis());
+            if (task.getPassCount() > 1) {
+                appendMetric(builder, "pass2", description, task.getLaterPassesMillis());
+            }
+        }
+        appendMetric(builder, "total", null, getTotalMillis());
+        return builder.toString();
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, String description,
+                                     double millis) {
+        if (builder.length() > 0) {
+            builder.append(", ");
+        }
+        builder.append(name);
+        if (description != null) {
+            builder.append(";desc=\"").append(description).append('"');
+        }
+        builder.append(";dur=").append(String.format(Locale.ROOT, "%.3f", millis));
+    }
+}
@@ -0,0 +1,88 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+/**
+ * Bounds the cost of the scan building a similarity table at the expense of
+ * its exactness. The scan may be cut short by a deadline and may compare
+ * the set with a sample of the other sets.
+ */
+public class ScanOptions {
+    /**
+     * The options of the scan comparing the set with every other one.
+     */
+    public static final ScanOptions FULL = new ScanOptions(false, 0, false, 1.0);
+
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+    private final boolean keepScanning;
+    private final double samplingRate;
+
+    /**
+     * @param hasDeadline Whether the scan is cut short by the deadline.
+     * @param deadlineNanos The System.nanoTime() value of the deadline.
+     * @param keepScanning Whether the task keeps scanning after the deadline,
+     *                     so that the full table is built anyway, or releases
+     *                     its place in the pass.
+     * @param samplingRate The fraction of the preference sets to compare the
+     *                     set with.
+     */
+    public ScanOptions(boolean hasDeadline, long deadlineNanos, boolean keepScanning,
+                       double samplingRate) {
+        this.hasDeadline = hasDeadline;
+        this.deadlineNanos = deadlineNanos;
+        this.keepScanning = keepScanning;
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * Returns the options of the scan cut short the time after now.
+     *
+     * @param maxLatencyMillis The time the table must be built in.
+     * @param keepScanning Whether the task keeps scanning after the deadline.
+     */
+    public ScanOptions withMaxLatency(long maxLatencyMillis, boolean keepScanning) {
+        return new ScanOptions(true, System.nanoTime() + maxLatencyMillis * 1_000_000,
+                keepScanning, samplingRate);
+    }
+
+    /**
+     * Returns the options of the scan comparing the set with a sample of
+     * the other sets.
+     *
+     * @param samplingRate The fraction of the sets to sample.
+     */
+    public ScanOptions withSamplingRate(double samplingRate) {
+        return new ScanOptions(hasDeadline, deadlineNanos, keepScanning, samplingRate);
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public boolean isKeepingScanning() {
+        return keepScanning;
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns true if the set is compared with a sample of the other sets.
+     */
+    public boolean isSampling() {
+        return samplingRate < 1.0;
+    }
+
+    /**
+     * Returns true if the deadline has passed.
+     *
+     * @param nowNanos The current System.nanoTime() value.
+     */
+    public boolean isExpired(long nowNanos) {
+        return hasDeadline && nowNanos - deadlineNanos >= 0;
+    }
+}
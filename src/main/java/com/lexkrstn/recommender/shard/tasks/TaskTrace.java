@@ -0,0 +1,114 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+/**
+ * The timestamps of the stages a task of the RecommenderThread goes through.
+ * They're set by the thread running the task, except for the enqueue time,
+ * and read only after the task completion.
+ */
+public class TaskTrace {
+    private final String taskName;
+    private String partition;
+    private long enqueuedNanos;
+    /**
+     * The time of the first pass boundary the task has met in the queue.
+     */
+    private long boundaryNanos;
+    private long takenNanos;
+    private long firstPassStartNanos;
+    private long firstPassEndNanos;
+    private long lastPassEndNanos;
+    private long completedNanos;
+    private int passCount;
+
+    public TaskTrace(String taskName) {
+        this.taskName = taskName;
+    }
+
+    public String getTaskName() {
+        return taskName;
+    }
+
+    /**
+     * Returns the name of the thread that has run the task.
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    public int getPassCount() {
+        return passCount;
+    }
+
+    /**
+     * Returns the time the task has waited for the pass running at the
+     * moment it was added to finish.
+     */
+    public double getWaitMillis() {
+        return toMillis(boundaryNanos - enqueuedNanos);
+    }
+
+    /**
+     * Returns the time the task has been left in the queue by the batch
+     * size limit after the first pass boundary.
+     */
+    public double getQueueMillis() {
+        return toMillis(takenNanos - boundaryNanos);
+    }
+
+    public double getFirstPassMillis() {
+        return toMillis(firstPassEndNanos - firstPassStartNanos);
+    }
+
+    /**
+     * Returns the time from the end of the first pass to the end of the last
+     * one, which is zero if the task has completed in a single pass.
+     */
+    public double getLaterPassesMillis() {
+        return toMillis(lastPassEndNanos - firstPassEndNanos);
+    }
+
+    /**
+     * Returns the time from adding the task to its completion.
+     */
+    public double getTotalMillis() {
+        return toMillis(completedNanos - enqueuedNanos);
+    }
+
+    public void markEnqueued(String partition) {
+        this.partition = partition;
+        enqueuedNanos = System.nanoTime();
+    }
+
+    public void markBoundary(long nanos) {
+        if (boundaryNanos == 0) {
+            boundaryNanos = nanos;
+        }
+    }
+
+    public void markTaken(long nanos) {
+        markBoundary(nanos);
+        takenNanos = nanos;
+    }
+
+    public void markPassStarted(long nanos) {
+        if (passCount == 0) {
+            firstPassStartNanos = nanos;
+        }
+        passCount++;
+    }
+
+    public void markPassEnded(long nanos) {
+        if (passCount == 1) {
+            firstPassEndNanos = nanos;
+        }
+        lastPassEndNanos = nanos;
+    }
+
+    public void markCompleted() {
+        completedNanos = System.nanoTime();
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.max(0, nanos) / 1e6;
+    }
+}
@@ -1,7 +1,7 @@
 package com.lexkrstn.recommender.shard.tasks;
 
 import com.lexkrstn.recommender.shard.io.PreferenceChangeBulk;
-import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
 import com.lexkrstn.recommender.shard.models.Preference;
 
 /**
@@ -10,6 +10,7 @@ import com.lexkrstn.recommender.shard.models.Preference;
 public class UnpreferTask extends AbstractTask implements WithPreference {
     private Preference preference;
     private PreferenceChangeBulk changeBulk;
+    private boolean found = false;
     private boolean affected = false;
 
     public UnpreferTask(Preference preference, PreferenceChangeBulk changeBulk) {
@@ -23,10 +24,27 @@ public class UnpreferTask extends AbstractTask implements WithPreference {
     }
 
     @Override
-    public void processPreferenceSet(PreferenceSet preferenceSet) {
+    public boolean isWriting() {
+        return true;
+    }
+
+    @Override
+    public boolean isInterestedIn(long ownerId, int entityCount) {
+        return ownerId == preference.getOwnerId();
+    }
+
+    @Override
+    public boolean isResolved() {
+        return found;
+    }
+
+    @Override
+    public void processPreferenceSet(PreferenceSetView preferenceSet) {
         if (preference.getOwnerId() == preferenceSet.getOwnerId()) {
+            found = true;
             if (preferenceSet.has(preference.getEntityId())) {
-                changeBulk.removePreference(preferenceSet, preference.getEntityId());
+                changeBulk.removePreference(preferenceSet.toPreferenceSet(),
+                        preference.getEntityId());
                 affected = true;
             }
         }
@@ -0,0 +1,55 @@
+package com.lexkrstn.recommender.shard;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PassBatcherTest {
+    /**
+     * Runs the passes whose scans take the fixed time plus the time per
+     * task and returns the resulting read batch size.
+     */
+    private static int simulate(PassBatcher batcher, long fixedNanos, long taskNanos, int passes) {
+        for (int i = 0; i < passes; i++) {
+            int taskCount = batcher.getReadBatchSize();
+            batcher.recordPass(taskCount, fixedNanos + taskNanos * taskCount, 0, 0);
+        }
+        return batcher.getReadBatchSize();
+    }
+
+    @Test
+    void sizesBatchByBudgetLessFixedCost() {
+        var batcher = new PassBatcher(500, 5000, 200, 10000, 0);
+        // 100 ms a pass plus 0.5 ms a task fit 800 tasks into 500 ms
+        int batchSize = simulate(batcher, 100_000_000, 500_000, 30);
+        assertEquals(800, batchSize, 8);
+    }
+
+    @Test
+    void doesNotShrinkTheBatchForTheFixedCost() {
+        var batcher = new PassBatcher(500, 5000, 200, 10000, 0);
+        // Attributing 400 ms of a pass to its tasks would keep the batch
+        // far below the 1000 tasks fitting the budget
+        int batchSize = simulate(batcher, 400_000_000, 100_000, 30);
+        assertEquals(1000, batchSize, 10);
+    }
+
+    @Test
+    void takesMaximumBatchWhenFixedCostExceedsBudget() {
+        var batcher = new PassBatcher(500, 2000, 200, 10000, 0);
+        int batchSize = simulate(batcher, 600_000_000, 10_000, 30);
+        assertEquals(2000, batchSize);
+    }
+
+    @Test
+    void sizesWriteBatchByItsOwnBudget() {
+        var batcher = new PassBatcher(500, 1000, 200, 10000, 0);
+        for (int i = 0; i < 30; i++) {
+            int taskCount = batcher.getWriteBatchSize();
+            batcher.recordPass(0, 0, taskCount, 50_000_000 + 30_000L * taskCount);
+        }
+        // (200 - 50) ms / 30 us
+        assertEquals(5000, batcher.getWriteBatchSize(), 50);
+        assertEquals(100, batcher.getReadBatchSize());
+    }
+}
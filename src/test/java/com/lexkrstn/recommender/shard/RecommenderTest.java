@@ -0,0 +1,253 @@
+package com.lexkrstn.recommender.shard;
+
+import com.lexkrstn.recommender.shard.io.*;
+import com.lexkrstn.recommender.shard.models.Preference;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecommenderTest {
+    @TempDir
+    Path directory;
+    private EntityDictionary dictionary;
+    private final List<Recommender> recommenders = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dictionary = new EntityDictionary(directory.resolve("entities").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (var recommender : recommenders) {
+            recommender.quit();
+        }
+        dictionary.close();
+    }
+
+    /**
+     * Creates the recommender of the partitions whose files are named after
+     * the given one.
+     */
+    private Recommender createRecommender(String name, int partitionCount, long maxChangeBytes)
+            throws IOException {
+        List<RecommenderThread> partitions = new ArrayList<>();
+        for (int i = 0; i < partitionCount; i++) {
+            var dataFilePath = directory.resolve(name + "-" + i).toString();
+            partitions.add(new RecommenderThread(
+                    new PreferenceFile(dataFilePath, dictionary, 0, 1024),
+                    new PassBatcher(500, 1000, 200, 10000, 0),
+                    new NeighbourStore(dataFilePath + ".neighbours", 10, 10, 60000),
+                    new ItemMatrixStore(dataFilePath + ".items", 10),
+                    new OwnerFilterStore(dataFilePath + ".owners"),
+                    maxChangeBytes));
+        }
+        var recommender = new Recommender(partitions, 0, 1 << 20);
+        recommenders.add(recommender);
+        return recommender;
+    }
+
+    /**
+     * Creates the sets of the random owners out of 0 to 199 of 1 to 5
+     * entities each.
+     */
+    private static Map<Long, PreferenceSet> createSets(Random random) {
+        Map<Long, PreferenceSet> sets = new TreeMap<>();
+        for (long ownerId = 0; ownerId < 200; ownerId++) {
+            if (random.nextInt(3) != 0) {
+                continue;
+            }
+            Set<Long> entityIds = new TreeSet<>();
+            int entityCount = 1 + random.nextInt(5);
+            while (entityIds.size() < entityCount) {
+                entityIds.add((long) random.nextInt(50));
+            }
+            sets.put(ownerId, new PreferenceSet(ownerId, 0, entityIds, 0));
+        }
+        return sets;
+    }
+
+    private static List<PreferenceSet> readSpoolFile(Path spoolPath) throws IOException {
+        List<PreferenceSet> sets = new ArrayList<>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spoolPath)))) {
+            PreferenceStream.readHeader(in);
+            PreferenceSet preferenceSet;
+            while ((preferenceSet = PreferenceStream.readPreferenceSet(in)) != null) {
+                sets.add(preferenceSet);
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Exports the owner ID range page by page the way a client follows the
+     * next owner IDs.
+     */
+    private List<PreferenceSet> exportAll(Recommender recommender, long fromOwnerId,
+                                          long toOwnerId, int limit) throws Exception {
+        List<PreferenceSet> exported = new ArrayList<>();
+        var spoolPath = directory.resolve("export");
+        Long nextOwnerId = fromOwnerId;
+        int pageCount = 0;
+        while (nextOwnerId != null) {
+            assertTrue(++pageCount <= 1000, "Paging doesn't end");
+            long pageFromOwnerId = nextOwnerId;
+            nextOwnerId = recommender.exportPreferences(pageFromOwnerId, toOwnerId, limit,
+                                                        spoolPath).get();
+            var page = readSpoolFile(spoolPath);
+            assertTrue(page.size() <= limit, "Page from " + pageFromOwnerId);
+            for (var preferenceSet : page) {
+                assertTrue(preferenceSet.getOwnerId() >= pageFromOwnerId);
+                if (nextOwnerId != null) {
+                    assertTrue(preferenceSet.getOwnerId() < nextOwnerId,
+                               "Page from " + pageFromOwnerId);
+                }
+            }
+            if (nextOwnerId != null) {
+                assertTrue(nextOwnerId > pageFromOwnerId);
+            }
+            exported.addAll(page);
+        }
+        return exported;
+    }
+
+    private static void assertExported(Map<Long, PreferenceSet> sets, long fromOwnerId,
+                                       long toOwnerId, List<PreferenceSet> exported) {
+        List<Long> ownerIds = new ArrayList<>();
+        for (var preferenceSet : exported) {
+            ownerIds.add(preferenceSet.getOwnerId());
+            assertEquals(sets.get(preferenceSet.getOwnerId()).getEntityIds(),
+                         preferenceSet.getEntityIds());
+        }
+        List<Long> expectedOwnerIds = new ArrayList<>();
+        for (long ownerId : sets.keySet()) {
+            if (ownerId >= fromOwnerId && ownerId <= toOwnerId) {
+                expectedOwnerIds.add(ownerId);
+            }
+        }
+        assertEquals(expectedOwnerIds, ownerIds);
+    }
+
+    @Test
+    void exportsEveryOwnerOnceAcrossPartitionPages() throws Exception {
+        final var random = new Random(11);
+        final var sets = createSets(random);
+        final var recommender = createRecommender("data", 3, 0);
+        assertEquals(sets.size(),
+                     recommender.importPreferences(new ArrayList<>(sets.values())).get());
+        for (int limit : new int[] { 1, 2, 3, 7, 100 }) {
+            assertExported(sets, 0, Long.MAX_VALUE,
+                           exportAll(recommender, 0, Long.MAX_VALUE, limit));
+        }
+        // The range bounds fall between and onto the owners
+        long fromOwnerId = sets.keySet().stream().skip(5).findFirst().orElseThrow();
+        long toOwnerId = sets.keySet().stream().skip(40).findFirst().orElseThrow() + 1;
+        for (int limit : new int[] { 1, 4 }) {
+            assertExported(sets, fromOwnerId, toOwnerId,
+                           exportAll(recommender, fromOwnerId, toOwnerId, limit));
+            assertExported(sets, fromOwnerId + 1, toOwnerId - 1,
+                           exportAll(recommender, fromOwnerId + 1, toOwnerId - 1, limit));
+        }
+    }
+
+    @Test
+    void endsPagingOnLastPage() throws Exception {
+        final var sets = createSets(new Random(13));
+        final var recommender = createRecommender("data", 2, 0);
+        recommender.importPreferences(new ArrayList<>(sets.values())).get();
+        final long lastOwnerId = ((TreeMap<Long, PreferenceSet>) sets).lastKey();
+        final var spoolPath = directory.resolve("export");
+        // The page has room for the rest of the sets
+        long fromOwnerId = ((TreeMap<Long, PreferenceSet>) sets).headMap(lastOwnerId).lastKey();
+        assertNull(recommender.exportPreferences(fromOwnerId, Long.MAX_VALUE, 3, spoolPath).get());
+        assertEquals(2, readSpoolFile(spoolPath).size());
+        // A full page ending on the range bound
+        assertNull(recommender.exportPreferences(fromOwnerId, lastOwnerId, 2, spoolPath).get());
+        assertEquals(2, readSpoolFile(spoolPath).size());
+        // No sets beyond the last owner
+        assertNull(recommender.exportPreferences(lastOwnerId + 1, Long.MAX_VALUE, 2,
+                                                 spoolPath).get());
+        assertTrue(readSpoolFile(spoolPath).isEmpty());
+    }
+
+    /**
+     * Writes batches of random preferences of the cached owners, the others
+     * and the new ones reading the sets of the written owners after every
+     * batch.
+     *
+     * @param maxChangeBytes The memory the changes of a pass may take before
+     *                       they're spilled.
+     */
+    private void assertReadsCurrentSetsAfterWrites(long maxChangeBytes) throws Exception {
+        final var random = new Random(17);
+        final var recommender = createRecommender("data", 2, maxChangeBytes);
+        final Map<Long, Set<Long>> expected = new TreeMap<>();
+        List<PreferenceSet> sets = new ArrayList<>();
+        for (long ownerId = 0; ownerId < 2000; ownerId++) {
+            Set<Long> entityIds = new TreeSet<>();
+            entityIds.add(ownerId % 50);
+            sets.add(new PreferenceSet(ownerId, 0, entityIds, 0));
+            expected.put(ownerId, new TreeSet<>(entityIds));
+        }
+        recommender.importPreferences(sets).get();
+        // The owners read twice are kept by the cache
+        for (long ownerId = 0; ownerId < 100; ownerId++) {
+            assertEquals(List.copyOf(expected.get(ownerId)),
+                         recommender.getPreferences(ownerId).get());
+            assertEquals(List.copyOf(expected.get(ownerId)),
+                         recommender.getPreferences(ownerId).get());
+        }
+        List<Long> ownerIds = new ArrayList<>();
+        for (long ownerId = 0; ownerId < 2100; ownerId++) {
+            ownerIds.add(ownerId);
+        }
+        for (int batch = 0; batch < 5; batch++) {
+            // Enough owners for the scan to spill the changes, each written
+            // once, as the concurrent writes of an owner aren't ordered
+            Collections.shuffle(ownerIds, random);
+            final var writtenOwnerIds = ownerIds.subList(0, 1200);
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (long ownerId : writtenOwnerIds) {
+                var entityIds = expected.computeIfAbsent(ownerId, key -> new TreeSet<>());
+                if (!entityIds.isEmpty() && random.nextInt(3) == 0) {
+                    long entityId = entityIds.iterator().next();
+                    entityIds.remove(entityId);
+                    futures.add(recommender.removePreference(new Preference(ownerId, entityId)));
+                } else {
+                    long entityId = 100 + random.nextInt(50);
+                    entityIds.add(entityId);
+                    futures.add(recommender.addPreference(new Preference(ownerId, entityId)));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            for (long ownerId : writtenOwnerIds) {
+                var entityIds = recommender.getPreferences(ownerId).get();
+                assertEquals(List.copyOf(expected.get(ownerId)),
+                             entityIds != null ? entityIds : List.of(),
+                             "Batch " + batch + ", owner " + ownerId);
+            }
+        }
+    }
+
+    @Test
+    void readsCurrentSetsAfterWrites() throws Exception {
+        assertReadsCurrentSetsAfterWrites(0);
+    }
+
+    @Test
+    void readsCurrentSetsAfterSpilledWrites() throws Exception {
+        assertReadsCurrentSetsAfterWrites(1);
+    }
+}
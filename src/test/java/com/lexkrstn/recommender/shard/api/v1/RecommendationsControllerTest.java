@@ -0,0 +1,71 @@
+package com.lexkrstn.recommender.shard.api.v1;
+
+import com.lexkrstn.recommender.shard.Recommender;
+import com.lexkrstn.recommender.shard.TraceBuffer;
+import com.lexkrstn.recommender.shard.api.RecommendationListConverter;
+import com.lexkrstn.recommender.shard.models.RecommendationList;
+import com.lexkrstn.recommender.shard.models.RecommendationResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(RecommendationsController.class)
+class RecommendationsControllerTest {
+    @Autowired
+    private MockMvc mockMvc;
+    @MockBean
+    private Recommender recommender;
+    @MockBean
+    private TraceBuffer traceBuffer;
+
+    @BeforeEach
+    void setUp() {
+        // Sized beyond the list, as the pooled buffers are
+        var recommendations = new RecommendationList(new long[] { 7, 3, 9, 0 },
+                                                     new float[] { 2.5f, 1.0f, 0.25f, 0 }, 3);
+        when(recommender.recommend(eq(1L), any(), any(), any())).thenReturn(
+                CompletableFuture.completedFuture(RecommendationResult.of(recommendations)));
+    }
+
+    @Test
+    void writesJsonByDefault() throws Exception {
+        mockMvc.perform(get("/api/v1/owners/1/recommendations"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().json("[{\"entityId\":7,\"weight\":2.5},"
+                                          + "{\"entityId\":3,\"weight\":1.0},"
+                                          + "{\"entityId\":9,\"weight\":0.25}]", true));
+    }
+
+    @Test
+    void writesBinaryFormatWhenAccepted() throws Exception {
+        var result = mockMvc.perform(get("/api/v1/owners/1/recommendations")
+                                             .accept(RecommendationListConverter.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(RecommendationListConverter.MEDIA_TYPE))
+                .andExpect(header().longValue("Content-Length", 3 * 12))
+                .andReturn();
+        var body = ByteBuffer.wrap(result.getResponse().getContentAsByteArray());
+        assertEquals(3 * 12, body.remaining());
+        assertEquals(7, body.getLong());
+        assertEquals(2.5f, body.getFloat());
+        assertEquals(3, body.getLong());
+        assertEquals(1.0f, body.getFloat());
+        assertEquals(9, body.getLong());
+        assertEquals(0.25f, body.getFloat());
+    }
+}
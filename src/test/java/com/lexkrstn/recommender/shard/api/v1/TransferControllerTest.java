@@ -0,0 +1,69 @@
+package com.lexkrstn.recommender.shard.api.v1;
+
+import com.lexkrstn.recommender.shard.Recommender;
+import com.lexkrstn.recommender.shard.TraceBuffer;
+import com.lexkrstn.recommender.shard.io.PreferenceStream;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(TransferController.class)
+class TransferControllerTest {
+    @Autowired
+    private MockMvc mockMvc;
+    @MockBean
+    private Recommender recommender;
+    @MockBean
+    private TraceBuffer traceBuffer;
+
+    /**
+     * Makes the recommender write an empty page and return the next owner
+     * ID.
+     */
+    private void mockExport(long fromOwnerId, Long nextOwnerId) {
+        when(recommender.exportPreferences(eq(fromOwnerId), eq(Long.MAX_VALUE), eq(2), any()))
+                .thenAnswer(invocation -> {
+                    Path spoolPath = invocation.getArgument(3);
+                    try (var out = new DataOutputStream(Files.newOutputStream(spoolPath))) {
+                        PreferenceStream.writeHeader(out);
+                    }
+                    return CompletableFuture.completedFuture(nextOwnerId);
+                });
+    }
+
+    @Test
+    void pointsToNextPage() throws Exception {
+        mockExport(0, 5L);
+        var result = mockMvc.perform(get("/api/v1/owners/export?from=0&limit=2"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Owner-Id", "5"));
+    }
+
+    @Test
+    void omitsNextOwnerIdOnLastPage() throws Exception {
+        mockExport(5, null);
+        var result = mockMvc.perform(get("/api/v1/owners/export?from=5&limit=2"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Owner-Id"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OwnerFilterStoreTest {
+    @TempDir
+    Path directory;
+
+    private static PreferenceSet createSet(long ownerId) {
+        return new PreferenceSet(ownerId, 0, new TreeSet<>(Set.of(ownerId + 1, ownerId + 2)), 0);
+    }
+
+    @Test
+    void rejectsOnlyByFilterTaggedWithCurrentSequence() throws Exception {
+        final String dataPath = directory.resolve("data").toString();
+        final String filterPath = directory.resolve("data.owners").toString();
+        try (var file = new PreferenceFile(dataPath)) {
+            file.add(List.of(createSet(1), createSet(2)));
+            file.flush();
+            var store = new OwnerFilterStore(filterPath);
+            store.startBuilding(file.getPreferenceSetCount());
+            store.add(1);
+            store.add(2);
+            store.finishBuilding(file.getChangeSequence());
+            store.save();
+        }
+        try (var file = new PreferenceFile(dataPath)) {
+            var store = new OwnerFilterStore(filterPath);
+            assertTrue(store.load(file.getChangeSequence()));
+            assertTrue(store.mightContain(1));
+            assertFalse(store.mightContain(3));
+            // The owner is added without saving the filter, as by a crash
+            // before the checkpoint
+            file.add(List.of(createSet(3)));
+            file.flush();
+        }
+        try (var file = new PreferenceFile(dataPath)) {
+            var store = new OwnerFilterStore(filterPath);
+            assertFalse(store.load(file.getChangeSequence()));
+            assertTrue(store.mightContain(3));
+            assertTrue(store.mightContain(4));
+        }
+    }
+}
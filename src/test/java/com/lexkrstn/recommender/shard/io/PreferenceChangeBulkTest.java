@@ -0,0 +1,133 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.Preference;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreferenceChangeBulkTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * Counts the deletions and the additions executed by the sweeps.
+     */
+    private static class CountingFile extends PreferenceFile {
+        private int deleteCount = 0;
+        private int addCount = 0;
+
+        CountingFile(String filePath, EntityDictionary dictionary) throws IOException {
+            super(filePath, dictionary, 0, 1024);
+        }
+
+        @Override
+        public void delete(PreferenceSetBatch preferenceSets) throws IOException {
+            deleteCount++;
+            super.delete(preferenceSets);
+        }
+
+        @Override
+        public void add(PreferenceSetBatch preferenceSets) throws IOException {
+            addCount++;
+            super.add(preferenceSets);
+        }
+    }
+
+    private static Map<Long, PreferenceSet> readAll(PreferenceFile file) throws IOException {
+        final Map<Long, PreferenceSet> sets = new HashMap<>();
+        file.rewind();
+        while (file.next()) {
+            var set = file.getCurrent().toPreferenceSet();
+            assertNull(sets.put(set.getOwnerId(), set), "Owner " + set.getOwnerId() + " read twice");
+        }
+        return sets;
+    }
+
+    @Test
+    void executesSpilledChangesMergedWithOnesInMemory() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = new CountingFile(directory.resolve("data").toString(), dictionary)) {
+            final Map<Long, Set<Long>> expected = new HashMap<>();
+            List<PreferenceSet> sets = new ArrayList<>();
+            for (long ownerId = 0; ownerId < 200; ownerId++) {
+                Set<Long> entityIds = new TreeSet<>();
+                for (int i = 0; i < ownerId % 13; i++) {
+                    entityIds.add(ownerId * 100 + i);
+                }
+                sets.add(new PreferenceSet(ownerId, 0, entityIds, 0));
+                expected.put(ownerId, new TreeSet<>(entityIds));
+            }
+            file.add(sets);
+            file.flush();
+            final Map<Long, PreferenceSet> originals = readAll(file);
+            // The sets as the scan reads them
+            Map<Long, PreferenceSet> stored = originals;
+
+            final var bulk = new PreferenceChangeBulk(file, 4096);
+            final Map<Long, Set<Long>> notified = new HashMap<>();
+            bulk.addChangeListener((original, preferenceSet) -> notified.put(
+                    preferenceSet.getOwnerId(), new TreeSet<>(preferenceSet.getEntityIds())));
+            final var random = new Random(5);
+            int spillCount = 0;
+            for (int i = 0; i < 600; i++) {
+                final long ownerId = random.nextInt(260);
+                final long entityId = 50_000 + random.nextInt(40);
+                if (ownerId >= 200) {
+                    bulk.addPreference(new Preference(ownerId, entityId));
+                    expected.computeIfAbsent(ownerId, key -> new TreeSet<>()).add(entityId);
+                } else if (random.nextInt(4) == 0 && !expected.get(ownerId).isEmpty()) {
+                    long removedId = expected.get(ownerId).iterator().next();
+                    bulk.removePreference(stored.get(ownerId), removedId);
+                    expected.get(ownerId).remove(removedId);
+                } else {
+                    bulk.addPreference(stored.get(ownerId), entityId);
+                    expected.get(ownerId).add(entityId);
+                }
+                if (bulk.isOverBudget()) {
+                    bulk.spill();
+                    spillCount++;
+                    // The spilled changes are read back, while the sets
+                    // rewritten in place are read anew
+                    stored = readAll(file);
+                }
+            }
+            assertTrue(spillCount > 1, "The bulk hasn't been spilled");
+            final long sequence = file.getChangeSequence();
+            file.deleteCount = 0;
+            file.addCount = 0;
+
+            bulk.execute();
+            assertEquals(1, file.deleteCount);
+            assertEquals(1, file.addCount);
+            assertNotEquals(sequence, file.getChangeSequence());
+            final Map<Long, Set<Long>> actual = new HashMap<>();
+            readAll(file).forEach((ownerId, set) -> actual.put(ownerId, set.getEntityIds()));
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), file.getPreferenceSetCount());
+            for (var entry : notified.entrySet()) {
+                assertEquals(expected.get(entry.getKey()), entry.getValue(),
+                             "Notified set of owner " + entry.getKey());
+            }
+            for (var entry : expected.entrySet()) {
+                var set = originals.get(entry.getKey());
+                if (set == null || !set.getEntityIds().equals(entry.getValue())) {
+                    assertTrue(notified.containsKey(entry.getKey()),
+                               "Owner " + entry.getKey() + " not notified");
+                }
+            }
+
+            // The spill has been cleared
+            notified.clear();
+            bulk.execute();
+            assertTrue(notified.isEmpty());
+            assertEquals(1, file.deleteCount);
+            bulk.close();
+        }
+    }
+}
@@ -0,0 +1,795 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreferenceFileTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * Creates a set of the owner having the given number of entities.
+     */
+    private static PreferenceSet createSet(long ownerId, int entityCount) {
+        Set<Long> entityIds = new TreeSet<>();
+        for (int i = 0; i < entityCount; i++) {
+            entityIds.add(ownerId * 1000 + i);
+        }
+        return new PreferenceSet(ownerId, 0, entityIds, 0);
+    }
+
+    /**
+     * Creates the sets of the owners from the first one on, sized from 0 to
+     * 99 entities, so that they fall into the first 7 segments.
+     */
+    private static List<PreferenceSet> createSets(long firstOwnerId, int count) {
+        List<PreferenceSet> sets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long ownerId = firstOwnerId + i;
+            sets.add(createSet(ownerId, (int) (ownerId * 37 % 100)));
+        }
+        return sets;
+    }
+
+    /**
+     * Reads the rest of the scan.
+     */
+    private static List<PreferenceSet> readAll(PreferenceFile file) throws Exception {
+        List<PreferenceSet> sets = new ArrayList<>();
+        while (file.next()) {
+            sets.add(file.getCurrent().toPreferenceSet());
+        }
+        return sets;
+    }
+
+    /**
+     * Returns the segment of the set of the size.
+     */
+    private static int getSizeClass(int entityCount) {
+        return entityCount < 2 ? 0 : 31 - Integer.numberOfLeadingZeros(entityCount);
+    }
+
+    /**
+     * Reads the whole file checking it holds exactly the expected sets.
+     */
+    private static void assertContent(Map<Long, Set<Long>> expected, PreferenceFile file)
+            throws Exception {
+        file.rewind();
+        Map<Long, Set<Long>> actual = new HashMap<>();
+        for (var set : readAll(file)) {
+            assertNull(actual.put(set.getOwnerId(), set.getEntityIds()),
+                       "Owner " + set.getOwnerId() + " read twice");
+        }
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), file.getPreferenceSetCount());
+        assertEquals(expected.values().stream().mapToLong(Set::size).sum(),
+                     file.getPreferenceCount());
+    }
+
+    private PreferenceFile open(EntityDictionary dictionary) throws Exception {
+        // Small chunks make the scan cross them in the middle of a segment
+        return new PreferenceFile(directory.resolve("data").toString(), dictionary, 2, 256);
+    }
+
+    @Test
+    void scanReadsEveryPreexistingSetOnceDespiteChangesMidScan() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = open(dictionary)) {
+            file.add(createSets(0, 300));
+            file.flush();
+            file.rewind();
+            final Map<Long, PreferenceSet> stored = new HashMap<>();
+            for (var set : readAll(file)) {
+                stored.put(set.getOwnerId(), set);
+            }
+            assertEquals(300, stored.size());
+
+            file.rewind();
+            final Map<Long, Integer> readCounts = new HashMap<>();
+            for (int i = 0; i < 120 && file.next(); i++) {
+                readCounts.merge(file.getCurrent().getOwnerId(), 1, Integer::sum);
+            }
+            // Every 7th set is deleted, whether it has been read or not
+            final List<PreferenceSet> deleted = new ArrayList<>();
+            for (var set : stored.values()) {
+                if (set.getOwnerId() % 7 == 0) {
+                    deleted.add(set);
+                }
+            }
+            final Set<Long> deletedUnread = new HashSet<>();
+            for (var set : deleted) {
+                if (!readCounts.containsKey(set.getOwnerId())) {
+                    deletedUnread.add(set.getOwnerId());
+                }
+            }
+            file.delete(deleted);
+            file.add(createSets(1000, 50));
+            assertEquals(300 - deleted.size(), file.getScanPreferenceSetCount());
+            assertEquals(350 - deleted.size(), file.getPreferenceSetCount());
+
+            for (var set : readAll(file)) {
+                assertEquals(stored.get(set.getOwnerId()).getEntityIds(), set.getEntityIds());
+                readCounts.merge(set.getOwnerId(), 1, Integer::sum);
+            }
+            for (var entry : stored.entrySet()) {
+                long ownerId = entry.getKey();
+                int expectedCount = deletedUnread.contains(ownerId) ? 0 : 1;
+                assertEquals(expectedCount, readCounts.getOrDefault(ownerId, 0),
+                             "Read count of owner " + ownerId);
+            }
+            for (long ownerId = 1000; ownerId < 1050; ownerId++) {
+                assertFalse(readCounts.containsKey(ownerId), "Added owner " + ownerId + " read");
+            }
+            assertEquals(300 - deleted.size(), file.getScanPreferenceSetCount());
+        }
+    }
+
+    @Test
+    void scanCutShortReadsSetsOfAllSizesInProportion() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = open(dictionary)) {
+            file.add(createSets(0, 600));
+            file.flush();
+            final int[] segmentSetCounts = new int[7];
+            for (var set : createSets(0, 600)) {
+                segmentSetCounts[getSizeClass(set.getEntityCount())]++;
+            }
+            for (int scan = 0; scan < 3; scan++) {
+                file.rewind();
+                final int[] readCounts = new int[7];
+                for (int i = 0; i < 150 && file.next(); i++) {
+                    readCounts[getSizeClass(file.getCurrent().getEntityCount())]++;
+                }
+                for (int i = 0; i < readCounts.length; i++) {
+                    double share = (double) readCounts[i] / segmentSetCounts[i];
+                    assertTrue(share > 0.1 && share < 0.5,
+                               "Read " + readCounts[i] + " of " + segmentSetCounts[i]
+                               + " sets of segment " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    void skipsSegmentRejectedPartwayThroughScan() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = open(dictionary)) {
+            file.add(createSets(0, 600));
+            file.flush();
+            // As a table filled with the sets of 2 to 3 entities, which
+            // rejects the sets of 64 entities or more once it's full
+            final int[] readCount = { 0 };
+            file.setFilter(new PreferenceSetFilter() {
+                @Override
+                public boolean accept(long ownerId, int entityCount) {
+                    return true;
+                }
+
+                @Override
+                public boolean acceptSizeRange(int minEntityCount, int maxEntityCount) {
+                    return readCount[0] < 100 || minEntityCount < 64;
+                }
+
+                @Override
+                public int getPreferredEntityCount() {
+                    return 3;
+                }
+            });
+            file.rewind();
+            assertTrue(file.next());
+            assertEquals(1, getSizeClass(file.getCurrent().getEntityCount()),
+                         "The preferred segment isn't read first");
+            int farSetCount = 0;
+            int farSetsReadLate = 0;
+            do {
+                readCount[0]++;
+                if (getSizeClass(file.getCurrent().getEntityCount()) == 6) {
+                    farSetCount++;
+                    if (readCount[0] > 100) {
+                        farSetsReadLate++;
+                    }
+                }
+            } while (file.next());
+            long expectedFarSetCount = createSets(0, 600).stream()
+                    .filter(set -> set.getEntityCount() >= 64)
+                    .count();
+            assertTrue(farSetCount > 0 && farSetCount < expectedFarSetCount / 2,
+                       "Read " + farSetCount + " of " + expectedFarSetCount + " far sets");
+            // The stripe being read when the segment is rejected is finished
+            assertTrue(farSetsReadLate < expectedFarSetCount / 10);
+            assertEquals(600, file.getScannedPreferenceSetCount());
+            assertEquals(600 - expectedFarSetCount + farSetCount, readCount[0]);
+        }
+    }
+
+    @Test
+    void changeSequenceChangesWithEveryWriteOnly() throws Exception {
+        final String dictionaryPath = directory.resolve("entities").toString();
+        long sequence;
+        try (var dictionary = new EntityDictionary(dictionaryPath);
+             var file = open(dictionary)) {
+            final Set<Long> sequences = new HashSet<>();
+            sequences.add(file.getChangeSequence());
+            file.add(createSets(0, 20));
+            assertTrue(sequences.add(file.getChangeSequence()));
+            file.rewind();
+            var stored = readAll(file);
+            var original = stored.get(0);
+            var rewritten = new PreferenceSet(original.getOwnerId(), original.getCapacity(),
+                                              new TreeSet<>(original.getEntityIds()),
+                                              original.getOffset());
+            if (!rewritten.getEntityIds().isEmpty()) {
+                rewritten.getEntityIds().remove(rewritten.getEntityIds().iterator().next());
+            }
+            assertTrue(file.tryQuickRewrite(original, rewritten));
+            assertTrue(sequences.add(file.getChangeSequence()));
+            file.delete(List.of(stored.get(5)));
+            assertTrue(sequences.add(file.getChangeSequence()));
+            sequence = file.getChangeSequence();
+            file.flush();
+            assertEquals(sequence, file.getChangeSequence());
+        }
+        try (var dictionary = new EntityDictionary(dictionaryPath);
+             var file = open(dictionary)) {
+            assertEquals(sequence, file.getChangeSequence());
+        }
+    }
+
+    @Test
+    void storesSetsInSegmentsOfTheirSizeClasses() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = open(dictionary)) {
+            // Added in several calls, so that the later ones insert into the
+            // middle of the file
+            file.add(createSets(0, 100));
+            file.add(createSets(100, 100));
+            file.add(List.of(createSet(500, 3000)));
+            file.rewind();
+            final Map<Integer, long[]> offsetRanges = new TreeMap<>();
+            for (var set : readAll(file)) {
+                long[] range = offsetRanges.computeIfAbsent(getSizeClass(set.getEntityCount()),
+                        key -> new long[] { Long.MAX_VALUE, Long.MIN_VALUE });
+                range[0] = Math.min(range[0], set.getOffset());
+                range[1] = Math.max(range[1], set.getOffset());
+            }
+            long previousEnd = Long.MIN_VALUE;
+            for (var range : offsetRanges.values()) {
+                assertTrue(range[0] > previousEnd, "Segments overlap or are out of order");
+                previousEnd = range[1];
+            }
+            assertEquals(Set.of(0, 1, 2, 3, 4, 5, 6, 11), offsetRanges.keySet());
+            long histogramCount = 0;
+            for (var bin : file.getSizeHistogram().getBins()) {
+                histogramCount += bin.getSetCount();
+                assertEquals(bin.getMinEntityCount() == 0 ? 2 : 2 * bin.getMinEntityCount(),
+                             bin.getMaxEntityCount() + 1);
+            }
+            assertEquals(201, histogramCount);
+
+            // The segments of the rejected sizes aren't read at all
+            file.setFilter(new PreferenceSetFilter() {
+                @Override
+                public boolean accept(long ownerId, int entityCount) {
+                    return true;
+                }
+
+                @Override
+                public boolean acceptSizeRange(int minEntityCount, int maxEntityCount) {
+                    return minEntityCount >= 16 && maxEntityCount < 64;
+                }
+            });
+            file.rewind();
+            var filtered = readAll(file);
+            assertFalse(filtered.isEmpty());
+            for (var set : filtered) {
+                assertTrue(set.getEntityCount() >= 16 && set.getEntityCount() < 64);
+            }
+            assertEquals(201, file.getScannedPreferenceSetCount());
+        }
+    }
+
+    @Test
+    void keepsSetsIntactWhileSegmentsAreMoved() throws Exception {
+        final String dictionaryPath = directory.resolve("entities").toString();
+        final Map<Long, Set<Long>> expected = new HashMap<>();
+        final var random = new Random(3);
+        long nextOwnerId = 0;
+        try (var dictionary = new EntityDictionary(dictionaryPath);
+             var file = open(dictionary)) {
+            for (int round = 0; round < 30; round++) {
+                // Deleting moves the following data towards the beginning,
+                // adding moves it towards the end
+                file.rewind();
+                List<PreferenceSet> deleted = new ArrayList<>();
+                for (var set : readAll(file)) {
+                    if (random.nextInt(5) == 0) {
+                        deleted.add(set);
+                        expected.remove(set.getOwnerId());
+                    }
+                }
+                file.delete(deleted);
+                assertContent(expected, file);
+                List<PreferenceSet> added = new ArrayList<>();
+                for (int i = random.nextInt(30); i > 0; i--) {
+                    // Mostly small sets, so that the larger ones are moved
+                    int entityCount = random.nextInt(4) == 0 ? random.nextInt(600) : random.nextInt(6);
+                    var set = createSet(nextOwnerId++, entityCount);
+                    added.add(set);
+                    expected.put(set.getOwnerId(), set.getEntityIds());
+                }
+                file.add(added);
+                assertContent(expected, file);
+            }
+        }
+        try (var dictionary = new EntityDictionary(dictionaryPath);
+             var file = open(dictionary)) {
+            assertContent(expected, file);
+        }
+    }
+
+    /**
+     * Writes the set the way the versions 1 to 3 do, leaving a spare entity.
+     */
+    private static void writeLegacySet(DataOutputStream out, PreferenceSet set, boolean checksummed)
+            throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var data = new DataOutputStream(bytes);
+        data.writeLong(set.getOwnerId());
+        data.writeInt(set.getEntityCount() + 1);
+        data.writeInt(set.getEntityCount());
+        for (var entityId : set.getEntityIds()) {
+            data.writeLong(entityId);
+        }
+        byte[] written = bytes.toByteArray();
+        out.write(written, 0, 16);
+        if (checksummed) {
+            var crc = new CRC32();
+            crc.update(written);
+            out.writeInt((int) crc.getValue());
+        }
+        out.write(written, 16, written.length - 16);
+        out.writeLong(0); // Unused capacity
+    }
+
+    private static long getLegacySetSize(PreferenceSet set, boolean checksummed) {
+        return (checksummed ? 20 : 16) + 8L * (set.getEntityCount() + 1);
+    }
+
+    /**
+     * Writes a version 3 header copy.
+     */
+    private static void writeVersion3Header(DataOutputStream out, List<PreferenceSet> sets,
+                                            long sequence, int dirtySegment) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var header = new DataOutputStream(bytes);
+        long[] setCounts = new long[31];
+        long[] dataSizes = new long[31];
+        long[] preferenceCounts = new long[31];
+        for (var set : sets) {
+            int sizeClass = getSizeClass(set.getEntityCount() + 1);
+            setCounts[sizeClass]++;
+            dataSizes[sizeClass] += getLegacySetSize(set, true);
+            preferenceCounts[sizeClass] += set.getEntityCount();
+        }
+        header.write(new byte[] { 0x50, 0x52, 0x45, 0x46, 3 });
+        header.writeLong(sequence);
+        header.writeLong(12345); // Change time
+        header.writeLong(sets.size());
+        header.writeLong(Arrays.stream(preferenceCounts).sum());
+        header.writeLong(Arrays.stream(dataSizes).sum());
+        header.writeInt(dirtySegment);
+        for (int i = 0; i < 31; i++) {
+            header.writeLong(setCounts[i]);
+            header.writeLong(dataSizes[i]);
+            header.writeLong(preferenceCounts[i]);
+        }
+        var crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        header.writeInt((int) crc.getValue());
+        out.write(bytes.toByteArray());
+    }
+
+    /**
+     * Orders the sets the way the segmented versions store them.
+     */
+    private static List<PreferenceSet> sortBySizeClass(List<PreferenceSet> sets) {
+        List<PreferenceSet> sorted = new ArrayList<>(sets);
+        sorted.sort(Comparator.comparingInt(set -> getSizeClass(set.getEntityCount() + 1)));
+        return sorted;
+    }
+
+    private static Map<Long, Set<Long>> toContent(List<PreferenceSet> sets) {
+        final Map<Long, Set<Long>> content = new HashMap<>();
+        for (var set : sets) {
+            content.put(set.getOwnerId(), set.getEntityIds());
+        }
+        return content;
+    }
+
+    /**
+     * Opens the file of an earlier version checking it's upgraded to hold
+     * the expected sets and accepts changes afterwards.
+     */
+    private static void assertUpgraded(String path, Map<Long, Set<Long>> expected)
+            throws Exception {
+        try (var file = new PreferenceFile(path)) {
+            assertContent(expected, file);
+            assertEquals(12345, file.getChangeSequence());
+            file.add(List.of(createSet(1000, 5)));
+            expected.put(1000L, createSet(1000, 5).getEntityIds());
+        }
+        try (var file = new PreferenceFile(path)) {
+            assertContent(expected, file);
+        }
+    }
+
+    @Test
+    void upgradesVersion1File() throws Exception {
+        final String path = directory.resolve("data").toString();
+        final List<PreferenceSet> sets = createSets(0, 150);
+        try (var out = new DataOutputStream(new FileOutputStream(path))) {
+            out.write(new byte[] { 0x50, 0x52, 0x45, 0x46, 1 });
+            out.writeLong(12345); // Change time
+            out.writeLong(sets.size());
+            out.writeLong(sets.stream().mapToLong(PreferenceSet::getEntityCount).sum());
+            out.writeLong(sets.stream().mapToLong(set -> getLegacySetSize(set, false)).sum());
+            for (var set : sets) {
+                writeLegacySet(out, set, false);
+            }
+        }
+        assertUpgraded(path, toContent(sets));
+    }
+
+    @Test
+    void upgradesVersion2File() throws Exception {
+        final String path = directory.resolve("data").toString();
+        final List<PreferenceSet> sets = sortBySizeClass(createSets(0, 150));
+        try (var out = new DataOutputStream(new FileOutputStream(path))) {
+            long[] setCounts = new long[31];
+            long[] dataSizes = new long[31];
+            for (var set : sets) {
+                setCounts[getSizeClass(set.getEntityCount() + 1)]++;
+                dataSizes[getSizeClass(set.getEntityCount() + 1)] += getLegacySetSize(set, false);
+            }
+            out.write(new byte[] { 0x50, 0x52, 0x45, 0x46, 2 });
+            out.writeLong(12345); // Change time
+            out.writeLong(sets.size());
+            out.writeLong(sets.stream().mapToLong(PreferenceSet::getEntityCount).sum());
+            out.writeLong(Arrays.stream(dataSizes).sum());
+            for (int i = 0; i < 31; i++) {
+                out.writeLong(setCounts[i]);
+                out.writeLong(dataSizes[i]);
+            }
+            for (var set : sets) {
+                writeLegacySet(out, set, false);
+            }
+        }
+        assertUpgraded(path, toContent(sets));
+    }
+
+    @Test
+    void upgradesVersion3File() throws Exception {
+        final String path = directory.resolve("data").toString();
+        final List<PreferenceSet> sets = sortBySizeClass(createSets(0, 150));
+        try (var out = new DataOutputStream(new FileOutputStream(path))) {
+            // The first copy is the actual one
+            writeVersion3Header(out, sets, 8, -1);
+            writeVersion3Header(out, sets.subList(0, 10), 7, -1);
+            for (var set : sets) {
+                writeLegacySet(out, set, true);
+            }
+        }
+        assertUpgraded(path, toContent(sets));
+    }
+
+    @Test
+    void upgradesDirtyVersion3FileDroppingInvalidSets() throws Exception {
+        final String path = directory.resolve("data").toString();
+        final List<PreferenceSet> sets = sortBySizeClass(createSets(0, 150));
+        try (var out = new DataOutputStream(new FileOutputStream(path))) {
+            // The header hasn't been updated by the interrupted change
+            writeVersion3Header(out, sets.subList(0, 100), 7, -1);
+            writeVersion3Header(out, sets.subList(0, 100), 8, 2);
+            for (var set : sets) {
+                writeLegacySet(out, set, true);
+            }
+            // A copy left by a move and a set whose entities weren't written
+            writeLegacySet(out, sets.get(120), true);
+            var bytes = new ByteArrayOutputStream();
+            writeLegacySet(new DataOutputStream(bytes), createSet(500, 10), true);
+            byte[] torn = bytes.toByteArray();
+            Arrays.fill(torn, 40, torn.length, (byte) 0);
+            out.write(torn);
+        }
+        assertUpgraded(path, toContent(sets));
+    }
+
+    /**
+     * Reads the whole file recovered after a change has been interrupted
+     * checking it holds every set the change hasn't touched and nothing
+     * but the original or the new versions of the ones it has.
+     */
+    private static void assertRecovered(Map<Long, Set<Long>> kept, Map<Long, Set<Long>> touched,
+                                        PreferenceFile file) throws Exception {
+        file.rewind();
+        final Set<Long> ownerIds = new HashSet<>();
+        long preferenceCount = 0;
+        for (var set : readAll(file)) {
+            assertTrue(ownerIds.add(set.getOwnerId()), "Owner " + set.getOwnerId() + " read twice");
+            var expected = kept.containsKey(set.getOwnerId())
+                    ? kept.get(set.getOwnerId())
+                    : touched.get(set.getOwnerId());
+            assertEquals(expected, set.getEntityIds(), "Owner " + set.getOwnerId());
+            preferenceCount += set.getEntityCount();
+        }
+        assertTrue(ownerIds.containsAll(kept.keySet()), "Valid sets lost");
+        assertEquals(ownerIds.size(), file.getPreferenceSetCount());
+        assertEquals(preferenceCount, file.getPreferenceCount());
+    }
+
+    /**
+     * Returns the number of the bytes of the write to make before it fails,
+     * which is the size for the write to succeed.
+     */
+    private interface WriteLimit {
+        int limit(long offset, int size);
+    }
+
+    /**
+     * The file whose writes can be interrupted, so that a change can be cut
+     * short at any point. It moves the data in chunks smaller than the large
+     * sets.
+     */
+    private static class InterruptibleFile extends PreferenceFile {
+        private WriteLimit writeLimit;
+
+        InterruptibleFile(Path path, EntityDictionary dictionary) throws IOException {
+            super(path.toString(), dictionary, 0, 256, 512);
+        }
+
+        @Override
+        int write(ByteBuffer buffer, long offset) throws IOException {
+            final int size = buffer.remaining();
+            final int limit = writeLimit != null ? writeLimit.limit(offset, size) : size;
+            if (limit < size) {
+                buffer.limit(buffer.position() + limit);
+                while (buffer.hasRemaining()) {
+                    super.write(buffer, offset + limit - buffer.remaining());
+                }
+                throw new IOException("The write at " + offset + " has been interrupted");
+            }
+            return super.write(buffer, offset);
+        }
+    }
+
+    /**
+     * Opens the file moving the data in chunks smaller than the large sets.
+     */
+    private static InterruptibleFile openWithSmallMoves(Path path, EntityDictionary dictionary)
+            throws Exception {
+        return new InterruptibleFile(path, dictionary);
+    }
+
+    @Test
+    void opensFileWhoseFirstHeaderIsTorn() throws Exception {
+        // The size of a header copy
+        final int headerSize = 825;
+        byte[] garbage = new byte[headerSize / 2];
+        Arrays.fill(garbage, (byte) 0x5A);
+        // Crashed between writing the second and the first copy of the new
+        // file or in the middle of the first one
+        for (var torn : List.of(new byte[headerSize], garbage)) {
+            final Path trialDirectory = directory.resolve("trial" + torn.length);
+            trialDirectory.toFile().mkdir();
+            final String dictionaryPath = trialDirectory.resolve("entities").toString();
+            final Path path = trialDirectory.resolve("data");
+            new PreferenceFile(path.toString(), new EntityDictionary(dictionaryPath)).close();
+            try (var raw = new RandomAccessFile(path.toFile(), "rw")) {
+                raw.write(torn);
+            }
+            final Map<Long, Set<Long>> expected = new HashMap<>();
+            try (var dictionary = new EntityDictionary(dictionaryPath);
+                 var file = new PreferenceFile(path.toString(), dictionary, 2, 256)) {
+                assertContent(expected, file);
+                final List<PreferenceSet> sets = createSets(0, 100);
+                file.add(sets);
+                for (var set : sets) {
+                    expected.put(set.getOwnerId(), set.getEntityIds());
+                }
+            }
+            try (var dictionary = new EntityDictionary(dictionaryPath);
+                 var file = new PreferenceFile(path.toString(), dictionary, 2, 256)) {
+                assertContent(expected, file);
+            }
+        }
+    }
+
+    @Test
+    void keepsEveryValidSetWhenChangeIsInterrupted() throws Exception {
+        final var random = new Random(11);
+        boolean completed = false;
+        for (int writeCount = 1; !completed; writeCount++) {
+            final Path trialDirectory = directory.resolve("trial" + writeCount);
+            trialDirectory.toFile().mkdir();
+            final String dictionaryPath = trialDirectory.resolve("entities").toString();
+            final Path path = trialDirectory.resolve("data");
+            final Map<Long, Set<Long>> kept = new HashMap<>();
+            final Map<Long, Set<Long>> touched = new HashMap<>();
+            final List<PreferenceSet> deleted = new ArrayList<>();
+            final List<PreferenceSet> added = new ArrayList<>();
+            // Crashed without closing
+            var dictionary = new EntityDictionary(dictionaryPath);
+            var file = openWithSmallMoves(path, dictionary);
+            List<PreferenceSet> sets = new ArrayList<>();
+            for (long ownerId = 0; ownerId < 120; ownerId++) {
+                // Mostly small sets along with the ones exceeding the chunks
+                sets.add(createSet(ownerId, ownerId % 10 == 0 ? 150 + (int) ownerId : (int) ownerId % 7));
+            }
+            file.add(sets);
+            file.flush();
+            file.rewind();
+            for (var set : readAll(file)) {
+                if (random.nextInt(6) == 0) {
+                    deleted.add(set);
+                    touched.put(set.getOwnerId(), set.getEntityIds());
+                } else {
+                    kept.put(set.getOwnerId(), set.getEntityIds());
+                }
+            }
+            for (long ownerId = 1000; ownerId < 1020; ownerId++) {
+                var set = createSet(ownerId, ownerId % 5 == 0 ? 200 : (int) ownerId % 9);
+                added.add(set);
+                touched.put(set.getOwnerId(), set.getEntityIds());
+            }
+            final int interruptedWrite = writeCount;
+            final int[] writeIndex = { 0 };
+            file.writeLimit = (offset, size) -> ++writeIndex[0] == interruptedWrite
+                    ? random.nextInt(size)
+                    : size;
+            try {
+                file.delete(deleted);
+                file.add(added);
+                completed = true;
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("interrupted"), e.getMessage());
+            }
+            try (var reopenedDictionary = new EntityDictionary(dictionaryPath);
+                 var reopened = openWithSmallMoves(path, reopenedDictionary)) {
+                assertRecovered(kept, touched, reopened);
+                // The recovered file accepts changes
+                reopened.add(List.of(createSet(5000, 3)));
+                kept.put(5000L, createSet(5000, 3).getEntityIds());
+                assertRecovered(kept, touched, reopened);
+            }
+            assertTrue(writeCount < 1000, "The change hasn't completed");
+        }
+    }
+
+    @Test
+    void completesCopyBackInterruptedByCrash() throws Exception {
+        // The size of both header copies
+        final long dataOffset = 2 * 825;
+        final List<List<Long>> ownerIdOrders = new ArrayList<>();
+        for (boolean interrupted : new boolean[] { false, true }) {
+            final Path trialDirectory = directory.resolve("trial" + interrupted);
+            trialDirectory.toFile().mkdir();
+            final String dictionaryPath = trialDirectory.resolve("entities").toString();
+            final Path path = trialDirectory.resolve("data");
+            final var dictionary = new EntityDictionary(dictionaryPath);
+            final var file = openWithSmallMoves(path, dictionary);
+            file.add(createSets(0, 100));
+            file.flush();
+            final long dataEnd = Files.size(path);
+            // The following sets are shifted by less than a chunk, so they're
+            // copied past the data and back
+            final PreferenceSet deleted = createSet(100, 0);
+            file.add(List.of(deleted));
+            file.rewind();
+            final var first = readAll(file).stream()
+                    .filter(set -> set.getOwnerId() == deleted.getOwnerId())
+                    .findFirst()
+                    .orElseThrow();
+            final long fileSize = Files.size(path);
+            if (interrupted) {
+                // Torn amid the large sets, whose original copies are overwritten
+                final boolean[] scratchWritten = { false };
+                final int[] copyBackWrites = { 0 };
+                file.writeLimit = (offset, size) -> {
+                    if (offset >= fileSize) {
+                        scratchWritten[0] = true;
+                    } else if (scratchWritten[0] && offset >= dataOffset
+                               && ++copyBackWrites[0] == 20) {
+                        return size / 2;
+                    }
+                    return size;
+                };
+                assertThrows(IOException.class, () -> file.delete(List.of(first)));
+                // Crashed without closing, so the reopened file recovers
+                dictionary.flush();
+                openWithSmallMoves(path, dictionary).close();
+            } else {
+                file.delete(List.of(first));
+                file.close();
+            }
+            // The scan starts from the segment following the one the
+            // previous scan started from, so the files are read afresh
+            try (dictionary; var reopened = openWithSmallMoves(path, dictionary)) {
+                reopened.rewind();
+                final List<Long> ownerIds = new ArrayList<>();
+                for (var set : readAll(reopened)) {
+                    ownerIds.add(set.getOwnerId());
+                }
+                ownerIdOrders.add(ownerIds);
+                assertEquals(dataEnd, Files.size(path));
+            }
+        }
+        // The sets aren't added anew as if they were found in the scratch copy only
+        assertEquals(ownerIdOrders.get(0), ownerIdOrders.get(1));
+    }
+
+    @Test
+    void recoversSetsFollowingUnparsableData() throws Exception {
+        final String dictionaryPath = directory.resolve("entities").toString();
+        final Path path = directory.resolve("data");
+        final Map<Long, Set<Long>> kept = new HashMap<>();
+        var dictionary = new EntityDictionary(dictionaryPath);
+        var file = openWithSmallMoves(path, dictionary);
+        file.add(createSets(0, 100));
+        file.flush();
+        file.rewind();
+        final List<PreferenceSet> sets = readAll(file);
+        for (var set : sets) {
+            kept.put(set.getOwnerId(), set.getEntityIds());
+        }
+        // Marks the data dirty and crashes right after
+        file.writeLimit = new WriteLimit() {
+            private boolean headerWritten = false;
+
+            @Override
+            public int limit(long offset, int size) {
+                if (headerWritten) {
+                    return 0;
+                }
+                headerWritten = true;
+                return size;
+            }
+        };
+        assertThrows(IOException.class, () -> file.delete(List.of(sets.get(0))));
+        // A capacity making the rest unparsable and a torn set
+        final PreferenceSet unparsable = sets.get(20);
+        final PreferenceSet torn = sets.stream()
+                .filter(set -> set.getEntityCount() > 2 && set.getOffset() > unparsable.getOffset())
+                .findFirst()
+                .orElseThrow();
+        try (var raw = new RandomAccessFile(path.toFile(), "rw")) {
+            raw.seek(unparsable.getOffset() + 8);
+            raw.writeInt(Integer.MAX_VALUE / 8);
+            raw.seek(torn.getOffset() + 20 + 4);
+            raw.writeInt(-1);
+        }
+        kept.remove(unparsable.getOwnerId());
+        kept.remove(torn.getOwnerId());
+        try (var reopenedDictionary = new EntityDictionary(dictionaryPath);
+             var reopened = openWithSmallMoves(path, reopenedDictionary)) {
+            assertContent(kept, reopened);
+        }
+        try (var reopenedDictionary = new EntityDictionary(dictionaryPath);
+             var reopened = openWithSmallMoves(path, reopenedDictionary)) {
+            assertContent(kept, reopened);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.Preference;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreferenceSetCacheTest {
+    /**
+     * The memory a set of a single entity takes.
+     */
+    private static final long SET_BYTES = createSet(0, 1).getMemorySize();
+
+    @TempDir
+    Path directory;
+
+    private static PreferenceSet createSet(long ownerId, long... entityIds) {
+        Set<Long> ids = new TreeSet<>();
+        for (long entityId : entityIds) {
+            ids.add(entityId);
+        }
+        return new PreferenceSet(ownerId, 0, ids, 0);
+    }
+
+    private static Map<Long, PreferenceSet> readAll(PreferenceFile file) throws IOException {
+        final Map<Long, PreferenceSet> sets = new HashMap<>();
+        file.rewind();
+        while (file.next()) {
+            var set = file.getCurrent().toPreferenceSet();
+            sets.put(set.getOwnerId(), set);
+        }
+        return sets;
+    }
+
+    /**
+     * Asserts that every cached set is the one stored for its owner.
+     */
+    private static void assertCoherent(PreferenceSetCache cache, Map<Long, PreferenceSet> stored,
+                                       Collection<Long> ownerIds) {
+        for (var ownerId : ownerIds) {
+            var cachedSet = cache.get(ownerId);
+            if (cachedSet != null) {
+                assertNotNull(stored.get(ownerId), "Owner " + ownerId + " cached");
+                assertEquals(stored.get(ownerId).getEntityIds(), cachedSet.getEntityIds(),
+                             "Cached set of owner " + ownerId);
+            }
+        }
+    }
+
+    @Test
+    void keepsSetsReadAgainDuringBurstOfNewOwners() {
+        final var cache = new PreferenceSetCache(SET_BYTES * 10);
+        for (long ownerId = 0; ownerId < 5; ownerId++) {
+            cache.admit(createSet(ownerId, 1));
+            assertNotNull(cache.get(ownerId));
+        }
+        for (long ownerId = 100; ownerId < 200; ownerId++) {
+            cache.admit(createSet(ownerId, 1));
+        }
+        for (long ownerId = 0; ownerId < 5; ownerId++) {
+            assertNotNull(cache.get(ownerId), "Owner " + ownerId);
+        }
+        // The owners read once evict each other from the least recently used
+        assertNull(cache.get(100));
+        assertNotNull(cache.get(199));
+    }
+
+    @Test
+    void demotesLeastRecentlyUsedProtectedSets() {
+        final var cache = new PreferenceSetCache(SET_BYTES * 10);
+        // The protected segment fits 8 sets
+        for (long ownerId = 0; ownerId < 10; ownerId++) {
+            cache.admit(createSet(ownerId, 1));
+            assertNotNull(cache.get(ownerId));
+        }
+        for (long ownerId = 100; ownerId < 110; ownerId++) {
+            cache.admit(createSet(ownerId, 1));
+        }
+        assertNull(cache.get(0));
+        assertNull(cache.get(1));
+        for (long ownerId = 2; ownerId < 10; ownerId++) {
+            assertNotNull(cache.get(ownerId), "Owner " + ownerId);
+        }
+    }
+
+    @Test
+    void doesNotAdmitSetTakingMostOfMemory() {
+        final var cache = new PreferenceSetCache(SET_BYTES * 10);
+        cache.admit(createSet(0, 1, 2, 3, 4, 5));
+        assertNull(cache.get(0));
+        // Nor keeps the previous set of the owner
+        cache.admit(createSet(1, 1));
+        cache.admit(createSet(1, 1, 2, 3, 4, 5));
+        assertNull(cache.get(1));
+        assertNull(new PreferenceSetCache(0).get(0));
+    }
+
+    @Test
+    void replacesSetUponChange() {
+        final var cache = new PreferenceSetCache(SET_BYTES * 10);
+        final var original = createSet(0, 1);
+        cache.admit(original);
+        assertSame(original, cache.get(0));
+        final var changed = createSet(0, 2);
+        cache.onChanged(original, changed);
+        assertSame(changed, cache.get(0));
+        // The changed set stays protected
+        for (long ownerId = 100; ownerId < 200; ownerId++) {
+            cache.admit(createSet(ownerId, 1));
+        }
+        assertSame(changed, cache.get(0));
+        // The changes of the owners not cached are admitted too
+        final var added = createSet(1, 3);
+        cache.onChanged(null, added);
+        assertSame(added, cache.get(1));
+    }
+
+    @Test
+    void staysCoherentWithSpilledChanges() throws Exception {
+        try (var dictionary = new EntityDictionary(directory.resolve("entities").toString());
+             var file = new PreferenceFile(directory.resolve("data").toString(), dictionary,
+                                           0, 1024)) {
+            List<PreferenceSet> sets = new ArrayList<>();
+            for (long ownerId = 0; ownerId < 200; ownerId++) {
+                Set<Long> entityIds = new TreeSet<>();
+                for (int i = 0; i < ownerId % 5; i++) {
+                    entityIds.add(ownerId * 100 + i);
+                }
+                sets.add(new PreferenceSet(ownerId, 0, entityIds, 0));
+            }
+            file.add(sets);
+            file.flush();
+            final var cache = new PreferenceSetCache(1 << 20);
+            Map<Long, PreferenceSet> stored = readAll(file);
+            stored.values().forEach(cache::admit);
+            final var ownerIds = new TreeSet<Long>();
+            for (long ownerId = 0; ownerId < 260; ownerId++) {
+                ownerIds.add(ownerId);
+            }
+
+            final var bulk = new PreferenceChangeBulk(file, 4096);
+            bulk.addChangeListener(cache);
+            final var random = new Random(9);
+            int spillCount = 0;
+            for (int i = 0; i < 600; i++) {
+                final long ownerId = random.nextInt(260);
+                final long entityId = 50_000 + random.nextInt(40);
+                final var storedSet = stored.get(ownerId);
+                if (storedSet == null) {
+                    bulk.addPreference(new Preference(ownerId, entityId));
+                } else if (random.nextInt(3) == 0 && !storedSet.getEntityIds().isEmpty()) {
+                    bulk.removePreference(storedSet, storedSet.getEntityIds().iterator().next());
+                } else {
+                    bulk.addPreference(storedSet, entityId);
+                }
+                if (bulk.isOverBudget()) {
+                    bulk.spill();
+                    spillCount++;
+                    // The sets rewritten in place have been passed to the
+                    // cache, while the spilled ones are yet to be written
+                    stored = readAll(file);
+                    assertCoherent(cache, stored, ownerIds);
+                }
+            }
+            assertTrue(spillCount > 1, "The bulk hasn't been spilled");
+            bulk.execute();
+            stored = readAll(file);
+            assertCoherent(cache, stored, ownerIds);
+            bulk.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.lexkrstn.recommender.shard.io;
+
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.SimilarityTable;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimilarityTableCacheTest {
+    private static final int MAX_ROWS = 6;
+    private static final long OWNER_ID = 0;
+
+    private static PreferenceSet createSet(long ownerId, Collection<Long> entityIds) {
+        return new PreferenceSet(ownerId, 0, new TreeSet<>(entityIds), 0);
+    }
+
+    /**
+     * Creates the sets of the owners from 0 to 29 of up to 8 entities out
+     * of 16, so that many of them are as similar to the owner's one.
+     */
+    private static Map<Long, PreferenceSet> createSets(Random random) {
+        Map<Long, PreferenceSet> sets = new TreeMap<>();
+        for (long ownerId = 0; ownerId < 30; ownerId++) {
+            Set<Long> entityIds = new TreeSet<>();
+            int entityCount = ownerId == OWNER_ID ? 6 : random.nextInt(9);
+            while (entityIds.size() < entityCount) {
+                entityIds.add((long) random.nextInt(16));
+            }
+            sets.put(ownerId, createSet(ownerId, entityIds));
+        }
+        return sets;
+    }
+
+    /**
+     * Builds the owner's table from scratch the way the scan does.
+     */
+    private static SimilarityTable build(Map<Long, PreferenceSet> sets) {
+        final var ownerSet = sets.get(OWNER_ID);
+        var table = new SimilarityTable(ownerSet, MAX_ROWS);
+        for (var preferenceSet : sets.values()) {
+            table.put(preferenceSet, preferenceSet.getSimilarityWith(ownerSet));
+        }
+        table.setCoverage(sets.size(), sets.size(), 1.0);
+        return table;
+    }
+
+    private static void cache(SimilarityTableCache cache, Map<Long, PreferenceSet> sets) {
+        assertNotNull(cache.finishBuilding(cache.startBuilding(), build(sets)));
+        assertNotNull(cache.getRecommendationList(OWNER_ID));
+    }
+
+    /**
+     * Prefers or unprefers a random entity by another owner.
+     *
+     * @return The original set of the owner.
+     */
+    private static PreferenceSet change(Map<Long, PreferenceSet> sets, long ownerId,
+                                        Random random) {
+        var original = sets.get(ownerId);
+        Set<Long> entityIds = new TreeSet<>(original.getEntityIds());
+        long entityId = random.nextInt(16);
+        if (!entityIds.remove(entityId)) {
+            entityIds.add(entityId);
+        }
+        sets.put(ownerId, createSet(ownerId, entityIds));
+        return original;
+    }
+
+    @Test
+    void cachedTableMatchesRebuiltOneAfterChanges() {
+        final var random = new Random(7);
+        final var sets = createSets(random);
+        final var cache = new SimilarityTableCache(4);
+        cache(cache, sets);
+        int keptCount = 0;
+        int droppedCount = 0;
+        for (int i = 0; i < 500; i++) {
+            long ownerId = 1 + random.nextInt(29);
+            var original = change(sets, ownerId, random);
+            cache.onChanged(original, sets.get(ownerId));
+            var recommendations = cache.getRecommendationList(OWNER_ID);
+            if (recommendations != null) {
+                assertEquals(build(sets).getRecommendationList(), recommendations,
+                             "Change " + i);
+                keptCount++;
+            } else {
+                // A row of the full table has been outranked
+                droppedCount++;
+                cache(cache, sets);
+            }
+        }
+        assertTrue(keptCount > 0);
+        assertTrue(droppedCount > 0);
+    }
+
+    @Test
+    void dropsTableAfterOwnerChangesSeveralTimes() {
+        final var random = new Random(3);
+        final var sets = createSets(random);
+        final var cache = new SimilarityTableCache(4);
+        cache(cache, sets);
+        for (int i = 0; i < 10; i++) {
+            var original = change(sets, OWNER_ID, random);
+            cache.onChanged(original, sets.get(OWNER_ID));
+            assertNotNull(cache.getRecommendationList(OWNER_ID), "Change " + i);
+        }
+        var original = change(sets, OWNER_ID, random);
+        cache.onChanged(original, sets.get(OWNER_ID));
+        assertNull(cache.getRecommendationList(OWNER_ID));
+    }
+
+    @Test
+    void replaysChangesExecutedWhileBuilding() {
+        final var random = new Random(5);
+        int cachedCount = 0;
+        int droppedCount = 0;
+        for (int trial = 0; trial < 50; trial++) {
+            final var sets = createSets(random);
+            final var cache = new SimilarityTableCache(4);
+            var build = cache.startBuilding();
+            // The scan has read the sets before they've changed, but for
+            // the ones changed first, which it has read afterwards
+            final var scannedSets = new TreeMap<>(sets);
+            for (int i = 0; i < 5; i++) {
+                long ownerId = 1 + random.nextInt(29);
+                var original = change(sets, ownerId, random);
+                cache.onChanged(original, sets.get(ownerId));
+                if (i < 2) {
+                    scannedSets.put(ownerId, sets.get(ownerId));
+                }
+            }
+            var result = cache.finishBuilding(build, build(scannedSets));
+            var recommendations = cache.getRecommendationList(OWNER_ID);
+            if (recommendations != null) {
+                assertEquals(build(sets).getRecommendationList(), result.getRecommendations(),
+                             "Trial " + trial);
+                assertEquals(result.getRecommendations(), recommendations);
+                cachedCount++;
+            } else {
+                droppedCount++;
+            }
+            // Changes of the finished build aren't recorded anymore
+            long ownerId = 1 + random.nextInt(29);
+            var original = change(sets, ownerId, random);
+            cache.onChanged(original, sets.get(ownerId));
+            recommendations = cache.getRecommendationList(OWNER_ID);
+            if (recommendations != null) {
+                assertEquals(build(sets).getRecommendationList(), recommendations,
+                             "Trial " + trial);
+            }
+        }
+        assertTrue(cachedCount > 0);
+        assertTrue(droppedCount > 0);
+    }
+}
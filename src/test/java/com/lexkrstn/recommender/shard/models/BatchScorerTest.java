@@ -0,0 +1,90 @@
+package com.lexkrstn.recommender.shard.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchScorerTest {
+    /**
+     * Maps the entity IDs to the dense ones in the order they're met.
+     */
+    private static class Mapping implements EntityIdMapping {
+        private final List<Long> entityIds = new ArrayList<>();
+        private final Map<Long, Integer> ids = new HashMap<>();
+
+        int getOrAddId(long entityId) {
+            return ids.computeIfAbsent(entityId, key -> {
+                entityIds.add(key);
+                return entityIds.size() - 1;
+            });
+        }
+
+        @Override
+        public int getId(long entityId) {
+            return ids.getOrDefault(entityId, -1);
+        }
+
+        @Override
+        public long getEntityId(int id) {
+            return entityIds.get(id);
+        }
+
+        @Override
+        public int size() {
+            return entityIds.size();
+        }
+    }
+
+    private static PreferenceSet createSet(Random random, long ownerId, int maxEntityCount) {
+        Set<Long> entityIds = new TreeSet<>();
+        int entityCount = random.nextInt(maxEntityCount + 1);
+        for (int i = 0; i < entityCount; i++) {
+            entityIds.add((long) random.nextInt(500) * 1_000_003L);
+        }
+        return new PreferenceSet(ownerId, 0, entityIds, 0);
+    }
+
+    private static PreferenceSetView createView(Mapping mapping, PreferenceSet preferenceSet) {
+        var view = new PreferenceSetView(mapping);
+        int[] ids = view.reset(preferenceSet.getOwnerId(), preferenceSet.getEntityCount(),
+                               preferenceSet.getEntityCount(), 0);
+        int i = 0;
+        for (var entityId : preferenceSet.getEntityIds()) {
+            ids[i++] = mapping.getOrAddId(entityId);
+        }
+        view.sortIds();
+        return view;
+    }
+
+    @Test
+    void countsCommonEntitiesAcrossReusingPasses() {
+        final var random = new Random(7);
+        final var mapping = new Mapping();
+        final var scorer = new BatchScorer();
+        // The passes differ in the number and the sizes of the compared sets,
+        // so the arrays are both grown and reused
+        for (int pass = 0; pass < 20; pass++) {
+            scorer.clear();
+            List<PreferenceSet> comparedSets = new ArrayList<>();
+            int comparedCount = 1 + random.nextInt(pass % 2 == 0 ? 5 : 60);
+            for (int i = 0; i < comparedCount; i++) {
+                var preferenceSet = createSet(random, i, 1 + random.nextInt(200));
+                comparedSets.add(preferenceSet);
+                assertEquals(i, scorer.add(preferenceSet));
+            }
+            for (int s = 0; s < 50; s++) {
+                // The scanned sets bring new entities into the mapping
+                var scannedSet = createSet(random, 1000 + s, 100);
+                scorer.score(createView(mapping, scannedSet));
+                for (int i = 0; i < comparedCount; i++) {
+                    long expected = comparedSets.get(i).getEntityIds().stream()
+                            .filter(scannedSet::has)
+                            .count();
+                    assertEquals(expected, scorer.getConjunction(i), "Pass " + pass + " set " + i);
+                }
+            }
+        }
+    }
+}
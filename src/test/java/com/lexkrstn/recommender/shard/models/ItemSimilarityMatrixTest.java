@@ -0,0 +1,103 @@
+package com.lexkrstn.recommender.shard.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ItemSimilarityMatrixTest {
+    private static Map<Long, Integer> toMap(CooccurrenceCounters counters) {
+        Map<Long, Integer> map = new HashMap<>();
+        for (int i = 0; i < counters.size(); i++) {
+            assertNull(map.put(counters.getEntityId(i), counters.getCount(i)),
+                       "Entity " + counters.getEntityId(i) + " counted twice");
+        }
+        return map;
+    }
+
+    @Test
+    void countersAreExactWithinCapacity() {
+        final var random = new Random(3);
+        final var counters = new CooccurrenceCounters(1000);
+        final Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            // The IDs collide in the index, and the counts drop to 0 often
+            long entityId = random.nextInt(300) * 1024L;
+            int delta = random.nextInt(3) == 0 ? -1 : 1;
+            counters.add(entityId, delta);
+            int count = expected.getOrDefault(entityId, 0) + delta;
+            if (count > 0) {
+                expected.put(entityId, count);
+            } else {
+                expected.remove(entityId);
+            }
+        }
+        assertEquals(expected, toMap(counters));
+        for (int i = 0; i < counters.size(); i++) {
+            assertEquals(0, counters.getError(i));
+        }
+    }
+
+    @Test
+    void boundedCountersKeepMostFrequentEntities() {
+        final var random = new Random(11);
+        final var counters = new CooccurrenceCounters(16);
+        final Map<Long, Integer> expected = new HashMap<>();
+        List<Long> stream = new ArrayList<>();
+        // Every frequent entity occurs more than 1/16 of the times
+        for (long entityId = 0; entityId < 8; entityId++) {
+            for (int i = 0; i < 100; i++) {
+                stream.add(entityId);
+            }
+        }
+        for (long entityId = 100; entityId < 600; entityId++) {
+            stream.add(entityId);
+        }
+        Collections.shuffle(stream, random);
+        for (var entityId : stream) {
+            counters.add(entityId, 1);
+            expected.merge(entityId, 1, Integer::sum);
+        }
+        assertEquals(16, counters.size());
+        final var tracked = toMap(counters);
+        for (long entityId = 0; entityId < 8; entityId++) {
+            assertTrue(tracked.containsKey(entityId), "Entity " + entityId + " dropped");
+        }
+        for (int i = 0; i < counters.size(); i++) {
+            int actual = expected.get(counters.getEntityId(i));
+            assertTrue(counters.getCount(i) >= actual);
+            assertTrue(counters.getCount(i) - counters.getError(i) <= actual);
+        }
+    }
+
+    @Test
+    void readsWrittenMatrix() throws Exception {
+        final var random = new Random(5);
+        final var matrix = new ItemSimilarityMatrix(5, 10);
+        for (long ownerId = 0; ownerId < 200; ownerId++) {
+            Set<Long> entityIds = new TreeSet<>();
+            int entityCount = random.nextInt(15);
+            for (int i = 0; i < entityCount; i++) {
+                entityIds.add((long) random.nextInt(60));
+            }
+            matrix.applyChange(null, new PreferenceSet(ownerId, 0, entityIds, 0));
+        }
+        var bytes = new ByteArrayOutputStream();
+        matrix.write(new DataOutputStream(bytes));
+        final var copy = new ItemSimilarityMatrix(5, 10);
+        copy.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(matrix.getItemCount(), copy.getItemCount());
+        for (long entityId = 0; entityId < 60; entityId++) {
+            assertEquals(matrix.getPreferenceCount(entityId), copy.getPreferenceCount(entityId));
+            var neighbours = matrix.getNeighbours(entityId);
+            assertTrue(neighbours.length <= 5);
+            assertArrayEquals(neighbours, copy.getNeighbours(entityId), "Entity " + entityId);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.lexkrstn.recommender.shard.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimilarityTableTest {
+    private static final PreferenceSet OWNER_SET = createSet(0, 0, 1, 2, 3, 4, 5);
+
+    private static PreferenceSet createSet(long ownerId, long... entityIds) {
+        Set<Long> ids = new TreeSet<>();
+        for (long entityId : entityIds) {
+            ids.add(entityId);
+        }
+        return new PreferenceSet(ownerId, 0, ids, 0);
+    }
+
+    /**
+     * Builds the table of the owner's set from scratch.
+     */
+    private static SimilarityTable build(PreferenceSet ownerSet, Collection<PreferenceSet> sets,
+                                         int maxRows) {
+        var table = new SimilarityTable(ownerSet, maxRows);
+        for (var preferenceSet : sets) {
+            table.put(preferenceSet, preferenceSet.getSimilarityWith(ownerSet));
+        }
+        return table;
+    }
+
+    private static List<String> getRows(SimilarityTable table) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < table.getRowCount(); i++) {
+            rows.add(table.getRowOwnerId(i) + ":" + table.getRowSimilarity(i));
+        }
+        return rows;
+    }
+
+    /**
+     * The sets of the decreasing similarities with the owner's one.
+     */
+    private static Map<Long, PreferenceSet> createSets() {
+        Map<Long, PreferenceSet> sets = new TreeMap<>();
+        sets.put(1L, createSet(1, 0, 1, 2, 3, 4));
+        sets.put(2L, createSet(2, 0, 1, 2, 3));
+        sets.put(3L, createSet(3, 0, 1, 2));
+        sets.put(4L, createSet(4, 0, 1));
+        sets.put(5L, createSet(5, 0));
+        sets.put(6L, createSet(6, 0, 10));
+        return sets;
+    }
+
+    @Test
+    void keepsFullTableWhileChangedRowPrecedesLastOne() {
+        final var sets = createSets();
+        var table = build(OWNER_SET, sets.values(), 4);
+        // Still more similar than the last row
+        sets.put(2L, createSet(2, 0, 1, 2, 20));
+        assertTrue(table.applyChange(sets.get(2L)));
+        assertEquals(getRows(build(OWNER_SET, sets.values(), 4)), getRows(table));
+        // A set outside the table takes the place of the last row
+        sets.put(6L, createSet(6, 0, 1, 2, 3, 4, 5, 6));
+        assertTrue(table.applyChange(sets.get(6L)));
+        assertEquals(getRows(build(OWNER_SET, sets.values(), 4)), getRows(table));
+        // The row which has been dropped gets into the table again
+        sets.put(4L, createSet(4, 0, 1, 2, 3, 4, 5));
+        assertTrue(table.applyChange(sets.get(4L)));
+        assertEquals(getRows(build(OWNER_SET, sets.values(), 4)), getRows(table));
+    }
+
+    @Test
+    void dropsFullTableWhoseRowIsOutranked() {
+        final var sets = createSets();
+        var table = build(OWNER_SET, sets.values(), 4);
+        // The set of the first row falls below the last row
+        assertFalse(table.applyChange(createSet(1, 0)));
+        table = build(OWNER_SET, sets.values(), 4);
+        // The last row may be outranked by the first set outside the table
+        assertFalse(table.applyChange(createSet(4, 0, 30)));
+        table = build(OWNER_SET, sets.values(), 4);
+        // The last row rises staying the last one
+        sets.put(4L, createSet(4, 0, 1, 2, 30));
+        assertTrue(table.applyChange(sets.get(4L)));
+        assertEquals(getRows(build(OWNER_SET, sets.values(), 4)), getRows(table));
+    }
+
+    @Test
+    void keepsTableWhichIsNotFull() {
+        final var sets = createSets();
+        var table = build(OWNER_SET, sets.values(), 10);
+        sets.put(1L, createSet(1));
+        assertTrue(table.applyChange(sets.get(1L)));
+        assertEquals(getRows(build(OWNER_SET, sets.values(), 10)), getRows(table));
+    }
+
+    @Test
+    void rescoresRowsUponOwnerChange() {
+        final var sets = createSets();
+        var table = build(OWNER_SET, sets.values(), 4);
+        final var ownerSet = createSet(0, 0, 1, 10);
+        table.rescore(ownerSet);
+        assertEquals(ownerSet, table.getPreferenceSet());
+        // The same rows re-scored, though a set outside the table might
+        // have got into the rebuilt one
+        List<PreferenceSet> rowSets = new ArrayList<>();
+        for (int i = 0; i < table.getRowCount(); i++) {
+            rowSets.add(sets.get(table.getRowOwnerId(i)));
+        }
+        assertEquals(getRows(build(ownerSet, rowSets, 4)), getRows(table));
+    }
+}
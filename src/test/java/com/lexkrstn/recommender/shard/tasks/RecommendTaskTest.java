@@ -0,0 +1,143 @@
+package com.lexkrstn.recommender.shard.tasks;
+
+import com.lexkrstn.recommender.shard.models.EntityIdMapping;
+import com.lexkrstn.recommender.shard.models.NeighbourList;
+import com.lexkrstn.recommender.shard.models.PreferenceSet;
+import com.lexkrstn.recommender.shard.models.PreferenceSetView;
+import com.lexkrstn.recommender.shard.models.SimilarityTable;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecommendTaskTest {
+    /**
+     * Maps the entity IDs to the dense IDs of the same values.
+     */
+    private static final EntityIdMapping MAPPING = new EntityIdMapping() {
+        @Override
+        public int getId(long entityId) {
+            return (int) entityId;
+        }
+
+        @Override
+        public long getEntityId(int id) {
+            return id;
+        }
+
+        @Override
+        public int size() {
+            return 1000;
+        }
+    };
+
+    private static PreferenceSet createSet(long ownerId, long... entityIds) {
+        Set<Long> ids = new TreeSet<>();
+        for (long entityId : entityIds) {
+            ids.add(entityId);
+        }
+        return new PreferenceSet(ownerId, 0, ids, 0);
+    }
+
+    private static PreferenceSetView createView(PreferenceSet preferenceSet) {
+        var view = new PreferenceSetView(MAPPING);
+        int[] ids = view.reset(preferenceSet.getOwnerId(), preferenceSet.getEntityCount(),
+                               preferenceSet.getEntityCount(), 0);
+        int i = 0;
+        for (var entityId : preferenceSet.getEntityIds()) {
+            ids[i++] = (int) (long) entityId;
+        }
+        view.sortIds();
+        return view;
+    }
+
+    /**
+     * Returns the options of the scan whose deadline has passed.
+     */
+    private static ScanOptions expiredOptions(boolean keepScanning) {
+        return ScanOptions.FULL.withMaxLatency(0, keepScanning);
+    }
+
+    /**
+     * Sets the scan options of the task recording the table it completes with.
+     */
+    private static RecommendTask createTask(RecommendTask task, ScanOptions scanOptions,
+                                            List<SimilarityTable> completedTables) {
+        task.setScanOptions(scanOptions);
+        task.setCompletionListener(() -> completedTables.add(task.getSimilarityTable()));
+        return task;
+    }
+
+    @Test
+    void expiresQueuedTaskWithEmptyPartialTable() {
+        final List<SimilarityTable> completedTables = new ArrayList<>();
+        var task = createTask(new RecommendTask(1), expiredOptions(false), completedTables);
+        assertTrue(task.isExpired(System.nanoTime()));
+
+        assertTrue(task.expire(0, 100));
+        assertEquals(1, completedTables.size());
+        var table = completedTables.get(0);
+        assertTrue(table.isPartial());
+        assertEquals(0.0, table.getScannedFraction());
+        assertTrue(table.getRecommendationList().isEmpty());
+        assertFalse(task.isExpired(System.nanoTime()));
+    }
+
+    @Test
+    void expiresLookupPassAsNothingCompared() {
+        final List<SimilarityTable> completedTables = new ArrayList<>();
+        var task = createTask(new RecommendTask(1), expiredOptions(false), completedTables);
+        task.processPreferenceSet(createView(createSet(1, 10, 11)));
+        task.processPreferenceSet(createView(createSet(2, 10, 12)));
+        assertTrue(task.isExpired(System.nanoTime()));
+
+        assertTrue(task.expire(50, 100));
+        var table = completedTables.get(0);
+        assertTrue(table.isPartial());
+        assertEquals(0.0, table.getScannedFraction());
+        assertEquals(1, table.getPreferenceSet().getOwnerId());
+    }
+
+    @Test
+    void expiresNeighbourPassWithNeighboursReadSoFar() {
+        final List<SimilarityTable> completedTables = new ArrayList<>();
+        var neighbourList = new NeighbourList(1, new long[] { 2, 3 }, new float[] { 0.5f, 0.4f },
+                                              System.currentTimeMillis());
+        var task = createTask(new RecommendTask(createSet(1, 10, 11), neighbourList),
+                              expiredOptions(false), completedTables);
+        task.processPreferenceSet(createView(createSet(2, 10, 12)));
+        assertTrue(task.isExpired(System.nanoTime()));
+
+        assertTrue(task.expire(50, 100));
+        var table = completedTables.get(0);
+        assertTrue(table.isPartial());
+        assertEquals(0.5, table.getScannedFraction());
+        assertEquals(1, table.getRowCount());
+        assertEquals(2, table.getRowOwnerId(0));
+    }
+
+    @Test
+    void passesPartialTableOfTaskKeepingScanning() {
+        final List<SimilarityTable> completedTables = new ArrayList<>();
+        final List<SimilarityTable> partialTables = new ArrayList<>();
+        var task = createTask(new RecommendTask(1), expiredOptions(true), completedTables);
+        task.setExpiryListener(partialTables::add);
+
+        assertFalse(task.expire(0, 100));
+        assertTrue(completedTables.isEmpty());
+        assertEquals(1, partialTables.size());
+        assertTrue(partialTables.get(0).isPartial());
+        assertFalse(task.isExpired(System.nanoTime()));
+
+        // The task goes on to build the full table
+        task.processPreferenceSet(createView(createSet(1, 10, 11)));
+        assertTrue(task.proceedPass());
+        task.processPreferenceSet(createView(createSet(2, 10, 12)));
+        task.recordFullScan(2);
+        assertFalse(task.proceedPass());
+        assertEquals(1, completedTables.size());
+        assertFalse(completedTables.get(0).isPartial());
+        assertEquals(1, completedTables.get(0).getRowCount());
+    }
+}